@@ -0,0 +1,163 @@
+/**
+ * Copyright 2014 NetApp Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.nfs;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.nfs.nfs3.FileHandle;
+
+/**
+ * Attributes of files and directories by file handle, trusted for a while after the server sent
+ * them, like the attribute cache of an NFS mount (acregmin, acregmax, acdirmin and acdirmax). The
+ * time an entry is trusted starts at the minimum for its type, doubles every time the server sends
+ * the same attributes again, up to the maximum, and drops back to the minimum when they change.
+ * Caching is off for a type whose minimum is 0. The least recently used entries go first once the
+ * cache is full.
+ */
+public class AttributeCache {
+
+  public static final int DEFAULT_SIZE = 1 << 16;
+  public static final int DEFAULT_REG_MIN_MS = 3000;
+  public static final int DEFAULT_REG_MAX_MS = 60000;
+  public static final int DEFAULT_DIR_MIN_MS = 30000;
+  public static final int DEFAULT_DIR_MAX_MS = 60000;
+
+  static class Entry {
+    final NFSv3Attributes attributes = new NFSv3Attributes();
+    long timeout;
+    long expires;
+  }
+
+  private final Map<FileHandle, Entry> entries;
+  private final long regMin;
+  private final long regMax;
+  private final long dirMin;
+  private final long dirMax;
+  private final AtomicLong hits;
+  private final AtomicLong misses;
+
+  public AttributeCache(final int maxEntries, int regMinMs, int regMaxMs, int dirMinMs, int dirMaxMs) {
+    this.regMin = TimeUnit.MILLISECONDS.toNanos(Math.max(0, regMinMs));
+    this.regMax = Math.max(regMin, TimeUnit.MILLISECONDS.toNanos(regMaxMs));
+    this.dirMin = TimeUnit.MILLISECONDS.toNanos(Math.max(0, dirMinMs));
+    this.dirMax = Math.max(dirMin, TimeUnit.MILLISECONDS.toNanos(dirMaxMs));
+    this.hits = new AtomicLong();
+    this.misses = new AtomicLong();
+    this.entries = new LinkedHashMap<FileHandle, Entry>(16, 0.75f, true) {
+      private static final long serialVersionUID = 4411062423174916431L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<FileHandle, Entry> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Copy the attributes of the handle into the holder if they are still trusted. Counts a hit or a
+   * miss.
+   */
+  public boolean get(FileHandle handle, NFSv3Attributes attributes) {
+    long now = System.nanoTime();
+    synchronized (this) {
+      Entry entry = entries.get(handle);
+      if (entry != null && now - entry.expires < 0) {
+        attributes.copyFrom(entry.attributes);
+        hits.incrementAndGet();
+        return true;
+      }
+    }
+    misses.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Attributes of the handle that just came from the server. Replies can come back in any order,
+   * so attributes with an older ctime than the cached ones are dropped.
+   */
+  public void put(FileHandle handle, NFSv3Attributes attributes) {
+    put(handle, attributes, false);
+  }
+
+  /**
+   * Same as above, also when the attributes are older, for a GETATTR that has to win.
+   */
+  public void replace(FileHandle handle, NFSv3Attributes attributes) {
+    put(handle, attributes, true);
+  }
+
+  private void put(FileHandle handle, NFSv3Attributes attributes, boolean always) {
+    long min = attributes.isDirectory() ? dirMin : regMin;
+    long max = attributes.isDirectory() ? dirMax : regMax;
+    if (min == 0) {
+      invalidate(handle);
+      return;
+    }
+    long now = System.nanoTime();
+    synchronized (this) {
+      Entry entry = entries.get(handle);
+      if (entry != null && !always && attributes.ctime < entry.attributes.ctime) {
+        return;
+      }
+      if (entry == null) {
+        entry = new Entry();
+        entry.timeout = min;
+        entries.put(handle, entry);
+      } else if (isUnchanged(entry.attributes, attributes)) {
+        entry.timeout = Math.min(2 * Math.max(entry.timeout, min), max);
+      } else {
+        entry.timeout = min;
+      }
+      entry.attributes.copyFrom(attributes);
+      entry.expires = now + entry.timeout;
+    }
+  }
+
+  /* The object changed or is gone, the next get has to go to the server */
+  public synchronized void invalidate(FileHandle handle) {
+    entries.remove(handle);
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  static boolean isUnchanged(NFSv3Attributes cached, NFSv3Attributes fetched) {
+    return cached.type == fetched.type && cached.size == fetched.size
+        && cached.mtime == fetched.mtime && cached.ctime == fetched.ctime;
+  }
+
+  @Override
+  public String toString() {
+    return "AttributeCache[entries=" + size() + " hits=" + hits.get() + " misses=" + misses.get()
+        + "]";
+  }
+
+}
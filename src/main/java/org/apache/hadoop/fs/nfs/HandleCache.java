@@ -14,63 +14,508 @@
 
 package org.apache.hadoop.fs.nfs;
 
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.Arrays;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.nfs.nfs3.FileHandle;
+import org.apache.hadoop.nfs.nfs3.Nfs3FileHandle;
 
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * File handles by path. A handle is trusted for a while after the server last returned or accepted
+ * it, and used without asking the server again in that time; a handle that turns out stale on use
+ * is removed by the caller.
+ * <p>
+ * Paths are kept as a tree of components, like the dentry cache of a kernel, so that removing or
+ * renaming a directory touches its own subtree only, and an index from handle to path drops a stale
+ * handle at once. Lookups walk the tree without locking; changes take the lock of the cache. Once
+ * the cache is over its memory budget, entries go in CLOCK order: an entry looked up since the
+ * hand last passed it gets another round.
+ * <p>
+ * To keep a million paths in a few hundred bytes each, names are interned and the handles are
+ * packed into a slab of long arrays instead of an object and a byte array per handle. A record in
+ * the slab starts with a header holding its generation and the length of the handle; a lookup
+ * copies the handle out and checks the header did not change meanwhile, so a record freed and
+ * reused under it reads as a miss.
+ */
 public class HandleCache {
 
-	private final Map<String, FileHandle> cacheMap;
-	private int cacheSize;
+	public static final int DEFAULT_TRUST_MS = 30000;
+	public static final long DEFAULT_BUDGET_BYTES = 128L << 20;
+
+	/* Heap taken by a node besides its name and handle: the node, its entry in the parent and its slots on the clock and in the index */
+	static final int NODE_BYTES = 112;
+	/* Heap taken by the children map of a directory */
+	static final int CHILDREN_BYTES = 160;
+
+	/* The same names come back in many directories: part-00000, _SUCCESS, _temporary */
+	private static final Interner<String> NAMES = Interners.newWeakInterner();
+
+	private static final int CHUNK_BITS = 16;
+	private static final int CHUNK_LONGS = 1 << CHUNK_BITS;
+	private static final int MAX_HANDLE_LENGTH = 64;
+	private static final int MAX_RECORD_LONGS = 1 + MAX_HANDLE_LENGTH / 8;
+	private static final long NONE = -1;
+
+	/* Receives the paths of the cache, see visit */
+	public interface Visitor {
+		void visit(String path, FileHandle handle, long validated);
+	}
+
+	/* One component of a path, only changed under the lock of the cache except for referenced */
+	static final class Node {
+		Node parent;
+		String name;
+		volatile ConcurrentHashMap<String, Node> children;
+		/* Offset of the handle in the slab and generation of its record, NONE without a handle */
+		volatile long record = NONE;
+		volatile long validated;
+		volatile boolean referenced;
+		int hash;
+		/* Position on the clock while the node has a handle, -1 otherwise */
+		int slot = -1;
+		/* The next node of the same bucket of the index */
+		Node next;
+	}
+
+	private final Node root;
+	private final long budget;
+	private final long trust;
+	private long used;
+
+	private volatile AtomicLongArray[] chunks;
+	private int top;
+	private int generation;
+	private final int[][] free;
+	private final int[] freeCount;
+
+	private Node[] clock;
+	private int size;
+	private int hand;
+
+	private Node[] buckets;
 	
 	public final static Log LOG = LogFactory.getLog(HandleCache.class);
 	
-	public HandleCache(final int cacheSize) {
+	public HandleCache(long budgetBytes) {
+		this(budgetBytes, 0);
+	}
+
+	public HandleCache(long budgetBytes, int trustMs) {
+		this.budget = Math.max(0, budgetBytes);
+		this.trust = TimeUnit.MILLISECONDS.toNanos(Math.max(0, trustMs));
+		this.root = new Node();
+		this.chunks = new AtomicLongArray[0];
+		this.free = new int[MAX_RECORD_LONGS + 1][];
+		this.freeCount = new int[MAX_RECORD_LONGS + 1];
+		this.clock = new Node[1024];
+		this.buckets = new Node[1024];
+	}
 
-		this.cacheSize = cacheSize;
-		// true = use access order instead of insertion order.
-		this.cacheMap = new LinkedHashMap<String, FileHandle>(cacheSize, 0.75f, true) {
-			private static final long serialVersionUID = -7556524103423461876L;
+	/* The server just returned or accepted the handle, which starts a new lease */
+	public void put(String key, FileHandle elem) {
+		put(key, elem, System.nanoTime());
+	}
 
-			@Override
-			protected boolean removeEldestEntry(Map.Entry<String, FileHandle> eldest) {
-				// When to remove the eldest entry.
-				return size() > cacheSize; // Size exceeded the max allowed.
+	/* Same as above, for a handle the server vouched for at the given System.nanoTime */
+	public void put(String key, FileHandle elem, long validated) {
+		byte bytes[] = elem.getContent();
+		if (bytes.length > MAX_HANDLE_LENGTH) {
+			return;
+		}
+		int hash = elem.hashCode();
+		synchronized (this) {
+			Node node = findOrCreate(key);
+			long old = node.record;
+			if (old == NONE || node.hash != hash || !matches(old, bytes)) {
+				if (old != NONE) {
+					release(node);
+				}
+				node.record = store(bytes);
+				node.hash = hash;
+				index(node);
+				if (size == clock.length) {
+					clock = Arrays.copyOf(clock, 2 * clock.length);
+				}
+				node.slot = size;
+				clock[size++] = node;
+			}
+			node.validated = validated;
+			node.referenced = true;
+			while (used > budget && size > 0) {
+				evict();
 			}
-		};
+		}
 	}
 
-	public synchronized void put(String key, FileHandle elem) {
-		cacheMap.put(key, elem);
+	public FileHandle get(String key) {
+		return lookup(key, false);
 	}
 
-	public synchronized FileHandle get(String key) {
-		return cacheMap.get(key);
+	/* The handle of the path if its lease has not run out, null otherwise */
+	public FileHandle getTrusted(String key) {
+		return lookup(key, true);
 	}
 
+	/* The path and everything below it */
 	public synchronized void remove(String key) {
-		cacheMap.remove(key);
+		Node node = find(key);
+		if (node == null) {
+			return;
+		}
+		if (node == root) {
+			discardChildren(root);
+			release(root);
+			return;
+		}
+		Node parent = node.parent;
+		parent.children.remove(node.name);
+		discard(node);
+		prune(parent);
 	}
-	
-	public synchronized void removeAll(String prefix) {
-	  for(Iterator<Entry<String, FileHandle>> iter = cacheMap.entrySet().iterator(); iter.hasNext(); ) {
-	    Entry<String, FileHandle> entry = iter.next();
-	    if(entry.getKey().startsWith(prefix)) {
-	      iter.remove();
-	    }
-	  }
+
+	/* The server renamed src to dst; what was cached below src is still valid below dst */
+	public synchronized void rename(String src, String dst) {
+		if (src.equals(dst)) {
+			return;
+		}
+		remove(dst);
+		Node node = find(src);
+		if (node == null || node == root) {
+			return;
+		}
+		Node from = node.parent;
+		from.children.remove(node.name);
+
+		int slash = dst.lastIndexOf('/');
+		Node to = findOrCreate(dst.substring(0, Math.max(slash, 0)));
+		String name = NAMES.intern(dst.substring(slash + 1));
+		used += 2 * (name.length() - node.name.length());
+		node.parent = to;
+		node.name = name;
+		children(to).put(name, node);
+		prune(from);
 	}
-	
+
+	/* Every path that resolved to the handle */
 	public synchronized void removeByValue(FileHandle handle) {
-		cacheMap.values().remove(handle);
+		byte bytes[] = handle.getContent();
+		int hash = handle.hashCode();
+		Node node = buckets[hash & (buckets.length - 1)];
+		while (node != null) {
+			Node next = node.next;
+			if (node.hash == hash && matches(node.record, bytes)) {
+				release(node);
+				prune(node);
+			}
+			node = next;
+		}
+	}
+
+	/* Every path with a handle and when its lease started, the ones looked up lately first */
+	public synchronized void visit(Visitor visitor) {
+		for (int pass = 0; pass < 2; pass++) {
+			for (int i = 0; i < size; i++) {
+				Node node = clock[i];
+				if (node.referenced == (pass == 0)) {
+					visitor.visit(path(node), read(node.record), node.validated);
+				}
+			}
+		}
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	/* Estimated heap taken by the cache, which is kept within the budget */
+	public synchronized long getUsedBytes() {
+		return used;
+	}
+
+	/* The number of paths with a handle */
+	public synchronized int size() {
+		return size;
+	}
+
+	private FileHandle lookup(String key, boolean trusted) {
+		Node node = find(key);
+		if (node == null) {
+			return null;
+		}
+		long validated = node.validated;
+		long record = node.record;
+		if (record == NONE || (trusted && System.nanoTime() - validated >= trust)) {
+			return null;
+		}
+		if (!node.referenced) {
+			node.referenced = true;
+		}
+		return read(record);
 	}
 
-	public int getCacheSize() {
-		return cacheSize;
+	private String path(Node node) {
+		if (node == root) {
+			return "/";
+		}
+		StringBuilder path = new StringBuilder();
+		for (; node != root; node = node.parent) {
+			path.insert(0, node.name).insert(0, '/');
+		}
+		return path.toString();
+	}
+
+	private Node find(String key) {
+		Node node = root;
+		int start = 0;
+		while (node != null && start < key.length()) {
+			int end = key.indexOf('/', start);
+			if (end < 0) {
+				end = key.length();
+			}
+			if (end > start) {
+				Map<String, Node> children = node.children;
+				node = (children == null) ? null : children.get(key.substring(start, end));
+			}
+			start = end + 1;
+		}
+		return node;
+	}
+
+	private Node findOrCreate(String key) {
+		Node node = root;
+		int start = 0;
+		while (start < key.length()) {
+			int end = key.indexOf('/', start);
+			if (end < 0) {
+				end = key.length();
+			}
+			if (end > start) {
+				String name = key.substring(start, end);
+				Map<String, Node> children = children(node);
+				Node child = children.get(name);
+				if (child == null) {
+					child = new Node();
+					child.parent = node;
+					child.name = NAMES.intern(name);
+					children.put(child.name, child);
+					used += NODE_BYTES + 2 * name.length();
+				}
+				node = child;
+			}
+			start = end + 1;
+		}
+		return node;
+	}
+
+	private Map<String, Node> children(Node node) {
+		ConcurrentHashMap<String, Node> children = node.children;
+		if (children == null) {
+			children = new ConcurrentHashMap<String, Node>(4, 0.75f, 1);
+			node.children = children;
+			used += CHILDREN_BYTES;
+		}
+		return children;
+	}
+
+	/* The node was taken out of the tree, release it and everything below it */
+	private void discard(Node node) {
+		discardChildren(node);
+		release(node);
+		used -= NODE_BYTES + 2 * node.name.length();
+		if (node.children != null) {
+			used -= CHILDREN_BYTES;
+		}
+	}
+
+	private void discardChildren(Node node) {
+		Map<String, Node> children = node.children;
+		if (children != null) {
+			for (Node child : children.values()) {
+				discard(child);
+			}
+			children.clear();
+		}
+	}
+
+	/* Remove the node and its ancestors while they hold nothing */
+	private void prune(Node node) {
+		while (node != root && node.record == NONE
+				&& (node.children == null || node.children.isEmpty())) {
+			Node parent = node.parent;
+			if (parent.children.get(node.name) == node) {
+				parent.children.remove(node.name);
+				discard(node);
+			}
+			node = parent;
+		}
+	}
+
+	/* Move the hand past referenced entries, clearing them, and release the first one that is not */
+	private void evict() {
+		while (true) {
+			if (hand >= size) {
+				hand = 0;
+			}
+			Node node = clock[hand];
+			if (node.referenced) {
+				node.referenced = false;
+				hand++;
+			} else {
+				release(node);
+				prune(node);
+				return;
+			}
+		}
+	}
+
+	/* Drop the handle of the node: its record, its slot on the clock and its place in the index */
+	private void release(Node node) {
+		long record = node.record;
+		if (record == NONE) {
+			return;
+		}
+		node.record = NONE;
+		freeRecord(record);
+
+		Node last = clock[--size];
+		clock[node.slot] = last;
+		last.slot = node.slot;
+		clock[size] = null;
+		node.slot = -1;
+
+		int bucket = node.hash & (buckets.length - 1);
+		if (buckets[bucket] == node) {
+			buckets[bucket] = node.next;
+		} else {
+			for (Node prev = buckets[bucket]; prev != null; prev = prev.next) {
+				if (prev.next == node) {
+					prev.next = node.next;
+					break;
+				}
+			}
+		}
+		node.next = null;
+	}
+
+	private void index(Node node) {
+		if (size >= buckets.length) {
+			Node[] old = buckets;
+			buckets = new Node[2 * old.length];
+			for (Node head : old) {
+				while (head != null) {
+					Node next = head.next;
+					int bucket = head.hash & (buckets.length - 1);
+					head.next = buckets[bucket];
+					buckets[bucket] = head;
+					head = next;
+				}
+			}
+		}
+		int bucket = node.hash & (buckets.length - 1);
+		node.next = buckets[bucket];
+		buckets[bucket] = node;
+	}
+
+	/* Copy the handle out of its record, null if the record was freed meanwhile */
+	private FileHandle read(long record) {
+		int offset = (int) (record >>> 32);
+		AtomicLongArray chunk = chunks[offset >>> CHUNK_BITS];
+		int index = offset & (CHUNK_LONGS - 1);
+		long header = chunk.get(index);
+		if ((int) (header >>> 8) != (int) record) {
+			return null;
+		}
+		byte bytes[] = new byte[(int) header & 0xff];
+		long word = 0;
+		for (int i = 0; i < bytes.length; i++) {
+			if ((i & 7) == 0) {
+				word = chunk.get(index + 1 + (i >>> 3));
+			}
+			bytes[i] = (byte) (word >>> (56 - 8 * (i & 7)));
+		}
+		if (chunk.get(index) != header) {
+			return null;
+		}
+		return new Nfs3FileHandle(bytes);
+	}
+
+	private boolean matches(long record, byte bytes[]) {
+		int offset = (int) (record >>> 32);
+		AtomicLongArray chunk = chunks[offset >>> CHUNK_BITS];
+		int index = offset & (CHUNK_LONGS - 1);
+		if (((int) chunk.get(index) & 0xff) != bytes.length) {
+			return false;
+		}
+		for (int i = 0; i < bytes.length; i += 8) {
+			if (chunk.get(index + 1 + (i >>> 3)) != pack(bytes, i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private long store(byte bytes[]) {
+		int longs = 1 + (bytes.length + 7) / 8;
+		int offset;
+		if (freeCount[longs] > 0) {
+			offset = free[longs][--freeCount[longs]];
+		} else {
+			if ((top & (CHUNK_LONGS - 1)) + longs > CHUNK_LONGS) {
+				top = (top | (CHUNK_LONGS - 1)) + 1;
+			}
+			if ((top >>> CHUNK_BITS) == chunks.length) {
+				AtomicLongArray[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+				grown[chunks.length] = new AtomicLongArray(CHUNK_LONGS);
+				chunks = grown;
+			}
+			offset = top;
+			top += longs;
+		}
+		if (++generation == 0 || generation < 0) {
+			generation = 1;
+		}
+		AtomicLongArray chunk = chunks[offset >>> CHUNK_BITS];
+		int index = offset & (CHUNK_LONGS - 1);
+		for (int i = 0; i < bytes.length; i += 8) {
+			chunk.set(index + 1 + (i >>> 3), pack(bytes, i));
+		}
+		chunk.set(index, ((long) generation << 8) | bytes.length);
+		used += 8 * longs;
+		return ((long) offset << 32) | generation;
+	}
+
+	private void freeRecord(long record) {
+		int offset = (int) (record >>> 32);
+		AtomicLongArray chunk = chunks[offset >>> CHUNK_BITS];
+		int index = offset & (CHUNK_LONGS - 1);
+		int longs = 1 + ((int) (chunk.get(index) & 0xff) + 7) / 8;
+		chunk.set(index, 0);
+		if (free[longs] == null) {
+			free[longs] = new int[64];
+		} else if (freeCount[longs] == free[longs].length) {
+			free[longs] = Arrays.copyOf(free[longs], 2 * freeCount[longs]);
+		}
+		free[longs][freeCount[longs]++] = offset;
+		used -= 8 * longs;
+	}
+
+	/* Up to 8 bytes from offset, big endian, zero padded */
+	private static long pack(byte bytes[], int offset) {
+		long word = 0;
+		for (int i = 0; i < 8; i++) {
+			word <<= 8;
+			if (offset + i < bytes.length) {
+				word |= bytes[offset + i] & 0xff;
+			}
+		}
+		return word;
 	}
 }
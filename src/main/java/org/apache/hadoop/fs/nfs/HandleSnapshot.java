@@ -0,0 +1,253 @@
+/**
+ * Copyright 2014 NetApp Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.nfs;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.nfs.topology.Endpoint;
+import org.apache.hadoop.fs.nfs.topology.Namespace;
+import org.apache.hadoop.nfs.NfsTime;
+import org.apache.hadoop.nfs.nfs3.FileHandle;
+import org.apache.hadoop.nfs.nfs3.Nfs3FileHandle;
+import org.apache.hadoop.nfs.nfs3.Nfs3Info;
+
+/**
+ * What a filesystem learnt about its namespace, kept in a local file so that the next JVM on the
+ * host starts where it left off: the root handle, filesystem id and FSINFO of every mounted
+ * endpoint, and the handles of the paths it used. Short-lived tasks then open their files without a
+ * portmap, MOUNT, GETATTR or FSINFO call, or a LOOKUP per path component.
+ * <p>
+ * Nothing in the snapshot is checked when it is loaded. A path handle keeps the lease it had when
+ * the snapshot was written, so it is checked with the server once that runs out, and any handle
+ * that went stale since is resolved again when the server refuses it, like a stale root handle,
+ * which is mounted again. A snapshot of another namespace or format version is ignored.
+ */
+public class HandleSnapshot {
+
+  public static final int MAX_PATHS = 1 << 16;
+
+  private static final int MAGIC = 0x4e465348;
+  private static final int VERSION = 1;
+
+  /* The root of an endpoint as an earlier mount found it */
+  static class Mount {
+    final FileHandle rootHandle;
+    final long fsId;
+    final Nfs3Info info;
+
+    Mount(FileHandle rootHandle, long fsId, Nfs3Info info) {
+      this.rootHandle = rootHandle;
+      this.fsId = fsId;
+      this.info = info;
+    }
+  }
+
+  private final Map<String, Mount> mounts;
+  private final List<String> paths;
+  private final List<FileHandle> handles;
+  private final List<Long> validated;
+
+  public final static Log LOG = LogFactory.getLog(HandleSnapshot.class);
+
+  private HandleSnapshot() {
+    mounts = new HashMap<String, Mount>();
+    paths = new ArrayList<String>();
+    handles = new ArrayList<FileHandle>();
+    validated = new ArrayList<Long>();
+  }
+
+  /**
+   * The snapshot of the namespace in the file, or null if there is none or it is of another
+   * namespace or version.
+   */
+  public static HandleSnapshot load(File file, Namespace space) {
+    if (!file.isFile()) {
+      return null;
+    }
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (in.getInt() != MAGIC || in.getInt() != VERSION
+          || !getString(in).equals(String.valueOf(space.getName()))
+          || !getString(in).equals(String.valueOf(space.getUri()))) {
+        LOG.info("Ignoring snapshot " + file + " of another namespace or version");
+        return null;
+      }
+      HandleSnapshot snapshot = new HandleSnapshot();
+      for (int i = in.getInt(); i > 0; --i) {
+        String key = getString(in);
+        FileHandle rootHandle = getHandle(in);
+        long fsId = in.getLong();
+        Nfs3Info info = new Nfs3Info(in.getInt(), in.getInt(), in.getInt(), in.getInt(), in.getInt(),
+            in.getInt(), in.getInt(), in.getLong(), new NfsTime(in.getInt(), in.getInt()), in.getInt());
+        snapshot.mounts.put(key, new Mount(rootHandle, fsId, info));
+      }
+      for (int i = in.getInt(); i > 0; --i) {
+        snapshot.paths.add(getString(in));
+        snapshot.validated.add(in.getLong());
+        snapshot.handles.add(getHandle(in));
+      }
+      LOG.debug("Loaded " + snapshot.mounts.size() + " mounts and " + snapshot.paths.size()
+          + " paths from " + file);
+      return snapshot;
+    } catch (IOException | RuntimeException exception) {
+      LOG.warn("Ignoring unreadable snapshot " + file + ": " + exception);
+      return null;
+    }
+  }
+
+  /**
+   * Write the mounts of the stores and the paths of the cache, the ones used lately first. The file
+   * is replaced at once, so a JVM loading it meanwhile sees either snapshot whole.
+   */
+  public static void save(File file, Namespace space, List<NFSv3FileSystemStore> stores,
+      HandleCache cache) throws IOException {
+    File directory = file.getAbsoluteFile().getParentFile();
+    File temporary = File.createTempFile(file.getName(), ".tmp", directory);
+    try {
+      try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(temporary)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        putString(out, String.valueOf(space.getName()));
+        putString(out, String.valueOf(space.getUri()));
+
+        List<NFSv3FileSystemStore> mounted = new ArrayList<NFSv3FileSystemStore>();
+        for (NFSv3FileSystemStore store : stores) {
+          if (store.fsInfo != null && store.getRootFileHandle() != null) {
+            mounted.add(store);
+          }
+        }
+        out.writeInt(mounted.size());
+        for (NFSv3FileSystemStore store : mounted) {
+          Nfs3Info info = store.fsInfo;
+          putString(out, key(store.getEndpoint()));
+          putHandle(out, store.getRootFileHandle());
+          out.writeLong(store.getFilesystemId());
+          out.writeInt(info.getRtmax());
+          out.writeInt(info.getRtpref());
+          out.writeInt(info.getRtmult());
+          out.writeInt(info.getWtmax());
+          out.writeInt(info.getWtpref());
+          out.writeInt(info.getWtmult());
+          out.writeInt(info.getDtpref());
+          out.writeLong(info.getMaxFileSize());
+          out.writeInt(info.getTimeDelta().getSeconds());
+          out.writeInt(info.getTimeDelta().getNseconds());
+          out.writeInt(info.getProperties());
+        }
+
+        // Leases go by System.nanoTime, which means nothing to another JVM. The entries are
+        // counted before they are written, so they go to memory first
+        final long nanos = System.nanoTime();
+        final long millis = System.currentTimeMillis();
+        final int count[] = new int[1];
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream entries = new DataOutputStream(bytes);
+        cache.visit(new HandleCache.Visitor() {
+          @Override
+          public void visit(String path, FileHandle handle, long validatedNanos) {
+            if (count[0] == MAX_PATHS) {
+              return;
+            }
+            try {
+              putString(entries, path);
+              entries.writeLong(millis - TimeUnit.NANOSECONDS.toMillis(nanos - validatedNanos));
+              putHandle(entries, handle);
+              count[0]++;
+            } catch (IOException exception) {
+              throw new IllegalStateException(exception);
+            }
+          }
+        });
+        out.writeInt(count[0]);
+        bytes.writeTo(out);
+      }
+      Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      temporary.delete();
+    }
+  }
+
+  /* The earlier mount of the endpoint, null if there is none */
+  Mount getMount(Endpoint ep) {
+    return mounts.get(key(ep));
+  }
+
+  /* Put the paths in the cache, with what is left of their leases */
+  void restore(HandleCache cache) {
+    long nanos = System.nanoTime();
+    long millis = System.currentTimeMillis();
+    for (int i = paths.size() - 1; i >= 0; --i) {
+      long age = Math.max(0, millis - validated.get(i));
+      cache.put(paths.get(i), handles.get(i), nanos - TimeUnit.MILLISECONDS.toNanos(age));
+    }
+  }
+
+  int size() {
+    return paths.size();
+  }
+
+  private static String key(Endpoint ep) {
+    return ep.getUri() + " " + ep.getExportPath();
+  }
+
+  private static void putString(DataOutputStream out, String value) throws IOException {
+    byte bytes[] = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String getString(ByteBuffer in) {
+    byte bytes[] = new byte[in.getInt()];
+    in.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void putHandle(DataOutputStream out, FileHandle handle) throws IOException {
+    byte bytes[] = handle.getContent();
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static FileHandle getHandle(ByteBuffer in) {
+    int length = in.getInt();
+    if (length < 0 || length > NFSv3Codec.NFS3_FHSIZE) {
+      throw new IllegalArgumentException("Invalid file handle length " + length);
+    }
+    byte bytes[] = new byte[length];
+    in.get(bytes);
+    return new Nfs3FileHandle(bytes);
+  }
+
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2014 NetApp Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.nfs;
+
+import org.apache.hadoop.nfs.NfsFileType;
+
+/**
+ * The attributes of a file (fattr3) in a mutable holder, so that replies can be decoded into the
+ * same object again and again, see {@link NFSv3Codec}. Times are in nanoseconds since the epoch.
+ */
+public class NFSv3Attributes {
+
+  int type;
+  int mode;
+  int nlink;
+  int uid;
+  int gid;
+  long size;
+  long used;
+  int rdevMajor;
+  int rdevMinor;
+  long fsid;
+  long fileId;
+  long atime;
+  long mtime;
+  long ctime;
+
+  public int getType() {
+    return type;
+  }
+
+  public boolean isDirectory() {
+    return type == NfsFileType.NFSDIR.toValue();
+  }
+
+  public boolean isFile() {
+    return type == NfsFileType.NFSREG.toValue();
+  }
+
+  public int getMode() {
+    return mode;
+  }
+
+  public int getNlink() {
+    return nlink;
+  }
+
+  public int getUid() {
+    return uid;
+  }
+
+  public int getGid() {
+    return gid;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public long getUsed() {
+    return used;
+  }
+
+  public int getRdevMajor() {
+    return rdevMajor;
+  }
+
+  public int getRdevMinor() {
+    return rdevMinor;
+  }
+
+  public long getFsid() {
+    return fsid;
+  }
+
+  public long getFileId() {
+    return fileId;
+  }
+
+  public long getAtime() {
+    return atime;
+  }
+
+  public long getMtime() {
+    return mtime;
+  }
+
+  public long getCtime() {
+    return ctime;
+  }
+
+  public long getAtimeMillis() {
+    return atime / 1000000L;
+  }
+
+  public long getMtimeMillis() {
+    return mtime / 1000000L;
+  }
+
+  public void copyFrom(NFSv3Attributes other) {
+    type = other.type;
+    mode = other.mode;
+    nlink = other.nlink;
+    uid = other.uid;
+    gid = other.gid;
+    size = other.size;
+    used = other.used;
+    rdevMajor = other.rdevMajor;
+    rdevMinor = other.rdevMinor;
+    fsid = other.fsid;
+    fileId = other.fileId;
+    atime = other.atime;
+    mtime = other.mtime;
+    ctime = other.ctime;
+  }
+
+  @Override
+  public String toString() {
+    return "NFSv3Attributes[type=" + type + " mode=" + Integer.toOctalString(mode) + " nlink="
+        + nlink + " uid=" + uid + " gid=" + gid + " size=" + size + " fsid=" + fsid + " fileId="
+        + fileId + " mtime=" + mtime + " ctime=" + ctime + "]";
+  }
+
+}
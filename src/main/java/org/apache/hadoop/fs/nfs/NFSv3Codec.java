@@ -0,0 +1,445 @@
+/**
+ * Copyright 2014 NetApp Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.nfs;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import org.apache.hadoop.nfs.nfs3.FileHandle;
+import org.apache.hadoop.nfs.nfs3.Nfs3Constant.WriteStableHow;
+import org.apache.hadoop.nfs.nfs3.Nfs3FileHandle;
+import org.apache.hadoop.nfs.nfs3.Nfs3ReadReply;
+import org.apache.hadoop.nfs.nfs3.Nfs3Status;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Encoder and decoder of the NFSv3 calls on the hot paths, confined to one thread. Arguments are
+ * encoded into a buffer that the thread reuses for every call, which the RPC client copies into
+ * the call record. Replies are decoded straight from the network buffer, and attributes go into
+ * holders that the caller reuses. Unlike {@link NFSv3RequestBuilder} and
+ * {@link NFSv3ResponseBuilder}, a GETATTR or a READ allocates nothing here but the data view of
+ * the reply. Encoded arguments are valid until the next encode on the same thread.
+ */
+public class NFSv3Codec {
+
+  /* Encoded size of fattr3 */
+  public final static int FATTR3_SIZE = 84;
+  /* Encoded size of wcc_attr: size, mtime and ctime */
+  public final static int WCC_ATTR_SIZE = 24;
+  /* Largest file handle in NFSv3 */
+  public final static int NFS3_FHSIZE = 64;
+
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final ThreadLocal<NFSv3Codec> CODECS = new ThreadLocal<NFSv3Codec>() {
+    @Override
+    protected NFSv3Codec initialValue() {
+      return new NFSv3Codec();
+    }
+  };
+
+  final ByteBuf args;
+  final NFSv3Attributes scratch;
+  final NFSv3Attributes scratchDirectory;
+  ByteBuf in;
+  int position;
+
+  NFSv3Codec() {
+    args = Unpooled.buffer(256);
+    scratch = new NFSv3Attributes();
+    scratchDirectory = new NFSv3Attributes();
+  }
+
+  /* The codec of the calling thread */
+  public static NFSv3Codec get() {
+    return CODECS.get();
+  }
+
+  /* Holders the thread can decode attributes into on their way to the attribute cache */
+  public NFSv3Attributes getScratchAttributes() {
+    return scratch;
+  }
+
+  public NFSv3Attributes getScratchDirectoryAttributes() {
+    return scratchDirectory;
+  }
+
+  public ByteBuf encodeCOMMIT(FileHandle handle, long offset, int count) {
+    args.clear();
+    writeHandle(handle);
+    args.writeLong(offset);
+    args.writeInt(count);
+    return args;
+  }
+
+  public ByteBuf encodeGETATTR(FileHandle handle) {
+    args.clear();
+    writeHandle(handle);
+    return args;
+  }
+
+  public ByteBuf encodeLOOKUP(FileHandle dir, String name) {
+    args.clear();
+    writeHandle(dir);
+    writeName(name);
+    return args;
+  }
+
+  public ByteBuf encodeREAD(FileHandle handle, long offset, int count) {
+    args.clear();
+    writeHandle(handle);
+    args.writeLong(offset);
+    args.writeInt(count);
+    return args;
+  }
+
+  public ByteBuf encodeREADDIR(FileHandle dir, long cookie, long cookieVerf, int count) {
+    args.clear();
+    writeHandle(dir);
+    args.writeLong(cookie);
+    args.writeLong(cookieVerf);
+    args.writeInt(count);
+    return args;
+  }
+
+  public ByteBuf encodeREADDIRPLUS(FileHandle dir, long cookie, long cookieVerf, int dirCount,
+      int maxCount) {
+    args.clear();
+    writeHandle(dir);
+    args.writeLong(cookie);
+    args.writeLong(cookieVerf);
+    args.writeInt(dirCount);
+    args.writeInt(maxCount);
+    return args;
+  }
+
+  /* Everything but the data, which the caller sends separately right after */
+  public ByteBuf encodeWRITE(FileHandle handle, long offset, int count,
+      WriteStableHow stableHow) {
+    args.clear();
+    writeHandle(handle);
+    args.writeLong(offset);
+    args.writeInt(count);
+    args.writeInt(stableHow.getValue());
+    args.writeInt(count);
+    return args;
+  }
+
+  /**
+   * Decode a GETATTR3 reply. The attributes are only set if the returned status is NFS3_OK.
+   */
+  public int decodeGETATTR(ByteBuf body, NFSv3Attributes attributes) throws IOException {
+    begin(body);
+    int status = readInt();
+    if (status == Nfs3Status.NFS3_OK) {
+      readAttributes(attributes);
+    }
+    return status;
+  }
+
+  /**
+   * Decode a LOOKUP3 reply into the handle of the object, or null if the status is not NFS3_OK.
+   * The attributes of the object are set if the reply has them and the holder is not null,
+   * otherwise the type in the holder is 0.
+   */
+  public FileHandle decodeLOOKUP(ByteBuf body, NFSv3Attributes attributes) throws IOException {
+    return decodeLOOKUP(body, attributes, null);
+  }
+
+  /**
+   * Same as above, also setting the attributes of the directory if that holder is not null.
+   */
+  public FileHandle decodeLOOKUP(ByteBuf body, NFSv3Attributes attributes,
+      NFSv3Attributes dirAttributes) throws IOException {
+    begin(body);
+    int status = readInt();
+    if (status != Nfs3Status.NFS3_OK) {
+      clear(attributes);
+      readPostOp(dirAttributes);
+      return null;
+    }
+    FileHandle handle = readHandle();
+    readPostOp(attributes);
+    readPostOp(dirAttributes);
+    return handle;
+  }
+
+  /**
+   * Decode a CREATE3 or MKDIR3 reply into the handle of the new object, or null if the status is
+   * not NFS3_OK or the server left the handle out. The holders get the attributes of the object
+   * and the attributes of the directory after the call, or type 0 if the reply has none.
+   */
+  public FileHandle decodeCREATE(ByteBuf body, NFSv3Attributes attributes,
+      NFSv3Attributes dirAttributes) throws IOException {
+    begin(body);
+    int status = readInt();
+    FileHandle handle = null;
+    clear(attributes);
+    if (status == Nfs3Status.NFS3_OK) {
+      if (readBoolean()) {
+        handle = readHandle();
+      }
+      readPostOp(attributes);
+    }
+    readWcc(dirAttributes);
+    return handle;
+  }
+
+  /**
+   * Decode the wcc_data that follows the status in a SETATTR3, REMOVE3, RMDIR3, WRITE3 or COMMIT3
+   * reply, whatever the status. The holder gets the attributes after the call, or type 0 if the
+   * reply has none. Returns the status.
+   */
+  public int decodeWcc(ByteBuf body, NFSv3Attributes attributes) throws IOException {
+    begin(body);
+    int status = readInt();
+    readWcc(attributes);
+    return status;
+  }
+
+  /**
+   * Decode the post_op_attr that follows the status in a READ3, READDIR3 or READDIRPLUS3 reply,
+   * whatever the status, see above.
+   */
+  public int decodePostOp(ByteBuf body, NFSv3Attributes attributes) throws IOException {
+    begin(body);
+    int status = readInt();
+    readPostOp(attributes);
+    return status;
+  }
+
+  /**
+   * Decode the wcc_data of both directories in a RENAME3 reply, see above.
+   */
+  public int decodeRENAME(ByteBuf body, NFSv3Attributes fromDirAttributes,
+      NFSv3Attributes toDirAttributes) throws IOException {
+    begin(body);
+    int status = readInt();
+    readWcc(fromDirAttributes);
+    readWcc(toDirAttributes);
+    return status;
+  }
+
+  /**
+   * Decode a READ3 reply, leaving the data where it is. The post-op attributes are skipped.
+   */
+  public Nfs3ReadReply decodeREAD(ByteBuf body) throws IOException {
+    return decodeREAD(body, null);
+  }
+
+  /**
+   * Same as above, with the post-op attributes of the file in the holder if it is not null, type 0
+   * if the reply has none.
+   */
+  public Nfs3ReadReply decodeREAD(ByteBuf body, NFSv3Attributes attributes) throws IOException {
+    begin(body);
+    int status = readInt();
+    readPostOp(attributes);
+    if (status != Nfs3Status.NFS3_OK) {
+      return new Nfs3ReadReply(status, null, 0, false, null);
+    }
+
+    int count = readInt();
+    boolean eof = readBoolean();
+    int length = readInt();
+    int available = body.writerIndex() - position;
+    if (length < 0 || length > available) {
+      throw new IOException("READ3 reply is truncated: length=" + length + " available=" + available);
+    }
+    ByteBuf data = body.slice(position, length);
+    return new Nfs3ReadReply(status, null, count, eof, data);
+  }
+
+  /**
+   * Decode a READDIR3 reply, or a READDIRPLUS3 reply if plus is set, into the page, which is
+   * cleared first. The page is only filled if the returned status is NFS3_OK.
+   */
+  public int decodeREADDIR(ByteBuf body, NFSv3DirectoryPage page, boolean plus)
+      throws IOException {
+    begin(body);
+    page.clear();
+    int status = readInt();
+    readPostOp(page.directory);
+    if (status != Nfs3Status.NFS3_OK) {
+      return status;
+    }
+
+    page.cookieVerf = readHyper();
+    while (readBoolean()) {
+      long fileId = readHyper();
+      String name = readName();
+      long cookie = readHyper();
+      int i = page.add(fileId, name, cookie);
+      if (plus) {
+        if (readBoolean()) {
+          readAttributes(page.setAttributes(i));
+        }
+        if (readBoolean()) {
+          page.handles[i] = readHandle();
+        }
+      }
+    }
+    page.eof = readBoolean();
+    return status;
+  }
+
+  void writeHandle(FileHandle handle) {
+    if (handle instanceof Nfs3FileHandle) {
+      ((Nfs3FileHandle) handle).serialize(args);
+    } else {
+      writeOpaque(handle.getContent());
+    }
+  }
+
+  /* ASCII names are written as they are, anything else goes through UTF-8 */
+  void writeName(String name) {
+    int length = name.length();
+    for (int i = 0; i < length; ++i) {
+      if (name.charAt(i) >= 0x80) {
+        writeOpaque(name.getBytes(UTF8));
+        return;
+      }
+    }
+    args.writeInt(length);
+    for (int i = 0; i < length; ++i) {
+      args.writeByte(name.charAt(i));
+    }
+    args.writeZero((4 - (length & 3)) & 3);
+  }
+
+  void writeOpaque(byte data[]) {
+    args.writeInt(data.length);
+    args.writeBytes(data);
+    args.writeZero((4 - (data.length & 3)) & 3);
+  }
+
+  void begin(ByteBuf body) {
+    in = body;
+    position = body.readerIndex();
+  }
+
+  void need(int length) throws IOException {
+    if (position + length > in.writerIndex()) {
+      throw new IOException("NFS reply is truncated at offset " + (position - in.readerIndex()));
+    }
+  }
+
+  void skip(int length) throws IOException {
+    need(length);
+    position += length;
+  }
+
+  int readInt() throws IOException {
+    need(4);
+    int value = in.getInt(position);
+    position += 4;
+    return value;
+  }
+
+  long readHyper() throws IOException {
+    need(8);
+    long value = in.getLong(position);
+    position += 8;
+    return value;
+  }
+
+  boolean readBoolean() throws IOException {
+    return readInt() != 0;
+  }
+
+  /* nfstime3 in nanoseconds since the epoch, both halves are unsigned */
+  long readTime() throws IOException {
+    long seconds = readInt() & 0xffffffffL;
+    long nseconds = readInt() & 0xffffffffL;
+    return seconds * 1000000000L + nseconds;
+  }
+
+  FileHandle readHandle() throws IOException {
+    int length = readInt();
+    if (length < 0 || length > NFS3_FHSIZE) {
+      throw new IOException("Invalid file handle length " + length);
+    }
+    need(length);
+    byte handle[] = new byte[length];
+    in.getBytes(position, handle);
+    position += (length + 3) & ~3;
+    return new Nfs3FileHandle(handle);
+  }
+
+  /* The status at the start of a reply body */
+  public static int getStatus(ByteBuf body) {
+    return body.getInt(body.readerIndex());
+  }
+
+  /* Type 0 marks a holder the reply had no attributes for */
+  static void clear(NFSv3Attributes attributes) {
+    if (attributes != null) {
+      attributes.type = 0;
+    }
+  }
+
+  /* post_op_attr into the holder, type 0 if absent; skipped if the holder is null */
+  void readPostOp(NFSv3Attributes attributes) throws IOException {
+    clear(attributes);
+    if (readBoolean()) {
+      if (attributes != null) {
+        readAttributes(attributes);
+      } else {
+        skip(FATTR3_SIZE);
+      }
+    }
+  }
+
+  /* wcc_data: the attributes before the call are skipped, the ones after go into the holder */
+  void readWcc(NFSv3Attributes attributes) throws IOException {
+    if (readBoolean()) {
+      skip(WCC_ATTR_SIZE);
+    }
+    readPostOp(attributes);
+  }
+
+  /* A filename3 straight from the reply into a string */
+  String readName() throws IOException {
+    int length = readInt();
+    if (length < 0) {
+      throw new IOException("Invalid name length " + length);
+    }
+    need(length);
+    String name = in.toString(position, length, UTF8);
+    position += (length + 3) & ~3;
+    return name;
+  }
+
+  void readAttributes(NFSv3Attributes attributes) throws IOException {
+    need(FATTR3_SIZE);
+    attributes.type = readInt();
+    attributes.mode = readInt();
+    attributes.nlink = readInt();
+    attributes.uid = readInt();
+    attributes.gid = readInt();
+    attributes.size = readHyper();
+    attributes.used = readHyper();
+    attributes.rdevMajor = readInt();
+    attributes.rdevMinor = readInt();
+    attributes.fsid = readHyper();
+    attributes.fileId = readHyper();
+    attributes.atime = readTime();
+    attributes.mtime = readTime();
+    attributes.ctime = readTime();
+  }
+
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2014 NetApp Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.nfs;
+
+import java.util.Arrays;
+
+import org.apache.hadoop.nfs.nfs3.FileHandle;
+
+/**
+ * The entries of one READDIR3 or READDIRPLUS3 reply, see {@link NFSv3Codec#decodeREADDIR}. A
+ * listing decodes every reply into the same page, so it holds no more than the largest reply and
+ * the attribute holders are reused from page to page.
+ */
+public class NFSv3DirectoryPage {
+
+  int size;
+  long cookieVerf;
+  boolean eof;
+  final NFSv3Attributes directory;
+  long fileIds[];
+  String names[];
+  long cookies[];
+  NFSv3Attributes attributes[];
+  boolean hasAttributes[];
+  FileHandle handles[];
+
+  public NFSv3DirectoryPage() {
+    this(64);
+  }
+
+  public NFSv3DirectoryPage(int capacity) {
+    directory = new NFSv3Attributes();
+    fileIds = new long[capacity];
+    names = new String[capacity];
+    cookies = new long[capacity];
+    attributes = new NFSv3Attributes[capacity];
+    hasAttributes = new boolean[capacity];
+    handles = new FileHandle[capacity];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public long getCookieVerf() {
+    return cookieVerf;
+  }
+
+  public boolean isEof() {
+    return eof;
+  }
+
+  /* The attributes of the directory itself, or null if the reply had none */
+  public NFSv3Attributes getDirectoryAttributes() {
+    return directory.getType() != 0 ? directory : null;
+  }
+
+  public long getFileId(int i) {
+    return fileIds[i];
+  }
+
+  public String getName(int i) {
+    return names[i];
+  }
+
+  public long getCookie(int i) {
+    return cookies[i];
+  }
+
+  /* The attributes of the entry, or null if the reply had none */
+  public NFSv3Attributes getAttributes(int i) {
+    return hasAttributes[i] ? attributes[i] : null;
+  }
+
+  /* The handle of the entry, or null if the reply had none */
+  public FileHandle getHandle(int i) {
+    return handles[i];
+  }
+
+  void clear() {
+    Arrays.fill(names, 0, size, null);
+    Arrays.fill(handles, 0, size, null);
+    size = 0;
+    cookieVerf = 0;
+    eof = false;
+    directory.type = 0;
+  }
+
+  /* Append an entry without attributes or handle, returns its index */
+  int add(long fileId, String name, long cookie) {
+    if (size == names.length) {
+      int capacity = Math.max(2 * size, 16);
+      fileIds = Arrays.copyOf(fileIds, capacity);
+      names = Arrays.copyOf(names, capacity);
+      cookies = Arrays.copyOf(cookies, capacity);
+      attributes = Arrays.copyOf(attributes, capacity);
+      hasAttributes = Arrays.copyOf(hasAttributes, capacity);
+      handles = Arrays.copyOf(handles, capacity);
+    }
+    int i = size++;
+    fileIds[i] = fileId;
+    names[i] = name;
+    cookies[i] = cookie;
+    hasAttributes[i] = false;
+    handles[i] = null;
+    return i;
+  }
+
+  /* Holder for the attributes of an entry, which then has attributes */
+  NFSv3Attributes setAttributes(int i) {
+    if (attributes[i] == null) {
+      attributes[i] = new NFSv3Attributes();
+    }
+    hasAttributes[i] = true;
+    return attributes[i];
+  }
+
+}
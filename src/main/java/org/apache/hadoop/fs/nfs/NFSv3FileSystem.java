@@ -20,12 +20,14 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -40,21 +42,20 @@ import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileAlreadyExistsException;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
 import org.apache.hadoop.fs.ParentNotDirectoryException;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.fs.RemoteIterator;
 import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.nfs.NfsFileType;
 import org.apache.hadoop.nfs.nfs3.FileHandle;
 import org.apache.hadoop.nfs.nfs3.Nfs3Constant;
-import org.apache.hadoop.nfs.nfs3.Nfs3DirList;
-import org.apache.hadoop.nfs.nfs3.Nfs3DirList.Nfs3DirEntry;
-import org.apache.hadoop.nfs.nfs3.Nfs3FileAttributes;
 import org.apache.hadoop.nfs.nfs3.Nfs3SetAttr;
 import org.apache.hadoop.nfs.nfs3.Nfs3Status;
 import org.apache.hadoop.nfs.nfs3.request.SetAttr3;
 import org.apache.hadoop.nfs.nfs3.request.SetAttr3.SetAttrField;
 import org.apache.hadoop.nfs.nfs3.response.CREATE3Response;
-import org.apache.hadoop.nfs.nfs3.response.GETATTR3Response;
 import org.apache.hadoop.nfs.nfs3.response.MKDIR3Response;
 import org.apache.hadoop.nfs.nfs3.response.REMOVE3Response;
 import org.apache.hadoop.nfs.nfs3.response.RENAME3Response;
@@ -62,6 +63,8 @@ import org.apache.hadoop.nfs.nfs3.response.RMDIR3Response;
 import org.apache.hadoop.nfs.nfs3.response.SETATTR3Response;
 import org.apache.hadoop.security.UserGroupInformation;
 import org.apache.hadoop.util.Progressable;
+import org.apache.hadoop.fs.nfs.rpc.RpcCredentialsSys;
+import org.apache.hadoop.fs.nfs.rpc.RpcTransport;
 import org.apache.hadoop.fs.nfs.stream.NFSBufferedInputStream;
 import org.apache.hadoop.fs.nfs.stream.NFSBufferedOutputStream;
 import org.apache.hadoop.fs.nfs.topology.Endpoint;
@@ -90,17 +93,23 @@ public class NFSv3FileSystem extends FileSystem {
     private Namespace space;
 
     private HandleCache handleCache;
+    private HandleSnapshot snapshot;
 
     private TopologyRouter router;
+    private final AtomicBoolean closed = new AtomicBoolean();
 
     // Actual UID, GID, user name and group name to use when creating a new file/directory. Values
     // from the configuration file will overwrite default values defined above.
     private int NFS_UID;
     private int NFS_GID;
+    private static final Credentials AUTH_NONE = new CredentialsNone();
 
     public static final String NFS_URI_SCHEME = "nfs";
-    public static final int FILE_HANDLE_CACHE_SIZE = 1048576;
     public static final int DEFAULT_NFS_PORT = 2049;
+    public static final int DEFAULT_NFS_CONNECTIONS = 1;
+    public static final String NFS_WORKER_THREADS_KEY = "fs." + NFS_URI_SCHEME + ".workerThreads";
+    public static final String NFS_NATIVE_TRANSPORT_KEY = "fs." + NFS_URI_SCHEME + ".nativeTransport";
+    public static final String NFS_POOLED_BUFFERS_KEY = "fs." + NFS_URI_SCHEME + ".pooledBuffers";
     public static final int DEFAULT_READ_BLOCK_SIZE_BITS = 20;
     public static final int DEFAULT_WRITE_BLOCK_SIZE_BITS = 20;
 
@@ -173,16 +182,38 @@ public class NFSv3FileSystem extends FileSystem {
             NFS_UID = space.getConfiguration().getNfsUid();
             NFS_GID = space.getConfiguration().getNfsGid();
         }
+        // Shared by all clients in the process, only applies when the I/O threads are first started
+        RpcTransport.setWorkerCount(configuration.getInt(NFS_WORKER_THREADS_KEY, RpcTransport.DEFAULT_WORKER_COUNT));
+        RpcTransport.setNativeTransport(configuration.getBoolean(NFS_NATIVE_TRANSPORT_KEY, false));
+        RpcTransport.setPooledBuffers(configuration.getBoolean(NFS_POOLED_BUFFERS_KEY, true));
+        
+        // Mounts and handles an earlier filesystem on this host left behind
+        String snapshotFile = space.getConfiguration().getNfsSnapshotFile();
+        if (snapshotFile != null && !snapshotFile.isEmpty()) {
+            snapshot = HandleSnapshot.load(new File(snapshotFile), space);
+        }
+
         // Initialize router
         // TODO: Make the router class configurable
         router = new SimpleTopologyRouter();
         router.initialize(this, space, configuration);
 
         setConf(conf);
-        this.handleCache = new HandleCache(FILE_HANDLE_CACHE_SIZE);
+        this.handleCache = new HandleCache(space.getConfiguration().getNfsHandleCacheBytes(),
+                space.getConfiguration().getNfsHandleTrustMs());
+        if (snapshot != null) {
+            snapshot.restore(handleCache);
+        }
         workingDir = getHomeDirectory();
     }
 
+    /**
+     * The attribute cache of the filesystem that holds the path, with its hits and misses.
+     */
+    public AttributeCache getAttributeCache(Path f) throws IOException {
+        return router.getStore(makeAbsolute(f)).getAttributeCache();
+    }
+
     public long getSplitSize() {
         return (1L << space.getConfiguration().getNfsSplitSizeBits());
     }
@@ -197,9 +228,40 @@ public class NFSv3FileSystem extends FileSystem {
         return uri;
     }
 
+    /* The snapshot loaded at initialize, null if there is none */
+    HandleSnapshot getSnapshot() {
+        return snapshot;
+    }
+
     @Override
     public void close() throws IOException {
-        //close() is not implemented
+        if (closed.getAndSet(true)) {
+            return;
+        }
+        try {
+            // Files marked for deletion need the stores, which are shut down below
+            processDeleteOnExit();
+
+            // Leave what we know for the next filesystem on this host
+            String snapshotFile = (space == null) ? null : space.getConfiguration().getNfsSnapshotFile();
+            if (snapshotFile != null && !snapshotFile.isEmpty() && handleCache != null) {
+                try {
+                    HandleSnapshot.save(new File(snapshotFile), space, router.getAllStores(), handleCache);
+                } catch (IOException exception) {
+                    LOG.warn("Could not save snapshot " + snapshotFile + ": " + exception.getMessage());
+                }
+            }
+
+            // Release the connections, timers and metrics of every store
+            if (router != null) {
+                for (NFSv3FileSystemStore store : router.getAllStores()) {
+                    store.shutdown();
+                }
+                router.shutdown();
+            }
+        } finally {
+            super.close();
+        }
     }
 
     @Override
@@ -272,16 +334,16 @@ public class NFSv3FileSystem extends FileSystem {
         f = makeAbsolute(f);
         NFSv3FileSystemStore store = router.getStore(f);
 
-        // Directories cannot be opened for reading
-        FileStatus status = getFileStatus(f);
-        if (status != null && status.isDirectory()) {
-            throw new FileNotFoundException("open(): cannot open a directory " + f + " for reading");
+        // Close-to-open: whatever the attribute cache says, see the file as it was last closed
+        NFSv3Attributes attributes = new NFSv3Attributes();
+        FileHandle handle = getHandleAndAttributes(store, f, true, attributes);
+        if (handle == null) {
+            throw new FileNotFoundException("open(): file " + f + " does not exist");
         }
 
-        FileHandle handle = getAndVerifyFileHandle(f);
-        if (handle == null) {
-            LOG.error("open(): file handle is undefined for file" + f);
-            return null;
+        // Directories cannot be opened for reading
+        if (attributes.isDirectory()) {
+            throw new FileNotFoundException("open(): cannot open a directory " + f + " for reading");
         }
 
         return new FSDataInputStream(new BufferedFSInputStream(new NFSBufferedInputStream(store, handle, 
@@ -295,7 +357,8 @@ public class NFSv3FileSystem extends FileSystem {
         f = makeAbsolute(f);
         NFSv3FileSystemStore store = router.getStore(f);
 
-        FileHandle handle = getAndVerifyFileHandle(f);
+        // Append at the end of the file as it was last closed
+        FileHandle handle = getHandleAndAttributes(store, f, true, new NFSv3Attributes());
         if (handle == null) {
             throw new FileNotFoundException("append(): file " + f + " does not exist");
         }
@@ -309,7 +372,8 @@ public class NFSv3FileSystem extends FileSystem {
         f = makeAbsolute(f);
         NFSv3FileSystemStore store = router.getStore(f);
 
-        FileHandle handle = getAndVerifyFileHandle(f);
+        NFSv3Attributes attributes = new NFSv3Attributes();
+        FileHandle handle = getHandleAndAttributes(store, f, false, attributes);
         if (handle == null) {
             Path parent = f.getParent();
             
@@ -334,21 +398,24 @@ public class NFSv3FileSystem extends FileSystem {
                 throw new IOException("create(): parent handle is null for creating " + f);
             }
 
-            handle = create(store, parentHandle, f.getName(), permission);
-        } else {
-            FileStatus status = getFileStatus(f);
-            if (status != null) {
-                if (status.isDirectory()) {
-                    throw new FileAlreadyExistsException("create(): path " + f + " is already a directory");
-                } else {
-                    if (overwrite != true) {
-                        throw new FileAlreadyExistsException("create(): file already exists " + f);
-                    }
-                    truncate(store, handle, 0);
+            // The reply has the handle and the attributes, so the stream and a stat after it go nowhere
+            try {
+                handle = create(store, parentHandle, f.getName(), permission);
+            } catch (StaleFileHandleException exception) {
+                parentHandle = refreshStaleHandle(store, parent, exception.getHandle());
+                if (parentHandle == null) {
+                    throw new FileNotFoundException("create(): parent dir " + parent + " was removed");
                 }
-            } else {
-                throw new IOException("create(): could not get status of file " + f);
+                handle = create(store, parentHandle, f.getName(), permission);
             }
+            handleCache.put(Path.getPathWithoutSchemeAndAuthority(f).toString(), handle);
+        } else if (attributes.isDirectory()) {
+            throw new FileAlreadyExistsException("create(): path " + f + " is already a directory");
+        } else {
+            if (overwrite != true) {
+                throw new FileAlreadyExistsException("create(): file already exists " + f);
+            }
+            truncate(store, handle, 0);
         }
         return new FSDataOutputStream(new NFSBufferedOutputStream(configuration, handle, f, store,
                 getCredentials(), false), statistics);
@@ -431,8 +498,6 @@ public class NFSv3FileSystem extends FileSystem {
             return false;
         }
 
-        int status = Nfs3Status.NFS3ERR_IO;
-
         // Destination is a file
         if (dstStatus != null && dstStatus.isFile()) {
             if (srcStatus.isDirectory()) {
@@ -443,21 +508,32 @@ public class NFSv3FileSystem extends FileSystem {
             } else {
                 throw new IOException("rename(): source " + src + " is neither a file nor a directory");
             }
-        } // Destination is a directory, so move source into destination
-        else if (dstStatus != null && dstStatus.isDirectory()) {
-            FileHandle dstHandle = getAndVerifyFileHandle(dst);
-            if (dstHandle == null) {
+        }
+
+        // Move the source into the destination if it is a directory, else to the destination
+        Path toDir = dst.getParent();
+        FileHandle toHandle = dstParentHandle;
+        String toName = dst.getName();
+        if (dstStatus != null && dstStatus.isDirectory()) {
+            toDir = dst;
+            toHandle = getAndVerifyFileHandle(dst);
+            toName = src.getName();
+            if (toHandle == null) {
                 throw new IOException("rename(): destination " + dst + " is a directory but its handle cannot be found");
             }
-            RENAME3Response rename3Response
-                    = srcStore.rename(srcParentHandle, src.getName(), dstHandle, src.getName(),
-                            getCredentials());
-            status = rename3Response.getStatus();
-        } // Destination does not exist
-        else if (dstStatus == null) {
-            RENAME3Response rename3Response
-                    = srcStore.rename(srcParentHandle, src.getName(), dstParentHandle, dst.getName(),
-                            getCredentials());
+        }
+        RENAME3Response rename3Response
+                = srcStore.rename(srcParentHandle, src.getName(), toHandle, toName, getCredentials());
+        int status = rename3Response.getStatus();
+        if (status == Nfs3Status.NFS3ERR_STALE) {
+            // One of the directories was replaced while its handle was trusted, resolve both again
+            srcParentHandle = refreshStaleHandle(srcStore, src.getParent(), srcParentHandle);
+            toHandle = refreshStaleHandle(srcStore, toDir, toHandle);
+            if (srcParentHandle == null || toHandle == null) {
+                LOG.warn("rename(): parent of source " + src + " or destination " + dst + " was removed");
+                return false;
+            }
+            rename3Response = srcStore.rename(srcParentHandle, src.getName(), toHandle, toName, getCredentials());
             status = rename3Response.getStatus();
         }
 
@@ -468,8 +544,10 @@ public class NFSv3FileSystem extends FileSystem {
             throw new IOException("rename(): rename of src " + src + " to dst " + dst + "  returned status " + status);
         }
 
-        // Remove old handles
-        handleCache.removeAll(Path.getPathWithoutSchemeAndAuthority(src).toString());
+        // Handles stay valid across a rename, so move what is cached below the source
+        Path target = (dstStatus != null && dstStatus.isDirectory()) ? new Path(dst, src.getName()) : dst;
+        handleCache.rename(Path.getPathWithoutSchemeAndAuthority(src).toString(),
+                Path.getPathWithoutSchemeAndAuthority(target).toString());
 
         return true;
     }
@@ -479,23 +557,18 @@ public class NFSv3FileSystem extends FileSystem {
         f = makeAbsolute(f);
         NFSv3FileSystemStore store = router.getStore(f);
 
-        FileHandle handle = getAndVerifyFileHandle(f);
+        NFSv3Attributes attributes = new NFSv3Attributes();
+        FileHandle handle = getHandleAndAttributes(store, f, false, attributes);
         if (handle == null) {
             LOG.warn("delete(): file " + f + " does not exist");
             return false;
         }
 
-        Nfs3FileAttributes attributes = store.getFileAttributes(handle, getCredentials());
-        if (attributes == null) {
-            throw new IOException("delete(): could not get file attributes for " + f);
-        }
-
         int fileType = attributes.getType();
         if (fileType == NfsFileType.NFSREG.toValue()) {
             return remove(f);
         } else if (fileType == NfsFileType.NFSDIR.toValue()) {
-            Set<Path> subPaths = listSubPaths(f);
-            if (recursive == false && (subPaths != null && subPaths.isEmpty() == false)) {
+            if (recursive == false && new DirectoryIterator(f, handle).hasNext()) {
                 throw new IOException("delete(): directory " + f + " is not empty so it cannot be deleted");
             }
 
@@ -514,21 +587,70 @@ public class NFSv3FileSystem extends FileSystem {
 
     @Override
     public FileStatus[] listStatus(Path f) throws FileNotFoundException, IOException {
+        List<FileStatus> statuses = new ArrayList<>();
+        RemoteIterator<FileStatus> iterator = listStatusIterator(f);
+        while (iterator.hasNext()) {
+            statuses.add(iterator.next());
+        }
+        FileStatus[] array = statuses.toArray(new FileStatus[statuses.size()]);
+        Arrays.sort(array);
+        return array;
+    }
+
+    /**
+     * The entries of a directory in the order the server returns them, read one READDIRPLUS reply
+     * at a time as the caller asks for more. Overrides FileSystem#listStatusIterator in Hadoop 2.7
+     * and later.
+     */
+    public RemoteIterator<FileStatus> listStatusIterator(Path f) throws FileNotFoundException, IOException {
         f = makeAbsolute(f);
 
         FileStatus fileStatus = getFileStatus(f);
         if (!fileStatus.isDirectory()) {
-            return new FileStatus[]{fileStatus};
+            return new SingletonIterator<FileStatus>(fileStatus);
         }
 
-        // Path f is a dir, return a list of all files/dir in this dir
-        ArrayList<FileStatus> fileStatusList = new ArrayList<>();
-        for (Path path : listSubPaths(f)) {
-            FileStatus s1 = getFileStatus(path);
-            fileStatusList.add(s1);
+        FileHandle handle = getAndVerifyFileHandle(f);
+        if (handle == null) {
+            throw new FileNotFoundException("listStatus(): directory " + f + " does not exist");
         }
-        FileStatus[] array = fileStatusList.toArray(new FileStatus[0]);
-        return array;
+        return new DirectoryIterator(f, handle);
+    }
+
+    /*
+     * FileSystem#listLocatedStatus(Path) and FileSystem#listFiles(Path, boolean) come through here,
+     * so they stream as well.
+     */
+    @Override
+    protected RemoteIterator<LocatedFileStatus> listLocatedStatus(Path f, final PathFilter filter)
+            throws FileNotFoundException, IOException {
+        final RemoteIterator<FileStatus> statuses = listStatusIterator(f);
+        return new RemoteIterator<LocatedFileStatus>() {
+            private LocatedFileStatus next;
+
+            @Override
+            public boolean hasNext() throws IOException {
+                while (next == null && statuses.hasNext()) {
+                    FileStatus status = statuses.next();
+                    if (filter.accept(status.getPath())) {
+                        BlockLocation[] locations = status.isFile()
+                                ? getFileBlockLocations(status, 0, status.getLen()) : null;
+                        next = new LocatedFileStatus(status, locations);
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public LocatedFileStatus next() throws IOException {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                LocatedFileStatus result = next;
+                next = null;
+                return result;
+            }
+        };
     }
 
     @Override
@@ -553,7 +675,10 @@ public class NFSv3FileSystem extends FileSystem {
         } while (!path.isRoot() && !rootPaths.contains(path.toString()));
 
         store = router.getStore(path);
-        FileHandle parentDir = store.getRootFileHandle();
+        FileHandle parentDir = getAndVerifyFileHandle(path);
+        if (parentDir == null) {
+            throw new IOException("mkdirs(): could not get the handle of root " + path);
+        }
         
         path = null;
         for (String dir : dirs) {
@@ -568,18 +693,28 @@ public class NFSv3FileSystem extends FileSystem {
                 throw new IOException("Trying to create directories across junctions");
             }
             
-            FileHandle dirHandle = store.getFileHandle(parentDir, dir, getCredentials());
+            // The walk starts from the root, so only a directory removed meanwhile can be stale
+            FileHandle dirHandle;
+            try {
+                dirHandle = store.getFileHandle(parentDir, dir, getCredentials());
+            } catch (StaleFileHandleException exception) {
+                parentDir = refreshStaleHandle(store, path.getParent(), exception.getHandle());
+                if (parentDir == null) {
+                    throw new FileNotFoundException("mkdirs(): parent dir " + path.getParent() + " was removed");
+                }
+                dirHandle = store.getFileHandle(parentDir, dir, getCredentials());
+            }
             if(dirHandle != null) {
-                Nfs3FileAttributes attr = store.getFileAttributes(dirHandle, getCredentials());
-                if(attr.getType() != NfsFileType.NFSDIR.toValue()) {
+                NFSv3Attributes attr = store.getFileAttributes(dirHandle, getCredentials(), new NFSv3Attributes());
+                if(!attr.isDirectory()) {
                     throw new FileAlreadyExistsException("Trying to make subdirectory inside a file");
                 }
                 parentDir = dirHandle;
             } 
             else {
-                mkdir(store, parentDir, dir, permission);
-                parentDir = store.getFileHandle(parentDir, dir, getCredentials());
+                parentDir = mkdir(store, parentDir, dir, permission);
             }
+            handleCache.put(path.toString(), parentDir);
         }
         return true;
     }
@@ -626,9 +761,11 @@ public class NFSv3FileSystem extends FileSystem {
             throw new IOException("remove(): failed for " + f + " with error status " + status);
         }
 
-        // Remove the stale handle from the handle cache
-        if (handleCache.get(pathString) != null) {
+        // Remove the stale handle from the handle cache, and whatever attributes it still has
+        FileHandle handle = handleCache.get(pathString);
+        if (handle != null) {
             handleCache.remove(pathString);
+            store.getAttributeCache().invalidate(handle);
         }
         return true;
     }
@@ -663,73 +800,160 @@ public class NFSv3FileSystem extends FileSystem {
             throw new IOException("rmdir(): failed for " + f + " with error status " + status);
         }
 
-        // Remove the stale handle from the handle cache
-        if (handleCache.get(pathString) != null) {
+        // Remove the stale handle from the handle cache, and whatever attributes it still has
+        FileHandle handle = handleCache.get(pathString);
+        if (handle != null) {
             handleCache.remove(pathString);
+            store.getAttributeCache().invalidate(handle);
         }
 
         return true;
     }
 
-    private Set<Path> listSubPaths(Path f) throws IOException {
-        f = makeAbsolute(f);
-        NFSv3FileSystemStore store = router.getStore(f);
-        Path fsPath = Path.getPathWithoutSchemeAndAuthority(f);
-        FileStatus fileStatus = getFileStatus(f);
+    private static class SingletonIterator<T> implements RemoteIterator<T> {
+        private T value;
 
-        // Return null if it is a file
-        if (!fileStatus.isDirectory()) {
-            return null;
+        SingletonIterator(T value) {
+            this.value = value;
         }
 
-        FileHandle handle = getAndVerifyFileHandle(f);
-        if (handle == null) {
-            LOG.info("Directory to list does not exist: " + f);
-            return null;
+        @Override
+        public boolean hasNext() {
+            return value != null;
         }
 
-        // Read in all entries in this directory
-        Set<Path> paths = new TreeSet<>();
-        long cookie = 0;
-        long cookieVerf = 0;
-
-        // Keep fetching directory entries until the list stops
-        while (true) {
-            Nfs3DirList dirList
-                    = store.getDirectoryList(handle, cookie, cookieVerf, store.getDirListSize(),
-                            getCredentials());
-            if (dirList != null) {
-                List<Nfs3DirEntry> entryList = dirList.getEntries();
-                for (Nfs3DirEntry entry : entryList) {
-                    cookie = entry.getCookie();
-                    // Ignore dot and dot-dot entries
-                    if (entry.getName().equals(UNIX_DOT_DIR) || entry.getName().equals(UNIX_DOT_DOT_DIR) || entry.getName().equals(".vsadmin")) {
-                        continue;
-                    }
+        @Override
+        public T next() {
+            if (value == null) {
+                throw new NoSuchElementException();
+            }
+            T result = value;
+            value = null;
+            return result;
+        }
+    }
 
-                    Path newPath;
-                    if (fsPath.isRoot()) {
-                        newPath = new Path(Path.SEPARATOR + entry.getName());
-                    } else {
-                        newPath = new Path(fsPath.toString() + Path.SEPARATOR + entry.getName());
-                    }
-                    paths.add(newPath);
+    /*
+     * Lists a directory one reply at a time: only the current page is held, and the first entries
+     * are returned as soon as the first reply arrives. READDIRPLUS brings the attributes and handles
+     * along; if the server refuses it on the first page, the listing falls back to READDIR and an
+     * extra GETATTR per entry.
+     */
+    private class DirectoryIterator implements RemoteIterator<FileStatus> {
+        private final Path dir;
+        private final Path fsPath;
+        private FileHandle handle;
+        private final NFSv3FileSystemStore store;
+        private final Set<String> rootPaths;
+        private final NFSv3DirectoryPage page;
+        private boolean plus;
+        private boolean fetched;
+        private long cookie;
+        private long cookieVerf;
+        private int index;
+        private FileStatus next;
+
+        DirectoryIterator(Path dir, FileHandle handle) throws IOException {
+            this.dir = dir;
+            this.fsPath = Path.getPathWithoutSchemeAndAuthority(dir);
+            this.handle = handle;
+            this.store = router.getStore(dir);
+            this.page = new NFSv3DirectoryPage();
+            this.plus = true;
+
+            // Roots of other endpoints have to be resolved through their own store
+            this.rootPaths = new HashSet<>();
+            for (Endpoint ep : space.getEndpoints()) {
+                if (ep.getPath() != null) {
+                    rootPaths.add(new Path(ep.getPath()).toString());
+                }
+            }
+        }
 
+        @Override
+        public boolean hasNext() throws IOException {
+            while (next == null) {
+                if (index < page.size()) {
+                    next = makeStatus(index++);
+                } else if (fetched && page.isEof()) {
+                    return false;
+                } else {
+                    fetch();
                 }
             }
+            return true;
+        }
 
-            // Check for more entries
-            if (dirList == null || dirList.isEof()) {
-                break;
-            } else {
-                cookieVerf = dirList.getCookieVerf();
+        @Override
+        public FileStatus next() throws IOException {
+            if (!hasNext()) {
+                throw new NoSuchElementException("No more entries in " + dir);
             }
+            FileStatus result = next;
+            next = null;
+            return result;
         }
 
-        return paths;
+        private void fetch() throws IOException {
+            int status = store.getDirectoryPage(handle, cookie, cookieVerf, plus, getCredentials(), page);
+            if (status == Nfs3Status.NFS3ERR_STALE && !fetched) {
+                handle = refreshStaleHandle(store, dir, handle);
+                if (handle == null) {
+                    throw new FileNotFoundException("listStatus(): directory " + dir + " does not exist");
+                }
+                status = store.getDirectoryPage(handle, cookie, cookieVerf, plus, getCredentials(), page);
+            }
+            if (status != Nfs3Status.NFS3_OK && plus && !fetched) {
+                LOG.info("READDIRPLUS is not available for " + dir + ", falling back to READDIR");
+                plus = false;
+                status = store.getDirectoryPage(handle, cookie, cookieVerf, plus, getCredentials(), page);
+            }
+            if (status != Nfs3Status.NFS3_OK) {
+                throw new IOException("listStatus(): " + (plus ? "READDIRPLUS" : "READDIR") + " of " + dir
+                        + " failed with status=" + status);
+            }
+            if (page.size() == 0 && !page.isEof()) {
+                throw new IOException("listStatus(): empty reply before the end of " + dir);
+            }
+
+            fetched = true;
+            index = 0;
+            cookieVerf = page.getCookieVerf();
+            if (page.size() > 0) {
+                cookie = page.getCookie(page.size() - 1);
+            }
+        }
+
+        /* Null for the entries that are not listed */
+        private FileStatus makeStatus(int i) throws IOException {
+            String name = page.getName(i);
+            // Ignore dot and dot-dot entries
+            if (name.equals(UNIX_DOT_DIR) || name.equals(UNIX_DOT_DOT_DIR) || name.equals(".vsadmin")) {
+                return null;
+            }
+
+            Path newPath;
+            if (fsPath.isRoot()) {
+                newPath = new Path(Path.SEPARATOR + name);
+            } else {
+                newPath = new Path(fsPath.toString() + Path.SEPARATOR + name);
+            }
+
+            // The server may omit attributes or handles, so look those entries up
+            NFSv3Attributes attributes = page.getAttributes(i);
+            FileHandle entryHandle = page.getHandle(i);
+            if (attributes == null || entryHandle == null || rootPaths.contains(newPath.toString())) {
+                return getFileStatus(newPath);
+            }
+
+            handleCache.put(newPath.toString(), entryHandle);
+            return makeFileStatus(newPath, attributes.isDirectory(), attributes.getSize(),
+                    attributes.getMtimeMillis(), attributes.getAtimeMillis(), attributes.getMode(),
+                    attributes.getUid(), attributes.getGid());
+        }
     }
 
-    private boolean mkdir(NFSv3FileSystemStore store, FileHandle dir, String name, FsPermission permission) throws IOException {
+    private FileHandle mkdir(NFSv3FileSystemStore store, FileHandle dir, String name, FsPermission permission) throws IOException {
         int status;
         EnumSet<SetAttrField> updateFields = EnumSet.noneOf(SetAttrField.class);
         /*
@@ -751,11 +975,22 @@ public class NFSv3FileSystem extends FileSystem {
                 throw new FileAlreadyExistsException();
             } else if (status == Nfs3Status.NFS3ERR_NOTDIR) {
                 throw new ParentNotDirectoryException();
+            } else if (status == Nfs3Status.NFS3ERR_STALE) {
+                throw new StaleFileHandleException("mkdir(): handle of the directory of " + name + " is stale", dir);
             } else {
                 throw new IOException("mkdir(): returned error status " + status);
             }
         }
-        return true;
+
+        // The handle is optional in the reply
+        FileHandle handle = mkdir3Response.getObjFileHandle();
+        if (handle == null) {
+            handle = store.getFileHandle(dir, name, getCredentials());
+        }
+        if (handle == null) {
+            throw new IOException("mkdir(): could not find new directory " + name);
+        }
+        return handle;
     }
 
     private FileHandle create(NFSv3FileSystemStore store, FileHandle dir, String name, FsPermission permission)
@@ -770,11 +1005,21 @@ public class NFSv3FileSystem extends FileSystem {
         CREATE3Response create3Response
                 = store.create(dir, name, Nfs3Constant.CREATE_UNCHECKED, objAttr, 0, getCredentials());
         int status = create3Response.getStatus();
+        if (status == Nfs3Status.NFS3ERR_STALE) {
+            throw new StaleFileHandleException("create(): handle of the directory of " + name + " is stale", dir);
+        }
         if (status != Nfs3Status.NFS3_OK) {
             throw new IOException("create(): returned error status " + status);
         }
 
+        // The handle is optional in the reply
         FileHandle handle = create3Response.getObjHandle();
+        if (handle == null) {
+            handle = store.getFileHandle(dir, name, getCredentials());
+        }
+        if (handle == null) {
+            throw new IOException("create(): could not find new file " + name);
+        }
         return handle;
     }
 
@@ -803,14 +1048,31 @@ public class NFSv3FileSystem extends FileSystem {
         Path fsPath = Path.getPathWithoutSchemeAndAuthority(path);
         FileHandle handle;
 
+        // Handles the server vouched for within the trust time are used as they are; one that has
+        // gone stale since is caught when it is used, see refreshStaleHandle
+        handle = handleCache.getTrusted(fsPath.toString());
+        if (handle != null) {
+            return handle;
+        }
+
         // Root paths (top root or junctioned-root)
         if (fsPath.isRoot() || isRoot(path)) {
             handle = store.getRootFileHandle();
-            GETATTR3Response getAttr3Response = store.getattr(handle, getCredentials());
-            status = getAttr3Response.getStatus();
+            NFSv3Attributes attributes = new NFSv3Attributes();
+            status = store.getattr(handle, getCredentials(), attributes);
+            if ((status == Nfs3Status.NFS3ERR_STALE
+                    || (status == Nfs3Status.NFS3_OK && attributes.getFsid() != store.getFilesystemId()))
+                    && store.remount()) {
+                // The export changed since the root handle was found, so did every path below it
+                LOG.info("Root handle of " + path + " changed, forgetting the handles below it");
+                handleCache.remove(fsPath.toString());
+                handle = store.getRootFileHandle();
+                status = store.getattr(handle, getCredentials(), attributes);
+            }
             if (status != Nfs3Status.NFS3_OK) {
                 throw new IOException("getAndVerifyHandle(): Could not get attributes for path " + path);
             }
+            handleCache.put(fsPath.toString(), handle);
             return handle;
         }
 
@@ -820,12 +1082,13 @@ public class NFSv3FileSystem extends FileSystem {
             throw new IOException("getAndVerifyHandle(): Parent " + path.getParent() + " and child " + path + " are not on the same filesystem!");
         }
         
-        // If the handle is in the cache and valid, return it 
+        // If the handle is in the cache and valid, return it; attributes the cache still trusts
+        // are proof enough
         handle = handleCache.get(fsPath.toString());
         if (handle != null) {
-            GETATTR3Response getAttr3Response = store.getattr(handle, getCredentials());
-            status = getAttr3Response.getStatus();
+            status = store.getattr(handle, getCredentials(), new NFSv3Attributes());
             if (status == Nfs3Status.NFS3_OK) {
+                handleCache.put(fsPath.toString(), handle);
                 return handle;
             } else {
                 // we have a stale handle in the handle cache, remove it
@@ -841,33 +1104,76 @@ public class NFSv3FileSystem extends FileSystem {
             return null;
         }
         
-        handle = store.getFileHandle(parentHandle, fsPath.getName(), getCredentials());
+        try {
+            handle = store.getFileHandle(parentHandle, fsPath.getName(), getCredentials());
+        } catch (StaleFileHandleException exception) {
+            parentHandle = refreshStaleHandle(store, path.getParent(), exception.getHandle());
+            if (parentHandle == null) {
+                return null;
+            }
+            handle = store.getFileHandle(parentHandle, fsPath.getName(), getCredentials());
+        }
         if(handle != null) {
             handleCache.put(fsPath.toString(), handle);
         }
         return handle;
     }
 
+    /*
+     * The server said the handle of the path is stale, which happens when the path was removed or
+     * replaced elsewhere while its handle was trusted. Forget the handle and resolve the path again,
+     * null if it no longer exists.
+     */
+    private FileHandle refreshStaleHandle(NFSv3FileSystemStore store, Path path, FileHandle stale)
+            throws IOException {
+        LOG.debug("Handle of " + path + " is stale, resolving it again");
+        handleCache.removeByValue(stale);
+        store.getAttributeCache().invalidate(stale);
+        return getAndVerifyFileHandle(path);
+    }
+
+    /*
+     * The handle of the path, null if the path does not exist, and its attributes in the holder:
+     * from the attribute cache, or always from the server if revalidate is set.
+     */
+    private FileHandle getHandleAndAttributes(NFSv3FileSystemStore store, Path path, boolean revalidate,
+            NFSv3Attributes attributes) throws IOException {
+        FileHandle handle = getAndVerifyFileHandle(path);
+        if (handle == null) {
+            return null;
+        }
+        int status = revalidate ? store.revalidate(handle, getCredentials(), attributes)
+                : store.getattr(handle, getCredentials(), attributes);
+        if (status == Nfs3Status.NFS3ERR_STALE) {
+            handle = refreshStaleHandle(store, path, handle);
+            if (handle == null) {
+                return null;
+            }
+            status = revalidate ? store.revalidate(handle, getCredentials(), attributes)
+                    : store.getattr(handle, getCredentials(), attributes);
+        }
+        if (status != Nfs3Status.NFS3_OK) {
+            throw new IOException("Could not get attributes of " + path + ", status=" + status);
+        }
+        return handle;
+    }
+
     @Override
     public FileStatus getFileStatus(Path f) throws IOException {
         f = makeAbsolute(f);
         NFSv3FileSystemStore store = router.getStore(f);
 
-        FileHandle handle = getAndVerifyFileHandle(f);
+        NFSv3Attributes attributes = new NFSv3Attributes();
+        FileHandle handle = getHandleAndAttributes(store, f, false, attributes);
         if (handle == null) {
             throw new FileNotFoundException("getFileStatus(): file " + f + " does not exist");
         }
+        return makeFileStatus(f, attributes.isDirectory(), attributes.getSize(), attributes.getMtimeMillis(),
+                attributes.getAtimeMillis(), attributes.getMode(), attributes.getUid(), attributes.getGid());
+    }
 
-        Nfs3FileAttributes fileAttr = store.getFileAttributes(handle, getCredentials());
-        if (fileAttr == null) {
-            throw new IOException("getFileStatus(): could not get attributes of file " + f);
-        }
-
-        Boolean isDir = false;
-        if (fileAttr.getType() == NfsFileType.NFSDIR.toValue()) {
-            isDir = true;
-        }
-        
+    private FileStatus makeFileStatus(Path f, boolean isDir, long size, long mtime, long atime, int mode,
+            int uid, int gid) throws IOException {
         NamespaceOptions option = space.getConfiguration();
         
         String fileOwner, fileOwnerGroup;
@@ -875,32 +1181,31 @@ public class NFSv3FileSystem extends FileSystem {
         if (cred instanceof CredentialsSys) {
             /*The userid to username mapping in the config file*/
             try {
-                if(option.getUserNameFromUserId(String.valueOf(fileAttr.getUid())) != null) {
-                    fileOwner = option.getUserNameFromUserId(String.valueOf(fileAttr.getUid()));
+                if(option.getUserNameFromUserId(String.valueOf(uid)) != null) {
+                    fileOwner = option.getUserNameFromUserId(String.valueOf(uid));
                 } else {
-                    fileOwner = String.valueOf(fileAttr.getUid());
+                    fileOwner = String.valueOf(uid);
                 }
     
                 /*The groupid to groupname mapping in the config file*/
-                if(option.getGroupNameFromGroupId(String.valueOf(fileAttr.getGid())) != null) {
-                    fileOwnerGroup = option.getGroupNameFromGroupId(String.valueOf(fileAttr.getGid()));
+                if(option.getGroupNameFromGroupId(String.valueOf(gid)) != null) {
+                    fileOwnerGroup = option.getGroupNameFromGroupId(String.valueOf(gid));
                 } else {
-                    fileOwnerGroup = String.valueOf(fileAttr.getGid());
+                    fileOwnerGroup = String.valueOf(gid);
                 }
             } catch (NullPointerException ex) {
-                fileOwner = String.valueOf(fileAttr.getUid());
-                fileOwnerGroup = String.valueOf(fileAttr.getGid());
+                fileOwner = String.valueOf(uid);
+                fileOwnerGroup = String.valueOf(gid);
             }
         } else if (cred instanceof CredentialsNone) {
-            fileOwner = String.valueOf(fileAttr.getUid());
-            fileOwnerGroup = String.valueOf(fileAttr.getGid());
+            fileOwner = String.valueOf(uid);
+            fileOwnerGroup = String.valueOf(gid);
         } else {
             throw new IOException("The credential type is not supported!");
         }
         FileStatus fileStatus
-                = new FileStatus(fileAttr.getSize(), isDir, 1, getSplitSize(), fileAttr.getMtime()
-                        .getMilliSeconds(), fileAttr.getAtime().getMilliSeconds(), new FsPermission(
-                                (short) fileAttr.getMode()), fileOwner, fileOwnerGroup, f.makeQualified(uri,
+                = new FileStatus(size, isDir, 1, getSplitSize(), mtime, atime, new FsPermission(
+                                (short) mode), fileOwner, fileOwnerGroup, f.makeQualified(uri,
                                 workingDir));
         return fileStatus;
     }
@@ -926,13 +1231,10 @@ public class NFSv3FileSystem extends FileSystem {
         NamespaceOptions options = space.getConfiguration();
         String authScheme = (options.getNfsAuthScheme() == null) ? NamespaceOptions.getDefaultOptions().getNfsAuthScheme() : options.getNfsAuthScheme();
         if (authScheme.equalsIgnoreCase("AUTH_SYS") || authScheme.equalsIgnoreCase("AUTH_UNIX")) {
-            CredentialsSys sys = new CredentialsSys();
-            sys.setUID(NFS_UID);
-            sys.setGID(NFS_GID);
-            sys.setStamp(new Long(System.currentTimeMillis()).intValue());
-            return sys;
+            // Shared and already encoded, calls copy the credential instead of building it
+            return RpcCredentialsSys.get(NFS_UID, NFS_GID, null);
         } else {
-            return new CredentialsNone();
+            return AUTH_NONE;
         }
     }
 
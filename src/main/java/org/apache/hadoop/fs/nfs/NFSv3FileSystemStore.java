@@ -27,6 +27,8 @@ import org.apache.hadoop.fs.nfs.mount.MountMNTResponse;
 import org.apache.hadoop.fs.nfs.portmap.PortmapClient;
 import org.apache.hadoop.fs.nfs.rpc.RpcClient;
 import org.apache.hadoop.fs.nfs.rpc.RpcException;
+import org.apache.hadoop.fs.nfs.rpc.RpcMetrics;
+import org.apache.hadoop.fs.nfs.rpc.RpcResult;
 import org.apache.hadoop.fs.nfs.topology.Endpoint;
 import org.apache.hadoop.fs.nfs.topology.Namespace;
 import org.apache.hadoop.fs.nfs.topology.NamespaceOptions;
@@ -34,12 +36,11 @@ import org.apache.hadoop.mount.MountResponse;
 import org.apache.hadoop.nfs.NfsTime;
 import org.apache.hadoop.nfs.nfs3.FileHandle;
 import org.apache.hadoop.nfs.nfs3.Nfs3Constant;
-import org.apache.hadoop.nfs.nfs3.Nfs3DirList;
-import org.apache.hadoop.nfs.nfs3.Nfs3FileHandle;
 import org.apache.hadoop.nfs.nfs3.Nfs3Constant.NFSPROC3;
 import org.apache.hadoop.nfs.nfs3.Nfs3Constant.WriteStableHow;
 import org.apache.hadoop.nfs.nfs3.Nfs3FileAttributes;
 import org.apache.hadoop.nfs.nfs3.Nfs3Info;
+import org.apache.hadoop.nfs.nfs3.Nfs3ReadReply;
 import org.apache.hadoop.nfs.nfs3.Nfs3SetAttr;
 import org.apache.hadoop.nfs.nfs3.Nfs3Status;
 import org.apache.hadoop.nfs.nfs3.response.COMMIT3Response;
@@ -64,33 +65,226 @@ import org.apache.hadoop.oncrpc.security.CredentialsNone;
 import org.apache.hadoop.oncrpc.security.CredentialsSys;
 import org.apache.hadoop.portmap.PortmapMapping;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
 @InterfaceAudience.Private
 public final class NFSv3FileSystemStore extends RpcClient {
 
     NFSv3FileSystem fs;
     Namespace space;
     Endpoint ep;
-    FileHandle rootHandle;
+    volatile FileHandle rootHandle;
     Nfs3Info fsInfo;
     Long fsId;
+    final AttributeCache attributeCache;
+    final NegativeLookupCache negativeLookupCache;
     
     public static final Log LOG = LogFactory.getLog(NFSv3FileSystemStore.class);
 
+    public static final int TIMER_CLASS_DEFAULT = 0;
+    public static final int TIMER_CLASS_GETATTR = 1;
+    public static final int TIMER_CLASS_LOOKUP = 2;
+    public static final int TIMER_CLASS_READ = 3;
+    public static final int TIMER_CLASS_WRITE = 4;
+    public static final int TIMER_CLASS_READDIR = 5;
+
+    /* Builds the response object from the body of an accepted reply */
+    private static abstract class ResponseParser<T> {
+        abstract T parse(RpcResult result) throws IOException;
+
+        /* True if the response points into the reply and releases it itself */
+        boolean keepsResult() {
+            return false;
+        }
+
+        /* Put the attributes the reply has for the handle of the call in the caches, before parsing */
+        void harvest(RpcResult result, FileHandle handle, NFSv3FileSystemStore store) throws IOException {
+        }
+    }
+
+    /* Replies that follow their status with wcc_data for the handle of the call */
+    private static abstract class WccResponseParser<T> extends ResponseParser<T> {
+        @Override
+        void harvest(RpcResult result, FileHandle handle, NFSv3FileSystemStore store) throws IOException {
+            NFSv3Codec codec = NFSv3Codec.get();
+            NFSv3Attributes attributes = codec.getScratchAttributes();
+            codec.decodeWcc(result.getBuffer(), attributes);
+            store.harvest(handle, attributes);
+        }
+    }
+
+    /* Replies that follow their status with post_op_attr for the handle of the call */
+    private static abstract class PostOpResponseParser<T> extends ResponseParser<T> {
+        @Override
+        void harvest(RpcResult result, FileHandle handle, NFSv3FileSystemStore store) throws IOException {
+            NFSv3Codec codec = NFSv3Codec.get();
+            NFSv3Attributes attributes = codec.getScratchAttributes();
+            codec.decodePostOp(result.getBuffer(), attributes);
+            store.harvest(handle, attributes);
+        }
+    }
+
+    /* The handle of the call is the directory, the object comes with its own handle */
+    private static class LookupResponseParser extends ResponseParser<LOOKUP3Response> {
+        @Override
+        LOOKUP3Response parse(RpcResult result) throws IOException {
+            return NFSv3ResponseBuilder.buildLOOKUP3Response(result.getData());
+        }
+
+        @Override
+        void harvest(RpcResult result, FileHandle dir, NFSv3FileSystemStore store) throws IOException {
+            harvestHandle(result, dir, null, store);
+        }
+
+        /*
+         * Same as above, returns the handle of the object or null if there is none. If the name is
+         * given and the server says it does not exist, that goes in the negative lookup cache.
+         */
+        FileHandle harvestHandle(RpcResult result, FileHandle dir, String name,
+                NFSv3FileSystemStore store) throws IOException {
+            NFSv3Codec codec = NFSv3Codec.get();
+            NFSv3Attributes attributes = codec.getScratchAttributes();
+            NFSv3Attributes dirAttributes = codec.getScratchDirectoryAttributes();
+            FileHandle handle = codec.decodeLOOKUP(result.getBuffer(), attributes, dirAttributes);
+            if (handle != null) {
+                store.harvest(handle, attributes);
+            }
+            store.harvest(dir, dirAttributes);
+            if (handle == null && name != null
+                    && NFSv3Codec.getStatus(result.getBuffer()) == Nfs3Status.NFS3ERR_NOENT) {
+                store.negativeLookupCache.put(dir, name,
+                        dirAttributes.getType() != 0 ? dirAttributes : null);
+            }
+            return handle;
+        }
+    }
+
+    private static final ResponseParser<COMMIT3Response> COMMIT3_PARSER = new WccResponseParser<COMMIT3Response>() {
+        @Override
+        COMMIT3Response parse(RpcResult result) throws IOException {
+            return NFSv3ResponseBuilder.buildCOMMIT3Response(result.getData());
+        }
+    };
+
+    private static final ResponseParser<GETATTR3Response> GETATTR3_PARSER = new ResponseParser<GETATTR3Response>() {
+        @Override
+        GETATTR3Response parse(RpcResult result) throws IOException {
+            return NFSv3ResponseBuilder.buildGETATTR3Response(result.getData());
+        }
+
+        @Override
+        void harvest(RpcResult result, FileHandle handle, NFSv3FileSystemStore store) throws IOException {
+            NFSv3Codec codec = NFSv3Codec.get();
+            NFSv3Attributes attributes = codec.getScratchAttributes();
+            if (codec.decodeGETATTR(result.getBuffer(), attributes) != Nfs3Status.NFS3_OK) {
+                NFSv3Codec.clear(attributes);
+            }
+            store.harvestLatest(handle, attributes);
+        }
+    };
+
+    private static final LookupResponseParser LOOKUP3_PARSER = new LookupResponseParser();
+
+    private static final ResponseParser<Nfs3ReadReply> READ3_PARSER = new PostOpResponseParser<Nfs3ReadReply>() {
+        @Override
+        Nfs3ReadReply parse(RpcResult result) throws IOException {
+            Nfs3ReadReply reply = NFSv3Codec.get().decodeREAD(result.getBuffer());
+            reply.setOwner(result);
+            return reply;
+        }
+
+        @Override
+        boolean keepsResult() {
+            return true;
+        }
+    };
+
+    private static final ResponseParser<READDIR3Response> READDIR3_PARSER = new PostOpResponseParser<READDIR3Response>() {
+        @Override
+        READDIR3Response parse(RpcResult result) throws IOException {
+            return NFSv3ResponseBuilder.buildREADDIR3Response(result.getData());
+        }
+    };
+
+    private static final ResponseParser<Void> NULL3_PARSER = new ResponseParser<Void>() {
+        @Override
+        Void parse(RpcResult result) throws IOException {
+            return null;
+        }
+    };
+
+    private static final ResponseParser<WRITE3Response> WRITE3_PARSER = new WccResponseParser<WRITE3Response>() {
+        @Override
+        WRITE3Response parse(RpcResult result) throws IOException {
+            return NFSv3ResponseBuilder.buildWRITE3Response(result.getData());
+        }
+    };
+
     public NFSv3FileSystemStore(NFSv3FileSystem fs, Namespace space) throws IOException {
         this(fs, space, space.getDefaultEndpoint());
     }
 
     public NFSv3FileSystemStore(NFSv3FileSystem fs, Namespace space, Endpoint ep) throws IOException {
+        this(fs, space, ep, null);
+    }
 
-        super(ep.getUri().getHost(), ep.getUri().getPort());
+    /**
+     * Open a store on an endpoint that serves the same export as the peer, if any. The root handle
+     * of the peer is used without a MOUNT when the endpoint reports the same filesystem id for it.
+     */
+    public NFSv3FileSystemStore(NFSv3FileSystem fs, Namespace space, Endpoint ep, NFSv3FileSystemStore peer) throws IOException {
+
+        super(ep.getUri().getHost(), ep.getUri().getPort(), Math.max(1, space.getConfiguration().getNfsConnections()),
+                space.getConfiguration().getNfsMetadataConnection());
 
         NamespaceOptions options = space.getConfiguration();
+        setSlotLimits(options.getNfsMaxSlots(), options.getNfsMaxSlotBytes(), options.getNfsAdaptiveSlots());
+        setDeadline(options.getNfsRpcDeadlineMs());
         URI uri = ep.getUri();
-        String mountDirectory = null;
+        String procedures[] = new String[NFSPROC3.values().length];
+        for (NFSPROC3 procedure : NFSPROC3.values()) {
+            procedures[procedure.getValue()] = procedure.name();
+        }
+        setMetrics(new RpcMetrics(Nfs3Constant.PROGRAM, uri.getHost() + ":" + uri.getPort(), procedures));
         this.fs = fs;
         this.space = space;
         this.ep = ep;
 
+        boolean adopted = false;
+        try {
+            if (!restoreMount(fs.getSnapshot())) {
+                adopted = peer != null && adoptRootHandle(peer);
+                if (!adopted) {
+                    mount(uri, options);
+                }
+            }
+        } catch (IOException exception) {
+            shutdown();
+            throw exception;
+        }
+
+        // Endpoints that serve the same filesystem share their attributes and missing names
+        if (adopted) {
+            attributeCache = peer.getAttributeCache();
+            negativeLookupCache = peer.getNegativeLookupCache();
+        } else {
+            attributeCache = new AttributeCache(options.getNfsAttributeCacheSize(), options.getNfsAcRegMinMs(),
+                    options.getNfsAcRegMaxMs(), options.getNfsAcDirMinMs(), options.getNfsAcDirMaxMs());
+            negativeLookupCache = new NegativeLookupCache(options.getNfsNegativeLookupCacheSize(),
+                    options.getNfsNegativeLookupTtlMs());
+        }
+        System.out.println("Store with ep " + ep + " has fsId " + fsId);
+        getMetrics().register("NfsRpc-" + uri.getHost() + "-" + uri.getPort());
+    }
+
+    private void mount(URI uri, NamespaceOptions options) throws IOException {
+        String mountDirectory = null;
+
         // Find MOUNT port
         int mountPort = options.getNfsMountPort();
         if (options.getNfsMountPort() == NamespaceOptions.INVALID_PORT) {
@@ -111,21 +305,79 @@ public final class NFSv3FileSystemStore extends RpcClient {
         MountMNTResponse mntResponse = mount.mnt(mountDirectory);
         if (mntResponse == null || mntResponse.getStatus() != MountResponse.MNT_OK) {
             LOG.error("Could not get root file handle for endpoint ep=" + ep);
+            mount.shutdown();
             throw new IOException("Could not get root file handle");
         }
         rootHandle = mntResponse.getFilehandle();
         
         Nfs3FileAttributes attr = this.getFileAttributes(getRootFileHandle(), fs.getCredentials());
         if(attr == null) {
+            mount.shutdown();
             throw new IOException("Could not get filesystem id");
         }
         fsId = attr.getFsid();
-        System.out.println("Store with ep " + ep + " has fsId " + fsId);
         
         mount.shutdown(); 
     }
 
+    /*
+     * Take the root handle, filesystem id and FSINFO of an earlier mount from the snapshot, if it
+     * has the endpoint. They are only checked when used.
+     */
+    private boolean restoreMount(HandleSnapshot snapshot) {
+        HandleSnapshot.Mount mount = (snapshot == null) ? null : snapshot.getMount(ep);
+        if (mount == null) {
+            return false;
+        }
+        rootHandle = mount.rootHandle;
+        fsId = mount.fsId;
+        fsInfo = mount.info;
+        LOG.debug("Restored root handle of " + ep + " from snapshot");
+        return true;
+    }
+
+    /**
+     * MOUNT again because the root handle went stale, as one from a snapshot does once the export
+     * changed. True if the server gave another root handle.
+     */
+    public synchronized boolean remount() throws IOException {
+        FileHandle stale = rootHandle;
+        mount(ep.getUri(), space.getConfiguration());
+        attributeCache.invalidate(stale);
+        return !rootHandle.equals(stale);
+    }
+
+    private boolean adoptRootHandle(NFSv3FileSystemStore peer) {
+        try {
+            Nfs3FileAttributes attr = getFileAttributes(peer.getRootFileHandle(), fs.getCredentials());
+            if (attr != null && attr.getFsid() == peer.getFilesystemId()) {
+                rootHandle = peer.getRootFileHandle();
+                fsId = attr.getFsid();
+                LOG.debug("Reusing root handle of " + peer.getEndpoint() + " for " + ep);
+                return true;
+            }
+        } catch (IOException exception) {
+            LOG.debug("Root handle of " + peer.getEndpoint() + " is not valid on " + ep + ": " + exception.getMessage());
+        }
+        return false;
+    }
+
+    @Override
+    public void shutdown() {
+        // The RPC client shuts down from its constructor when it cannot connect, before the
+        // metrics are set
+        RpcMetrics metrics = getMetrics();
+        if (metrics != null) {
+            metrics.unregister();
+        }
+        super.shutdown();
+    }
+
     public void initialize() throws IOException {
+        if (fsInfo != null) {
+            return;
+        }
+
         // FSINFO and set limits on read/write size
         Nfs3Info info = getFilesystemInfo(getRootFileHandle(), fs.getCredentials());
         if(info == null) {
@@ -178,6 +430,14 @@ public final class NFSv3FileSystemStore extends RpcClient {
         return rootHandle;
     }
 
+    public AttributeCache getAttributeCache() {
+        return attributeCache;
+    }
+
+    public NegativeLookupCache getNegativeLookupCache() {
+        return negativeLookupCache;
+    }
+
     public int getReadSizeBits() {
         int rtMax = fsInfo.getRtmax();
         int readBlockSizeBits = space.getConfiguration().getNfsReadSizeBits();
@@ -200,6 +460,24 @@ public final class NFSv3FileSystemStore extends RpcClient {
         return fsInfo.getDtpref();
     }
     
+    public int getDirListPlusSize() {
+        // READDIRPLUS replies carry attributes and handles, so allow up to a full read
+        return Math.max(getDirListSize(), 1 << getReadSizeBits());
+    }
+    
+    public ListenableFuture<Void> nullOpAsync() {
+        return serviceAsync(NFSPROC3.NULL, null, Unpooled.EMPTY_BUFFER, new CredentialsNone(), NULL3_PARSER);
+    }
+
+    /*
+     * Same as above, but returns null instead of waiting when the connection has no free slot
+     */
+    public ListenableFuture<Void> tryNullOpAsync() {
+        ListenableFuture<RpcResult> future = tryServiceAsync(Nfs3Constant.PROGRAM, Nfs3Constant.VERSION,
+                NFSPROC3.NULL.getValue(), Unpooled.EMPTY_BUFFER, new CredentialsNone());
+        return (future == null) ? null : parse(NFSPROC3.NULL, null, future, NULL3_PARSER);
+    }
+
     public void nullOp() throws IOException {
 
         XDR in = new XDR();
@@ -218,45 +496,31 @@ public final class NFSv3FileSystemStore extends RpcClient {
     public COMMIT3Response commit(FileHandle file, long offset, int count, Credentials credentials)
             throws IOException {
 
-        COMMIT3Response commit3Response;
-        XDR in = new XDR();
-        XDR out = new XDR();
-        AcceptState acceptState;
-
-        // Construct the NFS request
-        NFSv3RequestBuilder.buildCOMMIT3Request(in, file, offset, count);
-
-        // Issue the call
-        acceptState = service(NFSPROC3.COMMIT, in, out, credentials);
-        if (acceptState == AcceptState.SUCCESS) {
-            commit3Response = NFSv3ResponseBuilder.buildCOMMIT3Response(out.asReadOnlyWrap());
-            return commit3Response;
-        } else {
-            LOG.error("NFS COMMIT3 resulted in accept state=" + acceptState);
-            throw new IOException("NFS COMMIT3 resulted in accept state=" + acceptState);
+        RpcResult result = call(NFSPROC3.COMMIT, NFSv3Codec.get().encodeCOMMIT(file, offset, count),
+                credentials);
+        try {
+            harvestWcc(file, result);
+            return NFSv3ResponseBuilder.buildCOMMIT3Response(result.getData());
+        } finally {
+            result.release();
         }
-
     }
 
     public CREATE3Response create(FileHandle handle, String name, int mode, Nfs3SetAttr objAttr,
             long verf, Credentials credentials) throws IOException {
 
-        CREATE3Response create3Response;
         XDR in = new XDR();
-        XDR out = new XDR();
-        AcceptState acceptState;
 
         // Construct the NFS request
         NFSv3RequestBuilder.buildCREATE3Request(in, handle, name, mode, objAttr, verf);
 
         // Issue the call
-        acceptState = service(NFSPROC3.CREATE, in, out, credentials);
-        if (acceptState == AcceptState.SUCCESS) {
-            create3Response = NFSv3ResponseBuilder.buildCREATE3Response(out.asReadOnlyWrap());
-            return create3Response;
-        } else {
-            LOG.error("NFS CREATE3 resulted in accept state=" + acceptState);
-            throw new IOException("NFS CREATE3 resulted in accept state=" + acceptState);
+        RpcResult result = call(NFSPROC3.CREATE, in, credentials);
+        try {
+            harvestCreate(handle, name, result);
+            return NFSv3ResponseBuilder.buildCREATE3Response(result.getData());
+        } finally {
+            result.release();
         }
     }
 
@@ -283,239 +547,173 @@ public final class NFSv3FileSystemStore extends RpcClient {
 
     public GETATTR3Response getattr(FileHandle handle, Credentials credentials) throws IOException {
 
-        GETATTR3Response getattr3Response;
-        XDR in = new XDR();
-        XDR out = new XDR();
-        AcceptState acceptState;
-
-        // Construct the NFS request
-        NFSv3RequestBuilder.buildGETATTR3Request(in, handle);
-
-        // Issue the call
-        acceptState = service(NFSPROC3.GETATTR, in, out, credentials);
-        if (acceptState == AcceptState.SUCCESS) {
-            getattr3Response = NFSv3ResponseBuilder.buildGETATTR3Response(out.asReadOnlyWrap());
-            return getattr3Response;
-        } else {
-            LOG.error("NFS GETATTR3 resulted in accept state=" + acceptState);
-            throw new IOException("NFS GETATTR3 resulted in accept state=" + acceptState);
+        RpcResult result = call(NFSPROC3.GETATTR, NFSv3Codec.get().encodeGETATTR(handle), credentials);
+        try {
+            GETATTR3_PARSER.harvest(result, handle, this);
+            return NFSv3ResponseBuilder.buildGETATTR3Response(result.getData());
+        } finally {
+            result.release();
         }
     }
 
     public LOOKUP3Response lookup(FileHandle dir, String name, Credentials credentials)
             throws IOException {
 
-        LOOKUP3Response lookup3Response;
-        XDR in = new XDR();
-        XDR out = new XDR();
-        AcceptState acceptState;
-
-        // Construct the NFS request
-        NFSv3RequestBuilder.buildLOOKUP3Request(in, dir, name);
-
-        // Issue the call
-        acceptState = service(NFSPROC3.LOOKUP, in, out, credentials);
-        if (acceptState == AcceptState.SUCCESS) {
-            lookup3Response = NFSv3ResponseBuilder.buildLOOKUP3Response(out.asReadOnlyWrap());
-            return lookup3Response;
-        } else {
-            LOG.error("NFS LOOKUP3 resulted in accept state=" + acceptState);
-            throw new IOException("NFS LOOKUP3 resulted in accept state=" + acceptState);
+        RpcResult result = call(NFSPROC3.LOOKUP, NFSv3Codec.get().encodeLOOKUP(dir, name), credentials);
+        try {
+            LOOKUP3_PARSER.harvestHandle(result, dir, name, this);
+            return NFSv3ResponseBuilder.buildLOOKUP3Response(result.getData());
+        } finally {
+            result.release();
         }
     }
 
     public MKDIR3Response mkdir(FileHandle handle, String name, Nfs3SetAttr objAttr,
             Credentials credentials) throws IOException {
 
-        MKDIR3Response mkdir3Response;
         XDR in = new XDR();
-        XDR out = new XDR();
-        AcceptState acceptState;
 
         // Construct the NFS request
         NFSv3RequestBuilder.buildMKDIR3Request(in, handle, name, objAttr);
 
         // Issue the call
-        acceptState = service(NFSPROC3.MKDIR, in, out, credentials);
-        if (acceptState == AcceptState.SUCCESS) {
-            mkdir3Response = NFSv3ResponseBuilder.buildMKDIR3Response(out.asReadOnlyWrap());
-            return mkdir3Response;
-        } else {
-            LOG.error("NFS MKDIR3 resulted in accept state=" + acceptState);
-            throw new IOException("NFS MKDIR3 resulted in accept state=" + acceptState);
+        RpcResult result = call(NFSPROC3.MKDIR, in, credentials);
+        try {
+            harvestCreate(handle, name, result);
+            return NFSv3ResponseBuilder.buildMKDIR3Response(result.getData());
+        } finally {
+            result.release();
         }
     }
 
     public READ3Response read(FileHandle handle, long offset, int count, Credentials credentials)
             throws IOException {
 
-        READ3Response read3Response;
-        XDR in = new XDR();
-        XDR out = new XDR();
-        AcceptState acceptState;
-
-        // Construct the NFS request
-        NFSv3RequestBuilder.buildREAD3Request(in, handle, offset, count);
-
-        // Issue the call
-        acceptState = service(NFSPROC3.READ, in, out, credentials);
-        if (acceptState == AcceptState.SUCCESS) {
-            read3Response = NFSv3ResponseBuilder.buildREAD3Response(out.asReadOnlyWrap());
-            return read3Response;
-        } else {
-            LOG.error("NFS READ3 resulted in accept state=" + acceptState);
-            throw new IOException("NFS READ3 resulted in accept state=" + acceptState);
+        RpcResult result = call(NFSPROC3.READ, NFSv3Codec.get().encodeREAD(handle, offset, count),
+                credentials);
+        try {
+            harvestPostOp(handle, result);
+            return NFSv3ResponseBuilder.buildREAD3Response(result.getData());
+        } finally {
+            result.release();
         }
     }
 
     public READDIR3Response readdir(FileHandle dir, long cookie, long cookieVerf, int count,
             Credentials credentials) throws IOException {
 
-        READDIR3Response readdir3Response;
-        XDR in = new XDR();
-        XDR out = new XDR();
-        AcceptState acceptState;
-
-        // Construct the NFS request
-        NFSv3RequestBuilder.buildREADDIR3Request(in, dir, cookie, cookieVerf, count);
-
-        // Issue the call
-        acceptState = service(NFSPROC3.READDIR, in, out, credentials);
-        if (acceptState == AcceptState.SUCCESS) {
-            readdir3Response = NFSv3ResponseBuilder.buildREADDIR3Response(out.asReadOnlyWrap());
-            return readdir3Response;
-        } else {
-            LOG.error("NFS READDIR3 resulted in accept state=" + acceptState);
-            throw new IOException("NFS READDIR3 resulted in accept state=" + acceptState);
+        RpcResult result = call(NFSPROC3.READDIR,
+                NFSv3Codec.get().encodeREADDIR(dir, cookie, cookieVerf, count), credentials);
+        try {
+            harvestPostOp(dir, result);
+            return NFSv3ResponseBuilder.buildREADDIR3Response(result.getData());
+        } finally {
+            result.release();
         }
     }
 
     public REMOVE3Response remove(FileHandle dir, String name, Credentials credentials)
             throws IOException {
 
-        REMOVE3Response remove3Response = null;
         XDR in = new XDR();
-        XDR out = new XDR();
-        AcceptState acceptState;
 
         // Construct the NFS request
         NFSv3RequestBuilder.buildREMOVE3Request(in, dir, name);
 
         // Issue the call
-        acceptState = service(NFSPROC3.REMOVE, in, out, credentials);
-        if (acceptState == AcceptState.SUCCESS) {
-            remove3Response = NFSv3ResponseBuilder.buildREMOVE3Response(out.asReadOnlyWrap());
-            return remove3Response;
-        } else {
-            LOG.error("NFS REMOVE3 resulted in accept state=" + acceptState);
-            throw new IOException("NFS REMOVE3 resulted in accept state=" + acceptState);
+        RpcResult result = call(NFSPROC3.REMOVE, in, credentials);
+        try {
+            harvestWcc(dir, result);
+            return NFSv3ResponseBuilder.buildREMOVE3Response(result.getData());
+        } finally {
+            result.release();
         }
     }
 
     public RENAME3Response rename(FileHandle fromDir, String fromName, FileHandle toDir,
             String toName, Credentials credentials) throws IOException {
 
-        RENAME3Response rename3Response = null;
         XDR in = new XDR();
-        XDR out = new XDR();
-        AcceptState acceptState;
 
         // Construct the NFS request
         NFSv3RequestBuilder.buildRENAME3Request(in, fromDir, fromName, toDir, toName);
 
         // Issue the call
-        long start = System.currentTimeMillis();
-        acceptState = service(NFSPROC3.RENAME, in, out, credentials);
-        LOG.info("RPC RENAME took " + (System.currentTimeMillis() - start) + " ms");
-        if (acceptState == AcceptState.SUCCESS) {
-            rename3Response = NFSv3ResponseBuilder.buildRENAME3Response(out.asReadOnlyWrap());
-            return rename3Response;
-        } else {
-            LOG.error("NFS RENAME3 resulted in accept state=" + acceptState);
-            throw new IOException("NFS RENAME3 resulted in accept state=" + acceptState);
+        RpcResult result = call(NFSPROC3.RENAME, in, credentials);
+        try {
+            NFSv3Codec codec = NFSv3Codec.get();
+            NFSv3Attributes fromAttributes = codec.getScratchAttributes();
+            NFSv3Attributes toAttributes = codec.getScratchDirectoryAttributes();
+            codec.decodeRENAME(result.getBuffer(), fromAttributes, toAttributes);
+            harvest(fromDir, fromAttributes);
+            harvest(toDir, toAttributes);
+            negativeLookupCache.invalidate(toDir, toName);
+            return NFSv3ResponseBuilder.buildRENAME3Response(result.getData());
+        } finally {
+            result.release();
         }
     }
 
     public RMDIR3Response rmdir(FileHandle dir, String name, Credentials credentials)
             throws IOException {
 
-        RMDIR3Response rmdir3Response = null;
         XDR in = new XDR();
-        XDR out = new XDR();
-        AcceptState acceptState;
 
         // Construct the NFS request
         NFSv3RequestBuilder.buildRMDIR3Request(in, dir, name);
 
         // Issue the call
-        acceptState = service(NFSPROC3.RMDIR, in, out, credentials);
-        if (acceptState == AcceptState.SUCCESS) {
-            rmdir3Response = NFSv3ResponseBuilder.buildRMDIR3Response(out.asReadOnlyWrap());
-            return rmdir3Response;
-        } else {
-            LOG.error("NFS RMDIR3 resulted in accept state=" + acceptState);
-            throw new IOException("NFS RMDIR3 resulted in accept state=" + acceptState);
+        RpcResult result = call(NFSPROC3.RMDIR, in, credentials);
+        try {
+            harvestWcc(dir, result);
+            return NFSv3ResponseBuilder.buildRMDIR3Response(result.getData());
+        } finally {
+            result.release();
         }
     }
 
     public SETATTR3Response setattr(FileHandle handle, Nfs3SetAttr attr, Boolean check,
             NfsTime ctime, Credentials credentials) throws IOException {
 
-        SETATTR3Response setattr3Response = null;
         XDR in = new XDR();
-        XDR out = new XDR();
-        AcceptState acceptState;
 
         // Construct the NFS request
         NFSv3RequestBuilder.buildSETATTR3Request(in, handle, attr, check, ctime);
 
         // Issue the call
-        acceptState = service(NFSPROC3.SETATTR, in, out, credentials);
-        if (acceptState == AcceptState.SUCCESS) {
-            setattr3Response = NFSv3ResponseBuilder.buildSETATTR3Response(out.asReadOnlyWrap());
-            return setattr3Response;
-        } else {
-            LOG.error("NFS SETATTR3 resulted in accept state=" + acceptState);
-            throw new IOException("NFS SETATTR3 resulted in accept state=" + acceptState);
+        RpcResult result = call(NFSPROC3.SETATTR, in, credentials);
+        try {
+            harvestWcc(handle, result);
+            return NFSv3ResponseBuilder.buildSETATTR3Response(result.getData());
+        } finally {
+            result.release();
         }
     }
 
     public WRITE3Response write(FileHandle file, long offset, int count, WriteStableHow stableHow,
             byte[] data, Credentials credentials) throws IOException {
 
-        WRITE3Response write3Response = null;
         XDR in = new XDR();
-        XDR out = new XDR();
-        AcceptState acceptState;
 
         // Construct the NFS request
         NFSv3RequestBuilder.buildWRITE3Request(in, file, offset, count, stableHow, data);
 
         // Issue the call
-        acceptState = service(NFSPROC3.WRITE, in, out, credentials);
-        if (acceptState == AcceptState.SUCCESS) {
-            write3Response = NFSv3ResponseBuilder.buildWRITE3Response(out.asReadOnlyWrap());
-            return write3Response;
-        } else {
-            LOG.error("NFS WRITE3 resulted in accept state=" + acceptState);
-            throw new IOException("NFS WRITE3 resulted in accept state=" + acceptState);
+        RpcResult result = call(NFSPROC3.WRITE, in, credentials);
+        try {
+            harvestWcc(file, result);
+            return NFSv3ResponseBuilder.buildWRITE3Response(result.getData());
+        } finally {
+            result.release();
         }
     }
 
     public Nfs3FileAttributes getFileAttributes(FileHandle handle, Credentials credentials)
             throws IOException {
 
-        XDR in = new XDR();
-        XDR out = new XDR();
-        AcceptState acceptState;
-
-        // Construct the NFS request
-        NFSv3RequestBuilder.buildGETATTR3Request(in, handle);
-
-        // Issue the call
-        acceptState = service(NFSPROC3.GETATTR, in, out, credentials);
-        if (acceptState == AcceptState.SUCCESS) {
-            XDR buffer = out.asReadOnlyWrap();
+        RpcResult result = call(NFSPROC3.GETATTR, NFSv3Codec.get().encodeGETATTR(handle), credentials);
+        try {
+            XDR buffer = result.getData();
             int status = buffer.readInt();
             if (status == Nfs3Status.NFS3_OK) {
                 Nfs3FileAttributes attrs = Nfs3FileAttributes.deserialize(buffer);
@@ -524,38 +722,81 @@ public final class NFSv3FileSystemStore extends RpcClient {
                 LOG.error("NFS GetFileAttributes resulted in status=" + status);
                 throw new IOException("NFS GetFileAttributes resulted in status=" + status);
             }
-        } else {
-            LOG.error("NFS GetFileAttributes resulted in accept state=" + acceptState);
-            throw new IOException("NFS GetFileAttributes resulted in accept state=" + acceptState);
+        } finally {
+            result.release();
         }
     }
 
-    public FileHandle getFileHandle(FileHandle directory, String filename, Credentials credentials)
-            throws IOException {
+    /**
+     * Same as above, into the given holder, which the caller can reuse for every call. The
+     * attributes come from the attribute cache while it trusts them.
+     */
+    public NFSv3Attributes getFileAttributes(FileHandle handle, Credentials credentials,
+            NFSv3Attributes attributes) throws IOException {
+
+        int status = getattr(handle, credentials, attributes);
+        if (status != Nfs3Status.NFS3_OK) {
+            LOG.error("NFS GetFileAttributes resulted in status=" + status);
+            throw new IOException("NFS GetFileAttributes resulted in status=" + status);
+        }
+        return attributes;
+    }
 
-        XDR in = new XDR();
-        XDR out = new XDR();
-        AcceptState acceptState;
+    /**
+     * Attributes of the handle from the attribute cache, or from the server if the cache does not
+     * trust them any more. Returns the NFS status; the holder is only set if it is NFS3_OK.
+     */
+    public int getattr(FileHandle handle, Credentials credentials, NFSv3Attributes attributes)
+            throws IOException {
+        if (attributeCache.get(handle, attributes)) {
+            return Nfs3Status.NFS3_OK;
+        }
+        return revalidate(handle, credentials, attributes);
+    }
 
-        // Construct the NFS request
-        NFSv3RequestBuilder.buildLOOKUP3Request(in, directory, filename);
+    /**
+     * Same as above, but always from the server. Opening a file goes through here so that it sees
+     * everything written before it was last closed, whatever the cache says.
+     */
+    public int revalidate(FileHandle handle, Credentials credentials, NFSv3Attributes attributes)
+            throws IOException {
 
-        // Issue the call
-        acceptState = service(NFSPROC3.LOOKUP, in, out, credentials);
-        if (acceptState == AcceptState.SUCCESS) {
-            XDR xdr = out.asReadOnlyWrap();
-            int status = xdr.readInt();
+        NFSv3Codec codec = NFSv3Codec.get();
+        RpcResult result = call(NFSPROC3.GETATTR, codec.encodeGETATTR(handle), credentials);
+        try {
+            int status = codec.decodeGETATTR(result.getBuffer(), attributes);
             if (status == Nfs3Status.NFS3_OK) {
-                FileHandle fileHandle = new Nfs3FileHandle();
-                fileHandle.deserialize(xdr);
-                return fileHandle;
+                harvestLatest(handle, attributes);
             } else {
-                return null;
-                /* throw new IOException("NFS could not get file handle"); */
+                attributeCache.invalidate(handle);
             }
-        } else {
-            LOG.error("NFS LOOKUP3 resulted in accept state=" + acceptState);
-            throw new IOException("NFS LOOKUP3 resulted in accept state=" + acceptState);
+            return status;
+        } finally {
+            result.release();
+        }
+    }
+
+    /**
+     * The handle of the name in the directory, or null if it does not exist. Throws a
+     * {@link StaleFileHandleException} if the handle of the directory is stale.
+     */
+    public FileHandle getFileHandle(FileHandle directory, String filename, Credentials credentials)
+            throws IOException {
+
+        if (negativeLookupCache.contains(directory, filename)) {
+            return null;
+        }
+        RpcResult result = call(NFSPROC3.LOOKUP, NFSv3Codec.get().encodeLOOKUP(directory, filename),
+                credentials);
+        try {
+            FileHandle handle = LOOKUP3_PARSER.harvestHandle(result, directory, filename, this);
+            if (handle == null && NFSv3Codec.getStatus(result.getBuffer()) == Nfs3Status.NFS3ERR_STALE) {
+                throw new StaleFileHandleException("NFS LOOKUP3 of " + filename + " resulted in status="
+                        + Nfs3Status.NFS3ERR_STALE, directory);
+            }
+            return handle;
+        } finally {
+            result.release();
         }
     }
 
@@ -577,23 +818,181 @@ public final class NFSv3FileSystemStore extends RpcClient {
         }
     }
 
-    public Nfs3DirList getDirectoryList(FileHandle dir, long cookie, long cookieVerf, int count,
-            Credentials credentials) throws IOException {
+    /**
+     * Read one READDIRPLUS reply, or one READDIR reply if plus is not set, into the page. Returns
+     * the NFS status; the page only has entries if it is NFS3_OK.
+     */
+    public int getDirectoryPage(FileHandle dir, long cookie, long cookieVerf, boolean plus,
+            Credentials credentials, NFSv3DirectoryPage page) throws IOException {
+
+        NFSv3Codec codec = NFSv3Codec.get();
+        RpcResult result;
+        if (plus) {
+            result = call(NFSPROC3.READDIRPLUS, codec.encodeREADDIRPLUS(dir, cookie, cookieVerf,
+                    getDirListSize(), getDirListPlusSize()), credentials);
+        } else {
+            result = call(NFSPROC3.READDIR, codec.encodeREADDIR(dir, cookie, cookieVerf,
+                    getDirListSize()), credentials);
+        }
+        try {
+            int status = codec.decodeREADDIR(result.getBuffer(), page, plus);
+            harvest(dir, page.directory);
+            for (int i = 0; i < page.size(); ++i) {
+                if (page.getAttributes(i) != null && page.getHandle(i) != null) {
+                    harvest(page.getHandle(i), page.getAttributes(i));
+                }
+            }
+            return status;
+        } finally {
+            result.release();
+        }
+    }
 
-        XDR in = new XDR();
-        XDR out = new XDR();
-        AcceptState acceptState;
+    public ListenableFuture<COMMIT3Response> commitAsync(FileHandle file, long offset, int count,
+            Credentials credentials) {
+        return serviceAsync(NFSPROC3.COMMIT, file, NFSv3Codec.get().encodeCOMMIT(file, offset, count),
+                credentials, COMMIT3_PARSER);
+    }
 
-        // Construct the NFS request
-        NFSv3RequestBuilder.buildREADDIR3Request(in, dir, cookie, cookieVerf, count);
+    public ListenableFuture<GETATTR3Response> getattrAsync(FileHandle handle, Credentials credentials) {
+        return serviceAsync(NFSPROC3.GETATTR, handle, NFSv3Codec.get().encodeGETATTR(handle),
+                credentials, GETATTR3_PARSER);
+    }
 
-        // Issue the call
-        acceptState = service(NFSPROC3.READDIR, in, out, credentials);
-        if (acceptState == AcceptState.SUCCESS) {
-            return NFSv3ResponseBuilder.buildDirectoryList(out.asReadOnlyWrap());
+    public ListenableFuture<LOOKUP3Response> lookupAsync(FileHandle dir, String name,
+            Credentials credentials) {
+        return serviceAsync(NFSPROC3.LOOKUP, dir, NFSv3Codec.get().encodeLOOKUP(dir, name),
+                credentials, LOOKUP3_PARSER);
+    }
+
+    /**
+     * The entries are decoded on the RPC I/O thread that receives the reply, so keep count to a
+     * directory page.
+     */
+    public ListenableFuture<READDIR3Response> readdirAsync(FileHandle dir, long cookie, long cookieVerf,
+            int count, Credentials credentials) {
+        return serviceAsync(NFSPROC3.READDIR, dir,
+                NFSv3Codec.get().encodeREADDIR(dir, cookie, cookieVerf, count), credentials,
+                READDIR3_PARSER);
+    }
+
+    /**
+     * The data of the returned reply is a view of the network buffer, copy it out once and then
+     * release the reply. The future completes on an RPC I/O thread, so the copy belongs on another
+     * thread.
+     */
+    public ListenableFuture<Nfs3ReadReply> readAsync(FileHandle handle, long offset, int count,
+            Credentials credentials) {
+        return serviceAsync(NFSPROC3.READ, handle, NFSv3Codec.get().encodeREAD(handle, offset, count),
+                credentials, READ3_PARSER);
+    }
+
+    /**
+     * The data is copied into the call before this returns, so the caller can reuse it at once.
+     */
+    public ListenableFuture<WRITE3Response> writeAsync(FileHandle file, long offset, int count,
+            WriteStableHow stableHow, ByteBuf data, Credentials credentials) {
+        return serviceAsync(NFSPROC3.WRITE, file,
+                NFSv3Codec.get().encodeWRITE(file, offset, count, stableHow), data, credentials,
+                WRITE3_PARSER);
+    }
+
+    /* Attributes a reply carries for the handle go to the cache; if it carries none they are out of date */
+    private void harvest(FileHandle handle, NFSv3Attributes attributes) {
+        if (attributes.getType() != 0) {
+            attributeCache.put(handle, attributes);
+            if (attributes.isDirectory()) {
+                negativeLookupCache.update(handle, attributes);
+            }
+        } else {
+            attributeCache.invalidate(handle);
+            negativeLookupCache.invalidate(handle);
+        }
+    }
+
+    /* Same as above for the reply to a GETATTR, which wins over older attributes */
+    private void harvestLatest(FileHandle handle, NFSv3Attributes attributes) {
+        if (attributes.getType() != 0) {
+            attributeCache.replace(handle, attributes);
+            if (attributes.isDirectory()) {
+                negativeLookupCache.update(handle, attributes);
+            }
         } else {
-            LOG.error("NFS READDIR3 resulted in accept state=" + acceptState);
-            throw new IOException("NFS READDIR3 resulted in accept state=" + acceptState);
+            attributeCache.invalidate(handle);
+            negativeLookupCache.invalidate(handle);
+        }
+    }
+
+    /* The attributes after the call in the wcc_data of a reply */
+    private void harvestWcc(FileHandle handle, RpcResult result) throws IOException {
+        NFSv3Codec codec = NFSv3Codec.get();
+        NFSv3Attributes attributes = codec.getScratchAttributes();
+        codec.decodeWcc(result.getBuffer(), attributes);
+        harvest(handle, attributes);
+    }
+
+    /* The post_op_attr that follows the status of a reply */
+    private void harvestPostOp(FileHandle handle, RpcResult result) throws IOException {
+        NFSv3Codec codec = NFSv3Codec.get();
+        NFSv3Attributes attributes = codec.getScratchAttributes();
+        codec.decodePostOp(result.getBuffer(), attributes);
+        harvest(handle, attributes);
+    }
+
+    /* The new object and its directory from a CREATE3 or MKDIR3 reply */
+    private void harvestCreate(FileHandle dir, String name, RpcResult result) throws IOException {
+        NFSv3Codec codec = NFSv3Codec.get();
+        NFSv3Attributes attributes = codec.getScratchAttributes();
+        NFSv3Attributes dirAttributes = codec.getScratchDirectoryAttributes();
+        FileHandle handle = codec.decodeCREATE(result.getBuffer(), attributes, dirAttributes);
+        if (handle != null) {
+            harvest(handle, attributes);
+        }
+        harvest(dir, dirAttributes);
+        negativeLookupCache.invalidate(dir, name);
+    }
+
+    @Override
+    protected boolean isBulk(int program, int procedure) {
+        if (program != Nfs3Constant.PROGRAM) {
+            return false;
+        }
+        switch (NFSPROC3.fromValue(procedure)) {
+            case READ:
+            case WRITE:
+            case COMMIT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    protected int getTimerClass(int program, int procedure) {
+        if (program != Nfs3Constant.PROGRAM) {
+            return TIMER_CLASS_DEFAULT;
+        }
+        switch (NFSPROC3.fromValue(procedure)) {
+            case NULL:
+            case GETATTR:
+            case ACCESS:
+            case FSSTAT:
+            case FSINFO:
+            case PATHCONF:
+                return TIMER_CLASS_GETATTR;
+            case LOOKUP:
+            case READLINK:
+                return TIMER_CLASS_LOOKUP;
+            case READ:
+                return TIMER_CLASS_READ;
+            case WRITE:
+            case COMMIT:
+                return TIMER_CLASS_WRITE;
+            case READDIR:
+            case READDIRPLUS:
+                return TIMER_CLASS_READDIR;
+            default:
+                return TIMER_CLASS_DEFAULT;
         }
     }
 
@@ -615,4 +1014,83 @@ public final class NFSv3FileSystemStore extends RpcClient {
         }
     }
 
+    /* Wait for an accepted reply, which the caller must release */
+    private RpcResult call(NFSPROC3 procedure, ByteBuf args, Credentials credentials)
+            throws IOException {
+        try {
+            return accepted(procedure, service(Nfs3Constant.PROGRAM, Nfs3Constant.VERSION,
+                    procedure.getValue(), args, credentials));
+        } catch (RpcException exception) {
+            LOG.error("Got a RPC exception", exception);
+            throw new IOException("Got a RPC exception", exception);
+        }
+    }
+
+    /* Same as above with the arguments built by NFSv3RequestBuilder */
+    private RpcResult call(NFSPROC3 procedure, XDR in, Credentials credentials) throws IOException {
+        try {
+            return accepted(procedure, service(Nfs3Constant.PROGRAM, Nfs3Constant.VERSION,
+                    procedure.getValue(), in, credentials));
+        } catch (RpcException exception) {
+            LOG.error("Got a RPC exception", exception);
+            throw new IOException("Got a RPC exception", exception);
+        }
+    }
+
+    private RpcResult accepted(NFSPROC3 procedure, RpcResult result) throws IOException {
+        AcceptState acceptState = result.getAcceptState();
+        if (acceptState != AcceptState.SUCCESS) {
+            result.release();
+            LOG.error("NFS " + procedure + "3 resulted in accept state=" + acceptState);
+            throw new IOException("NFS " + procedure + "3 resulted in accept state=" + acceptState);
+        }
+        return result;
+    }
+
+    private <T> ListenableFuture<T> serviceAsync(NFSPROC3 procedure, FileHandle handle,
+            ByteBuf args, Credentials credentials, ResponseParser<T> parser) {
+        return serviceAsync(procedure, handle, args, null, credentials, parser);
+    }
+
+    /*
+     * The reply is parsed on the RPC I/O thread that received it, so parsers only decode headers
+     * and attributes, and leave bulk data where it is
+     */
+    private <T> ListenableFuture<T> serviceAsync(final NFSPROC3 procedure, final FileHandle handle,
+            ByteBuf args, ByteBuf payload, Credentials credentials,
+            final ResponseParser<T> parser) {
+        ListenableFuture<RpcResult> future
+                = serviceAsync(Nfs3Constant.PROGRAM, Nfs3Constant.VERSION, procedure.getValue(), args,
+                        payload, credentials);
+        return parse(procedure, handle, future, parser);
+    }
+
+    private <T> ListenableFuture<T> parse(final NFSPROC3 procedure, final FileHandle handle,
+            ListenableFuture<RpcResult> future, final ResponseParser<T> parser) {
+        return Futures.transform(future, new AsyncFunction<RpcResult, T>() {
+            @Override
+            public ListenableFuture<T> apply(RpcResult result) throws Exception {
+                boolean kept = false;
+                try {
+                    AcceptState acceptState = result.getAcceptState();
+                    if (acceptState == AcceptState.SUCCESS) {
+                        if (handle != null) {
+                            parser.harvest(result, handle, NFSv3FileSystemStore.this);
+                        }
+                        T response = parser.parse(result);
+                        kept = parser.keepsResult();
+                        return Futures.immediateFuture(response);
+                    } else {
+                        LOG.error("NFS " + procedure + "3 resulted in accept state=" + acceptState);
+                        throw new IOException("NFS " + procedure + "3 resulted in accept state=" + acceptState);
+                    }
+                } finally {
+                    if (!kept) {
+                        result.release();
+                    }
+                }
+            }
+        });
+    }
+
 }
@@ -27,7 +27,9 @@ public class NFSv3RequestBuilder {
   public final static Log LOG = LogFactory.getLog(NFSv3RequestBuilder.class);
   
   public static XDR buildCOMMIT3Request(XDR xdr, FileHandle handle, long offset, int count) {
-    LOG.debug("Building COMMIT3 request with handle=" + handle + " offset=" + offset + " count=" + count);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Building COMMIT3 request with handle=" + handle + " offset=" + offset + " count=" + count);
+    }
     handle.serialize(xdr);
     xdr.writeLongAsHyper(offset);
     xdr.writeInt(count);
@@ -35,7 +37,9 @@ public class NFSv3RequestBuilder {
   }
   
   public static XDR buildCREATE3Request(XDR xdr, FileHandle handle, String name, int mode, Nfs3SetAttr objAttr, long verf) {
-    LOG.debug("Building CREATE3 request with handle=" + handle + " name=" + name + " mode=" + mode + " objAttr=" + objAttr + " verf=" + verf);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Building CREATE3 request with handle=" + handle + " name=" + name + " mode=" + mode + " objAttr=" + objAttr + " verf=" + verf);
+    }
     handle.serialize(xdr);
     xdr.writeInt(name.length());
     xdr.writeFixedOpaque(name.getBytes(), name.length());
@@ -45,19 +49,25 @@ public class NFSv3RequestBuilder {
   }
   
   public static XDR buildFSINFO3Request(XDR xdr, FileHandle handle) {
-    LOG.debug("Building FSINFO3 request with handle=" + handle);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Building FSINFO3 request with handle=" + handle);
+    }
     handle.serialize(xdr);
     return xdr;
   }
   
   public static XDR buildGETATTR3Request(XDR xdr, FileHandle handle) {
-    LOG.debug("Building GETATTR3 request with handle=" + handle);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Building GETATTR3 request with handle=" + handle);
+    }
     handle.serialize(xdr);
     return xdr;
   }
   
   public static XDR buildLOOKUP3Request(XDR xdr, FileHandle handle, String name) {
-    LOG.debug("Building LOOKUP3 request with handle=" + handle + " name=" + name);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Building LOOKUP3 request with handle=" + handle + " name=" + name);
+    }
     handle.serialize(xdr);
     xdr.writeInt(name.getBytes().length);
     xdr.writeFixedOpaque(name.getBytes());
@@ -65,7 +75,9 @@ public class NFSv3RequestBuilder {
   }
   
   public static XDR buildMKDIR3Request(XDR xdr, FileHandle handle, String name, Nfs3SetAttr objAttr) {
-    LOG.debug("Building MKDIR3 request with handle=" + handle + " name=" + name + " objAttr=" + objAttr);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Building MKDIR3 request with handle=" + handle + " name=" + name + " objAttr=" + objAttr);
+    }
     handle.serialize(xdr);
     xdr.writeInt(name.getBytes().length);
     xdr.writeFixedOpaque(name.getBytes());
@@ -74,7 +86,9 @@ public class NFSv3RequestBuilder {
   }
   
   public static XDR buildREAD3Request(XDR xdr, FileHandle handle, long offset, int count) {
-    LOG.debug("Building READ3 request with handle=" + handle + " offset=" + offset + " count=" + count);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Building READ3 request with handle=" + handle + " offset=" + offset + " count=" + count);
+    }
     handle.serialize(xdr);
     xdr.writeLongAsHyper(offset);
     xdr.writeInt(count);
@@ -82,7 +96,9 @@ public class NFSv3RequestBuilder {
   }
   
   public static XDR buildREADDIR3Request(XDR xdr, FileHandle handle, long cookie, long cookieVerf, int count) {
-    LOG.debug("Building READDIR3 request with handle=" + handle + " cookie=" + cookie + " cookieVerf=" + cookieVerf + " count=" + count);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Building READDIR3 request with handle=" + handle + " cookie=" + cookie + " cookieVerf=" + cookieVerf + " count=" + count);
+    }
     handle.serialize(xdr);
     xdr.writeLongAsHyper(cookie);
     xdr.writeLongAsHyper(cookieVerf);
@@ -90,8 +106,22 @@ public class NFSv3RequestBuilder {
     return xdr;
   }
   
+  public static XDR buildREADDIRPLUS3Request(XDR xdr, FileHandle handle, long cookie, long cookieVerf, int dirCount, int maxCount) {
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Building READDIRPLUS3 request with handle=" + handle + " cookie=" + cookie + " cookieVerf=" + cookieVerf + " dirCount=" + dirCount + " maxCount=" + maxCount);
+    }
+    handle.serialize(xdr);
+    xdr.writeLongAsHyper(cookie);
+    xdr.writeLongAsHyper(cookieVerf);
+    xdr.writeInt(dirCount);
+    xdr.writeInt(maxCount);
+    return xdr;
+  }
+  
   public static XDR buildREMOVE3Request(XDR xdr, FileHandle handle, String name) {
-    LOG.debug("Building REMOVE3 request with handle=" + handle + " name=" + name);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Building REMOVE3 request with handle=" + handle + " name=" + name);
+    }
     handle.serialize(xdr);
     xdr.writeInt(name.getBytes().length);
     xdr.writeFixedOpaque(name.getBytes());
@@ -99,7 +129,9 @@ public class NFSv3RequestBuilder {
   }
   
   public static XDR buildRENAME3Request(XDR xdr, FileHandle fromDir, String fromName, FileHandle toDir, String toName) {
-    LOG.debug("Building RENAME3 request with fromDir=" + fromDir + " fromName=" + fromName + " toDir=" + toDir + " toName=" + toName);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Building RENAME3 request with fromDir=" + fromDir + " fromName=" + fromName + " toDir=" + toDir + " toName=" + toName);
+    }
     fromDir.serialize(xdr);
     xdr.writeInt(fromName.getBytes().length);
     xdr.writeFixedOpaque(fromName.getBytes());
@@ -110,7 +142,9 @@ public class NFSv3RequestBuilder {
   }
   
   public static XDR buildRMDIR3Request(XDR xdr, FileHandle handle, String name) {
-    LOG.debug("Building RMDIR3 request with handle=" + handle + " name=" + name);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Building RMDIR3 request with handle=" + handle + " name=" + name);
+    }
     handle.serialize(xdr);
     xdr.writeInt(name.getBytes().length);
     xdr.writeFixedOpaque(name.getBytes());
@@ -118,7 +152,9 @@ public class NFSv3RequestBuilder {
   }
   
   public static XDR buildSETATTR3Request(XDR xdr, FileHandle handle, Nfs3SetAttr attr, boolean check, NfsTime ctime) {
-    LOG.debug("Building SETATTR3 request with handle=" + handle + " attr=" + attr + " check=" + check + " ctime=" + ctime);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Building SETATTR3 request with handle=" + handle + " attr=" + attr + " check=" + check + " ctime=" + ctime);
+    }
     handle.serialize(xdr);
     attr.serialize(xdr);
     xdr.writeBoolean(check);
@@ -129,13 +165,21 @@ public class NFSv3RequestBuilder {
   }
   
   public static XDR buildWRITE3Request(XDR xdr, FileHandle handle, long offset, int count, WriteStableHow stableHow, byte[] data) {
-    LOG.debug("Building WRITE3 request with handle=" + handle + " offset=" + offset + " count=" + count + " stablehow=" + stableHow + " data=" + "not-shown");
+    buildWRITE3RequestHeader(xdr, handle, offset, count, stableHow);
+    xdr.writeFixedOpaque(data, count);
+    return xdr;
+  }
+  
+  /* Everything but the data, which the caller sends separately right after */
+  public static XDR buildWRITE3RequestHeader(XDR xdr, FileHandle handle, long offset, int count, WriteStableHow stableHow) {
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Building WRITE3 request with handle=" + handle + " offset=" + offset + " count=" + count + " stablehow=" + stableHow + " data=" + "not-shown");
+    }
     handle.serialize(xdr);
     xdr.writeLongAsHyper(offset);
     xdr.writeInt(count);
     xdr.writeInt(stableHow.getValue());
     xdr.writeInt(count);
-    xdr.writeFixedOpaque(data, count);
     return xdr;
   }
   
@@ -25,11 +25,10 @@ import org.apache.hadoop.nfs.NfsTime;
 import org.apache.hadoop.nfs.nfs3.FileHandle;
 import org.apache.hadoop.nfs.nfs3.Nfs3Constant;
 import org.apache.hadoop.nfs.nfs3.Nfs3Constant.WriteStableHow;
-import org.apache.hadoop.nfs.nfs3.Nfs3DirList;
-import org.apache.hadoop.nfs.nfs3.Nfs3DirList.Nfs3DirEntry;
 import org.apache.hadoop.nfs.nfs3.Nfs3FileAttributes;
 import org.apache.hadoop.nfs.nfs3.Nfs3FileHandle;
 import org.apache.hadoop.nfs.nfs3.Nfs3Info;
+import org.apache.hadoop.nfs.nfs3.Nfs3ReadReply;
 import org.apache.hadoop.nfs.nfs3.Nfs3Status;
 import org.apache.hadoop.nfs.nfs3.response.COMMIT3Response;
 import org.apache.hadoop.nfs.nfs3.response.CREATE3Response;
@@ -50,10 +49,15 @@ import org.apache.hadoop.nfs.nfs3.response.WccAttr;
 import org.apache.hadoop.nfs.nfs3.response.WccData;
 import org.apache.hadoop.oncrpc.XDR;
 
+import io.netty.buffer.ByteBuf;
+
 public class NFSv3ResponseBuilder {
 
   public final static Log LOG = LogFactory.getLog(NFSv3ResponseBuilder.class);
   
+  /* status, post_op_attr with fattr3, count, eof and the data length */
+  public final static int READ3_MAX_HEADER_SIZE = 4 + 4 + 84 + 4 + 4 + 4;
+  
   public static COMMIT3Response buildCOMMIT3Response(XDR xdr) throws IOException {
     int status = xdr.readInt();
     
@@ -158,11 +162,11 @@ public class NFSv3ResponseBuilder {
         handle = new Nfs3FileHandle();
         handle.deserialize(xdr);
       }
-      attr = Nfs3FileAttributes.deserialize(xdr);
+      attr = buildPostOpAttributes(xdr);
       dirWcc = buildWccData(xdr);
       return new MKDIR3Response(status, handle, attr, dirWcc);
     } else {
-      return new MKDIR3Response(status);
+      return new MKDIR3Response(status, null, null, buildWccData(xdr));
     }
   }
   
@@ -186,6 +190,29 @@ public class NFSv3ResponseBuilder {
     }
   }
   
+  public static Nfs3ReadReply buildREAD3Reply(ByteBuf body) throws IOException {
+    // Decode the header from a copy of its first bytes and leave the data where it is
+    ByteBuffer header = ByteBuffer.allocate(Math.min(body.readableBytes(), READ3_MAX_HEADER_SIZE));
+    body.getBytes(body.readerIndex(), header);
+    header.flip();
+    XDR xdr = new XDR(header, XDR.State.READING);
+    
+    int status = xdr.readInt();
+    Nfs3FileAttributes postOpAttr = buildPostOpAttributes(xdr);
+    if(status != Nfs3Status.NFS3_OK) {
+      return new Nfs3ReadReply(status, postOpAttr, 0, false, null);
+    }
+    
+    int count = xdr.readInt();
+    boolean eof = xdr.readBoolean();
+    int length = xdr.readInt();
+    int offset = xdr.buffer().position();
+    if(length < 0 || offset + length > body.readableBytes()) {
+      throw new IOException("READ3 reply is truncated: length=" + length + " available=" + (body.readableBytes() - offset));
+    }
+    return new Nfs3ReadReply(status, postOpAttr, count, eof, body.slice(body.readerIndex() + offset, length));
+  }
+  
   public static READDIR3Response buildREADDIR3Response(XDR xdr) throws IOException {
     int status = xdr.readInt();
     
@@ -289,35 +316,6 @@ public class NFSv3ResponseBuilder {
     }
   }
   
-  public static Nfs3DirList buildDirectoryList(XDR xdr) throws IOException {
-    int status = xdr.readInt();
-    
-    if(status == Nfs3Status.NFS3_OK) {
-      List<Nfs3DirEntry> entries;
-      Nfs3DirList dirList;
-      boolean eof;
-      long cookieVerf;
-      
-      buildPostOpAttributes(xdr);
-      cookieVerf = xdr.readHyper();
-      entries = new LinkedList<Nfs3DirEntry>();
-      
-      while(xdr.readBoolean()) {
-        long fileId = xdr.readHyper();
-        byte[] name = xdr.readVariableOpaque();
-        long cookie = xdr.readHyper();
-        Nfs3DirEntry entry = new Nfs3DirEntry(fileId, new String(name), cookie);
-        entries.add(entry);
-      }
-      eof = xdr.readBoolean();
-      dirList = new Nfs3DirList(entries.toArray(new Nfs3DirEntry[] {}), cookieVerf, eof);
-      return dirList;
-    } else {
-      Nfs3FileAttributes.deserialize(xdr);
-      return null;
-    }
-  }
-  
   public static WccData buildWccData(XDR xdr) throws IOException {
     WccAttr preOpAttr;
     Nfs3FileAttributes postOpAttr;
@@ -368,6 +366,14 @@ public class NFSv3ResponseBuilder {
     return postOpAttributes;
   }
   
+  public static FileHandle buildPostOpFileHandle(XDR xdr) throws IOException {
+    if(xdr.readBoolean()) {
+      return buildFileHandle(xdr);
+    } else {
+      return null;
+    }
+  }
+  
   public static List<Entry3> buildDirEntryList(XDR xdr) throws IOException {
     List<Entry3> entries = new LinkedList<Entry3>();
     boolean haveMore = xdr.readBoolean();
@@ -0,0 +1,180 @@
+/**
+ * Copyright 2014 NetApp Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.nfs;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.nfs.nfs3.FileHandle;
+
+/**
+ * Names the server said do not exist, by directory handle, so that probing the same missing path
+ * again does not cost a LOOKUP. An entry is trusted for a fixed time, and all entries of a
+ * directory go as soon as a reply shows the directory with another mtime than when they were added,
+ * which is how creates made by other clients show up early. Caching is off if the time is 0. The
+ * directories used least recently go first once the cache holds too many names.
+ */
+public class NegativeLookupCache {
+
+  public static final int DEFAULT_SIZE = 1 << 14;
+  public static final int DEFAULT_TTL_MS = 3000;
+
+  /* The missing names of one directory, as of one mtime of the directory */
+  static class Directory {
+    final Map<String, Long> expires = new HashMap<String, Long>();
+    long mtime;
+    boolean hasMtime;
+  }
+
+  private final Map<FileHandle, Directory> directories;
+  private final int maxEntries;
+  private final long ttl;
+  private final AtomicLong hits;
+  private int size;
+
+  public NegativeLookupCache(int maxEntries, int ttlMs) {
+    this.maxEntries = maxEntries;
+    this.ttl = TimeUnit.MILLISECONDS.toNanos(Math.max(0, ttlMs));
+    this.hits = new AtomicLong();
+    this.directories = new LinkedHashMap<FileHandle, Directory>(16, 0.75f, true);
+  }
+
+  /**
+   * True if the name is known not to exist in the directory. Counts a hit if so.
+   */
+  public boolean contains(FileHandle dir, String name) {
+    if (ttl == 0) {
+      return false;
+    }
+    long now = System.nanoTime();
+    synchronized (this) {
+      Directory directory = directories.get(dir);
+      Long expires = (directory == null) ? null : directory.expires.get(name);
+      if (expires == null) {
+        return false;
+      }
+      if (now - expires >= 0) {
+        remove(dir, directory, name);
+        return false;
+      }
+    }
+    hits.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * The server just said the name does not exist, with the attributes of the directory from the
+   * same reply, or null if it had none.
+   */
+  public void put(FileHandle dir, String name, NFSv3Attributes dirAttributes) {
+    if (ttl == 0) {
+      return;
+    }
+    long now = System.nanoTime();
+    synchronized (this) {
+      Directory directory = directories.get(dir);
+      if (directory == null) {
+        directory = new Directory();
+        directories.put(dir, directory);
+      }
+      if (dirAttributes != null) {
+        changed(directory, dirAttributes.getMtime());
+      }
+      if (directory.expires.put(name, now + ttl) == null) {
+        size++;
+      }
+      evict();
+    }
+  }
+
+  /**
+   * Fresh attributes of a directory. Its names go if they were added at another mtime.
+   */
+  public void update(FileHandle dir, NFSv3Attributes dirAttributes) {
+    synchronized (this) {
+      Directory directory = directories.get(dir);
+      if (directory != null) {
+        changed(directory, dirAttributes.getMtime());
+        if (directory.expires.isEmpty()) {
+          directories.remove(dir);
+        }
+      }
+    }
+  }
+
+  /* We created the name, or renamed something to it */
+  public synchronized void invalidate(FileHandle dir, String name) {
+    Directory directory = directories.get(dir);
+    if (directory != null && directory.expires.containsKey(name)) {
+      remove(dir, directory, name);
+    }
+  }
+
+  /* The directory changed in a way its attributes did not show */
+  public synchronized void invalidate(FileHandle dir) {
+    Directory directory = directories.remove(dir);
+    if (directory != null) {
+      size -= directory.expires.size();
+    }
+  }
+
+  public synchronized void clear() {
+    directories.clear();
+    size = 0;
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  /* Names added without an mtime to compare with go as well */
+  private void changed(Directory directory, long mtime) {
+    if (!directory.hasMtime || directory.mtime != mtime) {
+      size -= directory.expires.size();
+      directory.expires.clear();
+    }
+    directory.mtime = mtime;
+    directory.hasMtime = true;
+  }
+
+  private void remove(FileHandle dir, Directory directory, String name) {
+    directory.expires.remove(name);
+    size--;
+    if (directory.expires.isEmpty()) {
+      directories.remove(dir);
+    }
+  }
+
+  private void evict() {
+    while (size > maxEntries && !directories.isEmpty()) {
+      Map.Entry<FileHandle, Directory> eldest = directories.entrySet().iterator().next();
+      size -= eldest.getValue().expires.size();
+      directories.remove(eldest.getKey());
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "NegativeLookupCache[entries=" + size() + " hits=" + hits.get() + "]";
+  }
+
+}
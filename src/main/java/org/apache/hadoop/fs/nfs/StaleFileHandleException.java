@@ -0,0 +1,39 @@
+/**
+ * Copyright 2014 NetApp Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.nfs;
+
+import java.io.IOException;
+
+import org.apache.hadoop.nfs.nfs3.FileHandle;
+
+/**
+ * The server returned NFS3ERR_STALE for a handle the client still had cached.
+ */
+public class StaleFileHandleException extends IOException {
+
+  private static final long serialVersionUID = -3826019438526415620L;
+
+  private final FileHandle handle;
+
+  public StaleFileHandleException(String message, FileHandle handle) {
+    super(message);
+    this.handle = handle;
+  }
+
+  public FileHandle getHandle() {
+    return handle;
+  }
+
+}
@@ -20,6 +20,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.nfs.rpc.RpcClient;
+import org.apache.hadoop.fs.nfs.rpc.RpcCredentialsSys;
 import org.apache.hadoop.fs.nfs.rpc.RpcException;
 import org.apache.hadoop.fs.nfs.topology.Namespace;
 import org.apache.hadoop.fs.nfs.topology.NamespaceOptions;
@@ -30,7 +31,6 @@ import org.apache.hadoop.oncrpc.RpcMessage;
 import org.apache.hadoop.oncrpc.XDR;
 import org.apache.hadoop.oncrpc.security.Credentials;
 import org.apache.hadoop.oncrpc.security.CredentialsNone;
-import org.apache.hadoop.oncrpc.security.CredentialsSys;
 
 public class MountClient extends RpcClient {
 
@@ -53,11 +53,7 @@ public class MountClient extends RpcClient {
     String authScheme = options.getNfsAuthScheme();
     
     if(authScheme != null && (authScheme.equalsIgnoreCase("AUTH_SYS") || authScheme.equalsIgnoreCase("AUTH_UNIX"))) {
-        CredentialsSys sys = new CredentialsSys();
-        sys.setUID(options.getNfsUid());
-        sys.setGID(options.getNfsGid());
-        sys.setStamp(new Long(System.currentTimeMillis()).intValue());
-        credentials = sys;
+        credentials = RpcCredentialsSys.get(options.getNfsUid(), options.getNfsGid(), null);
     }
     // Use AUTH_NONE by default
     else {
@@ -15,12 +15,12 @@ package org.apache.hadoop.fs.nfs.rpc;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.util.Map;
-import java.util.Queue;
+import java.nio.ByteBuffer;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -28,145 +28,294 @@ import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.oncrpc.RpcAcceptedReply;
-import org.apache.hadoop.oncrpc.RpcCall;
 import org.apache.hadoop.oncrpc.RpcMessage;
 import org.apache.hadoop.oncrpc.RpcReply;
 import org.apache.hadoop.oncrpc.XDR;
 import org.apache.hadoop.oncrpc.security.Credentials;
-import org.apache.hadoop.oncrpc.security.VerifierNone;
-import org.jboss.netty.bootstrap.ClientBootstrap;
-import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.channel.ChannelFactory;
-import org.jboss.netty.channel.ChannelFuture;
-import org.jboss.netty.channel.ChannelPipeline;
-import org.jboss.netty.channel.ChannelPipelineFactory;
-import org.jboss.netty.channel.Channels;
-import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
-import org.jboss.netty.handler.timeout.IdleStateHandler;
-import org.jboss.netty.util.HashedWheelTimer;
-import org.jboss.netty.util.Timer;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 public class RpcClient {
 
-  final ClientBootstrap bootstrap;
-  final Map<Integer, RpcNetworkTask> tasks;
-  final Queue<RpcNetworkTask> pending;
+  final RpcTransport transport;
+  final RpcConnection connections[];
+  final int dataConnections;
+  final ConcurrentMap<Integer, RpcNetworkTask> tasks;
   final AtomicBoolean errored;
   final AtomicBoolean shutdown;
   final AtomicInteger xid;
-  final RpcClient client;
-
-  ChannelFuture future;
+  volatile RpcMetrics metrics;
+  volatile long deadlineMs;
 
   public static final int RECONNECT_DELAY_MS = 5;
   public static final int MAX_RETRIES = 10;
   public static final int MAX_RPCWAIT_MS = 10000;
+  public static final int INITIAL_RTO_MS = 1000;
+  public static final int MIN_RTO_MS = 1000;
+  public static final int MAX_BACKOFF_MS = 10000;
+  public static final int DEFAULT_DEADLINE_MS = 60000;
+  public static final int MAX_TIMER_CLASSES = 8;
 
-  public static final Timer timer = new HashedWheelTimer();
+  static final int LAST_FRAGMENT = 0x80000000;
+  /* xid, message type, RPC version, program, version and procedure */
+  static final int CALL_HEADER_SIZE = 24;
+  static final int RPC_VERSION = 2;
 
   public static final Log LOG = LogFactory.getLog(RpcClient.class);
 
   public RpcClient(String hostname, int port) throws IOException {
+    this(hostname, port, 1);
+  }
+
+  public RpcClient(String hostname, int port, int numConnections) throws IOException {
+    this(hostname, port, numConnections, false);
+  }
+
+  /**
+   * With a metadata connection, one more connection carries only the calls that are not bulk data
+   * transfers, with its own slots, so that they never wait behind queued reads and writes either
+   * in this client or in the TCP stream. See {@link #isBulk(int, int)}.
+   */
+  public RpcClient(String hostname, int port, int numConnections, boolean metadataConnection)
+      throws IOException {
+
+    if (numConnections < 1) {
+      throw new IOException("Invalid number of connections " + numConnections + " to " + hostname);
+    }
 
     tasks = new ConcurrentHashMap<>();
-    pending = new ConcurrentLinkedQueue<>();
     xid = new AtomicInteger(new Random(System.currentTimeMillis()).nextInt(1024) * 1000000);
     errored = new AtomicBoolean(false);
     shutdown = new AtomicBoolean(false);
+    deadlineMs = DEFAULT_DEADLINE_MS;
 
-    ChannelFactory factory =
-        new NioClientSocketChannelFactory(Executors.newCachedThreadPool(),
-            Executors.newCachedThreadPool(), 1, 8);
+    transport = RpcTransport.acquire();
 
-    client = this;
-    ChannelPipelineFactory pipelineFactory = new ChannelPipelineFactory() {
-      @Override
-      public ChannelPipeline getPipeline() {
-        return Channels.pipeline(new RpcFrameDecoder(), new IdleStateHandler(timer, 0, 1, 0,
-            TimeUnit.MICROSECONDS), new RpcClientHandler(client, bootstrap, timer));
+    InetSocketAddress address = new InetSocketAddress(hostname, port);
+    dataConnections = numConnections;
+    connections = new RpcConnection[numConnections + (metadataConnection ? 1 : 0)];
+    try {
+      for (int i = 0; i < connections.length; ++i) {
+        connections[i] = new RpcConnection(this, i, transport, address);
+        connections[i].connect();
       }
-    };
-    bootstrap = new ClientBootstrap(factory);
-    bootstrap.setPipelineFactory(pipelineFactory);
+    } catch (IOException exception) {
+      shutdown();
+      throw exception;
+    }
+    LOG.debug("RPC: opened " + connections.length + " connection(s) to " + address);
+  }
+
+  public int getNumConnections() {
+    return connections.length;
+  }
+
+  public boolean hasMetadataConnection() {
+    return connections.length > dataConnections;
+  }
+
+  /**
+   * Bulk calls are sent after any queued metadata call, and never on the metadata connection.
+   */
+  protected boolean isBulk(int program, int procedure) {
+    return false;
+  }
+
+  /**
+   * Calls in different timer classes get their own round trip time estimate, so that a large
+   * transfer does not inflate the timeout of a small metadata call. Must be in
+   * [0, MAX_TIMER_CLASSES).
+   */
+  protected int getTimerClass(int program, int procedure) {
+    return 0;
+  }
+
+  public RpcRttEstimator getRttEstimator(int connection, int timerClass) {
+    return connections[connection].getEstimator(timerClass);
+  }
+
+  public RpcMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Record every call in the given metrics from now on, or stop recording with null. The metrics
+   * also publish the round trip time estimates of the connections of this client.
+   */
+  public void setMetrics(RpcMetrics metrics) {
+    if (metrics != null) {
+      metrics.setClient(this);
+    }
+    this.metrics = metrics;
+  }
 
-    bootstrap.setOption("remoteAddress", new InetSocketAddress(hostname, port));
-    bootstrap.setOption("tcpNoDelay", true);
-    bootstrap.setOption("keepAlive", false);
-    bootstrap.setOption("soLinger", 0);
-    bootstrap.setOption("receiveBufferSize", 32 * 1024 * 1024);
-    bootstrap.setOption("sendBufferSize", 32 * 1024 * 1024);
+  public long getDeadline() {
+    return deadlineMs;
+  }
+
+  /**
+   * Fail a call that has no reply this long after it was first sent, however many retransmissions
+   * that leaves it. Calls issued from now on get the new deadline, 0 leaves only
+   * {@link #MAX_RETRIES} to bound them.
+   */
+  public void setDeadline(long deadlineMs) {
+    this.deadlineMs = Math.max(0L, deadlineMs);
+  }
 
-    future = bootstrap.connect();
-    future.awaitUninterruptibly();
-    if(future.isDone() && (future.isCancelled() || !future.isSuccess())) {
-        throw new IOException("Could not connect to " + hostname + " on port " + port);
+  public RpcSlotTable getSlotTable(int connection) {
+    return connections[connection].getSlots();
+  }
+
+  /**
+   * Limit the calls in flight on each connection, see {@link RpcSlotTable}.
+   */
+  public void setSlotLimits(int maxSlots, long maxBytes, boolean adaptive) {
+    for (RpcConnection connection : connections) {
+      connection.getSlots().configure(maxSlots, maxBytes, adaptive);
     }
   }
 
   public RpcMessage service(int program, int version, int procedure, XDR in, XDR out,
       Credentials credentials) throws RpcException {
-    int callXid = xid.incrementAndGet();
+    RpcResult result = await(serviceAsync(program, version, procedure, in, credentials));
+    try {
+      out.writeFixedOpaque(result.getData().getBytes());
+      return result.getReply();
+    } finally {
+      result.release();
+    }
+  }
 
-    // Package call into a new task
-    XDR request = new XDR();
-    RpcCall call =
-        RpcCall.getInstance(callXid, program, version, procedure, credentials, new VerifierNone());
-    call.write(request);
-    request.writeFixedOpaque(in.getBytes());
-    ChannelBuffer buf = XDR.writeMessageTcp(request, true);
-    RpcNetworkTask task = new RpcNetworkTask(callXid, buf);
+  /**
+   * Issue a call with encoded arguments and wait for the reply, which is decoded in place. The
+   * caller must release the result.
+   */
+  public RpcResult service(int program, int version, int procedure, ByteBuf args,
+      Credentials credentials) throws RpcException {
+    return await(serviceAsync(program, version, procedure, args, null, credentials));
+  }
 
-    // Issue the task
-    tasks.put(callXid, task);
-    pending.add(task);
-    sendToChannel();
-
-    // Wait for task to complete
-    boolean completed = false;
-    for (int i = 0; i < MAX_RETRIES; ++i) {
-      if (task.wait(MAX_RPCWAIT_MS)) {
-        completed = true;
-        break;
-      } else {
-        LOG.info("RPC: xid=" + callXid + " took too long, so retrying");
-        task = new RpcNetworkTask(callXid, buf);
-        tasks.put(callXid, task);
-        pending.add(task);
-        sendToChannel();
+  /**
+   * Same as above with the arguments in {@code in}. The caller must release the result.
+   */
+  public RpcResult service(int program, int version, int procedure, XDR in,
+      Credentials credentials) throws RpcException {
+    return await(serviceAsync(program, version, procedure, in, credentials));
+  }
+
+  private RpcResult await(ListenableFuture<RpcResult> future) throws RpcException {
+    try {
+      return Uninterruptibles.getUninterruptibly(future);
+    } catch (ExecutionException exception) {
+      if (exception.getCause() instanceof RpcException) {
+        throw (RpcException) exception.getCause();
       }
+      throw new RpcException("RPC: call failed: " + exception.getCause());
     }
+  }
 
-    if (!completed || task.getReply() == null) {
-      LOG.error("RPC: xid=" + callXid + " timed out");
-      throw new RpcException("RPC: xid=" + callXid + " timed out");
-    }
+  /**
+   * Issue a call without waiting for the reply. The future fails with an {@link RpcException} if
+   * the call is denied or times out after all retransmissions. Blocks while the chosen connection
+   * has no free slot, so it must not be called from a Netty I/O thread.
+   * The caller must release the result.
+   */
+  public ListenableFuture<RpcResult> serviceAsync(int program, int version, int procedure, XDR in,
+      Credentials credentials) {
+    return serviceAsync(program, version, procedure, in, null, credentials);
+  }
 
-    // Process reply and return
-    RpcReply reply = task.getReply();
-    if (reply.getState() == RpcReply.ReplyState.MSG_DENIED) {
-      LOG.error("RPC: xid=" + callXid + " RpcReply request denied: " + reply);
-      throw new RpcException("RPC: xid=" + callXid + " RpcReply request denied: " + reply);
-    }
+  /**
+   * Same as above, with bulk data sent after the arguments in {@code in}. The arguments and the
+   * payload are copied into the call, so the caller can reuse their buffers as soon as this
+   * returns.
+   */
+  public ListenableFuture<RpcResult> serviceAsync(int program, int version, int procedure, XDR in,
+      ByteBuf payload, Credentials credentials) {
+    return issue(program, version, procedure, wrap(in), payload, credentials, true);
+  }
 
-    // Call was accepted so process the correct reply
-    RpcAcceptedReply acceptedReply = (RpcAcceptedReply) reply;
-    LOG.debug("RPC: xid=" + callXid + " completed successfully with acceptstate="
-        + acceptedReply.getAcceptState());
-    out.writeFixedOpaque(task.getReplyData().getBytes());
+  /**
+   * Same as above, with arguments that are already encoded.
+   */
+  public ListenableFuture<RpcResult> serviceAsync(int program, int version, int procedure,
+      ByteBuf args, ByteBuf payload, Credentials credentials) {
+    return issue(program, version, procedure, args, payload, credentials, true);
+  }
 
-    return acceptedReply;
+  /**
+   * Same as above without a payload, but only if the connection the call would go out on has a
+   * free slot right now. Returns null without sending anything otherwise, so it never blocks.
+   */
+  public ListenableFuture<RpcResult> tryServiceAsync(int program, int version, int procedure,
+      ByteBuf args, Credentials credentials) {
+    return issue(program, version, procedure, args, null, credentials, false);
+  }
 
+  private ListenableFuture<RpcResult> issue(int program, int version, int procedure, ByteBuf args,
+      ByteBuf payload, Credentials credentials, boolean wait) {
+    // Take a slot on the least loaded connection of the lane before the call is built, so that
+    // callers waiting for one do not hold direct buffers that the byte limit does not count
+    int callXid = xid.incrementAndGet();
+    boolean bulk = isBulk(program, procedure);
+    RpcConnection connection = chooseConnection(bulk);
+    byte auth[] = RpcCredentialsSys.getAuth(credentials);
+    int callSize = 4 + getRecordLength(auth, args.readableBytes(), payload);
+    RpcSlotTable slots = connection.getSlots();
+    if (!(wait ? slots.acquire(callSize) : slots.tryAcquire(callSize))) {
+      if (!wait && !shutdown.get()) {
+        return null;
+      }
+      return Futures.<RpcResult>immediateFailedFuture(
+          new RpcException("RPC: xid=" + callXid + " client has shut down"));
+    }
+    RpcNetworkTask task =
+        new RpcNetworkTask(callXid, program, procedure, getTimerClass(program, procedure), bulk,
+            encodeCall(transport.getAllocator(), callXid, program, version, procedure, auth, args,
+                payload), connection);
+    connection.outstanding.incrementAndGet();
+    long deadline = deadlineMs;
+    if (deadline > 0) {
+      task.setDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadline));
+    }
+    tasks.put(callXid, task);
+    if (shutdown.get()) {
+      failTask(task, "RPC: xid=" + callXid + " client has shut down");
+    } else {
+      RpcMetrics current = metrics;
+      if (current != null) {
+        current.sent(program, procedure, task.getCallSize());
+      }
+      scheduleRetransmit(task);
+      connection.issue(task);
+    }
+    return task.getFuture();
   }
 
   public void shutdown() {
     long start = System.currentTimeMillis();
+    boolean first = !shutdown.getAndSet(true);
     try {
-      shutdown.set(true);
-      future.getChannel().close();
-      future.getChannel().getCloseFuture().awaitUninterruptibly();
-      bootstrap.shutdown();
+      for (RpcNetworkTask task : tasks.values()) {
+        failTask(task, "RPC: xid=" + task.getXid() + " client has shut down");
+      }
+      for (RpcConnection connection : connections) {
+        if (connection != null) {
+          connection.close();
+        }
+      }
     } finally {
-      bootstrap.releaseExternalResources();
+      if (first) {
+        transport.release();
+      }
       LOG.debug("RpcClient shutdown took " + (System.currentTimeMillis() - start) + " ms");
     }
   }
@@ -175,31 +324,235 @@ public class RpcClient {
     return shutdown.get();
   }
 
-  protected synchronized void setChannel(ChannelFuture future) {
-    this.future = future;
+  /**
+   * Frame a call as a single TCP record in a direct buffer from the allocator, which the caller
+   * must release. The record is the record mark and the fixed call fields, the credential and
+   * verifier, which are encoded once per credential (see {@link RpcCredentialsSys}), then the
+   * arguments and the optional payload padded to XDR alignment. Everything is copied once, into a
+   * buffer the socket can write from directly on every attempt; a heap buffer would be copied into
+   * a direct one by the transport on each write instead.
+   */
+  public static ByteBuf buildCall(ByteBufAllocator allocator, int xid, int program, int version,
+      int procedure, XDR in, ByteBuf payload, Credentials credentials) {
+    return buildCall(allocator, xid, program, version, procedure, wrap(in), payload, credentials);
+  }
+
+  /**
+   * Same as above with encoded arguments.
+   */
+  public static ByteBuf buildCall(ByteBufAllocator allocator, int xid, int program, int version,
+      int procedure, ByteBuf args, ByteBuf payload, Credentials credentials) {
+    return encodeCall(allocator, xid, program, version, procedure,
+        RpcCredentialsSys.getAuth(credentials), args, payload);
+  }
+
+  private static ByteBuf encodeCall(ByteBufAllocator allocator, int xid, int program, int version,
+      int procedure, byte auth[], ByteBuf args, ByteBuf payload) {
+    int argsLength = args.readableBytes();
+    int length = getRecordLength(auth, argsLength, payload);
+    ByteBuf call = allocator.directBuffer(4 + length, 4 + length);
+    writeHeader(call, length, xid, program, version, procedure, auth);
+    call.writeBytes(args, args.readerIndex(), argsLength);
+    if (payload != null) {
+      int payloadLength = payload.readableBytes();
+      call.writeBytes(payload, payload.readerIndex(), payloadLength);
+      call.writeZero((4 - (payloadLength & 3)) & 3);
+    }
+    return call;
+  }
+
+  /* The length of the record, without the record mark */
+  private static int getRecordLength(byte auth[], int argsLength, ByteBuf payload) {
+    int payloadLength = (payload == null) ? 0 : payload.readableBytes();
+    int padding = (4 - (payloadLength & 3)) & 3;
+    return CALL_HEADER_SIZE + auth.length + argsLength + payloadLength + padding;
+  }
+
+  /* The encoded arguments, without a copy */
+  private static ByteBuf wrap(XDR in) {
+    ByteBuffer args = in.buffer();
+    args.flip();
+    return Unpooled.wrappedBuffer(args);
   }
 
-  protected RpcNetworkTask getTask() {
-    return pending.poll();
+  private static void writeHeader(ByteBuf header, int length, int xid, int program,
+      int version, int procedure, byte auth[]) {
+    header.writeInt(LAST_FRAGMENT | length);
+    header.writeInt(xid);
+    header.writeInt(RpcMessage.Type.RPC_CALL.getValue());
+    header.writeInt(RPC_VERSION);
+    header.writeInt(program);
+    header.writeInt(version);
+    header.writeInt(procedure);
+    header.writeBytes(auth);
+  }
+
+  protected RpcConnection chooseConnection(boolean bulk) {
+    // Metadata calls fall back to the data connections while their own is down
+    if (!bulk && hasMetadataConnection() && connections[dataConnections].isConnected()) {
+      return connections[dataConnections];
+    }
+    RpcConnection best = null;
+    for (int i = 0; i < dataConnections; ++i) {
+      RpcConnection connection = connections[i];
+      if (best == null) {
+        best = connection;
+      } else if (connection.isConnected() != best.isConnected()) {
+        if (connection.isConnected()) {
+          best = connection;
+        }
+      } else if (connection.getOutstanding() < best.getOutstanding()) {
+        best = connection;
+      }
+    }
+    return best;
   }
 
-  protected void completeTask(int xid, RpcReply reply, XDR replyData) {
+  /*
+   * Takes over the reference to the body. It is handed to the caller with the result of an accepted
+   * call, and released here otherwise.
+   */
+  protected void completeTask(int xid, RpcReply reply, ByteBuf body) {
     RpcNetworkTask found = tasks.remove(xid);
-    if (found != null) {
-      found.setReply(reply, replyData);
-      found.signal();
+    if (found == null) {
+      body.release();
+      return;
+    }
+    finishTask(found);
+
+    // Karn's rule: only calls that were sent once give an unambiguous sample
+    if (found.getAttempts() == 0 && !found.isReplayed() && found.getSentTime() != 0) {
+      RpcRttEstimator estimator = found.getConnection().getEstimator(found.getTimerClass());
+      long rtt = (System.nanoTime() - found.getSentTime()) / 1000;
+      long srtt = estimator.getSmoothedRttUs();
+      found.getConnection().getSlots()
+          .update(estimator.getSamples() > 0 && rtt > 2 * srtt, srtt * 1000);
+      estimator.update(rtt);
+    }
+
+    RpcMetrics current = metrics;
+    if (current != null) {
+      current.completed(found.getProgram(), found.getProcedure(),
+          (System.nanoTime() - found.getIssueTime()) / 1000, body.readableBytes(),
+          reply.getState() == RpcReply.ReplyState.MSG_DENIED
+              || ((RpcAcceptedReply) reply).getAcceptState() != RpcAcceptedReply.AcceptState.SUCCESS);
+    }
+
+    if (reply.getState() == RpcReply.ReplyState.MSG_DENIED) {
+      body.release();
+      LOG.error("RPC: xid=" + xid + " RpcReply request denied: " + reply);
+      found.getFuture().setException(
+          new RpcException("RPC: xid=" + xid + " RpcReply request denied: " + reply));
+      return;
+    }
+
+    // Call was accepted so hand the reply over as is
+    RpcAcceptedReply acceptedReply = (RpcAcceptedReply) reply;
+    LOG.debug("RPC: xid=" + xid + " completed successfully with acceptstate="
+        + acceptedReply.getAcceptState());
+    RpcResult result = new RpcResult(acceptedReply, body);
+    if (!found.getFuture().set(result)) {
+      result.release();
     }
   }
 
-  protected void sendToChannel() {
-    try {
-      RpcNetworkTask task = getTask();
-      if (task != null) {
-        future.getChannel().write(task.getCallData());
+  protected void scheduleRetransmit(final RpcNetworkTask task) {
+    task.setTimeout(transport.getTimer().newTimeout(new TimerTask() {
+      @Override
+      public void run(Timeout timeout) {
+        retransmit(task);
       }
-    } catch (Exception ignore) {
+    }, getTimeout(task), TimeUnit.MILLISECONDS));
+  }
 
+  /*
+   * The estimated timeout doubles on every retransmission, with up to 25% random jitter so that
+   * calls that timed out together do not all retransmit together. The last timeout ends at the
+   * deadline of the call.
+   */
+  protected long getTimeout(RpcNetworkTask task) {
+    long rto = task.getConnection().getEstimator(task.getTimerClass()).getRtoMs();
+    int attempts = task.getAttempts();
+    long timeout = rto;
+    if (attempts > 0) {
+      long backoff = Math.min(MAX_BACKOFF_MS, rto << Math.min(attempts, 16));
+      timeout = backoff + ThreadLocalRandom.current().nextLong(backoff / 4 + 1);
     }
+    long deadline = task.getDeadline();
+    if (deadline != 0) {
+      long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      timeout = Math.max(1, Math.min(timeout, left));
+    }
+    return timeout;
+  }
+
+  protected void retransmit(RpcNetworkTask task) {
+    if (tasks.get(task.getXid()) != task) {
+      return;
+    }
+    long deadline = task.getDeadline();
+    if (task.nextAttempt() >= MAX_RETRIES || shutdown.get()
+        || (deadline != 0 && System.nanoTime() - deadline >= 0)) {
+      LOG.error("RPC: xid=" + task.getXid() + " timed out");
+      failTask(task, "RPC: xid=" + task.getXid() + " timed out");
+    } else {
+      LOG.info("RPC: xid=" + task.getXid() + " took too long, so retrying");
+      RpcMetrics current = metrics;
+      if (current != null) {
+        current.retransmitted(task.getProgram(), task.getProcedure());
+        current.sent(task.getProgram(), task.getProcedure(), task.getCallSize());
+      }
+      task.getConnection().getSlots().update(true,
+          task.getConnection().getEstimator(task.getTimerClass()).getSmoothedRttUs() * 1000);
+      scheduleRetransmit(task);
+      task.getConnection().issue(task);
+    }
+  }
+
+  /*
+   * Called when a connection drops. Every call still waiting for a reply on it is queued again
+   * with the same xid, so that it goes out as soon as the connection is back rather than after its
+   * timeout, and the server's duplicate request cache still recognizes calls that already ran.
+   */
+  void replay(RpcConnection connection) {
+    if (shutdown.get()) {
+      return;
+    }
+    RpcMetrics current = metrics;
+    int replayed = 0;
+    for (RpcNetworkTask task : tasks.values()) {
+      if (task.getConnection() == connection && task.markQueued()) {
+        task.setReplayed();
+        if (current != null) {
+          current.retransmitted(task.getProgram(), task.getProcedure());
+          current.sent(task.getProgram(), task.getProcedure(), task.getCallSize());
+        }
+        connection.enqueue(task);
+        replayed++;
+      }
+    }
+    if (replayed > 0) {
+      LOG.info("RPC: connection " + connection.id + " dropped, replaying " + replayed + " call(s)");
+    }
+  }
+
+  private void failTask(RpcNetworkTask task, String message) {
+    if (tasks.remove(task.getXid(), task)) {
+      finishTask(task);
+      RpcMetrics current = metrics;
+      if (current != null) {
+        current.failed(task.getProgram(), task.getProcedure(),
+            (System.nanoTime() - task.getIssueTime()) / 1000);
+      }
+      task.getFuture().setException(new RpcException(message));
+    }
+  }
+
+  private void finishTask(RpcNetworkTask task) {
+    task.cancelTimeout();
+    task.releaseCallData();
+    task.getConnection().getSlots().release(task.getCallSize());
+    task.getConnection().outstanding.decrementAndGet();
   }
 
 }
@@ -15,6 +15,7 @@
  */
 package org.apache.hadoop.fs.nfs.rpc;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
@@ -22,88 +23,88 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.oncrpc.RpcReply;
 import org.apache.hadoop.oncrpc.XDR;
 import org.apache.hadoop.oncrpc.XDR.State;
-import org.jboss.netty.bootstrap.ClientBootstrap;
-import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.channel.ChannelEvent;
-import org.jboss.netty.channel.ChannelHandlerContext;
-import org.jboss.netty.channel.ChannelStateEvent;
-import org.jboss.netty.channel.ExceptionEvent;
-import org.jboss.netty.channel.MessageEvent;
-import org.jboss.netty.channel.WriteCompletionEvent;
-import org.jboss.netty.handler.timeout.IdleStateAwareChannelHandler;
-import org.jboss.netty.handler.timeout.IdleStateEvent;
-import org.jboss.netty.util.Timeout;
-import org.jboss.netty.util.Timer;
-import org.jboss.netty.util.TimerTask;
 
-public class RpcClientHandler extends IdleStateAwareChannelHandler {
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+
+public class RpcClientHandler extends ChannelInboundHandlerAdapter {
 
     final RpcClient client;
-    final ClientBootstrap bootstrap;
+    final RpcConnection connection;
     final Timer timer;
 
+    /* xid, message type, reply state, verifier of up to 400 bytes and accept state */
+    public static final int MAX_REPLY_HEADER_SIZE = 512;
+
     public static final Log LOG = LogFactory.getLog(RpcClientHandler.class);
 
-    public RpcClientHandler(RpcClient client, ClientBootstrap bootstrap, Timer timer) {
+    public RpcClientHandler(RpcClient client, RpcConnection connection, Timer timer) {
         this.client = client;
-        this.bootstrap = bootstrap;
+        this.connection = connection;
         this.timer = timer;
     }
 
     @Override
-    public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent event) {
-        sendNextMessage(ctx, event);
-    }
-
-    @Override
-    public void messageReceived(ChannelHandlerContext ctx, MessageEvent event) {
-        ChannelBuffer buf = (ChannelBuffer) event.getMessage();
-        XDR replyxdr = new XDR(buf.toByteBuffer().asReadOnlyBuffer(), State.READING);
-        RpcReply rpcreply = RpcReply.read(replyxdr);
-        client.completeTask(rpcreply.getXid(), rpcreply, replyxdr);
-        sendNextMessage(ctx, event);
+    public void channelActive(ChannelHandlerContext ctx) {
+        connection.drain(ctx.channel());
     }
 
     @Override
-    public void writeComplete(ChannelHandlerContext ctx, WriteCompletionEvent event) {
-        sendNextMessage(ctx, event);
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        ByteBuf buf = (ByteBuf) msg;
+        ByteBuf body;
+        RpcReply rpcreply;
+        try {
+            // Decode the reply header from a copy of its first bytes, the body stays in the frame
+            ByteBuffer header = ByteBuffer.allocate(Math.min(buf.readableBytes(), MAX_REPLY_HEADER_SIZE));
+            buf.getBytes(buf.readerIndex(), header);
+            header.flip();
+            XDR headerxdr = new XDR(header, State.READING);
+            rpcreply = RpcReply.read(headerxdr);
+            int headerLength = headerxdr.buffer().position();
+            body = buf.slice(buf.readerIndex() + headerLength, buf.readableBytes() - headerLength);
+        } catch (RuntimeException exception) {
+            buf.release();
+            throw exception;
+        }
+        // The body shares the reference count of the frame and is released by the client
+        client.completeTask(rpcreply.getXid(), rpcreply, body);
     }
 
     @Override
-    public void channelIdle(ChannelHandlerContext ctx, IdleStateEvent event) {
-        sendNextMessage(ctx, event);
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        connection.drain(ctx.channel());
     }
 
     @Override
-    public void channelDisconnected(ChannelHandlerContext ctx, ChannelStateEvent event) {
+    public void channelInactive(ChannelHandlerContext ctx) {
         LOG.debug("RPC: channel was disconnected");
+        client.replay(connection);
     }
 
     @Override
-    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent event) {
+    public void channelUnregistered(ChannelHandlerContext ctx) {
+        // The shared timer may already be stopped once the client is gone
+        if (client.hasShutdown()) {
+            return;
+        }
         timer.newTimeout(new TimerTask() {
             public void run(Timeout timeout) {
                 if (!client.hasShutdown()) {
-                    LOG.debug("RPC: channel was closed. Trying to reconnect");
-                    client.setChannel(bootstrap.connect());
+                    LOG.debug("RPC: channel " + connection.id + " was closed. Trying to reconnect");
+                    connection.reconnect();
                 }
             }
         }, RpcClient.RECONNECT_DELAY_MS, TimeUnit.MILLISECONDS);
     }
 
     @Override
-    public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent event) {
-        LOG.error("RPC: Got an exception", event.getCause());
-    }
-
-    protected void sendNextMessage(ChannelHandlerContext ctx, ChannelEvent event) {
-        RpcNetworkTask task = client.getTask();
-        if (task != null) {
-            if (event.getChannel().isConnected()) {
-                LOG.debug("Send call with xid=" + task.xid);
-                event.getChannel().write(task.getCallData());
-            }
-        }
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        LOG.error("RPC: Got an exception", cause);
     }
 
 }
@@ -0,0 +1,187 @@
+/**
+ * Copyright 2014 NetApp Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.nfs.rpc;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+
+/**
+ * One TCP connection of an {@link RpcClient}. Each connection has its own queues of calls waiting
+ * to be sent, and keeps count of the calls issued on it that have not completed yet. Queued
+ * metadata calls are always sent before queued bulk data calls.
+ */
+class RpcConnection {
+
+  final int id;
+  final RpcClient client;
+  final InetSocketAddress address;
+  final Bootstrap bootstrap;
+  final Queue<RpcNetworkTask> pending;
+  final Queue<RpcNetworkTask> bulk;
+  final AtomicInteger outstanding;
+  final RpcRttEstimator estimators[];
+  final RpcSlotTable slots;
+
+  volatile ChannelFuture future;
+
+  public static final Log LOG = LogFactory.getLog(RpcConnection.class);
+
+  RpcConnection(final RpcClient client, int id, final RpcTransport transport,
+      InetSocketAddress address) {
+    this.id = id;
+    this.client = client;
+    this.address = address;
+    this.pending = new ConcurrentLinkedQueue<>();
+    this.bulk = new ConcurrentLinkedQueue<>();
+    this.outstanding = new AtomicInteger(0);
+    this.slots = new RpcSlotTable();
+    this.estimators = new RpcRttEstimator[RpcClient.MAX_TIMER_CLASSES];
+    for (int i = 0; i < estimators.length; ++i) {
+      estimators[i] =
+          new RpcRttEstimator(RpcClient.INITIAL_RTO_MS, RpcClient.MIN_RTO_MS,
+              RpcClient.MAX_RPCWAIT_MS);
+    }
+
+    final RpcConnection connection = this;
+    bootstrap = new Bootstrap();
+    bootstrap.group(transport.getGroup());
+    bootstrap.channel(transport.getChannelClass());
+    bootstrap.handler(new ChannelInitializer<Channel>() {
+      @Override
+      protected void initChannel(Channel channel) {
+        channel.pipeline().addLast(new RpcFrameDecoder(),
+            new RpcClientHandler(client, connection, transport.getTimer()));
+      }
+    });
+
+    bootstrap.remoteAddress(address);
+    bootstrap.option(ChannelOption.ALLOCATOR, transport.getAllocator());
+    bootstrap.option(ChannelOption.TCP_NODELAY, true);
+    bootstrap.option(ChannelOption.SO_KEEPALIVE, false);
+    bootstrap.option(ChannelOption.SO_LINGER, 0);
+    bootstrap.option(ChannelOption.SO_RCVBUF, 32 * 1024 * 1024);
+    bootstrap.option(ChannelOption.SO_SNDBUF, 32 * 1024 * 1024);
+  }
+
+  void connect() throws IOException {
+    future = bootstrap.connect();
+    future.awaitUninterruptibly();
+    if (!future.isSuccess()) {
+      throw new IOException("Could not connect to " + address.getHostName() + " on port "
+          + address.getPort());
+    }
+    LOG.debug("RPC: connection " + id + " to " + address + " is up");
+  }
+
+  void reconnect() {
+    setChannel(bootstrap.connect());
+  }
+
+  void close() {
+    slots.close();
+    ChannelFuture current = future;
+    if (current != null) {
+      current.channel().close().awaitUninterruptibly();
+    }
+  }
+
+  boolean isConnected() {
+    ChannelFuture current = future;
+    return current != null && current.channel().isActive();
+  }
+
+  int getOutstanding() {
+    return outstanding.get();
+  }
+
+  RpcRttEstimator getEstimator(int timerClass) {
+    return estimators[timerClass];
+  }
+
+  RpcSlotTable getSlots() {
+    return slots;
+  }
+
+  synchronized void setChannel(ChannelFuture future) {
+    this.future = future;
+  }
+
+  void issue(RpcNetworkTask task) {
+    if (task.markQueued()) {
+      enqueue(task);
+    }
+    ChannelFuture current = future;
+    if (current != null) {
+      drain(current.channel());
+    }
+  }
+
+  /* The caller must have marked the task queued */
+  void enqueue(RpcNetworkTask task) {
+    if (task.isBulk()) {
+      bulk.add(task);
+    } else {
+      pending.add(task);
+    }
+  }
+
+  RpcNetworkTask getTask() {
+    RpcNetworkTask task = pending.poll();
+    return (task != null) ? task : bulk.poll();
+  }
+
+  /*
+   * Write queued calls until the queue is empty or the channel stops accepting writes. The
+   * handler calls this again on connect and writability changes, so a call that is queued here is
+   * never left behind without a pending event. The call is wrapped, not copied, on every attempt.
+   */
+  void drain(Channel channel) {
+    int sent = 0;
+    while (channel.isActive() && channel.isWritable()) {
+      RpcNetworkTask task = getTask();
+      if (task == null) {
+        break;
+      }
+      task.clearQueued();
+      ByteBuf call = task.retainCallData();
+      if (call == null) {
+        continue;
+      }
+      task.setSentTime(System.nanoTime());
+      channel.write(call);
+      sent++;
+    }
+    if (sent > 0) {
+      channel.flush();
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("RPC: connection " + id + " sent " + sent + " call(s)");
+      }
+    }
+  }
+
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright 2014 NetApp Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.nfs.rpc;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.hadoop.oncrpc.XDR;
+import org.apache.hadoop.oncrpc.security.Credentials;
+import org.apache.hadoop.oncrpc.security.CredentialsNone;
+import org.apache.hadoop.oncrpc.security.CredentialsSys;
+import org.apache.hadoop.oncrpc.security.RpcAuthInfo.AuthFlavor;
+import org.apache.hadoop.oncrpc.security.Verifier;
+import org.apache.hadoop.oncrpc.security.VerifierNone;
+
+/**
+ * An AUTH_SYS credential that cannot change once built, with its credential and AUTH_NONE verifier
+ * encoded once so that calls copy them into the header as is. Instances are shared per uid, gid and
+ * supplementary groups, see {@link #get(int, int, int[])}.
+ */
+public class RpcCredentialsSys extends CredentialsSys {
+
+  /* Flavor and empty body of AUTH_NONE for both the credential and the verifier */
+  static final byte[] AUTH_NONE = new byte[16];
+
+  static final String HOSTNAME;
+  static final ConcurrentMap<String, RpcCredentialsSys> cache = new ConcurrentHashMap<>();
+
+  static {
+    String hostname;
+    try {
+      hostname = InetAddress.getLocalHost().getHostName();
+    } catch (UnknownHostException exception) {
+      hostname = "localhost";
+    }
+    HOSTNAME = hostname;
+  }
+
+  final int groups[];
+  final byte[] auth;
+
+  RpcCredentialsSys(int uid, int gid, int groups[], int stamp) {
+    super();
+    super.setUID(uid);
+    super.setGID(gid);
+    super.setStamp(stamp);
+    this.groups = (groups == null) ? new int[0] : groups.clone();
+    this.auth = encode(uid, gid, this.groups, stamp);
+  }
+
+  public static RpcCredentialsSys get(int uid, int gid, int groups[]) {
+    String key = uid + ":" + gid + ":" + Arrays.toString(groups);
+    RpcCredentialsSys found = cache.get(key);
+    if (found == null) {
+      RpcCredentialsSys created =
+          new RpcCredentialsSys(uid, gid, groups, (int) System.currentTimeMillis());
+      found = cache.putIfAbsent(key, created);
+      if (found == null) {
+        found = created;
+      }
+    }
+    return found;
+  }
+
+  public int[] getGroups() {
+    return groups.clone();
+  }
+
+  @Override
+  public void setUID(int uid) {
+    throw new UnsupportedOperationException("RPC: shared credentials cannot change");
+  }
+
+  @Override
+  public void setGID(int gid) {
+    throw new UnsupportedOperationException("RPC: shared credentials cannot change");
+  }
+
+  @Override
+  public void setStamp(int stamp) {
+    throw new UnsupportedOperationException("RPC: shared credentials cannot change");
+  }
+
+  @Override
+  public void write(XDR xdr) {
+    // Everything after the flavor, the verifier is not part of the credential
+    xdr.writeFixedOpaque(Arrays.copyOfRange(auth, 4, auth.length - 8));
+  }
+
+  /**
+   * The credential and verifier of a call, as they go on the wire after the procedure number.
+   * Credentials other than the shared and AUTH_NONE ones are encoded on every call.
+   */
+  static byte[] getAuth(Credentials credentials) {
+    if (credentials instanceof RpcCredentialsSys) {
+      return ((RpcCredentialsSys) credentials).auth;
+    }
+    if (credentials instanceof CredentialsNone) {
+      return AUTH_NONE;
+    }
+    XDR xdr = new XDR();
+    Credentials.writeFlavorAndCredentials(credentials, xdr);
+    Verifier.writeFlavorAndVerifier(new VerifierNone(), xdr);
+    return xdr.getBytes();
+  }
+
+  /* RFC 5531 authsys_parms with the flavor and length in front, then an AUTH_NONE verifier */
+  static byte[] encode(int uid, int gid, int groups[], int stamp) {
+    byte[] machine = HOSTNAME.getBytes(StandardCharsets.UTF_8);
+    int padded = (machine.length + 3) & ~3;
+    int length = 4 + 4 + padded + 4 + 4 + 4 + 4 * groups.length;
+    XDR xdr = new XDR(8 + length + 8);
+    xdr.writeInt(AuthFlavor.AUTH_SYS.getValue());
+    xdr.writeInt(length);
+    xdr.writeInt(stamp);
+    xdr.writeVariableOpaque(machine);
+    xdr.writeInt(uid);
+    xdr.writeInt(gid);
+    xdr.writeInt(groups.length);
+    for (int group : groups) {
+      xdr.writeInt(group);
+    }
+    xdr.writeInt(AuthFlavor.AUTH_NONE.getValue());
+    xdr.writeInt(0);
+    return xdr.getBytes();
+  }
+
+}
@@ -14,57 +14,64 @@
 
 package org.apache.hadoop.fs.nfs.rpc;
 
+import java.util.List;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.hadoop.oncrpc.XDR;
-import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBuffers;
-import org.jboss.netty.channel.Channel;
-import org.jboss.netty.channel.ChannelHandlerContext;
-import org.jboss.netty.handler.codec.frame.FrameDecoder;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
 
 /**
- * This code is copied from Hadoop NFS project.
- * @author gokuls
- *
+ * Splits the stream into RPC records. A record is passed on as one buffer once its last fragment
+ * has arrived, and the next handler owns the reference to it.
  */
-public class RpcFrameDecoder extends FrameDecoder {
-  
+public class RpcFrameDecoder extends ByteToMessageDecoder {
+
+  static final int LAST_FRAGMENT = 0x80000000;
+
   public static final Log LOG = LogFactory.getLog(RpcFrameDecoder.class);
-  private ChannelBuffer currentFrame;
+  private ByteBuf currentFrame;
 
   @Override
-  protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buf) {
+  protected void decode(ChannelHandlerContext ctx, ByteBuf buf, List<Object> out) {
 
     if (buf.readableBytes() < 4) {
-      return null;
+      return;
     }
 
-    buf.markReaderIndex();
-
-    byte[] fragmentHeader = new byte[4];
-    buf.readBytes(fragmentHeader);
-    int length = XDR.fragmentSize(fragmentHeader);
-    boolean isLast = XDR.isLastFragment(fragmentHeader);
+    int fragmentHeader = buf.getInt(buf.readerIndex());
+    int length = fragmentHeader & ~LAST_FRAGMENT;
+    boolean isLast = (fragmentHeader & LAST_FRAGMENT) != 0;
 
-    if (buf.readableBytes() < length) {
-      buf.resetReaderIndex();
-      return null;
+    if (buf.readableBytes() < 4 + length) {
+      return;
     }
 
-    ChannelBuffer newFragment = buf.readSlice(length);
+    buf.skipBytes(4);
+    ByteBuf newFragment = buf.readRetainedSlice(length);
     if (currentFrame == null) {
       currentFrame = newFragment;
     } else {
-      currentFrame = ChannelBuffers.wrappedBuffer(currentFrame, newFragment);
+      if (!(currentFrame instanceof CompositeByteBuf)) {
+        currentFrame = ctx.alloc().compositeBuffer().addComponent(true, currentFrame);
+      }
+      ((CompositeByteBuf) currentFrame).addComponent(true, newFragment);
     }
 
     if (isLast) {
-      ChannelBuffer completeFrame = currentFrame;
+      out.add(currentFrame);
+      currentFrame = null;
+    }
+  }
+
+  @Override
+  protected void handlerRemoved0(ChannelHandlerContext ctx) {
+    if (currentFrame != null) {
+      currentFrame.release();
       currentFrame = null;
-      return completeFrame;
-    } else {
-      return null;
     }
   }
 }
@@ -0,0 +1,104 @@
+/**
+ * Copyright 2014 NetApp Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.nfs.rpc;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram in microseconds with log-linear buckets: exact below 16 us, then 8 buckets per
+ * power of two, so a percentile is reported within 12.5% of the true value. Recording is a single
+ * atomic increment. Percentiles are taken over the samples recorded since the previous
+ * {@link #snapshot()}, so that each metrics period shows its own tail.
+ */
+public class RpcLatencyHistogram {
+
+  static final int LINEAR_BUCKETS = 16;
+  static final int SUB_BUCKET_BITS = 3;
+  static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  static final int MAX_EXPONENT = 40;
+  static final int BUCKETS = LINEAR_BUCKETS + (MAX_EXPONENT - 3) * SUB_BUCKETS;
+  static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+  final AtomicLongArray counts;
+  final long previous[];
+  final long interval[];
+  long intervalTotal;
+
+  public RpcLatencyHistogram() {
+    counts = new AtomicLongArray(BUCKETS);
+    previous = new long[BUCKETS];
+    interval = new long[BUCKETS];
+  }
+
+  public void record(long latencyUs) {
+    counts.incrementAndGet(bucket(latencyUs));
+  }
+
+  /**
+   * Start a new period with the samples recorded since the last call.
+   */
+  public synchronized void snapshot() {
+    intervalTotal = 0;
+    for (int i = 0; i < BUCKETS; ++i) {
+      long count = counts.get(i);
+      interval[i] = count - previous[i];
+      previous[i] = count;
+      intervalTotal += interval[i];
+    }
+  }
+
+  public synchronized long getSnapshotCount() {
+    return intervalTotal;
+  }
+
+  /**
+   * The upper bound of the bucket holding the given quantile of the last period, 0 if empty.
+   */
+  public synchronized long getPercentile(double quantile) {
+    if (intervalTotal == 0) {
+      return 0;
+    }
+    long rank = Math.max(1L, (long) Math.ceil(quantile * intervalTotal));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; ++i) {
+      seen += interval[i];
+      if (seen >= rank) {
+        return upperBound(i);
+      }
+    }
+    return upperBound(BUCKETS - 1);
+  }
+
+  static int bucket(long value) {
+    if (value < LINEAR_BUCKETS) {
+      return (int) Math.max(0, value);
+    }
+    value = Math.min(value, MAX_VALUE);
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + sub;
+  }
+
+  static long upperBound(int bucket) {
+    if (bucket < LINEAR_BUCKETS) {
+      return bucket;
+    }
+    int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+    int sub = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+    long width = 1L << (exponent - SUB_BUCKET_BITS);
+    return (SUB_BUCKETS + sub) * width + width - 1;
+  }
+
+}
@@ -0,0 +1,262 @@
+/**
+ * Copyright 2014 NetApp Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.nfs.rpc;
+
+import static org.apache.hadoop.metrics2.lib.Interns.info;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.metrics2.MetricsCollector;
+import org.apache.hadoop.metrics2.MetricsException;
+import org.apache.hadoop.metrics2.MetricsInfo;
+import org.apache.hadoop.metrics2.MetricsSource;
+import org.apache.hadoop.metrics2.lib.DefaultMetricsSystem;
+
+/**
+ * Per-procedure call metrics of one program on one endpoint, published through metrics2 and so
+ * through JMX. Every record is tagged with the endpoint and procedure, and carries the number of
+ * calls, errors, retransmissions, bytes sent and received, and the p50/p99/p999 latency since the
+ * previous snapshot. Updates are atomic increments on preallocated counters.
+ *
+ * Once the metrics are set on a client, they also publish the round trip time estimates of its
+ * connections, in records tagged with the endpoint, connection and timer class, and the slot table
+ * of each connection: slots and bytes in use, the slot limit, and how often callers waited.
+ */
+public class RpcMetrics implements MetricsSource {
+
+  public static final String CONTEXT = "nfs";
+
+  static final MetricsInfo RECORD = info("NfsRpc", "RPC calls per procedure and endpoint");
+  static final MetricsInfo ENDPOINT = info("Endpoint", "Server address and port");
+  static final MetricsInfo PROCEDURE = info("Procedure", "RPC procedure");
+  static final MetricsInfo CALLS = info("Calls", "Calls completed or failed");
+  static final MetricsInfo ERRORS = info("Errors", "Calls denied, not accepted or timed out");
+  static final MetricsInfo RETRANSMITS = info("Retransmits", "Calls sent again after a timeout");
+  static final MetricsInfo BYTES_OUT = info("BytesOut", "Call bytes sent");
+  static final MetricsInfo BYTES_IN = info("BytesIn", "Reply bytes received");
+  static final MetricsInfo LATENCY_P50 = info("LatencyP50Us", "Median latency in microseconds");
+  static final MetricsInfo LATENCY_P99 = info("LatencyP99Us", "99th percentile latency in microseconds");
+  static final MetricsInfo LATENCY_P999 = info("LatencyP999Us", "99.9th percentile latency in microseconds");
+  static final MetricsInfo RTT_RECORD = info("NfsRpcRtt", "Round trip time estimates per connection");
+  static final MetricsInfo CONNECTION = info("Connection", "Connection number");
+  static final MetricsInfo TIMER_CLASS = info("TimerClass", "Class of calls with their own estimate");
+  static final MetricsInfo SRTT = info("SmoothedRttUs", "Smoothed round trip time in microseconds");
+  static final MetricsInfo RTTVAR = info("RttVarianceUs", "Round trip time variation in microseconds");
+  static final MetricsInfo RTO = info("RtoMs", "Retransmission timeout in milliseconds");
+  static final MetricsInfo SLOT_RECORD = info("NfsRpcSlots", "Slot table per connection");
+  static final MetricsInfo SLOTS_IN_USE = info("SlotsInUse", "Calls in flight");
+  static final MetricsInfo SLOT_LIMIT = info("SlotLimit", "Calls allowed in flight");
+  static final MetricsInfo BYTES_IN_USE = info("BytesInUse", "Call bytes in flight");
+  static final MetricsInfo SLOT_WAITS = info("SlotWaits", "Times a caller waited for a slot");
+
+  /* Counters of one procedure */
+  public static class Procedure {
+    final String name;
+    final AtomicLong calls = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+    final AtomicLong retransmits = new AtomicLong();
+    final AtomicLong bytesOut = new AtomicLong();
+    final AtomicLong bytesIn = new AtomicLong();
+    final RpcLatencyHistogram latency = new RpcLatencyHistogram();
+
+    Procedure(String name) {
+      this.name = name;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public long getCalls() {
+      return calls.get();
+    }
+
+    public long getErrors() {
+      return errors.get();
+    }
+
+    public long getRetransmits() {
+      return retransmits.get();
+    }
+
+    public long getBytesOut() {
+      return bytesOut.get();
+    }
+
+    public long getBytesIn() {
+      return bytesIn.get();
+    }
+
+    public RpcLatencyHistogram getLatency() {
+      return latency;
+    }
+  }
+
+  final int program;
+  final String endpoint;
+  final Procedure procedures[];
+  volatile RpcClient client;
+  String sourceName;
+
+  public static final Log LOG = LogFactory.getLog(RpcMetrics.class);
+
+  /**
+   * Procedures are indexed by number, calls to other programs or unknown procedures are ignored.
+   */
+  public RpcMetrics(int program, String endpoint, String procedureNames[]) {
+    this.program = program;
+    this.endpoint = endpoint;
+    this.procedures = new Procedure[procedureNames.length];
+    for (int i = 0; i < procedureNames.length; ++i) {
+      procedures[i] = new Procedure(procedureNames[i]);
+    }
+  }
+
+  public Procedure getProcedure(int program, int procedure) {
+    if (program != this.program || procedure < 0 || procedure >= procedures.length) {
+      return null;
+    }
+    return procedures[procedure];
+  }
+
+  /* The client whose connections are published along with the calls */
+  void setClient(RpcClient client) {
+    this.client = client;
+  }
+
+  void sent(int program, int procedure, long bytes) {
+    Procedure found = getProcedure(program, procedure);
+    if (found != null) {
+      found.bytesOut.addAndGet(bytes);
+    }
+  }
+
+  void retransmitted(int program, int procedure) {
+    Procedure found = getProcedure(program, procedure);
+    if (found != null) {
+      found.retransmits.incrementAndGet();
+    }
+  }
+
+  void completed(int program, int procedure, long latencyUs, long bytes, boolean error) {
+    Procedure found = getProcedure(program, procedure);
+    if (found != null) {
+      found.calls.incrementAndGet();
+      found.bytesIn.addAndGet(bytes);
+      if (error) {
+        found.errors.incrementAndGet();
+      }
+      found.latency.record(latencyUs);
+    }
+  }
+
+  void failed(int program, int procedure, long latencyUs) {
+    completed(program, procedure, latencyUs, 0, true);
+  }
+
+  @Override
+  public void getMetrics(MetricsCollector collector, boolean all) {
+    for (Procedure procedure : procedures) {
+      if (procedure.calls.get() == 0 && !all) {
+        continue;
+      }
+      RpcLatencyHistogram latency = procedure.latency;
+      long p50, p99, p999;
+      synchronized (latency) {
+        latency.snapshot();
+        p50 = latency.getPercentile(0.5);
+        p99 = latency.getPercentile(0.99);
+        p999 = latency.getPercentile(0.999);
+      }
+      collector.addRecord(RECORD).setContext(CONTEXT)
+          .tag(ENDPOINT, endpoint)
+          .tag(PROCEDURE, procedure.name)
+          .addCounter(CALLS, procedure.calls.get())
+          .addCounter(ERRORS, procedure.errors.get())
+          .addCounter(RETRANSMITS, procedure.retransmits.get())
+          .addCounter(BYTES_OUT, procedure.bytesOut.get())
+          .addCounter(BYTES_IN, procedure.bytesIn.get())
+          .addGauge(LATENCY_P50, p50)
+          .addGauge(LATENCY_P99, p99)
+          .addGauge(LATENCY_P999, p999);
+    }
+
+    RpcClient current = client;
+    if (current == null) {
+      return;
+    }
+    for (int i = 0; i < current.getNumConnections(); ++i) {
+      RpcSlotTable slots = current.getSlotTable(i);
+      int inUse, limit;
+      long bytes, waits;
+      synchronized (slots) {
+        inUse = slots.getSlotsInUse();
+        limit = slots.getSlotLimit();
+        bytes = slots.getBytesInUse();
+        waits = slots.getWaits();
+      }
+      collector.addRecord(SLOT_RECORD).setContext(CONTEXT)
+          .tag(ENDPOINT, endpoint)
+          .tag(CONNECTION, Integer.toString(i))
+          .addGauge(SLOTS_IN_USE, inUse)
+          .addGauge(SLOT_LIMIT, limit)
+          .addGauge(BYTES_IN_USE, bytes)
+          .addCounter(SLOT_WAITS, waits);
+
+      for (int j = 0; j < RpcClient.MAX_TIMER_CLASSES; ++j) {
+        RpcRttEstimator estimator = current.getRttEstimator(i, j);
+        long srtt, rttvar, rto;
+        synchronized (estimator) {
+          if (estimator.getSamples() == 0 && !all) {
+            continue;
+          }
+          srtt = estimator.getSmoothedRttUs();
+          rttvar = estimator.getRttVarianceUs();
+          rto = estimator.getRtoMs();
+        }
+        collector.addRecord(RTT_RECORD).setContext(CONTEXT)
+            .tag(ENDPOINT, endpoint)
+            .tag(CONNECTION, Integer.toString(i))
+            .tag(TIMER_CLASS, Integer.toString(j))
+            .addGauge(SRTT, srtt)
+            .addGauge(RTTVAR, rttvar)
+            .addGauge(RTO, rto);
+      }
+    }
+  }
+
+  /**
+   * Publish under a name unique in the process. Failing to register only disables publishing.
+   */
+  public synchronized void register(String name) {
+    try {
+      sourceName = DefaultMetricsSystem.sourceName(name, true);
+      DefaultMetricsSystem.instance().register(sourceName, "NFS RPC calls to " + endpoint, this);
+    } catch (MetricsException exception) {
+      LOG.warn("Could not register RPC metrics for " + endpoint + ": " + exception.getMessage());
+      sourceName = null;
+    }
+  }
+
+  public synchronized void unregister() {
+    if (sourceName != null) {
+      DefaultMetricsSystem.instance().unregisterSource(sourceName);
+      sourceName = null;
+    }
+  }
+
+}
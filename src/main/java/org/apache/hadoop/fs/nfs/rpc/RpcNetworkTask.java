@@ -14,68 +14,155 @@
 
 package org.apache.hadoop.fs.nfs.rpc;
 
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
-
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import org.apache.hadoop.oncrpc.RpcReply;
-import org.apache.hadoop.oncrpc.XDR;
-import org.jboss.netty.buffer.ChannelBuffer;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.Timeout;
+
+import com.google.common.util.concurrent.SettableFuture;
 
 class RpcNetworkTask {
   
   final int xid;
-  final CountDownLatch countdown;
-  
-  ChannelBuffer callData;
+  final int program;
+  final int procedure;
+  final int timerClass;
+  final boolean bulk;
+  final RpcConnection connection;
+  final SettableFuture<RpcResult> future;
+  final int callSize;
+  final long issueTime;
   
-  RpcReply reply;
-  XDR replyData;
+  ByteBuf callData;
+  Timeout timeout;
+  int attempts;
+  boolean queued;
+  boolean replayed;
+  volatile long sentTime;
+  volatile long deadline;
   
   public static final Log LOG = LogFactory.getLog(RpcNetworkTask.class);
   
-  public RpcNetworkTask(Integer xid, ChannelBuffer callData) {
+  public RpcNetworkTask(Integer xid, int program, int procedure, int timerClass, boolean bulk,
+      ByteBuf callData, RpcConnection connection) {
     this.xid = xid;
+    this.program = program;
+    this.procedure = procedure;
+    this.timerClass = timerClass;
+    this.bulk = bulk;
     this.callData = callData;
-    countdown = new CountDownLatch(1);
+    this.connection = connection;
+    this.callSize = callData.readableBytes();
+    this.issueTime = System.nanoTime();
+    this.future = SettableFuture.create();
+    this.attempts = 0;
   }
   
   public int getXid() {
     return xid;
   }
   
-  public ChannelBuffer getCallData() {
-    return callData;
+  public int getProgram() {
+    return program;
   }
   
-  public void setReply(RpcReply reply, XDR replyData) {
-    this.reply = reply;
-    this.replyData = replyData;
+  public int getProcedure() {
+    return procedure;
   }
   
-  public RpcReply getReply() {
-    return reply;
+  public long getIssueTime() {
+    return issueTime;
   }
   
-  public XDR getReplyData() {
-    return replyData;
+  /* A reference to the call for one write, null once the task finished and released it */
+  public synchronized ByteBuf retainCallData() {
+    return (callData == null) ? null : callData.retainedDuplicate();
   }
   
-  public boolean wait(int millis) {
-    while(true) {
-      try {
-        return countdown.await(millis, TimeUnit.MILLISECONDS);
-      } catch(InterruptedException exception) {
-        LOG.info("Thread got interrupted while waiting for task xid=" + xid + " to finish");
-        continue;
-      }
+  public synchronized void releaseCallData() {
+    if (callData != null) {
+      callData.release();
+      callData = null;
     }
   }
   
-  public void signal() {
-    countdown.countDown();
+  public int getCallSize() {
+    return callSize;
+  }
+  
+  public int getTimerClass() {
+    return timerClass;
+  }
+  
+  public boolean isBulk() {
+    return bulk;
+  }
+  
+  public long getSentTime() {
+    return sentTime;
+  }
+  
+  public void setSentTime(long sentTime) {
+    this.sentTime = sentTime;
+  }
+  
+  /* System.nanoTime() after which the call fails rather than retransmits, 0 if there is none */
+  public long getDeadline() {
+    return deadline;
+  }
+  
+  public void setDeadline(long deadline) {
+    this.deadline = deadline;
+  }
+  
+  public RpcConnection getConnection() {
+    return connection;
+  }
+  
+  public SettableFuture<RpcResult> getFuture() {
+    return future;
+  }
+  
+  public synchronized void setTimeout(Timeout timeout) {
+    this.timeout = timeout;
+  }
+  
+  public synchronized void cancelTimeout() {
+    if (timeout != null) {
+      timeout.cancel();
+      timeout = null;
+    }
+  }
+  
+  public synchronized int getAttempts() {
+    return attempts;
+  }
+  
+  public synchronized int nextAttempt() {
+    return ++attempts;
+  }
+  
+  /* False if the task is already waiting in its connection's queue */
+  public synchronized boolean markQueued() {
+    if (queued) {
+      return false;
+    }
+    queued = true;
+    return true;
+  }
+  
+  public synchronized void clearQueued() {
+    queued = false;
+  }
+  
+  /* Sent again after its connection dropped, so its round trip time is no longer a clean sample */
+  public synchronized boolean isReplayed() {
+    return replayed;
+  }
+  
+  public synchronized void setReplayed() {
+    replayed = true;
   }
   
 }
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2014 NetApp Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.nfs.rpc;
+
+import java.io.Closeable;
+
+import org.apache.hadoop.oncrpc.RpcAcceptedReply;
+import org.apache.hadoop.oncrpc.RpcAcceptedReply.AcceptState;
+import org.apache.hadoop.oncrpc.XDR;
+import org.apache.hadoop.oncrpc.XDR.State;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * An accepted reply whose body is still in the pooled buffer it was read into. The body and the
+ * data read from it are only valid until {@link #release()} is called, which the receiver of the
+ * result must do exactly once.
+ */
+public class RpcResult implements Closeable {
+
+  final RpcAcceptedReply reply;
+  final ByteBuf frame;
+  XDR data;
+  boolean released;
+
+  public RpcResult(RpcAcceptedReply reply, ByteBuf frame) {
+    this.reply = reply;
+    this.frame = frame;
+  }
+
+  public RpcAcceptedReply getReply() {
+    return reply;
+  }
+
+  public AcceptState getAcceptState() {
+    return reply.getAcceptState();
+  }
+
+  /* The body as it is in the network buffer, for decoding without copies or wrappers */
+  public ByteBuf getBuffer() {
+    return frame;
+  }
+
+  public synchronized XDR getData() {
+    if (data == null) {
+      data = new XDR(frame.nioBuffer().asReadOnlyBuffer(), State.READING);
+    }
+    return data;
+  }
+
+  public synchronized void release() {
+    if (!released) {
+      released = true;
+      frame.release();
+    }
+  }
+
+  @Override
+  public void close() {
+    release();
+  }
+
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2014 NetApp Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.nfs.rpc;
+
+/**
+ * Smoothed round trip time and retransmission timeout of one class of calls on a connection,
+ * following Jacobson/Karels (RFC 6298). Samples are in microseconds, timeouts in milliseconds.
+ */
+public class RpcRttEstimator {
+
+  final long initialRtoMs;
+  final long minRtoMs;
+  final long maxRtoMs;
+
+  long srtt;
+  long rttvar;
+  long samples;
+
+  public RpcRttEstimator(long initialRtoMs, long minRtoMs, long maxRtoMs) {
+    this.initialRtoMs = initialRtoMs;
+    this.minRtoMs = minRtoMs;
+    this.maxRtoMs = maxRtoMs;
+  }
+
+  public synchronized void update(long rttUs) {
+    if (rttUs <= 0) {
+      rttUs = 1;
+    }
+    if (samples == 0) {
+      srtt = rttUs;
+      rttvar = rttUs / 2;
+    } else {
+      long delta = rttUs - srtt;
+      srtt += delta / 8;
+      rttvar += (Math.abs(delta) - rttvar) / 4;
+    }
+    samples++;
+  }
+
+  public synchronized long getRtoMs() {
+    if (samples == 0) {
+      return initialRtoMs;
+    }
+    long rto = (srtt + 4 * rttvar) / 1000;
+    return Math.min(maxRtoMs, Math.max(minRtoMs, rto));
+  }
+
+  public synchronized long getSmoothedRttUs() {
+    return srtt;
+  }
+
+  public synchronized long getRttVarianceUs() {
+    return rttvar;
+  }
+
+  public synchronized long getSamples() {
+    return samples;
+  }
+
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright 2014 NetApp Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.nfs.rpc;
+
+/**
+ * Bounds the calls in flight on a connection, by count and by request bytes, similar to the
+ * sunrpc slot table. A caller blocks in {@link #acquire(long)} until its call fits. A call always
+ * fits when the table is empty, so a single request larger than the byte limit can still go out.
+ *
+ * When adaptive, the slot limit starts small, grows by one slot per window of calls that were
+ * answered without delay, and is halved (at most once per round trip) when a reply is late.
+ */
+public class RpcSlotTable {
+
+  public static final int DEFAULT_MAX_SLOTS = 128;
+  public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+  public static final int MIN_SLOTS = 2;
+  public static final int INITIAL_ADAPTIVE_SLOTS = 16;
+
+  int maxSlots;
+  long maxBytes;
+  boolean adaptive;
+
+  int limit;
+  int credits;
+  int slotsInUse;
+  long bytesInUse;
+  long lastDecrease;
+  long waits;
+  boolean closed;
+
+  public RpcSlotTable() {
+    configure(DEFAULT_MAX_SLOTS, DEFAULT_MAX_BYTES, false);
+  }
+
+  public synchronized void configure(int maxSlots, long maxBytes, boolean adaptive) {
+    this.maxSlots = Math.max(1, maxSlots);
+    this.maxBytes = Math.max(1L, maxBytes);
+    this.adaptive = adaptive;
+    this.limit = adaptive ? Math.min(this.maxSlots, INITIAL_ADAPTIVE_SLOTS) : this.maxSlots;
+    this.credits = 0;
+    notifyAll();
+  }
+
+  /**
+   * Wait for a slot for a call of the given size. Returns false if the table was closed.
+   */
+  public synchronized boolean acquire(long bytes) {
+    boolean interrupted = false;
+    if (!closed && !fits(bytes)) {
+      waits++;
+    }
+    try {
+      while (!closed && !fits(bytes)) {
+        try {
+          wait();
+        } catch (InterruptedException exception) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (closed) {
+      return false;
+    }
+    slotsInUse++;
+    bytesInUse += bytes;
+    return true;
+  }
+
+  /**
+   * Take a slot only if the call fits right away. Returns false if it does not, or if the table
+   * was closed.
+   */
+  public synchronized boolean tryAcquire(long bytes) {
+    if (closed || !fits(bytes)) {
+      return false;
+    }
+    slotsInUse++;
+    bytesInUse += bytes;
+    return true;
+  }
+
+  public synchronized void release(long bytes) {
+    slotsInUse--;
+    bytesInUse -= bytes;
+    notifyAll();
+  }
+
+  /**
+   * Feed back the outcome of a call. A late call shrinks the limit, at most once per interval.
+   */
+  public synchronized void update(boolean late, long intervalNs) {
+    if (!adaptive) {
+      return;
+    }
+    if (late) {
+      long now = System.nanoTime();
+      if (lastDecrease == 0 || now - lastDecrease > intervalNs) {
+        limit = Math.max(Math.min(MIN_SLOTS, maxSlots), limit / 2);
+        credits = 0;
+        lastDecrease = now;
+      }
+    } else if (limit < maxSlots && ++credits >= limit) {
+      limit++;
+      credits = 0;
+      notifyAll();
+    }
+  }
+
+  public synchronized void close() {
+    closed = true;
+    notifyAll();
+  }
+
+  public synchronized int getSlotLimit() {
+    return limit;
+  }
+
+  public synchronized int getSlotsInUse() {
+    return slotsInUse;
+  }
+
+  public synchronized long getBytesInUse() {
+    return bytesInUse;
+  }
+
+  /* Calls that had to wait for a slot */
+  public synchronized long getWaits() {
+    return waits;
+  }
+
+  private boolean fits(long bytes) {
+    if (slotsInUse == 0) {
+      return true;
+    }
+    return slotsInUse < limit && bytesInUse + bytes <= maxBytes;
+  }
+
+}
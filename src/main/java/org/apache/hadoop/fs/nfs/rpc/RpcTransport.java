@@ -0,0 +1,174 @@
+/**
+ * Copyright 2014 NetApp Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.nfs.rpc;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timer;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * The I/O threads, buffer allocator and timer shared by every {@link RpcClient} in the process.
+ * Clients take a reference with {@link #acquire()} and give it back with {@link #release()}. The
+ * threads are started with the first reference and stopped when the last one is released.
+ *
+ * Frames are read into pooled direct buffers by default, and the native epoll transport is used
+ * instead of NIO when it is enabled and available.
+ */
+public class RpcTransport {
+
+  public static final int DEFAULT_WORKER_COUNT = 8;
+
+  static int workerCount = DEFAULT_WORKER_COUNT;
+  static boolean nativeTransport = false;
+  static boolean pooledBuffers = true;
+  static RpcTransport instance;
+
+  final EventLoopGroup group;
+  final Class<? extends SocketChannel> channelClass;
+  final ByteBufAllocator allocator;
+  final Timer timer;
+  final int workers;
+  int references;
+
+  public static final Log LOG = LogFactory.getLog(RpcTransport.class);
+
+  RpcTransport(int workers, boolean nativeTransport, boolean pooledBuffers) {
+    this.workers = workers;
+    DefaultThreadFactory threads = new DefaultThreadFactory("nfs-rpc-worker", true);
+    if (nativeTransport && Epoll.isAvailable()) {
+      group = new EpollEventLoopGroup(workers, threads);
+      channelClass = EpollSocketChannel.class;
+    } else {
+      if (nativeTransport) {
+        LOG.info("RPC: native transport is not available, using NIO: "
+            + Epoll.unavailabilityCause());
+      }
+      group = new NioEventLoopGroup(workers, threads);
+      channelClass = NioSocketChannel.class;
+    }
+    allocator = pooledBuffers ? PooledByteBufAllocator.DEFAULT : new UnpooledByteBufAllocator(false);
+    timer = new HashedWheelTimer(new DefaultThreadFactory("nfs-rpc-timer", true));
+  }
+
+  /**
+   * Set the number of I/O worker threads. Like the other settings here, it only takes effect when
+   * the transport is next started, clients that are already open keep the threads they share.
+   */
+  public static synchronized void setWorkerCount(int workers) {
+    workerCount = Math.max(1, workers);
+    if (instance != null && instance.workers != workerCount) {
+      LOG.debug("RPC: transport already running with " + instance.workers
+          + " worker(s), new count applies after it is released");
+    }
+  }
+
+  public static synchronized int getWorkerCount() {
+    return workerCount;
+  }
+
+  /**
+   * Use the native epoll transport on Linux when its library can be loaded.
+   */
+  public static synchronized void setNativeTransport(boolean enabled) {
+    nativeTransport = enabled;
+  }
+
+  public static synchronized boolean getNativeTransport() {
+    return nativeTransport;
+  }
+
+  /**
+   * Read frames into pooled direct buffers, or allocate a new buffer for every read when disabled.
+   */
+  public static synchronized void setPooledBuffers(boolean enabled) {
+    pooledBuffers = enabled;
+  }
+
+  public static synchronized boolean getPooledBuffers() {
+    return pooledBuffers;
+  }
+
+  public static synchronized RpcTransport acquire() {
+    if (instance == null) {
+      instance = new RpcTransport(workerCount, nativeTransport, pooledBuffers);
+      LOG.debug("RPC: started shared transport with " + workerCount + " worker(s) on "
+          + instance.channelClass.getSimpleName());
+    }
+    instance.references++;
+    return instance;
+  }
+
+  /**
+   * Must not be called from an I/O thread or from a timer task.
+   */
+  public void release() {
+    synchronized (RpcTransport.class) {
+      if (references <= 0) {
+        throw new IllegalStateException("RPC: transport released more often than acquired");
+      }
+      if (--references > 0) {
+        return;
+      }
+      if (instance == this) {
+        instance = null;
+      }
+    }
+    timer.stop();
+    group.shutdownGracefully(0, 0, TimeUnit.MILLISECONDS).syncUninterruptibly();
+    LOG.debug("RPC: stopped shared transport");
+  }
+
+  public EventLoopGroup getGroup() {
+    return group;
+  }
+
+  public Class<? extends SocketChannel> getChannelClass() {
+    return channelClass;
+  }
+
+  public ByteBufAllocator getAllocator() {
+    return allocator;
+  }
+
+  public Timer getTimer() {
+    return timer;
+  }
+
+  public int getWorkers() {
+    return workers;
+  }
+
+  public int getReferences() {
+    synchronized (RpcTransport.class) {
+      return references;
+    }
+  }
+
+}
@@ -15,7 +15,6 @@
 package org.apache.hadoop.fs.nfs.stream;
 
 import java.io.IOException;
-import java.util.concurrent.Callable;
 
 import org.apache.hadoop.fs.nfs.NFSv3FileSystemStore;
 import org.apache.hadoop.nfs.nfs3.FileHandle;
@@ -23,7 +22,11 @@ import org.apache.hadoop.nfs.nfs3.Nfs3Status;
 import org.apache.hadoop.nfs.nfs3.response.COMMIT3Response;
 import org.apache.hadoop.oncrpc.security.Credentials;
 
-public class Commit implements Callable<Commit> {
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class Commit {
 
   final NFSv3FileSystemStore store;
   final FileHandle handle;
@@ -35,9 +38,18 @@ public class Commit implements Callable<Commit> {
     this.credentials = credentials;
   }
   
-  @Override
-  public Commit call() throws Exception {
-    COMMIT3Response response = store.commit(handle, 0L, 0, credentials);
+  public ListenableFuture<Commit> start() {
+    ListenableFuture<COMMIT3Response> future = store.commitAsync(handle, 0L, 0, credentials);
+    // Only checks the status, cheap enough for the RPC I/O thread that completes the call
+    return Futures.transform(future, new AsyncFunction<COMMIT3Response, Commit>() {
+      @Override
+      public ListenableFuture<Commit> apply(COMMIT3Response response) throws Exception {
+        return Futures.immediateFuture(complete(response));
+      }
+    });
+  }
+  
+  Commit complete(COMMIT3Response response) throws IOException {
     int status = response.getStatus();
     if (status != Nfs3Status.NFS3_OK) {
       throw new IOException("Commit error: status=" + status);
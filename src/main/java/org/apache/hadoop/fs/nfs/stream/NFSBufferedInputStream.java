@@ -21,11 +21,7 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -35,10 +31,10 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.nfs.NFSv3Attributes;
 import org.apache.hadoop.fs.nfs.NFSv3FileSystemStore;
 import org.apache.hadoop.fs.nfs.StreamStatistics;
 import org.apache.hadoop.nfs.nfs3.FileHandle;
-import org.apache.hadoop.nfs.nfs3.Nfs3FileAttributes;
 import org.apache.hadoop.oncrpc.security.Credentials;
 
 public class NFSBufferedInputStream extends FSInputStream {
@@ -58,7 +54,6 @@ public class NFSBufferedInputStream extends FSInputStream {
   final StreamStatistics statistics;
   final boolean doPrefetch;
   final AtomicBoolean closed;
-  final ExecutorService executors;
   final Map<Long, Future<Read>> ongoing;
   final Map<Long, StreamBlock> cache;
 
@@ -66,7 +61,6 @@ public class NFSBufferedInputStream extends FSInputStream {
 
   public static final int DEFAULT_CACHE_SIZE_IN_BLOCKS = 1024;
 
-  public static final int MAX_PREFETCH_POOL_SIZE = 256;
   public static final int DEFAULT_PREFETCH_POOL_SIZE = 4;
   public static final boolean DEFAULT_PREFETCH_ENABLED = true;
 
@@ -98,12 +92,10 @@ public class NFSBufferedInputStream extends FSInputStream {
     this.statistics
     = new StreamStatistics(NFSBufferedInputStream.class + pathString, streamId.getAndIncrement(),
         true);
-    this.executors = new ThreadPoolExecutor(DEFAULT_PREFETCH_POOL_SIZE, MAX_PREFETCH_POOL_SIZE, 5, TimeUnit.SECONDS,
-        new LinkedBlockingDeque<Runnable>(1024), new ThreadPoolExecutor.CallerRunsPolicy());
 
     // Keep track of the file length at file open
     // NOTE: The file does not get modified while this stream is open
-    Nfs3FileAttributes attributes = store.getFileAttributes(handle, credentials);
+    NFSv3Attributes attributes = store.getFileAttributes(handle, credentials, new NFSv3Attributes());
     if (attributes != null) {
       this.fileLength = attributes.getSize();
       this.prefetchBlockLimit = (long) (Math.min(fileLength, splitSize) >> readBlockSizeBits);
@@ -249,7 +241,7 @@ public class NFSBufferedInputStream extends FSInputStream {
           cache.put(bid, block);
 
           Read task = new Read(store, handle, credentials, statistics, bid, block);
-          Future<Read> future = executors.submit(task);
+          Future<Read> future = task.start();
           ongoing.put(bid, future);
         }
       }
@@ -310,7 +302,7 @@ public class NFSBufferedInputStream extends FSInputStream {
       cache.put(blockId, block);
 
       Read task = new Read(store, handle, credentials, statistics, blockId, block);
-      Future<Read> future = executors.submit(task);
+      Future<Read> future = task.start();
       while (true) {
         try {
           future.get();
@@ -335,14 +327,9 @@ public class NFSBufferedInputStream extends FSInputStream {
     }
     closed.set(true);
 
-    // Shutdown the thread pool
+    // Prefetches still in flight complete on their own, nothing waits for them
     if (first) {
-      executors.shutdown();
-      try {
-        executors.awaitTermination(1, TimeUnit.SECONDS);
-      } catch (InterruptedException exception) {
-        // Ignore
-      }
+      ongoing.clear();
     }
 
     LOG.info(statistics);
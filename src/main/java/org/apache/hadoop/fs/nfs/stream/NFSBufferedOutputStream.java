@@ -20,11 +20,7 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -32,10 +28,10 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.nfs.NFSv3Attributes;
 import org.apache.hadoop.fs.nfs.NFSv3FileSystemStore;
 import org.apache.hadoop.fs.nfs.StreamStatistics;
 import org.apache.hadoop.nfs.nfs3.FileHandle;
-import org.apache.hadoop.nfs.nfs3.Nfs3FileAttributes;
 import org.apache.hadoop.oncrpc.security.Credentials;
 
 public class NFSBufferedOutputStream extends OutputStream {
@@ -48,14 +44,12 @@ public class NFSBufferedOutputStream extends OutputStream {
   final NFSv3FileSystemStore store;
   final AtomicBoolean closed;
   final int blockSizeBits;
-  final ExecutorService executors;
   final List<Future<Write>> ongoing;
 
   long fileOffset;
   StreamBlock currentBlock;
 
-  private static final int MAX_WRITEBACK_POOL_SIZE = 256;
-  private static final int DEFAULT_WRITEBACK_POOL_SIZE = 4;
+  private static final int MAX_ONGOING_WRITES = 64;
 
   static final AtomicInteger streamId;
 
@@ -82,15 +76,12 @@ public class NFSBufferedOutputStream extends OutputStream {
 
     assert (blockSizeBits >= 0 && blockSizeBits <= 22);
 
-    // Create the task queues
-    executors =
-        new ThreadPoolExecutor(DEFAULT_WRITEBACK_POOL_SIZE, MAX_WRITEBACK_POOL_SIZE, 5, TimeUnit.SECONDS,
-            new LinkedBlockingDeque<Runnable>(1024), new ThreadPoolExecutor.CallerRunsPolicy());
+    // Writes in flight
     ongoing = new LinkedList<>();
 
     // Set file offset to 0 or file length
     if (append) {
-      Nfs3FileAttributes attributes = store.getFileAttributes(handle, credentials);
+      NFSv3Attributes attributes = store.getFileAttributes(handle, credentials, new NFSv3Attributes());
       if (attributes != null) {
         fileOffset = attributes.getSize();
         LOG.info("Appending to file so starting at offset = " + fileOffset);
@@ -194,9 +185,10 @@ public class NFSBufferedOutputStream extends OutputStream {
         flushBlock(currentBlock);
       }
 
-      // Commit all outstanding changes
+      // Wait for the writes to land, then commit all outstanding changes
+      waitOngoing(0);
       Commit commit = new Commit(this, store, handle, credentials, 0L, 0);
-      Future<Commit> future = executors.submit(commit);
+      Future<Commit> future = commit.start();
       while (true) {
         try {
           future.get();
@@ -207,7 +199,7 @@ public class NFSBufferedOutputStream extends OutputStream {
         }
       }
     } catch (Exception exception) {
-      throw new IOException("Could not flush stream");
+      throw new IOException("Could not flush stream", exception);
     }
   }
 
@@ -223,15 +215,9 @@ public class NFSBufferedOutputStream extends OutputStream {
     }
     closed.set(true);
 
-    // Shutdown the thread pool
+    // Write back and commit everything
     if (first) {
       flush();
-      executors.shutdown();
-      try {
-        executors.awaitTermination(60, TimeUnit.SECONDS);
-      } catch (InterruptedException exception) {
-        // Ignore
-      }
     }
 
     LOG.info(statistics);
@@ -252,32 +238,30 @@ public class NFSBufferedOutputStream extends OutputStream {
     }
   }
 
-  private void checkOngoing() throws IOException {
-    if (ongoing.size() >= 64) {
-      for (Iterator<Future<Write>> iter = ongoing.iterator(); iter.hasNext();) {
-        Future<Write> f = iter.next();
-        if (!f.isDone()) {
-          try {
-            f.get();
-            iter.remove();
-          } catch (InterruptedException interrupted) {
-            // Ignore
-          } catch (ExecutionException execution) {
-            throw new IOException("Write back call failed", execution);
-          }
+  private void waitOngoing(int limit) throws IOException {
+    for (Iterator<Future<Write>> iter = ongoing.iterator(); iter.hasNext() && ongoing.size() > limit;) {
+      Future<Write> f = iter.next();
+      while (true) {
+        try {
+          f.get();
+          iter.remove();
+          break;
+        } catch (InterruptedException interrupted) {
+          continue;
+        } catch (ExecutionException execution) {
+          throw new IOException("Write back call failed", execution);
         }
       }
     }
   }
 
   private void flushBlock(StreamBlock block) throws IOException {
-    // Check ongoing
-    checkOngoing();
+    // Bound the number of writes in flight
+    waitOngoing(MAX_ONGOING_WRITES - 1);
 
-    // Submit new task
+    // Issue the write
     Write call = new Write(store, handle, credentials, statistics, block.getBlockId(), currentBlock);
-    Future<Write> future = executors.submit(call);
-    ongoing.add(future);
+    ongoing.add(call.start());
   }
 
 }
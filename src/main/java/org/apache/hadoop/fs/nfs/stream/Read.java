@@ -14,17 +14,29 @@
 
 package org.apache.hadoop.fs.nfs.stream;
 
-import java.util.concurrent.Callable;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.hadoop.fs.nfs.NFSv3FileSystemStore;
 import org.apache.hadoop.fs.nfs.StreamStatistics;
 import org.apache.hadoop.fs.nfs.rpc.RpcException;
 import org.apache.hadoop.nfs.nfs3.FileHandle;
 import org.apache.hadoop.nfs.nfs3.Nfs3Status;
-import org.apache.hadoop.nfs.nfs3.response.READ3Response;
+import org.apache.hadoop.nfs.nfs3.Nfs3ReadReply;
 import org.apache.hadoop.oncrpc.security.Credentials;
 
-public class Read implements Callable<Read> {
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+public class Read {
+
+  /* Blocks are copied out of their replies here rather than on the RPC I/O threads */
+  static final ExecutorService copiers = Executors.newFixedThreadPool(
+      Runtime.getRuntime().availableProcessors(),
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("nfs-read-copy-%d").build());
 
   final NFSv3FileSystemStore store;
   final FileHandle handle;
@@ -43,13 +55,26 @@ public class Read implements Callable<Read> {
     this.block = block;
   }
 
-  @Override
-  public Read call() throws Exception {
-    long startTime = System.currentTimeMillis(), stopTime;
+  public ListenableFuture<Read> start() {
+    final long startTime = System.currentTimeMillis();
     long readOffset = (blockId << block.getBlockSizeBits());
 
-    READ3Response read3Response =
-        store.read(handle, readOffset, block.getBlockSize(), credentials);
+    ListenableFuture<Nfs3ReadReply> future =
+        store.readAsync(handle, readOffset, block.getBlockSize(), credentials);
+    return Futures.transform(future, new AsyncFunction<Nfs3ReadReply, Read>() {
+      @Override
+      public ListenableFuture<Read> apply(Nfs3ReadReply read3Response) throws Exception {
+        try {
+          return Futures.immediateFuture(complete(read3Response, startTime));
+        } finally {
+          read3Response.release();
+        }
+      }
+    }, copiers);
+  }
+
+  Read complete(Nfs3ReadReply read3Response, long startTime) throws RpcException, IOException {
+    long stopTime;
     int status = read3Response.getStatus();
     if (status != Nfs3Status.NFS3_OK) {
       throw new RpcException("NFS_READ error: status=" + status);
@@ -62,8 +87,9 @@ public class Read implements Callable<Read> {
       }
     }
 
+    // The only copy of the data, straight from the network buffer into the block
     if (readBytes > 0) {
-      block.writeToBlock(read3Response.getData().array(), 0, 0, readBytes);
+      readBytes = block.writeToBlock(read3Response.getData(), 0, readBytes);
     }
     stopTime = System.currentTimeMillis();
 
@@ -21,6 +21,8 @@ import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import io.netty.buffer.ByteBuf;
+
 public class StreamBlock {
 
   private long id;
@@ -140,6 +142,26 @@ public class StreamBlock {
     return length;
   }
 
+  public synchronized int writeToBlock(ByteBuf buffer, int offsetInBlock, int lengthToWrite)
+      throws IOException {
+    int length = Math.min(Math.min(lengthToWrite, buffer.readableBytes()), getBlockSize() - offsetInBlock);
+
+    // Check for errors
+    if (length < 0) {
+      throw new IOException("Cannot write zero or less bytes");
+    }
+    if (offsetInBlock < 0 || offsetInBlock >= getBlockSize()) {
+      throw new IOException("Block offset is not within bounds");
+    }
+
+    // Copy the data
+    buffer.getBytes(buffer.readerIndex(), array, offsetInBlock, length);
+    startOffset = Math.min(offsetInBlock, startOffset);
+    dataLength = offsetInBlock + length - startOffset;
+
+    return length;
+  }
+
   public synchronized int getBlockSizeBits() {
     return blockSizeBits;
   }
@@ -15,7 +15,6 @@
 package org.apache.hadoop.fs.nfs.stream;
 
 import java.io.IOException;
-import java.util.concurrent.Callable;
 
 import org.apache.hadoop.fs.nfs.NFSv3FileSystemStore;
 import org.apache.hadoop.fs.nfs.StreamStatistics;
@@ -25,7 +24,14 @@ import org.apache.hadoop.nfs.nfs3.Nfs3Constant.WriteStableHow;
 import org.apache.hadoop.nfs.nfs3.response.WRITE3Response;
 import org.apache.hadoop.oncrpc.security.Credentials;
 
-public class Write implements Callable<Write> {
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class Write {
 
   final NFSv3FileSystemStore store;
   final FileHandle handle;
@@ -43,15 +49,25 @@ public class Write implements Callable<Write> {
     this.block = block;
   }
   
-  @Override
-  public Write call() throws Exception {
-    long startTime = System.currentTimeMillis();
+  public ListenableFuture<Write> start() {
+    final long startTime = System.currentTimeMillis();
     
     long writeOffset = (blockId << block.getBlockSizeBits()) + block.getDataStartOffset();
-    byte buffer[] = new byte[block.getDataLength()];
-    System.arraycopy(block.array(), block.getDataStartOffset(), buffer, 0, block.getDataLength());
     
-    WRITE3Response response = store.write(handle, writeOffset, block.getDataLength(), WriteStableHow.UNSTABLE, buffer, credentials);
+    // The RPC client copies the block contents straight into the direct buffer of the call
+    ByteBuf buffer = Unpooled.wrappedBuffer(block.array(), block.getDataStartOffset(), block.getDataLength());
+    
+    ListenableFuture<WRITE3Response> future = store.writeAsync(handle, writeOffset, block.getDataLength(), WriteStableHow.UNSTABLE, buffer, credentials);
+    // Only checks the status, cheap enough for the RPC I/O thread that completes the call
+    return Futures.transform(future, new AsyncFunction<WRITE3Response, Write>() {
+      @Override
+      public ListenableFuture<Write> apply(WRITE3Response response) throws Exception {
+        return Futures.immediateFuture(complete(response, startTime));
+      }
+    });
+  }
+  
+  Write complete(WRITE3Response response, long startTime) throws IOException {
     int status = response.getStatus();
     if (status != Nfs3Status.NFS3_OK) {
       throw new IOException("NFS write error: status=" + status);
@@ -0,0 +1,98 @@
+/**
+ * Copyright 2014 NetApp Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.nfs.topology;
+
+/**
+ * Liveness and NULL latency of one endpoint. An endpoint goes down after a number of failures in a
+ * row and comes back up with the first success.
+ */
+public class EndpointHealth {
+
+    final Endpoint endpoint;
+    final int maxFailures;
+
+    boolean up;
+    int failures;
+    long latencyUs;
+    long smoothedLatencyUs;
+    long lastChange;
+
+    public EndpointHealth(Endpoint endpoint, int maxFailures) {
+        this.endpoint = endpoint;
+        this.maxFailures = Math.max(1, maxFailures);
+        this.up = true;
+        this.lastChange = System.currentTimeMillis();
+    }
+
+    public Endpoint getEndpoint() {
+        return endpoint;
+    }
+
+    public synchronized boolean isUp() {
+        return up;
+    }
+
+    /* Down long enough that it is worth trying again even without a probe */
+    public synchronized boolean isRetryable(long intervalMs) {
+        return up || System.currentTimeMillis() - lastChange >= intervalMs;
+    }
+
+    public synchronized void success(long latencyUs) {
+        this.latencyUs = latencyUs;
+        smoothedLatencyUs = (smoothedLatencyUs == 0) ? latencyUs : smoothedLatencyUs + (latencyUs - smoothedLatencyUs) / 8;
+        failures = 0;
+        if (!up) {
+            up = true;
+            lastChange = System.currentTimeMillis();
+        }
+    }
+
+    /* Returns true if this failure took the endpoint down */
+    public synchronized boolean failure() {
+        if (++failures >= maxFailures && up) {
+            up = false;
+            lastChange = System.currentTimeMillis();
+            return true;
+        }
+        if (!up) {
+            lastChange = System.currentTimeMillis();
+        }
+        return false;
+    }
+
+    public synchronized void markDown() {
+        failures = Math.max(failures, maxFailures);
+        up = false;
+        lastChange = System.currentTimeMillis();
+    }
+
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    public synchronized long getLatencyUs() {
+        return latencyUs;
+    }
+
+    public synchronized long getSmoothedLatencyUs() {
+        return smoothedLatencyUs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return endpoint + (up ? " up" : " down") + " failures=" + failures + " latency=" + smoothedLatencyUs + "us";
+    }
+
+}
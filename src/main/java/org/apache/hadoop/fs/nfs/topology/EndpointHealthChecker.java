@@ -0,0 +1,175 @@
+/**
+ * Copyright 2014 NetApp Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.nfs.topology;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.nfs.NFSv3FileSystemStore;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Pings the endpoint of every open store with NULL at a fixed interval and keeps the health of
+ * each endpoint. A probe without a reply within the interval counts as a failure, and no new probe
+ * is sent to an endpoint until its last one has completed. All checkers share one daemon thread.
+ */
+public class EndpointHealthChecker {
+
+    public static final int DEFAULT_INTERVAL_MS = 5000;
+    public static final int DEFAULT_FAILURES = 2;
+
+    static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("nfs-health-%d").build());
+
+    /* An outstanding NULL call, counted once as a failure whether it times out or fails */
+    static class Probe {
+        final ListenableFuture<Void> future;
+        final long start;
+        final AtomicBoolean counted;
+
+        Probe(ListenableFuture<Void> future, long start) {
+            this.future = future;
+            this.start = start;
+            this.counted = new AtomicBoolean(false);
+        }
+    }
+
+    final SimpleTopologyRouter router;
+    final int intervalMs;
+    final int maxFailures;
+    final ConcurrentMap<Endpoint, EndpointHealth> health;
+    final ConcurrentMap<Endpoint, Probe> probes;
+    ScheduledFuture<?> task;
+
+    public final static Log LOG = LogFactory.getLog(EndpointHealthChecker.class);
+
+    public EndpointHealthChecker(SimpleTopologyRouter router, int intervalMs, int maxFailures) {
+        this.router = router;
+        this.intervalMs = intervalMs;
+        this.maxFailures = maxFailures;
+        this.health = new ConcurrentHashMap<>();
+        this.probes = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Start probing, unless the interval is not positive.
+     */
+    public synchronized void start() {
+        if (task == null && intervalMs > 0) {
+            task = executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        check();
+                    } catch (Exception exception) {
+                        LOG.warn("Endpoint health check failed", exception);
+                    }
+                }
+            }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    public int getIntervalMs() {
+        return intervalMs;
+    }
+
+    public EndpointHealth getHealth(Endpoint ep) {
+        EndpointHealth found = health.get(ep);
+        if (found == null) {
+            EndpointHealth created = new EndpointHealth(ep, maxFailures);
+            found = health.putIfAbsent(ep, created);
+            if (found == null) {
+                found = created;
+            }
+        }
+        return found;
+    }
+
+    /* Usable now, or down for long enough to try again */
+    public boolean isUsable(Endpoint ep) {
+        return getHealth(ep).isRetryable(intervalMs > 0 ? intervalMs : DEFAULT_INTERVAL_MS);
+    }
+
+    void check() {
+        for (Map.Entry<Endpoint, NFSv3FileSystemStore> entry : router.getStoreMap().entrySet()) {
+            probe(entry.getKey(), entry.getValue());
+        }
+    }
+
+    void probe(Endpoint ep, NFSv3FileSystemStore store) {
+        final EndpointHealth endpointHealth = getHealth(ep);
+        Probe last = probes.get(ep);
+        if (last != null && !last.future.isDone()) {
+            if ((System.nanoTime() - last.start) / 1000000 >= intervalMs && last.counted.compareAndSet(false, true)) {
+                failed(endpointHealth, "no reply to NULL within " + intervalMs + " ms");
+            }
+            return;
+        }
+
+        // Never wait for a slot here, this thread probes every endpoint of every router. A store
+        // with no free slot is busy enough that its calls show whether it is up.
+        ListenableFuture<Void> future = store.tryNullOpAsync();
+        if (future == null) {
+            return;
+        }
+        final Probe probe = new Probe(future, System.nanoTime());
+        probes.put(ep, probe);
+        Futures.addCallback(probe.future, new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                boolean wasUp = endpointHealth.isUp();
+                endpointHealth.success((System.nanoTime() - probe.start) / 1000);
+                if (!wasUp) {
+                    LOG.info("Endpoint is back up: " + endpointHealth);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable cause) {
+                if (probe.counted.compareAndSet(false, true)) {
+                    failed(endpointHealth, String.valueOf(cause));
+                }
+            }
+        });
+    }
+
+    void failed(EndpointHealth endpointHealth, String reason) {
+        if (endpointHealth.failure()) {
+            LOG.warn("Endpoint is down (" + reason + "): " + endpointHealth);
+        } else {
+            LOG.debug("Endpoint probe failed (" + reason + "): " + endpointHealth);
+        }
+    }
+
+}
@@ -17,7 +17,12 @@ import java.io.IOException;
 
 import com.google.gson.annotations.Expose;
 
+import org.apache.hadoop.fs.nfs.AttributeCache;
+import org.apache.hadoop.fs.nfs.HandleCache;
+import org.apache.hadoop.fs.nfs.NegativeLookupCache;
 import org.apache.hadoop.fs.nfs.NFSv3FileSystem;
+import org.apache.hadoop.fs.nfs.rpc.RpcClient;
+import org.apache.hadoop.fs.nfs.rpc.RpcSlotTable;
 
 
 public class NamespaceOptions {
@@ -54,6 +59,42 @@ public class NamespaceOptions {
     int    nfsRpcbindPort;
     @Expose
     String nfsAuthFile;
+    @Expose
+    int    nfsConnections;
+    @Expose
+    boolean nfsMetadataConnection;
+    @Expose
+    int    nfsMaxSlots;
+    @Expose
+    long   nfsMaxSlotBytes;
+    @Expose
+    boolean nfsAdaptiveSlots;
+    @Expose
+    int    nfsRpcDeadlineMs;
+    @Expose
+    int    nfsHealthCheckIntervalMs;
+    @Expose
+    int    nfsHealthCheckFailures;
+    @Expose
+    int    nfsAcRegMinMs;
+    @Expose
+    int    nfsAcRegMaxMs;
+    @Expose
+    int    nfsAcDirMinMs;
+    @Expose
+    int    nfsAcDirMaxMs;
+    @Expose
+    int    nfsAttributeCacheSize;
+    @Expose
+    int    nfsNegativeLookupTtlMs;
+    @Expose
+    int    nfsNegativeLookupCacheSize;
+    @Expose
+    int    nfsHandleTrustMs;
+    @Expose
+    long   nfsHandleCacheBytes;
+    @Expose
+    String nfsSnapshotFile;
     
     UserGroupAuthentication auth;
     
@@ -77,6 +118,23 @@ public class NamespaceOptions {
         setNfsPort(NFSv3FileSystem.DEFAULT_NFS_PORT);
         setNfsMountPort(INVALID_PORT);
         setNfsRpcbindPort(111);
+        setNfsConnections(NFSv3FileSystem.DEFAULT_NFS_CONNECTIONS);
+        setNfsMetadataConnection(true);
+        setNfsMaxSlots(RpcSlotTable.DEFAULT_MAX_SLOTS);
+        setNfsMaxSlotBytes(RpcSlotTable.DEFAULT_MAX_BYTES);
+        setNfsAdaptiveSlots(false);
+        setNfsRpcDeadlineMs(RpcClient.DEFAULT_DEADLINE_MS);
+        setNfsHealthCheckIntervalMs(EndpointHealthChecker.DEFAULT_INTERVAL_MS);
+        setNfsHealthCheckFailures(EndpointHealthChecker.DEFAULT_FAILURES);
+        setNfsAcRegMinMs(AttributeCache.DEFAULT_REG_MIN_MS);
+        setNfsAcRegMaxMs(AttributeCache.DEFAULT_REG_MAX_MS);
+        setNfsAcDirMinMs(AttributeCache.DEFAULT_DIR_MIN_MS);
+        setNfsAcDirMaxMs(AttributeCache.DEFAULT_DIR_MAX_MS);
+        setNfsAttributeCacheSize(AttributeCache.DEFAULT_SIZE);
+        setNfsNegativeLookupTtlMs(NegativeLookupCache.DEFAULT_TTL_MS);
+        setNfsNegativeLookupCacheSize(NegativeLookupCache.DEFAULT_SIZE);
+        setNfsHandleTrustMs(HandleCache.DEFAULT_TRUST_MS);
+        setNfsHandleCacheBytes(HandleCache.DEFAULT_BUDGET_BYTES);
         setNfsAuthScheme("AUTH_NONE");
     }
     
@@ -143,6 +201,78 @@ public class NamespaceOptions {
     public String getNfsAuthFile() {
         return nfsAuthFile;
     }
+
+    public int getNfsConnections() {
+        return nfsConnections;
+    }
+
+    public boolean getNfsMetadataConnection() {
+        return nfsMetadataConnection;
+    }
+
+    public int getNfsMaxSlots() {
+        return nfsMaxSlots;
+    }
+
+    public long getNfsMaxSlotBytes() {
+        return nfsMaxSlotBytes;
+    }
+
+    public boolean getNfsAdaptiveSlots() {
+        return nfsAdaptiveSlots;
+    }
+
+    public int getNfsRpcDeadlineMs() {
+        return nfsRpcDeadlineMs;
+    }
+
+    public int getNfsHealthCheckIntervalMs() {
+        return nfsHealthCheckIntervalMs;
+    }
+
+    public int getNfsHealthCheckFailures() {
+        return nfsHealthCheckFailures;
+    }
+
+    public int getNfsAcRegMinMs() {
+        return nfsAcRegMinMs;
+    }
+
+    public int getNfsAcRegMaxMs() {
+        return nfsAcRegMaxMs;
+    }
+
+    public int getNfsAcDirMinMs() {
+        return nfsAcDirMinMs;
+    }
+
+    public int getNfsAcDirMaxMs() {
+        return nfsAcDirMaxMs;
+    }
+
+    public int getNfsAttributeCacheSize() {
+        return nfsAttributeCacheSize;
+    }
+
+    public int getNfsNegativeLookupTtlMs() {
+        return nfsNegativeLookupTtlMs;
+    }
+
+    public int getNfsNegativeLookupCacheSize() {
+        return nfsNegativeLookupCacheSize;
+    }
+
+    public int getNfsHandleTrustMs() {
+        return nfsHandleTrustMs;
+    }
+
+    public long getNfsHandleCacheBytes() {
+        return nfsHandleCacheBytes;
+    }
+
+    public String getNfsSnapshotFile() {
+        return nfsSnapshotFile;
+    }
     
     public String getUserNameFromUserId(String userid) {
         return auth.getUserNameFromUserId(userid);
@@ -216,6 +346,78 @@ public class NamespaceOptions {
         this.nfsRpcbindPort = port;
     }
     
+    public void setNfsConnections(int connections) {
+        this.nfsConnections = connections;
+    }
+
+    public void setNfsMetadataConnection(boolean metadataConnection) {
+        this.nfsMetadataConnection = metadataConnection;
+    }
+    
+    public void setNfsMaxSlots(int maxSlots) {
+        this.nfsMaxSlots = maxSlots;
+    }
+    
+    public void setNfsMaxSlotBytes(long maxSlotBytes) {
+        this.nfsMaxSlotBytes = maxSlotBytes;
+    }
+    
+    public void setNfsAdaptiveSlots(boolean adaptiveSlots) {
+        this.nfsAdaptiveSlots = adaptiveSlots;
+    }
+    
+    public void setNfsRpcDeadlineMs(int deadlineMs) {
+        this.nfsRpcDeadlineMs = deadlineMs;
+    }
+    
+    public void setNfsHealthCheckIntervalMs(int intervalMs) {
+        this.nfsHealthCheckIntervalMs = intervalMs;
+    }
+    
+    public void setNfsHealthCheckFailures(int failures) {
+        this.nfsHealthCheckFailures = failures;
+    }
+    
+    public void setNfsAcRegMinMs(int acRegMinMs) {
+        this.nfsAcRegMinMs = acRegMinMs;
+    }
+    
+    public void setNfsAcRegMaxMs(int acRegMaxMs) {
+        this.nfsAcRegMaxMs = acRegMaxMs;
+    }
+    
+    public void setNfsAcDirMinMs(int acDirMinMs) {
+        this.nfsAcDirMinMs = acDirMinMs;
+    }
+    
+    public void setNfsAcDirMaxMs(int acDirMaxMs) {
+        this.nfsAcDirMaxMs = acDirMaxMs;
+    }
+    
+    public void setNfsAttributeCacheSize(int attributeCacheSize) {
+        this.nfsAttributeCacheSize = attributeCacheSize;
+    }
+    
+    public void setNfsNegativeLookupTtlMs(int negativeLookupTtlMs) {
+        this.nfsNegativeLookupTtlMs = negativeLookupTtlMs;
+    }
+    
+    public void setNfsNegativeLookupCacheSize(int negativeLookupCacheSize) {
+        this.nfsNegativeLookupCacheSize = negativeLookupCacheSize;
+    }
+    
+    public void setNfsHandleTrustMs(int handleTrustMs) {
+        this.nfsHandleTrustMs = handleTrustMs;
+    }
+    
+    public void setNfsHandleCacheBytes(long handleCacheBytes) {
+        this.nfsHandleCacheBytes = handleCacheBytes;
+    }
+    
+    public void setNfsSnapshotFile(String snapshotFile) {
+        this.nfsSnapshotFile = snapshotFile;
+    }
+    
     public boolean UserGroupMappingCreated() {
         return (auth != null);
     }
@@ -19,6 +19,7 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
@@ -32,6 +33,7 @@ public class SimpleTopologyRouter extends TopologyRouter {
     NFSv3FileSystem fs;
     Namespace space;
     Map<Endpoint,NFSv3FileSystemStore> stores;
+    EndpointHealthChecker checker;
     public final static Log LOG = LogFactory.getLog(SimpleTopologyRouter.class);
     
     public SimpleTopologyRouter() {
@@ -46,6 +48,9 @@ public class SimpleTopologyRouter extends TopologyRouter {
         if(!verify(space)) {
             throw new IOException("Check namespace to verify configuration");
         }
+        NamespaceOptions options = space.getConfiguration();
+        this.checker = new EndpointHealthChecker(this, options.getNfsHealthCheckIntervalMs(), options.getNfsHealthCheckFailures());
+        this.checker.start();
     }
 
     private boolean verify(Namespace ns) {
@@ -77,16 +82,78 @@ public class SimpleTopologyRouter extends TopologyRouter {
             throw new IOException("Path is null!");
         }
         
-        // Choose an endpoint using the path
+        // Choose an endpoint using the path, and fail over to another one serving the same export
         Endpoint ep = chooseEndpoint(space, p);
+        if(ep == null) {
+            throw new IOException("No endpoint for path " + p);
+        }
+        IOException failure = null;
+        for(Endpoint candidate : getCandidates(ep)) {
+            if(!checker.isUsable(candidate)) {
+                continue;
+            }
+            try {
+                return getOrCreateStore(candidate);
+            } catch(IOException exception) {
+                LOG.warn("Could not open store for " + candidate + ": " + exception.getMessage());
+                checker.getHealth(candidate).markDown();
+                failure = exception;
+            }
+        }
+        
+        // Every candidate is down, so keep trying the chosen one
+        if(stores.containsKey(ep) || failure == null) {
+            return getOrCreateStore(ep);
+        }
+        throw failure;
+    }
+    
+    /* The chosen endpoint first, then the others with the same path and export */
+    List<Endpoint> getCandidates(Endpoint ep) {
+        List<Endpoint> candidates = new LinkedList<>();
+        candidates.add(ep);
+        if(space.getEndpoints() != null) {
+            for(Endpoint other : space.getEndpoints()) {
+                if(!other.equals(ep) && Objects.equals(other.getPath(), ep.getPath())
+                        && Objects.equals(other.getExportPath(), ep.getExportPath())) {
+                    candidates.add(other);
+                }
+            }
+        }
+        return candidates;
+    }
+    
+    private NFSv3FileSystemStore getOrCreateStore(Endpoint ep) throws IOException {
         if(!stores.containsKey(ep)) {
-            NFSv3FileSystemStore store = new NFSv3FileSystemStore(fs, space, ep);
-            store.initialize();
+            // A store on an endpoint serving the same export can lend its root handle
+            NFSv3FileSystemStore peer = null;
+            for(Map.Entry<Endpoint,NFSv3FileSystemStore> entry : stores.entrySet()) {
+                if(Objects.equals(entry.getKey().getPath(), ep.getPath())
+                        && Objects.equals(entry.getKey().getExportPath(), ep.getExportPath())) {
+                    peer = entry.getValue();
+                    break;
+                }
+            }
+            NFSv3FileSystemStore store = new NFSv3FileSystemStore(fs, space, ep, peer);
+            try {
+                store.initialize();
+            } catch(IOException exception) {
+                store.shutdown();
+                throw exception;
+            }
             stores.put(ep, store);
         }
         return stores.get(ep);
     }
     
+    synchronized Map<Endpoint,NFSv3FileSystemStore> getStoreMap() {
+        return new HashMap<>(stores);
+    }
+    
+    public EndpointHealth getHealth(Endpoint ep) {
+        return checker.getHealth(ep);
+    }
+    
     @Override    
     public synchronized Endpoint chooseEndpoint(Namespace space, Path p) throws IOException {
         List<Endpoint> endpoints = space.getEndpoints();
@@ -126,4 +193,11 @@ public class SimpleTopologyRouter extends TopologyRouter {
         return new LinkedList<>(stores.values());
     }
     
+    @Override
+    public synchronized void shutdown() throws IOException {
+        if(checker != null) {
+            checker.stop();
+        }
+    }
+    
 }
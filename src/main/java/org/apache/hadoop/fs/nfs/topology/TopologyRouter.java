@@ -37,4 +37,7 @@ public abstract class TopologyRouter {
 
     public abstract List<NFSv3FileSystemStore> getAllStores() throws IOException;
     
+    /* Stop the background work of the router, once the filesystem is closed */
+    public abstract void shutdown() throws IOException;
+    
 }
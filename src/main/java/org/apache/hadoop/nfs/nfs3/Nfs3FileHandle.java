@@ -14,13 +14,14 @@
 
 package org.apache.hadoop.nfs.nfs3;
 
-import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.oncrpc.XDR;
 
+import io.netty.buffer.ByteBuf;
+
 public class Nfs3FileHandle extends FileHandle {
   
   @SuppressWarnings("unused")
@@ -29,6 +30,7 @@ public class Nfs3FileHandle extends FileHandle {
   private static final int HANDLE_LEN = 32;
   private byte[] handle; // Opaque handle
   private long fileId = -1;
+  private int hash; // Arrays.hashCode(handle), 0 until computed
 
   public Nfs3FileHandle() {
     handle = null;
@@ -50,6 +52,12 @@ public class Nfs3FileHandle extends FileHandle {
     }
   }
   
+  /* Takes over the array, which must not change afterwards */
+  public Nfs3FileHandle(byte[] handle) {
+    this.handle = handle;
+    this.fileId = bytesToLong(handle);
+  }
+  
   public Nfs3FileHandle(String s) {
     throw new UnsupportedOperationException("Constructor is only valid for HDFS and this is the NFS driver");
   }
@@ -60,19 +68,26 @@ public class Nfs3FileHandle extends FileHandle {
     return true;
   }
 
-  private long bytesToLong(byte[] data) {
-    ByteBuffer buffer = ByteBuffer.allocate(8);
+  /* Same as serialize(XDR), without copying the handle */
+  public void serialize(ByteBuf out) {
+    out.writeInt(handle.length);
+    out.writeBytes(handle);
+    out.writeZero((4 - (handle.length & 3)) & 3);
+  }
+
+  private static long bytesToLong(byte[] data) {
+    long value = 0;
     for (int i = 0; i < 8; i++) {
-      buffer.put(data[i]);
+      value = (value << 8) | (data[i] & 0xff);
     }
-    buffer.flip();// need flip
-    return buffer.getLong();
+    return value;
   }
   
   public boolean deserialize(XDR xdr) {
     int size = xdr.readInt();
     handle = xdr.readFixedOpaque(size);
     fileId = bytesToLong(handle);
+    hash = 0;
     return true;
   }
   
@@ -116,6 +131,11 @@ public class Nfs3FileHandle extends FileHandle {
 
   @Override
   public int hashCode() {
-    return Arrays.hashCode(handle);
+    int h = hash;
+    if (h == 0 && handle != null) {
+      h = Arrays.hashCode(handle);
+      hash = h;
+    }
+    return h;
   }
 }
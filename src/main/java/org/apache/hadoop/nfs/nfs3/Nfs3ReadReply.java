@@ -0,0 +1,80 @@
+/**
+ * Copyright 2014 NetApp Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.nfs.nfs3;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * A READ3 reply whose data is left in the network buffer it arrived in. The data is a slice of
+ * that buffer, so it stays valid until {@link #release()} hands the buffer back.
+ */
+public class Nfs3ReadReply {
+  final int status;
+  final Nfs3FileAttributes postOpAttr;
+  final int count;
+  final boolean eof;
+  final ByteBuf data;
+  Closeable owner;
+
+  public Nfs3ReadReply(int status, Nfs3FileAttributes postOpAttr, int count, boolean eof,
+      ByteBuf data) {
+    this.status = status;
+    this.postOpAttr = postOpAttr;
+    this.count = count;
+    this.eof = eof;
+    this.data = data;
+  }
+
+  public int getStatus() {
+    return status;
+  }
+
+  public Nfs3FileAttributes getPostOpAttr() {
+    return postOpAttr;
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  public boolean isEof() {
+    return eof;
+  }
+
+  /* Null unless the status is NFS3_OK */
+  public ByteBuf getData() {
+    return data;
+  }
+
+  /* What holds the network buffer, closed by release() */
+  public synchronized void setOwner(Closeable owner) {
+    this.owner = owner;
+  }
+
+  public synchronized void release() {
+    if (owner != null) {
+      try {
+        owner.close();
+      } catch (IOException exception) {
+        // Nothing to clean up
+      }
+      owner = null;
+    }
+  }
+
+}
@@ -15,9 +15,42 @@
  */
 package org.apache.hadoop.fs;
 
+import java.io.IOException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.nfs.server.NfsTestServer;
+
 
 public class NFSTestOptions {
     
     public static final String NFS_TEST_OPTIONS_FILE = "nfs-test-options.xml";
+
+    private static NfsTestServer server;
+
+    /**
+     * Point the configuration at the filer in nfs-test-options.xml when there is one on the
+     * classpath, and at an in-process test server otherwise. The server is shared by every test
+     * in the JVM.
+     */
+    public static synchronized Configuration configure(Configuration conf) {
+        if (NFSTestOptions.class.getClassLoader().getResource(NFS_TEST_OPTIONS_FILE) != null) {
+            conf.addResource(NFS_TEST_OPTIONS_FILE);
+            return conf;
+        }
+        try {
+            if (server == null) {
+                server = new NfsTestServer();
+                final NfsTestServer shared = server;
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    @Override
+                    public void run() {
+                        shared.close();
+                    }
+                });
+            }
+            return server.configure(conf);
+        } catch (IOException exception) {
+            throw new RuntimeException("Could not configure the NFS test server", exception);
+        }
+    }
     
 }
@@ -25,7 +25,7 @@ public class TestNFSFileSystemContract extends FileSystemContractBaseTest {
     @Override
     protected void setUp() throws Exception {
         Configuration conf = new Configuration();
-        conf.addResource(NFSTestOptions.NFS_TEST_OPTIONS_FILE);
+        NFSTestOptions.configure(conf);
         if(conf.get("fs.defaultFS") != null) {
             fs = new NFSv3FileSystem();
             fs.initialize(new URI(conf.get("fs.defaultFS")), conf);
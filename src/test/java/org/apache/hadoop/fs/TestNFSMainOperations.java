@@ -28,7 +28,7 @@ public class TestNFSMainOperations extends FSMainOperationsBaseTest {
     @Override
     protected FileSystem createFileSystem() throws Exception {
         Configuration conf = new Configuration();
-        conf.addResource(NFSTestOptions.NFS_TEST_OPTIONS_FILE);
+        NFSTestOptions.configure(conf);
         if (conf.get("fs.defaultFS") != null) {
             FileSystem fs = new NFSv3FileSystem();
             fs.initialize(new URI(conf.get("fs.defaultFS")), conf);
@@ -26,7 +26,7 @@ public class TestNFSContractRootDir extends AbstractContractRootDirectoryTest {
         if(conf == null) {
             conf = new Configuration();
         }
-        conf.addResource(NFSTestOptions.NFS_TEST_OPTIONS_FILE);
+        NFSTestOptions.configure(conf);
         return new NFSContract(conf);
     }
     
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2015 Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.nfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.nfs.server.NfsTestServer;
+import org.apache.hadoop.fs.nfs.server.NfsTestTree;
+import org.apache.hadoop.nfs.NfsFileType;
+import org.apache.hadoop.nfs.nfs3.FileHandle;
+import org.apache.hadoop.nfs.nfs3.Nfs3FileHandle;
+import org.junit.Test;
+
+public class TestAttributeCache {
+
+    static NFSv3Attributes attributes(NfsFileType type, long size, long mtime) {
+        NFSv3Attributes attributes = new NFSv3Attributes();
+        attributes.type = type.toValue();
+        attributes.size = size;
+        attributes.mtime = mtime;
+        attributes.ctime = mtime;
+        return attributes;
+    }
+
+    @Test
+    public void testEntriesExpire() throws Exception {
+        AttributeCache cache = new AttributeCache(16, 200, 1000, 200, 1000);
+        FileHandle handle = new Nfs3FileHandle(1L);
+        NFSv3Attributes out = new NFSv3Attributes();
+
+        assertFalse(cache.get(handle, out));
+        cache.put(handle, attributes(NfsFileType.NFSREG, 10, 1));
+        assertTrue(cache.get(handle, out));
+        assertEquals(10, out.getSize());
+        Thread.sleep(300);
+        assertFalse(cache.get(handle, out));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testTimeoutGrowsWhileUnchanged() throws Exception {
+        AttributeCache cache = new AttributeCache(16, 200, 1000, 200, 1000);
+        FileHandle handle = new Nfs3FileHandle(1L);
+        NFSv3Attributes out = new NFSv3Attributes();
+
+        // Fetched again unchanged, so now trusted for 400ms
+        cache.put(handle, attributes(NfsFileType.NFSREG, 10, 1));
+        cache.put(handle, attributes(NfsFileType.NFSREG, 10, 1));
+        Thread.sleep(300);
+        assertTrue(cache.get(handle, out));
+
+        // Changed, back to 200ms
+        cache.put(handle, attributes(NfsFileType.NFSREG, 20, 2));
+        Thread.sleep(300);
+        assertFalse(cache.get(handle, out));
+    }
+
+    @Test
+    public void testInvalidateAndDisabledTypes() {
+        AttributeCache cache = new AttributeCache(16, 0, 0, 60000, 60000);
+        FileHandle file = new Nfs3FileHandle(1L);
+        FileHandle dir = new Nfs3FileHandle(2L);
+        NFSv3Attributes out = new NFSv3Attributes();
+
+        cache.put(file, attributes(NfsFileType.NFSREG, 10, 1));
+        cache.put(dir, attributes(NfsFileType.NFSDIR, 4096, 1));
+        assertFalse(cache.get(file, out));
+        assertTrue(cache.get(dir, out));
+        assertTrue(out.isDirectory());
+
+        cache.invalidate(dir);
+        assertFalse(cache.get(dir, out));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedGoesFirst() {
+        AttributeCache cache = new AttributeCache(2, 60000, 60000, 60000, 60000);
+        NFSv3Attributes out = new NFSv3Attributes();
+        for (long i = 1; i <= 2; ++i) {
+            cache.put(new Nfs3FileHandle(i), attributes(NfsFileType.NFSREG, i, 1));
+        }
+        assertTrue(cache.get(new Nfs3FileHandle(1L), out));
+        cache.put(new Nfs3FileHandle(3L), attributes(NfsFileType.NFSREG, 3, 1));
+        assertEquals(2, cache.size());
+        assertTrue(cache.get(new Nfs3FileHandle(1L), out));
+        assertFalse(cache.get(new Nfs3FileHandle(2L), out));
+    }
+
+    @Test
+    public void testOlderAttributesAreDropped() {
+        AttributeCache cache = new AttributeCache(16, 60000, 60000, 60000, 60000);
+        FileHandle handle = new Nfs3FileHandle(1L);
+        NFSv3Attributes out = new NFSv3Attributes();
+
+        cache.put(handle, attributes(NfsFileType.NFSREG, 20, 2));
+        cache.put(handle, attributes(NfsFileType.NFSREG, 10, 1));
+        assertTrue(cache.get(handle, out));
+        assertEquals(20, out.getSize());
+
+        cache.replace(handle, attributes(NfsFileType.NFSREG, 10, 1));
+        assertTrue(cache.get(handle, out));
+        assertEquals(10, out.getSize());
+    }
+
+    @Test
+    public void testRepliesSaveRoundTrips() throws Exception {
+        try (NfsTestServer server = new NfsTestServer()) {
+            Configuration conf = server.getConfiguration();
+            NFSv3FileSystem fs = new NFSv3FileSystem();
+            fs.initialize(new URI(conf.get("fs.defaultFS")), conf);
+            try {
+                // mkdirs keeps the handle and attributes MKDIR returned
+                Path dir = new Path("/made");
+                assertTrue(fs.mkdirs(dir));
+                long calls = server.getCalls();
+                assertTrue(fs.getFileStatus(dir).isDirectory());
+                assertEquals(calls, server.getCalls());
+
+                // create, write and close, then stat
+                Path file = new Path(dir, "file");
+                try (FSDataOutputStream out = fs.create(file, true)) {
+                    out.write(new byte[100]);
+                }
+                calls = server.getCalls();
+                assertEquals(100, fs.getFileStatus(file).getLen());
+                assertEquals(calls, server.getCalls());
+
+                // lookup, then stat
+                NfsTestTree tree = server.getTree();
+                synchronized (tree) {
+                    tree.create(tree.resolve("/made"), "other", NfsTestTree.NF3REG, 0644, 0, 0);
+                }
+                Path other = new Path(dir, "other");
+                assertTrue(fs.exists(other));
+                calls = server.getCalls();
+                assertEquals(0, fs.getFileStatus(other).getLen());
+                assertEquals(calls, server.getCalls());
+            } finally {
+                fs.close();
+            }
+        }
+    }
+
+    @Test
+    public void testFileSystemUsesCache() throws Exception {
+        try (NfsTestServer server = new NfsTestServer()) {
+            Configuration conf = server.getConfiguration();
+            NFSv3FileSystem fs = new NFSv3FileSystem();
+            fs.initialize(new URI(conf.get("fs.defaultFS")), conf);
+            try {
+                Path file = new Path("/dir/file");
+                try (FSDataOutputStream out = fs.create(file, true)) {
+                    out.write(new byte[100]);
+                }
+                AttributeCache cache = fs.getAttributeCache(file);
+
+                // The second stat of the same path goes nowhere
+                assertEquals(100, fs.getFileStatus(file).getLen());
+                assertTrue(fs.getFileStatus(new Path("/dir")).isDirectory());
+                long calls = server.getCalls();
+                long hits = cache.getHits();
+                assertEquals(100, fs.getFileStatus(file).getLen());
+                assertTrue(fs.getFileStatus(new Path("/dir")).isDirectory());
+                assertEquals(calls, server.getCalls());
+                assertTrue(cache.getHits() > hits);
+
+                // Our own writes leave the attributes of their replies
+                try (FSDataOutputStream out = fs.append(file)) {
+                    out.write(new byte[50]);
+                }
+                assertEquals(150, fs.getFileStatus(file).getLen());
+
+                // Changes made elsewhere are seen once the file is opened
+                NfsTestTree tree = server.getTree();
+                synchronized (tree) {
+                    tree.write(tree.resolve("/dir/file"), 150, new byte[50], 50, true);
+                }
+                fs.open(file).close();
+                assertEquals(200, fs.getFileStatus(file).getLen());
+            } finally {
+                fs.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2015 Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.nfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.nfs.server.NfsTestServer;
+import org.apache.hadoop.fs.nfs.server.NfsTestTree;
+import org.apache.hadoop.nfs.nfs3.FileHandle;
+import org.apache.hadoop.nfs.nfs3.Nfs3FileHandle;
+import org.junit.Test;
+
+public class TestHandleCache {
+
+    public static final Log LOG = LogFactory.getLog(TestHandleCache.class);
+
+    @Test
+    public void testLeasesRunOut() throws Exception {
+        HandleCache cache = new HandleCache(1 << 20, 200);
+        FileHandle handle = new Nfs3FileHandle(1L);
+        cache.put("/a", handle);
+        assertEquals(handle, cache.getTrusted("/a"));
+        Thread.sleep(300);
+        assertNull(cache.getTrusted("/a"));
+        assertEquals(handle, cache.get("/a"));
+
+        // A handle the server accepted again is trusted again
+        cache.put("/a", handle);
+        assertEquals(handle, cache.getTrusted("/a"));
+
+        HandleCache off = new HandleCache(1 << 20, 0);
+        off.put("/a", handle);
+        assertNull(off.getTrusted("/a"));
+    }
+
+    @Test
+    public void testRemoveByValue() {
+        HandleCache cache = new HandleCache(1 << 20, 60000);
+        FileHandle handle = new Nfs3FileHandle(1L);
+        cache.put("/a", handle);
+        cache.put("/b", handle);
+        cache.put("/c", new Nfs3FileHandle(2L));
+        cache.removeByValue(handle);
+        assertNull(cache.get("/a"));
+        assertNull(cache.get("/b"));
+        assertEquals(new Nfs3FileHandle(2L), cache.get("/c"));
+    }
+
+    @Test
+    public void testRemoveTakesTheSubtreeOnly() {
+        HandleCache cache = new HandleCache(1 << 20, 60000);
+        cache.put("/a", new Nfs3FileHandle(1L));
+        cache.put("/a/b", new Nfs3FileHandle(2L));
+        cache.put("/a/b/c", new Nfs3FileHandle(3L));
+        cache.put("/ab", new Nfs3FileHandle(4L));
+        cache.remove("/a/b");
+        assertNull(cache.get("/a/b"));
+        assertNull(cache.get("/a/b/c"));
+        assertEquals(new Nfs3FileHandle(1L), cache.get("/a"));
+        assertEquals(new Nfs3FileHandle(4L), cache.get("/ab"));
+        assertEquals(2, cache.size());
+
+        // A stale handle goes, the paths below it stay
+        cache.put("/a/b/c", new Nfs3FileHandle(3L));
+        cache.removeByValue(new Nfs3FileHandle(1L));
+        assertNull(cache.get("/a"));
+        assertEquals(new Nfs3FileHandle(3L), cache.get("/a/b/c"));
+    }
+
+    @Test
+    public void testRenameMovesTheSubtree() {
+        HandleCache cache = new HandleCache(1 << 20, 60000);
+        cache.put("/src", new Nfs3FileHandle(1L));
+        cache.put("/src/dir/file", new Nfs3FileHandle(2L));
+        cache.put("/dst/old", new Nfs3FileHandle(3L));
+        cache.put("/dst/old/file", new Nfs3FileHandle(4L));
+        cache.rename("/src", "/dst/old");
+        assertNull(cache.get("/src"));
+        assertNull(cache.get("/src/dir/file"));
+        assertEquals(new Nfs3FileHandle(1L), cache.get("/dst/old"));
+        assertEquals(new Nfs3FileHandle(2L), cache.get("/dst/old/dir/file"));
+        assertNull(cache.get("/dst/old/file"));
+        assertEquals(2, cache.size());
+
+        // The handles moved along with their paths
+        cache.removeByValue(new Nfs3FileHandle(2L));
+        assertNull(cache.get("/dst/old/dir/file"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testClockKeepsReferencedEntries() {
+        // Room for three names of one character with 32-byte handles, in a root directory
+        HandleCache cache = new HandleCache(HandleCache.CHILDREN_BYTES + 3 * (HandleCache.NODE_BYTES + 2 + 40), 60000);
+        for (long i = 1; i <= 3; ++i) {
+            cache.put("/" + i, new Nfs3FileHandle(i));
+        }
+        // The hand clears every entry once, then takes the first; /2 is looked up after that
+        cache.put("/4", new Nfs3FileHandle(4L));
+        assertNull(cache.get("/1"));
+        assertEquals(new Nfs3FileHandle(2L), cache.get("/2"));
+        cache.put("/5", new Nfs3FileHandle(5L));
+        assertEquals(3, cache.size());
+        assertEquals(new Nfs3FileHandle(2L), cache.get("/2"));
+        assertEquals(new Nfs3FileHandle(5L), cache.get("/5"));
+    }
+
+    @Test
+    public void testBytesPerEntry() throws Exception {
+        int entries = 200000;
+        HandleCache cache = new HandleCache(1L << 30, 60000);
+        long before = usedHeap();
+        for (int i = 0; i < entries; ++i) {
+            cache.put("/warehouse/table/part=" + (i / 1000) + "/part-" + (i % 1000), new Nfs3FileHandle(i));
+        }
+        long measured = (usedHeap() - before) / entries;
+        long estimated = cache.getUsedBytes() / entries;
+        LOG.info("HandleCache: " + measured + " bytes per entry measured, " + estimated + " estimated");
+        assertEquals(entries, cache.size());
+        assertEquals(new Nfs3FileHandle(4242L), cache.get("/warehouse/table/part=4/part-242"));
+        assertTrue(measured < 400);
+
+        // The budget holds
+        HandleCache small = new HandleCache(1 << 20, 60000);
+        for (int i = 0; i < entries; ++i) {
+            small.put("/warehouse/table/part=" + (i / 1000) + "/part-" + (i % 1000), new Nfs3FileHandle(i));
+        }
+        assertTrue(small.getUsedBytes() <= small.getBudget());
+        assertTrue(small.size() > 0);
+    }
+
+    static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Test
+    public void testReadersNeverSeeReusedRecords() throws Exception {
+        final HandleCache cache = new HandleCache(8 << 10, 60000);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                Random random = new Random(1);
+                while (!done.get()) {
+                    long i = random.nextInt(256);
+                    FileHandle handle = cache.get("/dir/" + i);
+                    if (handle != null && !handle.equals(new Nfs3FileHandle(i))) {
+                        failure.set("/dir/" + i + " resolved to " + handle);
+                    }
+                }
+            }
+        };
+        reader.start();
+        // Paths keep their handle, but records are freed and reused all the time
+        Random random = new Random(2);
+        for (int n = 0; n < 500000; ++n) {
+            long i = random.nextInt(256);
+            if (random.nextInt(4) == 0) {
+                cache.remove("/dir/" + i);
+            } else {
+                cache.put("/dir/" + i, new Nfs3FileHandle(i));
+            }
+        }
+        done.set(true);
+        reader.join();
+        assertNull(failure.get());
+    }
+
+    @Test
+    public void testDeepPathsCostOneCall() throws Exception {
+        try (NfsTestServer server = new NfsTestServer()) {
+            Configuration conf = server.getConfiguration();
+            NFSv3FileSystem fs = new NFSv3FileSystem();
+            fs.initialize(new URI(conf.get("fs.defaultFS")), conf);
+            try {
+                Path dir = new Path("/a/b/c/d/e");
+                assertTrue(fs.mkdirs(dir));
+                NfsTestTree tree = server.getTree();
+                synchronized (tree) {
+                    tree.create(tree.resolve("/a/b/c/d/e"), "file", NfsTestTree.NF3REG, 0644, 0, 0);
+                }
+
+                // Only the LOOKUP of the last component, whatever the attribute cache holds
+                fs.getAttributeCache(dir).clear();
+                long calls = server.getCalls();
+                assertEquals(0, fs.getFileStatus(new Path(dir, "file")).getLen());
+                assertEquals(calls + 1, server.getCalls());
+            } finally {
+                fs.close();
+            }
+        }
+    }
+
+    @Test
+    public void testStaleHandlesAreResolvedAgain() throws Exception {
+        try (NfsTestServer server = new NfsTestServer()) {
+            Configuration conf = server.getConfiguration();
+            NFSv3FileSystem fs = new NFSv3FileSystem();
+            fs.initialize(new URI(conf.get("fs.defaultFS")), conf);
+            try {
+                Path file = new Path("/x/y/file");
+                try (FSDataOutputStream out = fs.create(file, true)) {
+                    out.write(new byte[10]);
+                }
+                assertEquals(10, fs.getFileStatus(file).getLen());
+
+                // Another client replaces the whole tree, every handle we hold is stale
+                NfsTestTree tree = server.getTree();
+                synchronized (tree) {
+                    tree.remove(tree.resolve("/"), "x");
+                    NfsTestTree.Node x = tree.create(tree.resolve("/"), "x", NfsTestTree.NF3DIR, 0755, 0, 0);
+                    NfsTestTree.Node y = tree.create(x, "y", NfsTestTree.NF3DIR, 0755, 0, 0);
+                    tree.create(y, "file", NfsTestTree.NF3REG, 0644, 0, 0);
+                }
+                fs.getAttributeCache(file).clear();
+
+                assertTrue(fs.exists(file));
+                assertEquals(0, fs.getFileStatus(file).getLen());
+                assertTrue(fs.getFileStatus(new Path("/x/y")).isDirectory());
+                assertEquals(1, fs.listStatus(new Path("/x/y")).length);
+
+                // Gone for good
+                synchronized (tree) {
+                    tree.remove(tree.resolve("/"), "x");
+                }
+                fs.getAttributeCache(file).clear();
+                assertFalse(fs.exists(file));
+            } finally {
+                fs.close();
+            }
+        }
+    }
+
+    @Test
+    public void testStaleParentsAreResolvedAgain() throws Exception {
+        try (NfsTestServer server = new NfsTestServer()) {
+            Configuration conf = server.getConfiguration();
+            NFSv3FileSystem fs = new NFSv3FileSystem();
+            fs.initialize(new URI(conf.get("fs.defaultFS")), conf);
+            try {
+                assertTrue(fs.mkdirs(new Path("/x/y")));
+                fs.create(new Path("/x/y/old"), true).close();
+
+                // Another client replaces the tree while the handles of /x and /x/y are trusted
+                NfsTestTree tree = server.getTree();
+                synchronized (tree) {
+                    tree.remove(tree.resolve("/"), "x");
+                    NfsTestTree.Node x = tree.create(tree.resolve("/"), "x", NfsTestTree.NF3DIR, 0755, 0, 0);
+                    NfsTestTree.Node y = tree.create(x, "y", NfsTestTree.NF3DIR, 0755, 0, 0);
+                    tree.create(y, "old", NfsTestTree.NF3REG, 0644, 0, 0);
+                }
+
+                // Creating, renaming and making directories below them still works
+                fs.create(new Path("/x/y/file"), true).close();
+                assertTrue(fs.exists(new Path("/x/y/file")));
+                synchronized (tree) {
+                    tree.remove(tree.resolve("/"), "x");
+                    NfsTestTree.Node x = tree.create(tree.resolve("/"), "x", NfsTestTree.NF3DIR, 0755, 0, 0);
+                    NfsTestTree.Node y = tree.create(x, "y", NfsTestTree.NF3DIR, 0755, 0, 0);
+                    tree.create(y, "old", NfsTestTree.NF3REG, 0644, 0, 0);
+                }
+                assertTrue(fs.rename(new Path("/x/y/old"), new Path("/x/y/new")));
+                assertTrue(fs.exists(new Path("/x/y/new")));
+                synchronized (tree) {
+                    tree.remove(tree.resolve("/"), "x");
+                    NfsTestTree.Node x = tree.create(tree.resolve("/"), "x", NfsTestTree.NF3DIR, 0755, 0, 0);
+                    tree.create(x, "y", NfsTestTree.NF3DIR, 0755, 0, 0);
+                }
+                assertTrue(fs.mkdirs(new Path("/x/y/z")));
+                assertTrue(fs.getFileStatus(new Path("/x/y/z")).isDirectory());
+            } finally {
+                fs.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2015 Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.nfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URI;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.nfs.server.NfsTestServer;
+import org.apache.hadoop.fs.nfs.server.NfsTestTree;
+import org.junit.Test;
+
+public class TestHandleSnapshot {
+
+    static NFSv3FileSystem open(Configuration conf) throws Exception {
+        NFSv3FileSystem fs = new NFSv3FileSystem();
+        fs.initialize(new URI(conf.get("fs.defaultFS")), conf);
+        return fs;
+    }
+
+    @Test
+    public void testStartFromSnapshot() throws Exception {
+        File file = File.createTempFile("nfs-snapshot-", ".bin");
+        file.delete();
+        try (NfsTestServer server = new NfsTestServer()) {
+            server.setOption("nfsSnapshotFile", file.getPath());
+            Configuration conf = server.getConfiguration();
+            Path path = new Path("/job/attempt/part-00000");
+
+            NFSv3FileSystem fs = open(conf);
+            try (FSDataOutputStream out = fs.create(path, true)) {
+                out.write(new byte[100]);
+            }
+            fs.close();
+            assertTrue(file.isFile());
+
+            // No portmap, MOUNT, FSINFO or LOOKUP: only the GETATTR of open
+            long calls = server.getCalls();
+            fs = open(conf);
+            fs.open(path).close();
+            assertEquals(calls + 1, server.getCalls());
+            try (FSDataInputStream in = fs.open(path)) {
+                assertEquals(100, in.read(new byte[200]));
+            }
+            fs.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testCloseShutsDownOnce() throws Exception {
+        File file = File.createTempFile("nfs-snapshot-", ".bin");
+        file.delete();
+        try (NfsTestServer server = new NfsTestServer()) {
+            server.setOption("nfsSnapshotFile", file.getPath());
+            Configuration conf = server.getConfiguration();
+            Path path = new Path("/job/attempt/_temporary");
+
+            NFSv3FileSystem fs = open(conf);
+            fs.create(path, true).close();
+            assertTrue(fs.deleteOnExit(path));
+            fs.close();
+            assertTrue(file.isFile());
+
+            // The file went before the stores were shut down, and closing again does nothing
+            long calls = server.getCalls();
+            fs.close();
+            assertEquals(calls, server.getCalls());
+            fs = open(conf);
+            assertFalse(fs.exists(path));
+            fs.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testStaleSnapshot() throws Exception {
+        File file = File.createTempFile("nfs-snapshot-", ".bin");
+        file.delete();
+        try (NfsTestServer server = new NfsTestServer()) {
+            server.setOption("nfsSnapshotFile", file.getPath());
+            Configuration conf = server.getConfiguration();
+            Path path = new Path("/job/attempt/part-00000");
+
+            NFSv3FileSystem fs = open(conf);
+            try (FSDataOutputStream out = fs.create(path, true)) {
+                out.write(new byte[100]);
+            }
+            fs.close();
+
+            // Another client replaces the tree after the snapshot was written
+            NfsTestTree tree = server.getTree();
+            synchronized (tree) {
+                tree.remove(tree.resolve("/"), "job");
+                NfsTestTree.Node job = tree.create(tree.resolve("/"), "job", NfsTestTree.NF3DIR, 0755, 0, 0);
+                NfsTestTree.Node attempt = tree.create(job, "attempt", NfsTestTree.NF3DIR, 0755, 0, 0);
+                tree.create(attempt, "part-00000", NfsTestTree.NF3REG, 0644, 0, 0);
+            }
+            fs = open(conf);
+            assertTrue(fs.exists(path));
+            assertEquals(0, fs.getFileStatus(path).getLen());
+            fs.close();
+
+            // A snapshot that cannot be read is ignored
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(new byte[] { 'N', 'F', 'S', 'H', 0, 0 });
+            }
+            fs = open(conf);
+            assertEquals(0, fs.getFileStatus(path).getLen());
+            fs.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+}
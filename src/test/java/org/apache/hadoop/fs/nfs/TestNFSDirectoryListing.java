@@ -0,0 +1,183 @@
+/*
+ * Copyright 2015 Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.nfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.fs.nfs.server.NfsTestServer;
+import org.apache.hadoop.fs.nfs.server.NfsTestTree;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Directories are listed one READDIRPLUS reply at a time, so a listing of many entries starts
+ * returning after the first reply.
+ */
+public class TestNFSDirectoryListing {
+
+    static final int ENTRIES = 20000;
+
+    public static final Log LOG = LogFactory.getLog(TestNFSDirectoryListing.class);
+
+    NfsTestServer server;
+    NFSv3FileSystem fs;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new NfsTestServer();
+        Configuration conf = server.getConfiguration();
+        fs = new NFSv3FileSystem();
+        fs.initialize(new URI(conf.get("fs.defaultFS")), conf);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        fs.close();
+        server.close();
+    }
+
+    /* A directory of empty files created on the server directly, much faster than through fs */
+    Path makeBigDirectory(String name) {
+        NfsTestTree tree = server.getTree();
+        NfsTestTree.Node dir = tree.create(tree.getRoot(), name, NfsTestTree.NF3DIR, 0755, 0, 0);
+        for (int i = 0; i < ENTRIES; ++i) {
+            tree.create(dir, String.format("part-%05d", i), NfsTestTree.NF3REG, 0644, 0, 0);
+        }
+        return new Path("/" + name);
+    }
+
+    void write(Path path, int length) throws IOException {
+        try (FSDataOutputStream out = fs.create(path, true)) {
+            out.write(new byte[length]);
+        }
+    }
+
+    @Test
+    public void testIteratorReturnsFirstPageEarly() throws Exception {
+        Path dir = makeBigDirectory("big");
+
+        long before = server.getCalls();
+        RemoteIterator<FileStatus> iterator = fs.listStatusIterator(dir);
+        assertTrue(iterator.hasNext());
+        FileStatus first = iterator.next();
+        long callsForFirst = server.getCalls() - before;
+
+        Set<String> names = new HashSet<>();
+        names.add(first.getPath().getName());
+        while (iterator.hasNext()) {
+            FileStatus status = iterator.next();
+            assertTrue(status.isFile());
+            assertTrue(names.add(status.getPath().getName()));
+        }
+        long calls = server.getCalls() - before;
+
+        LOG.info("Listing " + ENTRIES + " entries took " + calls + " calls, the first entry "
+                + callsForFirst);
+        assertEquals(ENTRIES, names.size());
+        assertTrue(names.contains("part-00000"));
+        assertTrue(names.contains(String.format("part-%05d", ENTRIES - 1)));
+        // Attributes come with the entries, and the listing needs more than one page
+        assertTrue(calls < 20);
+        assertTrue(callsForFirst + 2 <= calls);
+    }
+
+    @Test
+    public void testListStatusIsSortedAndMatchesIterator() throws Exception {
+        Path dir = new Path("/sorted");
+        fs.mkdirs(dir);
+        for (String name : new String[] {"c", "a", "d", "b"}) {
+            write(new Path(dir, name), name.length());
+        }
+        fs.mkdirs(new Path(dir, "e"));
+
+        FileStatus statuses[] = fs.listStatus(dir);
+        String names[] = new String[statuses.length];
+        for (int i = 0; i < statuses.length; ++i) {
+            names[i] = statuses[i].getPath().getName();
+        }
+        assertArrayEquals(new String[] {"a", "b", "c", "d", "e"}, names);
+        assertTrue(statuses[4].isDirectory());
+
+        Set<String> iterated = new TreeSet<>();
+        RemoteIterator<FileStatus> iterator = fs.listStatusIterator(dir);
+        while (iterator.hasNext()) {
+            iterated.add(iterator.next().getPath().getName());
+        }
+        assertArrayEquals(names, iterated.toArray(new String[0]));
+    }
+
+    @Test
+    public void testListStatusIteratorOfFile() throws Exception {
+        Path file = new Path("/file");
+        write(file, 10);
+
+        RemoteIterator<FileStatus> iterator = fs.listStatusIterator(file);
+        assertTrue(iterator.hasNext());
+        assertEquals(10, iterator.next().getLen());
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void testListFilesRecursive() throws Exception {
+        write(new Path("/tree/a"), 1);
+        write(new Path("/tree/sub/b"), 2);
+        write(new Path("/tree/sub/deeper/c"), 3);
+        fs.mkdirs(new Path("/tree/empty"));
+
+        Set<String> found = new TreeSet<>();
+        RemoteIterator<LocatedFileStatus> files = fs.listFiles(new Path("/tree"), true);
+        while (files.hasNext()) {
+            LocatedFileStatus file = files.next();
+            assertTrue(file.isFile());
+            assertEquals(1, file.getBlockLocations().length);
+            assertEquals(file.getLen(), file.getBlockLocations()[0].getLength());
+            found.add(Path.getPathWithoutSchemeAndAuthority(file.getPath()).toString());
+        }
+        assertArrayEquals(new String[] {"/tree/a", "/tree/sub/b", "/tree/sub/deeper/c"},
+                found.toArray(new String[0]));
+
+        Set<String> located = new TreeSet<>();
+        RemoteIterator<LocatedFileStatus> statuses = fs.listLocatedStatus(new Path("/tree"));
+        while (statuses.hasNext()) {
+            located.add(statuses.next().getPath().getName());
+        }
+        assertArrayEquals(new String[] {"a", "empty", "sub"}, located.toArray(new String[0]));
+    }
+
+    @Test(expected = IOException.class)
+    public void testNonRecursiveDeleteOfBigDirectory() throws Exception {
+        fs.delete(makeBigDirectory("full"), false);
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.nfs;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.nfs.server.NfsTestServer;
+import org.junit.Test;
+
+/**
+ * Benchmark of sequential write and read throughput through the filesystem against the
+ * in-process test server, on a plain loopback link and on links with the latency and bandwidth
+ * of a LAN and a WAN. Logs MB/s of each.
+ */
+public class TestNFSStreamBenchmark {
+
+    static final int FILE_SIZE = 64 << 20;
+    static final int BUFFER_SIZE = 1 << 16;
+
+    public static final Log LOG = LogFactory.getLog(TestNFSStreamBenchmark.class);
+
+    @Test
+    public void testStreamThroughput() throws Exception {
+        run("loopback", 0, 0);
+        run("1 ms, 1 GB/s", 1000, 1L << 30);
+        run("20 ms, 100 MB/s", 20000, 100L << 20);
+    }
+
+    void run(String link, long latencyMicros, long bytesPerSecond) throws Exception {
+        try (NfsTestServer server = new NfsTestServer()) {
+            server.setLatency(latencyMicros, TimeUnit.MICROSECONDS);
+            server.setBandwidth(bytesPerSecond);
+            Configuration conf = server.getConfiguration();
+            NFSv3FileSystem fs = new NFSv3FileSystem();
+            fs.initialize(new URI(conf.get("fs.defaultFS")), conf);
+            try {
+                Path path = new Path("/benchmark");
+                byte buffer[] = new byte[BUFFER_SIZE];
+
+                long start = System.nanoTime();
+                try (FSDataOutputStream out = fs.create(path, true)) {
+                    for (int written = 0; written < FILE_SIZE; written += buffer.length) {
+                        out.write(buffer);
+                    }
+                }
+                long writeNanos = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                long total = 0;
+                try (FSDataInputStream in = fs.open(path, BUFFER_SIZE)) {
+                    for (int n; (n = in.read(buffer)) > 0; ) {
+                        total += n;
+                    }
+                }
+                long readNanos = System.nanoTime() - start;
+                assertEquals(FILE_SIZE, total);
+
+                LOG.info("Stream throughput, " + link + ": write "
+                        + rate(writeNanos) + " MB/s, read " + rate(readNanos) + " MB/s, "
+                        + server.getCalls() + " calls");
+            } finally {
+                fs.close();
+            }
+        }
+    }
+
+    long rate(long nanos) {
+        return (FILE_SIZE >> 20) * 1000000000L / Math.max(nanos, 1);
+    }
+
+}
@@ -0,0 +1,415 @@
+/*
+ * Copyright 2015 Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.nfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.nfs.nfs3.FileHandle;
+import org.apache.hadoop.nfs.nfs3.Nfs3Constant.WriteStableHow;
+import org.apache.hadoop.nfs.nfs3.Nfs3FileAttributes;
+import org.apache.hadoop.nfs.nfs3.Nfs3FileHandle;
+import org.apache.hadoop.nfs.nfs3.Nfs3ReadReply;
+import org.apache.hadoop.nfs.nfs3.Nfs3Status;
+import org.apache.hadoop.nfs.nfs3.response.GETATTR3Response;
+import org.apache.hadoop.oncrpc.XDR;
+import org.junit.Assume;
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * The codec must put the same bytes on the wire as the request builder and decode the same values
+ * as the response builder. Also measures the heap allocated per GETATTR and READ by both.
+ */
+public class TestNFSv3Codec {
+
+    static final int ROUNDS = 100000;
+
+    final FileHandle handle = new Nfs3FileHandle(42L);
+    final NFSv3Codec codec = NFSv3Codec.get();
+
+    public static final Log LOG = LogFactory.getLog(TestNFSv3Codec.class);
+
+    static byte[] bytes(ByteBuf buffer) {
+        byte data[] = new byte[buffer.readableBytes()];
+        buffer.getBytes(buffer.readerIndex(), data);
+        return data;
+    }
+
+    static void writeAttributes(XDR xdr, int type, long size, long fileId) {
+        xdr.writeInt(type);
+        xdr.writeInt(0644);
+        xdr.writeInt(1);
+        xdr.writeInt(1000);
+        xdr.writeInt(100);
+        xdr.writeLongAsHyper(size);
+        xdr.writeLongAsHyper(size);
+        xdr.writeInt(0);
+        xdr.writeInt(0);
+        xdr.writeLongAsHyper(7L);
+        xdr.writeLongAsHyper(fileId);
+        xdr.writeInt(1400000000); // atime
+        xdr.writeInt(5);
+        xdr.writeInt(1400000001); // mtime
+        xdr.writeInt(250000000);
+        xdr.writeInt(1400000002); // ctime
+        xdr.writeInt(999999999);
+    }
+
+    static byte[] getattrReply() {
+        XDR xdr = new XDR();
+        xdr.writeInt(Nfs3Status.NFS3_OK);
+        writeAttributes(xdr, 1, 123456789L, 42L);
+        return xdr.getBytes();
+    }
+
+    static byte[] readReplyHeader(int length) {
+        XDR xdr = new XDR();
+        xdr.writeInt(Nfs3Status.NFS3_OK);
+        xdr.writeBoolean(true);
+        writeAttributes(xdr, 1, 1L << 30, 42L);
+        xdr.writeInt(length);
+        xdr.writeBoolean(false);
+        xdr.writeInt(length);
+        return xdr.getBytes();
+    }
+
+    @Test
+    public void testArgumentsMatchRequestBuilder() {
+        XDR xdr = new XDR();
+        NFSv3RequestBuilder.buildGETATTR3Request(xdr, handle);
+        assertArrayEquals(xdr.getBytes(), bytes(codec.encodeGETATTR(handle)));
+
+        for (String name : new String[] {"a", "ab", "abc", "abcd", "part-00000"}) {
+            xdr = new XDR();
+            NFSv3RequestBuilder.buildLOOKUP3Request(xdr, handle, name);
+            assertArrayEquals(xdr.getBytes(), bytes(codec.encodeLOOKUP(handle, name)));
+        }
+
+        xdr = new XDR();
+        NFSv3RequestBuilder.buildREAD3Request(xdr, handle, 1L << 40, 1 << 20);
+        assertArrayEquals(xdr.getBytes(), bytes(codec.encodeREAD(handle, 1L << 40, 1 << 20)));
+
+        xdr = new XDR();
+        NFSv3RequestBuilder.buildWRITE3RequestHeader(xdr, handle, 4096L, 65536, WriteStableHow.UNSTABLE);
+        assertArrayEquals(xdr.getBytes(), bytes(codec.encodeWRITE(handle, 4096L, 65536, WriteStableHow.UNSTABLE)));
+
+        xdr = new XDR();
+        NFSv3RequestBuilder.buildCOMMIT3Request(xdr, handle, 0L, 0);
+        assertArrayEquals(xdr.getBytes(), bytes(codec.encodeCOMMIT(handle, 0L, 0)));
+
+        xdr = new XDR();
+        NFSv3RequestBuilder.buildREADDIR3Request(xdr, handle, 3L, 77L, 8192);
+        assertArrayEquals(xdr.getBytes(), bytes(codec.encodeREADDIR(handle, 3L, 77L, 8192)));
+
+        xdr = new XDR();
+        NFSv3RequestBuilder.buildREADDIRPLUS3Request(xdr, handle, 3L, 77L, 8192, 65536);
+        assertArrayEquals(xdr.getBytes(), bytes(codec.encodeREADDIRPLUS(handle, 3L, 77L, 8192, 65536)));
+    }
+
+    @Test
+    public void testGETATTRMatchesResponseBuilder() throws Exception {
+        byte reply[] = getattrReply();
+        NFSv3Attributes attributes = new NFSv3Attributes();
+        assertEquals(Nfs3Status.NFS3_OK, codec.decodeGETATTR(Unpooled.wrappedBuffer(reply), attributes));
+
+        Nfs3FileAttributes expected = NFSv3ResponseBuilder.buildGETATTR3Response(new XDR(reply)).getPostOpAttr();
+        assertEquals(expected.getType(), attributes.getType());
+        assertEquals(expected.getMode(), attributes.getMode());
+        assertEquals(expected.getUid(), attributes.getUid());
+        assertEquals(expected.getGid(), attributes.getGid());
+        assertEquals(expected.getSize(), attributes.getSize());
+        assertEquals(expected.getFsid(), attributes.getFsid());
+        assertEquals(expected.getFileId(), attributes.getFileId());
+        assertEquals(expected.getMtime().getMilliSeconds(), attributes.getMtimeMillis());
+        assertEquals(expected.getAtime().getMilliSeconds(), attributes.getAtimeMillis());
+        assertEquals(1400000002L * 1000000000L + 999999999L, attributes.getCtime());
+        assertTrue(attributes.isFile());
+
+        XDR error = new XDR();
+        error.writeInt(Nfs3Status.NFS3ERR_STALE);
+        assertEquals(Nfs3Status.NFS3ERR_STALE,
+                codec.decodeGETATTR(Unpooled.wrappedBuffer(error.getBytes()), attributes));
+    }
+
+    @Test
+    public void testLOOKUP() throws Exception {
+        XDR xdr = new XDR();
+        xdr.writeInt(Nfs3Status.NFS3_OK);
+        new Nfs3FileHandle(99L).serialize(xdr);
+        xdr.writeBoolean(true);
+        writeAttributes(xdr, 2, 4096L, 99L);
+        xdr.writeBoolean(false);
+
+        NFSv3Attributes attributes = new NFSv3Attributes();
+        FileHandle found = codec.decodeLOOKUP(Unpooled.wrappedBuffer(xdr.getBytes()), attributes);
+        assertEquals(new Nfs3FileHandle(99L), found);
+        assertEquals(99L, found.getFileId());
+        assertTrue(attributes.isDirectory());
+        assertEquals(99L, attributes.getFileId());
+
+        xdr = new XDR();
+        xdr.writeInt(Nfs3Status.NFS3ERR_NOENT);
+        xdr.writeBoolean(false);
+        assertNull(codec.decodeLOOKUP(Unpooled.wrappedBuffer(xdr.getBytes()), null));
+    }
+
+    static void writeWcc(XDR xdr, boolean before, int type, long size, long fileId) {
+        xdr.writeBoolean(before);
+        if (before) {
+            xdr.writeLongAsHyper(size - 1);
+            xdr.writeInt(1400000000);
+            xdr.writeInt(0);
+            xdr.writeInt(1400000000);
+            xdr.writeInt(0);
+        }
+        xdr.writeBoolean(type != 0);
+        if (type != 0) {
+            writeAttributes(xdr, type, size, fileId);
+        }
+    }
+
+    @Test
+    public void testCREATEHasObjectAndDirectory() throws Exception {
+        XDR xdr = new XDR();
+        xdr.writeInt(Nfs3Status.NFS3_OK);
+        xdr.writeBoolean(true);
+        new Nfs3FileHandle(99L).serialize(xdr);
+        xdr.writeBoolean(true);
+        writeAttributes(xdr, 1, 0L, 99L);
+        writeWcc(xdr, true, 2, 4096L, 42L);
+
+        NFSv3Attributes attributes = new NFSv3Attributes();
+        NFSv3Attributes dirAttributes = new NFSv3Attributes();
+        FileHandle created = codec.decodeCREATE(Unpooled.wrappedBuffer(xdr.getBytes()), attributes, dirAttributes);
+        assertEquals(new Nfs3FileHandle(99L), created);
+        assertTrue(attributes.isFile());
+        assertEquals(99L, attributes.getFileId());
+        assertTrue(dirAttributes.isDirectory());
+        assertEquals(42L, dirAttributes.getFileId());
+        assertEquals(created, NFSv3ResponseBuilder.buildMKDIR3Response(new XDR(xdr.getBytes())).getObjFileHandle());
+
+        xdr = new XDR();
+        xdr.writeInt(Nfs3Status.NFS3ERR_EXIST);
+        writeWcc(xdr, false, 2, 4096L, 42L);
+        assertNull(codec.decodeCREATE(Unpooled.wrappedBuffer(xdr.getBytes()), attributes, dirAttributes));
+        assertEquals(0, attributes.getType());
+        assertTrue(dirAttributes.isDirectory());
+    }
+
+    @Test
+    public void testWccOfWRITEAndRENAME() throws Exception {
+        XDR xdr = new XDR();
+        xdr.writeInt(Nfs3Status.NFS3_OK);
+        writeWcc(xdr, true, 1, 65536L, 99L);
+        xdr.writeInt(4096);
+        xdr.writeInt(WriteStableHow.UNSTABLE.getValue());
+        xdr.writeLongAsHyper(7L);
+
+        NFSv3Attributes attributes = new NFSv3Attributes();
+        assertEquals(Nfs3Status.NFS3_OK, codec.decodeWcc(Unpooled.wrappedBuffer(xdr.getBytes()), attributes));
+        assertEquals(65536L, attributes.getSize());
+        assertEquals(NFSv3ResponseBuilder.buildWRITE3Response(new XDR(xdr.getBytes())).getFileWcc()
+                .getPostOpAttr().getSize(), attributes.getSize());
+
+        xdr = new XDR();
+        xdr.writeInt(Nfs3Status.NFS3ERR_NOSPC);
+        writeWcc(xdr, false, 0, 0L, 0L);
+        assertEquals(Nfs3Status.NFS3ERR_NOSPC, codec.decodeWcc(Unpooled.wrappedBuffer(xdr.getBytes()), attributes));
+        assertEquals(0, attributes.getType());
+
+        xdr = new XDR();
+        xdr.writeInt(Nfs3Status.NFS3_OK);
+        writeWcc(xdr, true, 2, 4096L, 1L);
+        writeWcc(xdr, false, 2, 8192L, 2L);
+        NFSv3Attributes toAttributes = new NFSv3Attributes();
+        assertEquals(Nfs3Status.NFS3_OK,
+                codec.decodeRENAME(Unpooled.wrappedBuffer(xdr.getBytes()), attributes, toAttributes));
+        assertEquals(1L, attributes.getFileId());
+        assertEquals(2L, toAttributes.getFileId());
+        assertEquals(8192L, toAttributes.getSize());
+    }
+
+    @Test
+    public void testREADDIRPLUS() throws Exception {
+        String names[] = {".", "part-00000", "\u00e9t\u00e9"};
+        XDR xdr = new XDR();
+        xdr.writeInt(Nfs3Status.NFS3_OK);
+        xdr.writeBoolean(false);
+        xdr.writeLongAsHyper(1234L);
+        for (int i = 0; i < names.length; ++i) {
+            xdr.writeBoolean(true);
+            xdr.writeLongAsHyper(100L + i);
+            xdr.writeVariableOpaque(names[i].getBytes("UTF-8"));
+            xdr.writeLongAsHyper(i + 1);
+            // The last entry comes without attributes or handle
+            xdr.writeBoolean(i < 2);
+            if (i < 2) {
+                writeAttributes(xdr, 1, i, 100L + i);
+            }
+            xdr.writeBoolean(i < 2);
+            if (i < 2) {
+                new Nfs3FileHandle(100L + i).serialize(xdr);
+            }
+        }
+        xdr.writeBoolean(false);
+        xdr.writeBoolean(true);
+        byte reply[] = xdr.getBytes();
+
+        NFSv3DirectoryPage page = new NFSv3DirectoryPage(1);
+        assertEquals(Nfs3Status.NFS3_OK, codec.decodeREADDIR(Unpooled.wrappedBuffer(reply), page, true));
+        assertEquals(names.length, page.size());
+        assertEquals(1234L, page.getCookieVerf());
+        assertTrue(page.isEof());
+        for (int i = 0; i < page.size(); ++i) {
+            assertEquals(names[i], page.getName(i));
+            assertEquals(100L + i, page.getFileId(i));
+            assertEquals(i + 1, page.getCookie(i));
+            if (i < 2) {
+                assertEquals(new Nfs3FileHandle(100L + i), page.getHandle(i));
+                assertEquals(i, page.getAttributes(i).getSize());
+            } else {
+                assertNull(page.getHandle(i));
+                assertNull(page.getAttributes(i));
+            }
+        }
+
+        // The page is reused for the next reply
+        XDR error = new XDR();
+        error.writeInt(Nfs3Status.NFS3ERR_BAD_COOKIE);
+        error.writeBoolean(false);
+        assertEquals(Nfs3Status.NFS3ERR_BAD_COOKIE,
+                codec.decodeREADDIR(Unpooled.wrappedBuffer(error.getBytes()), page, true));
+        assertEquals(0, page.size());
+    }
+
+    @Test
+    public void testREADDataStaysInPlace() throws Exception {
+        byte data[] = new byte[8192];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) i;
+        }
+        ByteBuf body = Unpooled.wrappedBuffer(readReplyHeader(data.length), data);
+        Nfs3ReadReply reply = codec.decodeREAD(body);
+
+        assertEquals(Nfs3Status.NFS3_OK, reply.getStatus());
+        assertEquals(data.length, reply.getCount());
+        assertEquals(false, reply.isEof());
+        assertEquals(data.length, reply.getData().readableBytes());
+        assertEquals((byte) 100, reply.getData().getByte(100));
+    }
+
+    @Test(expected = IOException.class)
+    public void testREADTruncated() throws Exception {
+        codec.decodeREAD(Unpooled.wrappedBuffer(readReplyHeader(100)));
+    }
+
+    @Test
+    public void testBytesAllocatedPerCall() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        byte getattr[] = getattrReply();
+        ByteBuf getattrBody = Unpooled.wrappedBuffer(getattr);
+        ByteBuf readBody = Unpooled.wrappedBuffer(readReplyHeader(4096), new byte[4096]);
+        NFSv3Attributes attributes = new NFSv3Attributes();
+
+        // Warm up, then measure
+        for (int i = 0; i < 3; ++i) {
+            codecGetattr(ROUNDS, getattrBody, attributes);
+            buildersGetattr(ROUNDS, getattr);
+            codecRead(ROUNDS, readBody);
+            buildersRead(ROUNDS, readBody);
+        }
+        long id = Thread.currentThread().getId();
+        long start = threads.getThreadAllocatedBytes(id);
+        codecGetattr(ROUNDS, getattrBody, attributes);
+        long codecGetattrBytes = (threads.getThreadAllocatedBytes(id) - start) / ROUNDS;
+        start = threads.getThreadAllocatedBytes(id);
+        buildersGetattr(ROUNDS, getattr);
+        long buildersGetattrBytes = (threads.getThreadAllocatedBytes(id) - start) / ROUNDS;
+        start = threads.getThreadAllocatedBytes(id);
+        codecRead(ROUNDS, readBody);
+        long codecReadBytes = (threads.getThreadAllocatedBytes(id) - start) / ROUNDS;
+        start = threads.getThreadAllocatedBytes(id);
+        buildersRead(ROUNDS, readBody);
+        long buildersReadBytes = (threads.getThreadAllocatedBytes(id) - start) / ROUNDS;
+
+        LOG.info("Bytes allocated to encode and decode a GETATTR: builders="
+                + buildersGetattrBytes + " codec=" + codecGetattrBytes + ", a READ: builders="
+                + buildersReadBytes + " codec=" + codecReadBytes);
+
+        assertTrue(codecGetattrBytes < 8);
+        assertTrue(codecReadBytes < 256);
+        assertTrue(buildersGetattrBytes > codecGetattrBytes);
+        assertTrue(buildersReadBytes > codecReadBytes);
+    }
+
+    long codecGetattr(int rounds, ByteBuf body, NFSv3Attributes attributes) throws IOException {
+        long checksum = 0;
+        for (int i = 0; i < rounds; ++i) {
+            checksum += codec.encodeGETATTR(handle).readableBytes();
+            codec.decodeGETATTR(body, attributes);
+            checksum += attributes.getSize();
+        }
+        return checksum;
+    }
+
+    long buildersGetattr(int rounds, byte reply[]) throws IOException {
+        long checksum = 0;
+        for (int i = 0; i < rounds; ++i) {
+            XDR in = new XDR();
+            NFSv3RequestBuilder.buildGETATTR3Request(in, handle);
+            checksum += in.buffer().position();
+            GETATTR3Response response = NFSv3ResponseBuilder.buildGETATTR3Response(new XDR(reply));
+            checksum += response.getPostOpAttr().getSize();
+        }
+        return checksum;
+    }
+
+    long codecRead(int rounds, ByteBuf body) throws IOException {
+        long checksum = 0;
+        for (int i = 0; i < rounds; ++i) {
+            checksum += codec.encodeREAD(handle, i, 4096).readableBytes();
+            checksum += codec.decodeREAD(body).getCount();
+        }
+        return checksum;
+    }
+
+    long buildersRead(int rounds, ByteBuf body) throws IOException {
+        long checksum = 0;
+        for (int i = 0; i < rounds; ++i) {
+            XDR in = new XDR();
+            NFSv3RequestBuilder.buildREAD3Request(in, handle, i, 4096);
+            checksum += in.buffer().position();
+            checksum += NFSv3ResponseBuilder.buildREAD3Reply(body).getCount();
+        }
+        return checksum;
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2015 Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.nfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.nfs.server.NfsTestServer;
+import org.apache.hadoop.fs.nfs.server.NfsTestTree;
+import org.apache.hadoop.fs.nfs.topology.Endpoint;
+import org.apache.hadoop.fs.nfs.topology.Mapping;
+import org.apache.hadoop.fs.nfs.topology.Namespace;
+import org.apache.hadoop.nfs.nfs3.FileHandle;
+import org.apache.hadoop.nfs.nfs3.Nfs3Status;
+import org.apache.hadoop.nfs.nfs3.response.GETATTR3Response;
+import org.apache.hadoop.nfs.nfs3.response.LOOKUP3Response;
+import org.apache.hadoop.nfs.nfs3.response.READDIR3Response;
+import org.apache.hadoop.oncrpc.security.Credentials;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestNFSv3FileSystemStore {
+
+    NfsTestServer server;
+    NFSv3FileSystem fs;
+    NFSv3FileSystemStore store;
+    Credentials credentials;
+    NfsTestTree.Node dir;
+    NfsTestTree.Node file;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new NfsTestServer();
+        NfsTestTree tree = server.getTree();
+        dir = tree.create(tree.getRoot(), "dir", NfsTestTree.NF3DIR, 0755, 0, 0);
+        file = tree.create(dir, "file", NfsTestTree.NF3REG, 0644, 0, 0);
+
+        Configuration conf = server.getConfiguration();
+        URI uri = new URI(conf.get("fs.defaultFS"));
+        fs = new NFSv3FileSystem();
+        fs.initialize(uri, conf);
+        Namespace space = Mapping.loadFromFile(conf.get("fs.nfs.configuration")).getNamespace(uri);
+        store = new NFSv3FileSystemStore(fs, space);
+        credentials = fs.getCredentials();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.shutdown();
+        fs.close();
+        server.close();
+    }
+
+    FileHandle lookup(FileHandle parent, String name) throws Exception {
+        LOOKUP3Response response = store.lookupAsync(parent, name, credentials).get();
+        assertEquals(Nfs3Status.NFS3_OK, response.getStatus());
+        assertNotNull(response.getFileHandle());
+        return response.getFileHandle();
+    }
+
+    @Test
+    public void testGetattrAsync() throws Exception {
+        FileHandle handle = lookup(lookup(store.getRootFileHandle(), "dir"), "file");
+        GETATTR3Response response = store.getattrAsync(handle, credentials).get();
+        assertEquals(Nfs3Status.NFS3_OK, response.getStatus());
+        assertEquals(file.getFileId(), response.getPostOpAttr().getFileId());
+    }
+
+    @Test
+    public void testLookupAsync() throws Exception {
+        FileHandle handle = lookup(store.getRootFileHandle(), "dir");
+        assertEquals(dir.getFileId(), store.getattrAsync(handle, credentials).get().getPostOpAttr().getFileId());
+        LOOKUP3Response missing = store.lookupAsync(handle, "missing", credentials).get();
+        assertEquals(Nfs3Status.NFS3ERR_NOENT, missing.getStatus());
+    }
+
+    @Test
+    public void testReaddirAsync() throws Exception {
+        FileHandle handle = lookup(store.getRootFileHandle(), "dir");
+        READDIR3Response response = store.readdirAsync(handle, 0L, 0L, store.getDirListSize(), credentials).get();
+        assertEquals(Nfs3Status.NFS3_OK, response.getStatus());
+        int found = 0;
+        List<READDIR3Response.Entry3> entries = response.getDirList().getEntries();
+        for (READDIR3Response.Entry3 entry : entries) {
+            if (entry.getName().equals("file")) {
+                found++;
+            }
+        }
+        assertEquals(1, found);
+    }
+
+    /* A local port nothing listens on */
+    static int closedPort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    @Test
+    public void testUnreachableEndpoint() throws Exception {
+        URI uri = new URI("nfs://localhost:" + closedPort() + "/");
+        Namespace space = new Namespace("unreachable", uri);
+        try {
+            new NFSv3FileSystemStore(new NFSv3FileSystem(), space, new Endpoint(uri, "/", "/")).shutdown();
+            fail("Opened a store on a port nothing listens on");
+        } catch (IOException exception) {
+            // The connect failure itself, which the router fails over on
+        }
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015 Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.nfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.hadoop.nfs.nfs3.Nfs3ReadReply;
+import org.apache.hadoop.nfs.nfs3.Nfs3Status;
+import org.apache.hadoop.oncrpc.XDR;
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+public class TestNFSv3ResponseBuilder {
+
+    @Test
+    public void testREAD3ReplyDataStaysInPlace() throws Exception {
+        byte data[] = new byte[8192];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) i;
+        }
+
+        XDR header = new XDR();
+        header.writeInt(Nfs3Status.NFS3_OK);
+        header.writeBoolean(false);
+        header.writeInt(data.length);
+        header.writeBoolean(true);
+        header.writeInt(data.length);
+
+        // Header and data arrive in separate network buffers
+        ByteBuf body = Unpooled.wrappedBuffer(Unpooled.wrappedBuffer(header.getBytes()),
+                Unpooled.wrappedBuffer(data));
+        Nfs3ReadReply reply = NFSv3ResponseBuilder.buildREAD3Reply(body);
+
+        assertEquals(Nfs3Status.NFS3_OK, reply.getStatus());
+        assertNull(reply.getPostOpAttr());
+        assertEquals(data.length, reply.getCount());
+        assertTrue(reply.isEof());
+        assertEquals(data.length, reply.getData().readableBytes());
+        assertEquals((byte) 100, reply.getData().getByte(100));
+
+        // The data is a view of the network buffer, not a copy
+        data[100] = 42;
+        assertEquals((byte) 42, reply.getData().getByte(100));
+    }
+
+    @Test
+    public void testREAD3ReplyError() throws Exception {
+        XDR header = new XDR();
+        header.writeInt(Nfs3Status.NFS3ERR_STALE);
+        header.writeBoolean(false);
+        Nfs3ReadReply reply = NFSv3ResponseBuilder.buildREAD3Reply(Unpooled.wrappedBuffer(header.getBytes()));
+        assertEquals(Nfs3Status.NFS3ERR_STALE, reply.getStatus());
+        assertNull(reply.getData());
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void testREAD3ReplyTruncated() throws Exception {
+        XDR header = new XDR();
+        header.writeInt(Nfs3Status.NFS3_OK);
+        header.writeBoolean(false);
+        header.writeInt(100);
+        header.writeBoolean(false);
+        header.writeInt(100);
+        NFSv3ResponseBuilder.buildREAD3Reply(Unpooled.wrappedBuffer(header.getBytes()));
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2015 Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.nfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.nfs.server.NfsTestServer;
+import org.apache.hadoop.fs.nfs.server.NfsTestTree;
+import org.apache.hadoop.nfs.NfsFileType;
+import org.apache.hadoop.nfs.nfs3.FileHandle;
+import org.apache.hadoop.nfs.nfs3.Nfs3FileHandle;
+import org.junit.Test;
+
+public class TestNegativeLookupCache {
+
+    final FileHandle dir = new Nfs3FileHandle(1L);
+
+    static NFSv3Attributes directory(long mtime) {
+        return TestAttributeCache.attributes(NfsFileType.NFSDIR, 4096, mtime);
+    }
+
+    @Test
+    public void testEntriesExpire() throws Exception {
+        NegativeLookupCache cache = new NegativeLookupCache(16, 200);
+        assertFalse(cache.contains(dir, "_SUCCESS"));
+        cache.put(dir, "_SUCCESS", directory(1));
+        assertTrue(cache.contains(dir, "_SUCCESS"));
+        assertFalse(cache.contains(dir, "part-00000"));
+        assertFalse(cache.contains(new Nfs3FileHandle(2L), "_SUCCESS"));
+        Thread.sleep(300);
+        assertFalse(cache.contains(dir, "_SUCCESS"));
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void testDirectoryChangeDropsNames() {
+        NegativeLookupCache cache = new NegativeLookupCache(16, 60000);
+        cache.put(dir, "a", directory(1));
+        cache.put(dir, "b", directory(1));
+        cache.update(dir, directory(1));
+        assertTrue(cache.contains(dir, "a"));
+
+        cache.update(dir, directory(2));
+        assertFalse(cache.contains(dir, "a"));
+        assertFalse(cache.contains(dir, "b"));
+        assertEquals(0, cache.size());
+
+        // Names added without the attributes of the directory go on the first change seen
+        cache.put(dir, "c", null);
+        assertTrue(cache.contains(dir, "c"));
+        cache.update(dir, directory(2));
+        assertFalse(cache.contains(dir, "c"));
+    }
+
+    @Test
+    public void testInvalidateAndBound() {
+        NegativeLookupCache cache = new NegativeLookupCache(2, 60000);
+        cache.put(dir, "a", directory(1));
+        cache.put(dir, "b", directory(1));
+        cache.invalidate(dir, "a");
+        assertFalse(cache.contains(dir, "a"));
+        assertTrue(cache.contains(dir, "b"));
+
+        // The directory used least recently goes first
+        cache.put(new Nfs3FileHandle(2L), "c", directory(1));
+        cache.put(new Nfs3FileHandle(3L), "d", directory(1));
+        assertEquals(2, cache.size());
+        assertFalse(cache.contains(dir, "b"));
+
+        NegativeLookupCache off = new NegativeLookupCache(16, 0);
+        off.put(dir, "a", directory(1));
+        assertFalse(off.contains(dir, "a"));
+    }
+
+    @Test
+    public void testProbesOfMissingPaths() throws Exception {
+        try (NfsTestServer server = new NfsTestServer()) {
+            Configuration conf = server.getConfiguration();
+            NFSv3FileSystem fs = new NFSv3FileSystem();
+            fs.initialize(new URI(conf.get("fs.defaultFS")), conf);
+            try {
+                Path dir = new Path("/out");
+                assertTrue(fs.mkdirs(dir));
+                Path marker = new Path(dir, "_SUCCESS");
+
+                // The second probe goes nowhere
+                assertFalse(fs.exists(marker));
+                long calls = server.getCalls();
+                assertFalse(fs.exists(marker));
+                assertEquals(calls, server.getCalls());
+
+                // Our own create is seen at once
+                try (FSDataOutputStream out = fs.create(marker, true)) {
+                    out.write(new byte[1]);
+                }
+                assertTrue(fs.exists(marker));
+                assertEquals(1, fs.getFileStatus(marker).getLen());
+
+                // A create elsewhere is seen once a reply shows the directory changed
+                Path other = new Path(dir, "other");
+                assertFalse(fs.exists(other));
+                NfsTestTree tree = server.getTree();
+                synchronized (tree) {
+                    tree.create(tree.resolve("/out"), "other", NfsTestTree.NF3REG, 0644, 0, 0);
+                }
+                try (FSDataOutputStream out = fs.create(new Path(dir, "sibling"), true)) {
+                    out.write(new byte[1]);
+                }
+                assertTrue(fs.exists(other));
+            } finally {
+                fs.close();
+            }
+        }
+    }
+
+}
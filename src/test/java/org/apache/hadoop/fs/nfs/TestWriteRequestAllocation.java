@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015 Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.nfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.nfs.rpc.RpcClient;
+import org.apache.hadoop.nfs.nfs3.FileHandle;
+import org.apache.hadoop.nfs.nfs3.Nfs3Constant;
+import org.apache.hadoop.nfs.nfs3.Nfs3Constant.NFSPROC3;
+import org.apache.hadoop.nfs.nfs3.Nfs3Constant.WriteStableHow;
+import org.apache.hadoop.oncrpc.RpcCall;
+import org.apache.hadoop.oncrpc.XDR;
+import org.apache.hadoop.oncrpc.security.Credentials;
+import org.apache.hadoop.oncrpc.security.CredentialsNone;
+import org.apache.hadoop.oncrpc.security.VerifierNone;
+import org.junit.Assume;
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Micro benchmark of the heap allocated to build WRITE3 calls, copying the block into the request
+ * as before versus copying it once into a pooled direct buffer.
+ */
+public class TestWriteRequestAllocation {
+
+    static final int BLOCK_SIZE = 1 << 20;
+    static final int ROUNDS = 64;
+
+    final FileHandle handle = new FileHandle(42L);
+    final Credentials credentials = new CredentialsNone();
+    final byte block[] = new byte[BLOCK_SIZE];
+
+    public static final Log LOG = LogFactory.getLog(TestWriteRequestAllocation.class);
+
+    @Test
+    public void testBytesAllocatedPerMBWritten() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        // Both paths must put the same bytes on the wire
+        ByteBuf call = pooled(1);
+        try {
+            assertEquals(copying(1), call.nioBuffer());
+        } finally {
+            call.release();
+        }
+
+        // Warm up, then measure
+        for (int i = 0; i < ROUNDS; ++i) {
+            copying(i);
+            pooled(i).release();
+        }
+        long copyingBytes = allocatedPerMB(threads, true);
+        long pooledBytes = allocatedPerMB(threads, false);
+        LOG.info("WRITE3 request bytes allocated per MB written: copying=" + copyingBytes
+                + " pooled=" + pooledBytes);
+
+        assertTrue(copyingBytes > 3L * BLOCK_SIZE);
+        assertTrue(pooledBytes < 16 * 1024);
+    }
+
+    long allocatedPerMB(com.sun.management.ThreadMXBean threads, boolean copying) {
+        long id = Thread.currentThread().getId();
+        long checksum = 0;
+        long start = threads.getThreadAllocatedBytes(id);
+        for (int i = 0; i < ROUNDS; ++i) {
+            if (copying) {
+                checksum += copying(i).remaining();
+            } else {
+                ByteBuf call = pooled(i);
+                checksum += call.readableBytes();
+                call.release();
+            }
+        }
+        long allocated = threads.getThreadAllocatedBytes(id) - start;
+        assertTrue(checksum > (long) ROUNDS * BLOCK_SIZE);
+        return allocated / ROUNDS;
+    }
+
+    /* How calls were built before: block to array, array to XDR, XDR to XDR and then to the record */
+    ByteBuffer copying(int xid) {
+        byte buffer[] = new byte[BLOCK_SIZE];
+        System.arraycopy(block, 0, buffer, 0, BLOCK_SIZE);
+        XDR in = new XDR();
+        NFSv3RequestBuilder.buildWRITE3Request(in, handle, 0L, BLOCK_SIZE, WriteStableHow.UNSTABLE, buffer);
+        XDR request = new XDR();
+        RpcCall.getInstance(xid, Nfs3Constant.PROGRAM, Nfs3Constant.VERSION, NFSPROC3.WRITE.getValue(),
+                credentials, new VerifierNone()).write(request);
+        request.writeFixedOpaque(in.getBytes());
+        return XDR.writeMessageTcp(request, true).toByteBuffer();
+    }
+
+    /* How calls are built now, the caller releases the call */
+    ByteBuf pooled(int xid) {
+        XDR in = new XDR();
+        NFSv3RequestBuilder.buildWRITE3RequestHeader(in, handle, 0L, BLOCK_SIZE, WriteStableHow.UNSTABLE);
+        return RpcClient.buildCall(PooledByteBufAllocator.DEFAULT, xid, Nfs3Constant.PROGRAM,
+                Nfs3Constant.VERSION, NFSPROC3.WRITE.getValue(), in,
+                Unpooled.wrappedBuffer(block, 0, BLOCK_SIZE), credentials);
+    }
+
+}
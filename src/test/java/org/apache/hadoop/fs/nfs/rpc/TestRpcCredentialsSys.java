@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015 Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.nfs.rpc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.hadoop.oncrpc.RpcCall;
+import org.apache.hadoop.oncrpc.XDR;
+import org.apache.hadoop.oncrpc.security.Credentials;
+import org.apache.hadoop.oncrpc.security.CredentialsNone;
+import org.apache.hadoop.oncrpc.security.CredentialsSys;
+import org.apache.hadoop.oncrpc.security.VerifierNone;
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+public class TestRpcCredentialsSys {
+
+    static byte[] call(int xid, int procedure, XDR args, Credentials credentials) {
+        ByteBuf buf = RpcClient.buildCall(ByteBufAllocator.DEFAULT, xid, 100003, 3, procedure, args, null,
+                credentials);
+        try {
+            byte bytes[] = new byte[buf.readableBytes()];
+            buf.getBytes(buf.readerIndex(), bytes);
+            return bytes;
+        } finally {
+            buf.release();
+        }
+    }
+
+    @Test
+    public void testSharedPerIdentity() {
+        RpcCredentialsSys first = RpcCredentialsSys.get(1000, 100, null);
+        assertSame(first, RpcCredentialsSys.get(1000, 100, null));
+        assertNotSame(first, RpcCredentialsSys.get(1000, 101, null));
+        assertNotSame(first, RpcCredentialsSys.get(1000, 100, new int[] { 10, 20 }));
+        assertEquals(1000, first.getUID());
+        assertEquals(100, first.getGID());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testCannotChange() {
+        RpcCredentialsSys.get(1000, 100, null).setUID(0);
+    }
+
+    @Test
+    public void testAuthNoneHeader() {
+        XDR expected = new XDR();
+        RpcCall.getInstance(7, 100003, 3, 1, new CredentialsNone(), new VerifierNone()).write(expected);
+        byte header[] = expected.getBytes();
+
+        byte bytes[] = call(7, 1, new XDR(), new CredentialsNone());
+        assertEquals(RpcClient.LAST_FRAGMENT | header.length, ByteBuffer.wrap(bytes).getInt());
+        assertArrayEquals(header, Arrays.copyOfRange(bytes, 4, bytes.length));
+    }
+
+    @Test
+    public void testAuthSysHeader() {
+        int groups[] = new int[] { 10, 20, 30 };
+        RpcCredentialsSys credentials = RpcCredentialsSys.get(1000, 100, groups);
+
+        for (int xid = 1; xid <= 2; ++xid) {
+            XDR args = new XDR();
+            args.writeInt(0xCAFE);
+            byte bytes[] = call(xid, 4, args, credentials);
+            assertEquals(0, (bytes.length - 4) % 4);
+            XDR xdr = new XDR(Arrays.copyOfRange(bytes, 4, bytes.length));
+            RpcCall call = RpcCall.read(xdr);
+            assertEquals(xid, call.getXid());
+            assertEquals(100003, call.getProgram());
+            assertEquals(3, call.getVersion());
+            assertEquals(4, call.getProcedure());
+            assertTrue(call.getCredential() instanceof CredentialsSys);
+            CredentialsSys sys = (CredentialsSys) call.getCredential();
+            assertEquals(1000, sys.getUID());
+            assertEquals(100, sys.getGID());
+            assertTrue(call.getVerifier() instanceof VerifierNone);
+            // The groups are counted in the credential length, so the arguments follow right after
+            assertEquals(0xCAFE, xdr.readInt());
+        }
+    }
+
+}
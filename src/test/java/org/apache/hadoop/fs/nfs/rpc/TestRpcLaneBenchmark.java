@@ -0,0 +1,186 @@
+/*
+ * Copyright 2015 Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.nfs.rpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.oncrpc.RpcAcceptedReply.AcceptState;
+import org.apache.hadoop.oncrpc.XDR;
+import org.apache.hadoop.oncrpc.security.CredentialsNone;
+import org.junit.Test;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Benchmark of metadata latency under a full load of 1 MB reads, with every call on the same
+ * connections versus metadata calls on a connection of their own. Logs the GETATTR latency
+ * percentiles of both.
+ */
+public class TestRpcLaneBenchmark {
+
+    static final int PROGRAM = 100003;
+    static final int GETATTR = 1;
+    static final int READ = 6;
+    static final int READ_SIZE = 1 << 20;
+    static final int READ_WINDOW = 256;
+    static final int GETATTRS = 200;
+
+    public static final Log LOG = LogFactory.getLog(TestRpcLaneBenchmark.class);
+
+    /* Answers READ with 1 MB and anything else with an empty body */
+    static class ReplyHandler extends ChannelInboundHandlerAdapter {
+        final ByteBuf data = Unpooled.wrappedBuffer(new byte[READ_SIZE]);
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ByteBuf call = (ByteBuf) msg;
+            int xid = call.getInt(call.readerIndex());
+            int procedure = call.getInt(call.readerIndex() + 20);
+            call.release();
+
+            int size = (procedure == READ) ? READ_SIZE : 0;
+            ByteBuf header = ctx.alloc().buffer(28);
+            header.writeInt(RpcFrameDecoder.LAST_FRAGMENT | (24 + size));
+            header.writeInt(xid);
+            header.writeInt(1); // REPLY
+            header.writeInt(0); // MSG_ACCEPTED
+            header.writeInt(0); // AUTH_NONE verifier
+            header.writeInt(0);
+            header.writeInt(0); // SUCCESS
+            if (size == 0) {
+                ctx.writeAndFlush(header);
+            } else {
+                ctx.writeAndFlush(Unpooled.wrappedBuffer(header, data.retainedDuplicate()));
+            }
+        }
+    }
+
+    static class LaneClient extends RpcClient {
+        LaneClient(int port, boolean metadataConnection) throws IOException {
+            super("localhost", port, 1, metadataConnection);
+        }
+
+        @Override
+        protected boolean isBulk(int program, int procedure) {
+            return procedure == READ;
+        }
+    }
+
+    @Test
+    public void testMetadataUnderReadLoad() throws Exception {
+        EventLoopGroup group = new NioEventLoopGroup(2);
+        try {
+            ServerBootstrap server = new ServerBootstrap();
+            server.group(group).channel(NioServerSocketChannel.class)
+                    .childHandler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel channel) {
+                            channel.pipeline().addLast(new RpcFrameDecoder(), new ReplyHandler());
+                        }
+                    });
+            Channel listener = server.bind("localhost", 0).syncUninterruptibly().channel();
+            int port = ((InetSocketAddress) listener.localAddress()).getPort();
+
+            // Warm up both, then measure
+            run(port, false, GETATTRS / 10);
+            run(port, true, GETATTRS / 10);
+            report("shared connection", run(port, false, GETATTRS));
+            report("metadata connection", run(port, true, GETATTRS));
+
+            listener.close().syncUninterruptibly();
+        } finally {
+            group.shutdownGracefully().syncUninterruptibly();
+        }
+    }
+
+    /* GETATTR latencies in microseconds, sorted, measured while reads keep the window full */
+    long[] run(int port, boolean metadataConnection, int getattrs) throws Exception {
+        final LaneClient client = new LaneClient(port, metadataConnection);
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Queue<ListenableFuture<RpcResult>> window = new ArrayDeque<>();
+                    while (!stop.get() || !window.isEmpty()) {
+                        if (!stop.get() && window.size() < READ_WINDOW) {
+                            window.add(client.serviceAsync(PROGRAM, 3, READ, new XDR(), new CredentialsNone()));
+                            continue;
+                        }
+                        RpcResult result = window.poll().get();
+                        result.release();
+                    }
+                } catch (Throwable throwable) {
+                    failure.set(throwable);
+                }
+            }
+        }, "lane-benchmark-reader");
+        try {
+            reader.start();
+            Thread.sleep(200);
+            long latencies[] = new long[getattrs];
+            for (int i = 0; i < getattrs; ++i) {
+                long start = System.nanoTime();
+                RpcResult result = client.serviceAsync(PROGRAM, 3, GETATTR, new XDR(), new CredentialsNone()).get();
+                latencies[i] = (System.nanoTime() - start) / 1000;
+                try {
+                    assertEquals(AcceptState.SUCCESS, result.getAcceptState());
+                } finally {
+                    result.release();
+                }
+            }
+            stop.set(true);
+            reader.join();
+            assertTrue("reads failed: " + failure.get(), failure.get() == null);
+            Arrays.sort(latencies);
+            return latencies;
+        } finally {
+            stop.set(true);
+            client.shutdown();
+        }
+    }
+
+    void report(String mode, long latencies[]) {
+        LOG.info("GETATTR under READ load, " + mode + ": p50 "
+                + latencies[latencies.length / 2] + " us, p99 "
+                + latencies[latencies.length * 99 / 100] + " us, max "
+                + latencies[latencies.length - 1] + " us");
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.nfs.rpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestRpcLatencyHistogram {
+
+    @Test
+    public void testBuckets() {
+        for (long value = 0; value < 1L << 20; value += 1 + value / 16) {
+            int bucket = RpcLatencyHistogram.bucket(value);
+            assertTrue(RpcLatencyHistogram.upperBound(bucket) >= value);
+            assertTrue(RpcLatencyHistogram.upperBound(bucket) <= value + value / 8);
+            if (bucket > 0) {
+                assertTrue(RpcLatencyHistogram.upperBound(bucket - 1) < value);
+            }
+        }
+        assertEquals(RpcLatencyHistogram.BUCKETS - 1, RpcLatencyHistogram.bucket(Long.MAX_VALUE));
+        assertEquals(0, RpcLatencyHistogram.bucket(-5));
+    }
+
+    @Test
+    public void testPercentiles() {
+        RpcLatencyHistogram histogram = new RpcLatencyHistogram();
+        for (int i = 1; i <= 1000; ++i) {
+            histogram.record(i * 100);
+        }
+        histogram.snapshot();
+        assertEquals(1000, histogram.getSnapshotCount());
+        assertNear(50000, histogram.getPercentile(0.5));
+        assertNear(99000, histogram.getPercentile(0.99));
+        assertNear(99900, histogram.getPercentile(0.999));
+    }
+
+    @Test
+    public void testSnapshotPeriods() {
+        RpcLatencyHistogram histogram = new RpcLatencyHistogram();
+        histogram.record(10000);
+        histogram.snapshot();
+        assertNear(10000, histogram.getPercentile(0.99));
+
+        // A new period only sees its own samples
+        histogram.record(100);
+        histogram.snapshot();
+        assertEquals(1, histogram.getSnapshotCount());
+        assertNear(100, histogram.getPercentile(0.99));
+
+        histogram.snapshot();
+        assertEquals(0, histogram.getPercentile(0.5));
+    }
+
+    @Test
+    public void testMetricsCounters() {
+        RpcMetrics metrics = new RpcMetrics(100003, "localhost:2049", new String[] { "NULL", "GETATTR" });
+        metrics.sent(100003, 1, 100);
+        metrics.retransmitted(100003, 1);
+        metrics.completed(100003, 1, 500, 120, false);
+        metrics.failed(100003, 1, 900);
+        metrics.completed(100005, 1, 500, 120, false);
+        metrics.completed(100003, 7, 500, 120, false);
+
+        RpcMetrics.Procedure getattr = metrics.getProcedure(100003, 1);
+        assertEquals(2, getattr.getCalls());
+        assertEquals(1, getattr.getErrors());
+        assertEquals(1, getattr.getRetransmits());
+        assertEquals(100, getattr.getBytesOut());
+        assertEquals(120, getattr.getBytesIn());
+        assertEquals(0, metrics.getProcedure(100003, 0).getCalls());
+    }
+
+    void assertNear(long expected, long actual) {
+        assertTrue("expected about " + expected + " but was " + actual,
+                actual >= expected && actual <= expected + expected / 8);
+    }
+
+}
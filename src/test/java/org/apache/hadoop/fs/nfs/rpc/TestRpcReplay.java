@@ -0,0 +1,178 @@
+/*
+ * Copyright 2015 Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.nfs.rpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.hadoop.oncrpc.RpcAcceptedReply.AcceptState;
+import org.apache.hadoop.oncrpc.XDR;
+import org.apache.hadoop.oncrpc.security.CredentialsNone;
+import org.junit.Test;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+
+public class TestRpcReplay {
+
+    /* Drops the connection on the first call and answers every call after that */
+    static class DroppingHandler extends ChannelInboundHandlerAdapter {
+        final AtomicBoolean dropped;
+        final List<Integer> xids;
+
+        DroppingHandler(AtomicBoolean dropped, List<Integer> xids) {
+            this.dropped = dropped;
+            this.xids = xids;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ByteBuf call = (ByteBuf) msg;
+            int xid = call.getInt(call.readerIndex());
+            call.release();
+            xids.add(xid);
+            if (dropped.compareAndSet(false, true)) {
+                ctx.close();
+                return;
+            }
+            ByteBuf reply = ctx.alloc().buffer(28);
+            reply.writeInt(RpcFrameDecoder.LAST_FRAGMENT | 24);
+            reply.writeInt(xid);
+            reply.writeInt(1); // REPLY
+            reply.writeInt(0); // MSG_ACCEPTED
+            reply.writeInt(0); // AUTH_NONE verifier
+            reply.writeInt(0);
+            reply.writeInt(0); // SUCCESS
+            ctx.writeAndFlush(reply);
+        }
+    }
+
+    /* Takes every call and never answers */
+    static class SilentHandler extends ChannelInboundHandlerAdapter {
+        final List<Integer> xids;
+
+        SilentHandler(List<Integer> xids) {
+            this.xids = xids;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ByteBuf call = (ByteBuf) msg;
+            xids.add(call.getInt(call.readerIndex()));
+            call.release();
+        }
+    }
+
+    @Test
+    public void testReplayAfterDisconnect() throws Exception {
+        final AtomicBoolean dropped = new AtomicBoolean(false);
+        final List<Integer> xids = new CopyOnWriteArrayList<>();
+        EventLoopGroup group = new NioEventLoopGroup(1);
+        try {
+            ServerBootstrap server = new ServerBootstrap();
+            server.group(group).channel(NioServerSocketChannel.class)
+                    .childHandler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel channel) {
+                            channel.pipeline().addLast(new RpcFrameDecoder(),
+                                    new DroppingHandler(dropped, xids));
+                        }
+                    });
+            Channel listener = server.bind("localhost", 0).syncUninterruptibly().channel();
+            int port = ((InetSocketAddress) listener.localAddress()).getPort();
+
+            RpcClient client = new RpcClient("localhost", port);
+            try {
+                long start = System.nanoTime();
+                RpcResult result = client.serviceAsync(100003, 3, 0, new XDR(), new CredentialsNone())
+                        .get(RpcClient.MAX_RPCWAIT_MS / 2, TimeUnit.MILLISECONDS);
+                long elapsedMs = (System.nanoTime() - start) / 1000000;
+                try {
+                    assertEquals(AcceptState.SUCCESS, result.getAcceptState());
+                } finally {
+                    result.release();
+                }
+
+                // Sent again right after reconnecting, well before the retransmission timeout
+                assertTrue("took " + elapsedMs + " ms", elapsedMs < RpcClient.MIN_RTO_MS);
+                assertEquals(2, xids.size());
+                assertEquals(xids.get(0), xids.get(1));
+            } finally {
+                client.shutdown();
+            }
+            listener.close().syncUninterruptibly();
+        } finally {
+            group.shutdownGracefully().syncUninterruptibly();
+        }
+    }
+
+    @Test
+    public void testDeadlineEndsRetransmissions() throws Exception {
+        final List<Integer> xids = new CopyOnWriteArrayList<>();
+        EventLoopGroup group = new NioEventLoopGroup(1);
+        try {
+            ServerBootstrap server = new ServerBootstrap();
+            server.group(group).channel(NioServerSocketChannel.class)
+                    .childHandler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel channel) {
+                            channel.pipeline().addLast(new RpcFrameDecoder(), new SilentHandler(xids));
+                        }
+                    });
+            Channel listener = server.bind("localhost", 0).syncUninterruptibly().channel();
+            int port = ((InetSocketAddress) listener.localAddress()).getPort();
+
+            RpcClient client = new RpcClient("localhost", port);
+            client.setDeadline(1500);
+            try {
+                long start = System.nanoTime();
+                try {
+                    client.serviceAsync(100003, 3, 0, new XDR(), new CredentialsNone()).get();
+                    fail("a call without a reply completed");
+                } catch (ExecutionException exception) {
+                    assertTrue(exception.getCause() instanceof RpcException);
+                }
+                long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+                // Sent after the initial timeout, then given up at the deadline
+                assertTrue("took " + elapsedMs + " ms", elapsedMs >= 1400 && elapsedMs < 5000);
+                assertEquals(2, xids.size());
+                assertEquals(xids.get(0), xids.get(1));
+            } finally {
+                client.shutdown();
+            }
+            listener.close().syncUninterruptibly();
+        } finally {
+            group.shutdownGracefully().syncUninterruptibly();
+        }
+    }
+
+}
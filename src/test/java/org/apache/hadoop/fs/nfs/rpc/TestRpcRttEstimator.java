@@ -0,0 +1,63 @@
+/*
+ * Copyright 2015 Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.nfs.rpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestRpcRttEstimator {
+
+    @Test
+    public void testInitialTimeout() {
+        RpcRttEstimator estimator = new RpcRttEstimator(10000, 100, 10000);
+        assertEquals(10000, estimator.getRtoMs());
+        assertEquals(0, estimator.getSamples());
+    }
+
+    @Test
+    public void testFirstSample() {
+        RpcRttEstimator estimator = new RpcRttEstimator(10000, 100, 10000);
+        estimator.update(200000);
+        assertEquals(200000, estimator.getSmoothedRttUs());
+        assertEquals(100000, estimator.getRttVarianceUs());
+        // srtt + 4 * rttvar = 600ms
+        assertEquals(600, estimator.getRtoMs());
+    }
+
+    @Test
+    public void testConvergesOnSteadyRtt() {
+        RpcRttEstimator estimator = new RpcRttEstimator(10000, 1, 10000);
+        for (int i = 0; i < 200; ++i) {
+            estimator.update(5000);
+        }
+        assertEquals(5000, estimator.getSmoothedRttUs());
+        assertTrue(estimator.getRtoMs() <= 6);
+    }
+
+    @Test
+    public void testBounds() {
+        RpcRttEstimator estimator = new RpcRttEstimator(10000, 1000, 8000);
+        estimator.update(10);
+        assertEquals(1000, estimator.getRtoMs());
+        for (int i = 0; i < 10; ++i) {
+            estimator.update(60000000);
+        }
+        assertEquals(8000, estimator.getRtoMs());
+    }
+
+}
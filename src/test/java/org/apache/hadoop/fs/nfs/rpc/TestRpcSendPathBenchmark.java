@@ -0,0 +1,168 @@
+/*
+ * Copyright 2015 Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.nfs.rpc;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.nfs.server.NfsTestServer;
+import org.apache.hadoop.oncrpc.RpcAcceptedReply.AcceptState;
+import org.apache.hadoop.oncrpc.XDR;
+import org.apache.hadoop.oncrpc.security.CredentialsNone;
+import org.junit.Assume;
+import org.junit.Test;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Latency and CPU of the event driven send path against the in-process test server, compared with
+ * the same client with the idle polling pump it replaced put back in its pipeline: a writer idle
+ * event every millisecond (the shortest Netty allows) that drains the connection queue. The pump
+ * no longer decides when calls go out, so this measures what the polling costs rather than the
+ * queueing behind it. Logs the CPU used while idle, and the latency and CPU per NULL call, one at
+ * a time and with a window of calls in flight.
+ */
+public class TestRpcSendPathBenchmark {
+
+    static final int PROGRAM = 100003;
+    static final int CALLS = 4000;
+    static final int WINDOW = 32;
+    static final long IDLE_MS = 1000;
+
+    public static final Log LOG = LogFactory.getLog(TestRpcSendPathBenchmark.class);
+
+    /* What the client pipeline used to do on every idle event */
+    static class Pump extends ChannelInboundHandlerAdapter {
+        final RpcConnection connection;
+
+        Pump(RpcConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object event) {
+            if (event instanceof IdleStateEvent) {
+                connection.drain(ctx.channel());
+            } else {
+                ctx.fireUserEventTriggered(event);
+            }
+        }
+    }
+
+    @Test
+    public void testEventDrivenVersusPolling() throws Exception {
+        OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.OperatingSystemMXBean);
+        com.sun.management.OperatingSystemMXBean cpu = (com.sun.management.OperatingSystemMXBean) bean;
+        Assume.assumeTrue(cpu.getProcessCpuTime() >= 0);
+
+        try (NfsTestServer server = new NfsTestServer()) {
+            // Warm up both, then measure
+            run(cpu, server, false);
+            run(cpu, server, true);
+            long polling[] = run(cpu, server, true);
+            long events[] = run(cpu, server, false);
+            report("polling", polling);
+            report("event driven", events);
+        }
+    }
+
+    /*
+     * Idle CPU in ms, then p50, p99 and CPU in us per call one at a time, then the same with a
+     * window of calls in flight
+     */
+    long[] run(com.sun.management.OperatingSystemMXBean cpu, NfsTestServer server, boolean polling)
+            throws Exception {
+        RpcClient client = new RpcClient("localhost", server.getNfsPort());
+        try {
+            if (polling) {
+                for (RpcConnection connection : client.connections) {
+                    ChannelPipeline pipeline = connection.future.channel().pipeline();
+                    pipeline.addLast(new IdleStateHandler(0, 1, 0, TimeUnit.MILLISECONDS));
+                    pipeline.addLast(new Pump(connection));
+                }
+            }
+            long result[] = new long[7];
+            long start = cpu.getProcessCpuTime();
+            Thread.sleep(IDLE_MS);
+            result[0] = TimeUnit.NANOSECONDS.toMillis(cpu.getProcessCpuTime() - start);
+
+            long latencies[] = new long[CALLS];
+            start = cpu.getProcessCpuTime();
+            for (int i = 0; i < CALLS; ++i) {
+                long sent = System.nanoTime();
+                complete(client.serviceAsync(PROGRAM, 3, 0, new XDR(), new CredentialsNone()));
+                latencies[i] = (System.nanoTime() - sent) / 1000;
+            }
+            result[3] = (cpu.getProcessCpuTime() - start) / 1000 / CALLS;
+            Arrays.sort(latencies);
+            result[1] = latencies[CALLS / 2];
+            result[2] = latencies[CALLS * 99 / 100];
+
+            int n = 0;
+            start = cpu.getProcessCpuTime();
+            for (int i = 0; i < CALLS; i += WINDOW) {
+                long sent = System.nanoTime();
+                List<ListenableFuture<RpcResult>> futures = new ArrayList<>();
+                for (int j = 0; j < WINDOW; ++j) {
+                    futures.add(client.serviceAsync(PROGRAM, 3, 0, new XDR(), new CredentialsNone()));
+                }
+                for (ListenableFuture<RpcResult> future : futures) {
+                    complete(future);
+                    latencies[n++] = (System.nanoTime() - sent) / 1000;
+                }
+            }
+            result[6] = (cpu.getProcessCpuTime() - start) / 1000 / CALLS;
+            Arrays.sort(latencies);
+            result[4] = latencies[CALLS / 2];
+            result[5] = latencies[CALLS * 99 / 100];
+            return result;
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    void complete(ListenableFuture<RpcResult> future) throws Exception {
+        RpcResult result = future.get();
+        try {
+            assertEquals(AcceptState.SUCCESS, result.getAcceptState());
+        } finally {
+            result.release();
+        }
+    }
+
+    void report(String mode, long run[]) {
+        LOG.info("RPC send path, " + mode + ": idle " + run[0] + " ms CPU in " + IDLE_MS
+                + " ms; one at a time p50 " + run[1] + " us, p99 " + run[2] + " us, " + run[3]
+                + " us CPU per call; " + WINDOW + " in flight p50 " + run[4] + " us, p99 " + run[5]
+                + " us, " + run[6] + " us CPU per call");
+    }
+
+}
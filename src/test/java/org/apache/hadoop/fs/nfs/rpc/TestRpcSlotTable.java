@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015 Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.nfs.rpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestRpcSlotTable {
+
+    @Test
+    public void testSlotLimit() throws Exception {
+        final RpcSlotTable slots = new RpcSlotTable();
+        slots.configure(2, 1024, false);
+        assertTrue(slots.acquire(10));
+        assertTrue(slots.acquire(10));
+        assertEquals(2, slots.getSlotsInUse());
+        assertEquals(20, slots.getBytesInUse());
+
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                slots.acquire(10);
+                acquired.countDown();
+            }
+        };
+        waiter.start();
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+        slots.release(10);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        assertEquals(2, slots.getSlotsInUse());
+        assertEquals(1, slots.getWaits());
+    }
+
+    @Test
+    public void testByteLimit() throws Exception {
+        RpcSlotTable slots = new RpcSlotTable();
+        slots.configure(16, 100, false);
+        // An empty table always admits one call, however large
+        assertTrue(slots.acquire(500));
+        slots.release(500);
+        assertTrue(slots.acquire(60));
+
+        final RpcSlotTable table = slots;
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                table.acquire(60);
+                acquired.countDown();
+            }
+        };
+        waiter.start();
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+        slots.release(60);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testTryAcquire() throws Exception {
+        RpcSlotTable slots = new RpcSlotTable();
+        slots.configure(1, 1024, false);
+        assertTrue(slots.tryAcquire(10));
+        assertFalse(slots.tryAcquire(10));
+        assertEquals(1, slots.getSlotsInUse());
+        assertEquals(0, slots.getWaits());
+        slots.release(10);
+        assertTrue(slots.tryAcquire(10));
+        slots.release(10);
+        slots.close();
+        assertFalse(slots.tryAcquire(10));
+    }
+
+    @Test
+    public void testCloseWakesWaiters() throws Exception {
+        final RpcSlotTable slots = new RpcSlotTable();
+        slots.configure(1, 1024, false);
+        assertTrue(slots.acquire(1));
+        final boolean result[] = new boolean[] { true };
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                result[0] = slots.acquire(1);
+            }
+        };
+        waiter.start();
+        Thread.sleep(100);
+        slots.close();
+        waiter.join(5000);
+        assertFalse(result[0]);
+    }
+
+    @Test
+    public void testAdaptive() {
+        RpcSlotTable slots = new RpcSlotTable();
+        slots.configure(64, 1024, true);
+        assertEquals(RpcSlotTable.INITIAL_ADAPTIVE_SLOTS, slots.getSlotLimit());
+
+        // A full window of timely replies adds one slot
+        for (int i = 0; i < RpcSlotTable.INITIAL_ADAPTIVE_SLOTS; ++i) {
+            slots.update(false, 0);
+        }
+        assertEquals(RpcSlotTable.INITIAL_ADAPTIVE_SLOTS + 1, slots.getSlotLimit());
+
+        // A late reply halves it, but only once per interval
+        slots.update(true, TimeUnit.SECONDS.toNanos(60));
+        assertEquals((RpcSlotTable.INITIAL_ADAPTIVE_SLOTS + 1) / 2, slots.getSlotLimit());
+        slots.update(true, TimeUnit.SECONDS.toNanos(60));
+        assertEquals((RpcSlotTable.INITIAL_ADAPTIVE_SLOTS + 1) / 2, slots.getSlotLimit());
+    }
+
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2015 Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.nfs.rpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class TestRpcTransport {
+
+    @Test
+    public void testSharedUntilLastRelease() {
+        RpcTransport first = RpcTransport.acquire();
+        RpcTransport second = RpcTransport.acquire();
+        assertSame(first, second);
+        assertEquals(2, first.getReferences());
+
+        first.release();
+        assertEquals(1, first.getReferences());
+        RpcTransport third = RpcTransport.acquire();
+        assertSame(first, third);
+
+        third.release();
+        second.release();
+        assertEquals(0, first.getReferences());
+
+        RpcTransport restarted = RpcTransport.acquire();
+        assertNotSame(first, restarted);
+        restarted.release();
+    }
+
+    @Test
+    public void testWorkerCount() {
+        int previous = RpcTransport.getWorkerCount();
+        try {
+            RpcTransport.setWorkerCount(3);
+            RpcTransport transport = RpcTransport.acquire();
+            assertEquals(3, transport.getWorkers());
+            transport.release();
+        } finally {
+            RpcTransport.setWorkerCount(previous);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReleaseTwice() {
+        RpcTransport transport = RpcTransport.acquire();
+        transport.release();
+        transport.release();
+    }
+
+}
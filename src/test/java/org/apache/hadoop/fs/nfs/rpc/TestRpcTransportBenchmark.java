@@ -0,0 +1,154 @@
+/*
+ * Copyright 2015 Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.nfs.rpc;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.oncrpc.RpcAcceptedReply.AcceptState;
+import org.apache.hadoop.oncrpc.XDR;
+import org.apache.hadoop.oncrpc.security.CredentialsNone;
+import org.junit.Test;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Benchmark of the transport against a loopback server that answers every call with a 1 MB
+ * accepted reply, reading replies into pooled direct buffers versus a new buffer per read. Logs
+ * the throughput and the collections it caused.
+ */
+public class TestRpcTransportBenchmark {
+
+    static final int REPLY_SIZE = 1 << 20;
+    static final int CALLS = 256;
+    static final int WINDOW = 16;
+
+    public static final Log LOG = LogFactory.getLog(TestRpcTransportBenchmark.class);
+
+    /* Replies to any call with the same body, skipping the call itself */
+    static class ReplyHandler extends ChannelInboundHandlerAdapter {
+        final ByteBuf body = Unpooled.wrappedBuffer(new byte[REPLY_SIZE]);
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ByteBuf call = (ByteBuf) msg;
+            int xid = call.getInt(call.readerIndex());
+            call.release();
+
+            ByteBuf header = ctx.alloc().buffer(28);
+            header.writeInt(RpcFrameDecoder.LAST_FRAGMENT | (24 + REPLY_SIZE));
+            header.writeInt(xid);
+            header.writeInt(1); // REPLY
+            header.writeInt(0); // MSG_ACCEPTED
+            header.writeInt(0); // AUTH_NONE verifier
+            header.writeInt(0);
+            header.writeInt(0); // SUCCESS
+            ctx.writeAndFlush(Unpooled.wrappedBuffer(header, body.retainedDuplicate()));
+        }
+    }
+
+    @Test
+    public void testPooledVersusUnpooled() throws Exception {
+        EventLoopGroup group = new NioEventLoopGroup(1);
+        boolean pooled = RpcTransport.getPooledBuffers();
+        try {
+            ServerBootstrap server = new ServerBootstrap();
+            server.group(group).channel(NioServerSocketChannel.class)
+                    .childHandler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel channel) {
+                            channel.pipeline().addLast(new RpcFrameDecoder(), new ReplyHandler());
+                        }
+                    });
+            Channel listener = server.bind("localhost", 0).syncUninterruptibly().channel();
+            int port = ((InetSocketAddress) listener.localAddress()).getPort();
+
+            // Warm up both, then measure
+            run(port, false);
+            run(port, true);
+            report("unpooled", run(port, false));
+            report("pooled", run(port, true));
+
+            listener.close().syncUninterruptibly();
+        } finally {
+            RpcTransport.setPooledBuffers(pooled);
+            group.shutdownGracefully().syncUninterruptibly();
+        }
+    }
+
+    long[] run(int port, boolean pooled) throws Exception {
+        RpcTransport.setPooledBuffers(pooled);
+        RpcClient client = new RpcClient("localhost", port);
+        try {
+            long collections = collections(false);
+            long collectionTime = collections(true);
+            long start = System.nanoTime();
+            for (int i = 0; i < CALLS; i += WINDOW) {
+                List<ListenableFuture<RpcResult>> futures = new ArrayList<>();
+                for (int j = 0; j < WINDOW; ++j) {
+                    futures.add(client.serviceAsync(100003, 3, 0, new XDR(), new CredentialsNone()));
+                }
+                for (ListenableFuture<RpcResult> future : futures) {
+                    RpcResult result = future.get();
+                    try {
+                        assertEquals(AcceptState.SUCCESS, result.getAcceptState());
+                        assertEquals(REPLY_SIZE, result.getBuffer().readableBytes());
+                    } finally {
+                        result.release();
+                    }
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            return new long[] { elapsed, collections(false) - collections, collections(true) - collectionTime };
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    void report(String mode, long[] run) {
+        double seconds = run[0] / 1e9;
+        LOG.info("RPC transport " + mode + ": "
+                + String.format("%.1f", (double) CALLS * REPLY_SIZE / (1 << 20) / seconds) + " MB/s, "
+                + run[1] + " collection(s) taking " + run[2] + " ms");
+    }
+
+    long collections(boolean time) {
+        long total = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, time ? bean.getCollectionTime() : bean.getCollectionCount());
+        }
+        return total;
+    }
+
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2015 Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.nfs.server;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.nfs.NFSv3FileSystem;
+import org.apache.hadoop.fs.nfs.rpc.RpcFrameDecoder;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
+/**
+ * An NFSv3, MOUNT and portmap server in the test process, serving an in-memory tree on three
+ * loopback ports, so that the filesystem can be tested and measured without a filer. Every port
+ * answers all three programs and portmap points at the others. Replies can be slowed down by a
+ * fixed latency and a bandwidth limit, calls can be dropped at random, and the server can be
+ * rebooted, which closes every connection, loses uncommitted writes and changes the write
+ * verifier.
+ */
+public class NfsTestServer implements Closeable {
+
+    public static final long FSID = 0x4e4653L;
+    public static final int DEFAULT_MAX_TRANSFER_SIZE = 1 << 20;
+
+    final NfsTestTree tree;
+    final EventLoopGroup group;
+    final ChannelGroup connections;
+    final Channel nfs;
+    final Channel mount;
+    final Channel portmap;
+    final AtomicLong calls;
+    final AtomicLong dropped;
+
+    volatile long latencyNanos;
+    volatile long bytesPerSecond;
+    volatile double dropRate;
+    volatile long writeVerifier;
+    volatile int maxTransferSize;
+    long linkFreeAt;
+    File mappingFile;
+    final StringBuilder options = new StringBuilder();
+
+    public static final Log LOG = LogFactory.getLog(NfsTestServer.class);
+
+    public NfsTestServer() {
+        this(new NfsTestTree());
+    }
+
+    public NfsTestServer(NfsTestTree tree) {
+        this.tree = tree;
+        this.calls = new AtomicLong();
+        this.dropped = new AtomicLong();
+        this.writeVerifier = ThreadLocalRandom.current().nextLong();
+        this.maxTransferSize = DEFAULT_MAX_TRANSFER_SIZE;
+        this.connections = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+        this.group = new NioEventLoopGroup(2, new DefaultThreadFactory("nfs-test-server", true));
+
+        final NfsTestServerHandler handler = new NfsTestServerHandler(this);
+        ServerBootstrap bootstrap = new ServerBootstrap();
+        bootstrap.group(group).channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel channel) {
+                        connections.add(channel);
+                        channel.pipeline().addLast(new RpcFrameDecoder(), handler);
+                    }
+                });
+        try {
+            nfs = bootstrap.bind("localhost", 0).syncUninterruptibly().channel();
+            mount = bootstrap.bind("localhost", 0).syncUninterruptibly().channel();
+            portmap = bootstrap.bind("localhost", 0).syncUninterruptibly().channel();
+        } catch (RuntimeException exception) {
+            group.shutdownGracefully();
+            throw exception;
+        }
+        LOG.info("NFS test server on port " + getNfsPort() + ", MOUNT on " + getMountPort()
+                + ", portmap on " + getPortmapPort());
+    }
+
+    public NfsTestTree getTree() {
+        return tree;
+    }
+
+    public int getNfsPort() {
+        return ((InetSocketAddress) nfs.localAddress()).getPort();
+    }
+
+    public int getMountPort() {
+        return ((InetSocketAddress) mount.localAddress()).getPort();
+    }
+
+    public int getPortmapPort() {
+        return ((InetSocketAddress) portmap.localAddress()).getPort();
+    }
+
+    /* Port of a program as portmap reports it, 0 if unknown */
+    int getPort(int program) {
+        switch (program) {
+            case NfsTestServerHandler.NFS_PROGRAM:
+                return getNfsPort();
+            case NfsTestServerHandler.MOUNT_PROGRAM:
+                return getMountPort();
+            case NfsTestServerHandler.PORTMAP_PROGRAM:
+                return getPortmapPort();
+            default:
+                return 0;
+        }
+    }
+
+    public long getFsid() {
+        return FSID;
+    }
+
+    public long getWriteVerifier() {
+        return writeVerifier;
+    }
+
+    public int getMaxTransferSize() {
+        return maxTransferSize;
+    }
+
+    /**
+     * The largest READ and WRITE the server reports in FSINFO and serves.
+     */
+    public void setMaxTransferSize(int maxTransferSize) {
+        this.maxTransferSize = maxTransferSize;
+    }
+
+    /**
+     * Delay every reply by this much.
+     */
+    public void setLatency(long latency, TimeUnit unit) {
+        this.latencyNanos = unit.toNanos(latency);
+    }
+
+    /**
+     * Limit the bytes of calls and replies together to this many per second, 0 for no limit.
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Drop this fraction of the calls without running them or replying, so that the client has to
+     * retransmit.
+     */
+    public void setDropRate(double dropRate) {
+        this.dropRate = dropRate;
+    }
+
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * Add a namespace option to the configuration, before the first one is made.
+     */
+    public synchronized void setOption(String name, Object value) {
+        if (mappingFile != null) {
+            throw new IllegalStateException("The configuration is already written");
+        }
+        String json = (value instanceof String) ? "\"" + value + "\"" : String.valueOf(value);
+        options.append("    \"").append(name).append("\": ").append(json).append(",\n");
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Close every client connection, as if the network had failed.
+     */
+    public void disconnect() {
+        connections.close().awaitUninterruptibly();
+    }
+
+    /**
+     * Restart without losing the tree: connections are closed, writes that were not committed are
+     * lost, and the write verifier changes so that clients know to send them again.
+     */
+    public void reboot() {
+        disconnect();
+        int reverted;
+        synchronized (tree) {
+            reverted = tree.revertUncommitted();
+            long verifier;
+            do {
+                verifier = ThreadLocalRandom.current().nextLong();
+            } while (verifier == writeVerifier);
+            writeVerifier = verifier;
+        }
+        LOG.info("NFS test server rebooted, lost uncommitted writes to " + reverted + " file(s)");
+    }
+
+    boolean shouldDrop() {
+        calls.incrementAndGet();
+        double rate = dropRate;
+        if (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate) {
+            dropped.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /*
+     * The link is modelled as a single queue: a reply leaves once the bytes ahead of it and its own
+     * call and reply have gone through at the configured rate, plus the latency.
+     */
+    void sendReply(final ChannelHandlerContext ctx, final ByteBuf frame, int callSize) {
+        long delay = latencyNanos;
+        long rate = bytesPerSecond;
+        if (rate > 0) {
+            long now = System.nanoTime();
+            long transfer = (callSize + frame.readableBytes()) * 1000000000L / rate;
+            synchronized (this) {
+                linkFreeAt = Math.max(linkFreeAt, now) + transfer;
+                delay += linkFreeAt - now;
+            }
+        }
+        if (delay <= 0) {
+            ctx.writeAndFlush(frame);
+        } else {
+            ctx.executor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    ctx.writeAndFlush(frame);
+                }
+            }, delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public Configuration getConfiguration() throws IOException {
+        return configure(new Configuration());
+    }
+
+    /**
+     * Make this server the default filesystem of the configuration. The namespace is written to a
+     * temporary file that is deleted on close.
+     */
+    public synchronized Configuration configure(Configuration conf) throws IOException {
+        String uri = "nfs://localhost:" + getNfsPort() + "/";
+        if (mappingFile == null) {
+            mappingFile = File.createTempFile("nfs-test-server-", ".json");
+            mappingFile.deleteOnExit();
+            try (Writer writer = new FileWriter(mappingFile)) {
+                writer.write("{ \"spaces\": [ {\n"
+                        + "  \"name\": \"nfs-test-server\",\n"
+                        + "  \"uri\": \"" + uri + "\",\n"
+                        + "  \"options\": {\n"
+                        + options
+                        + "    \"nfsExportPath\": \"/\",\n"
+                        + "    \"nfsAuthScheme\": \"AUTH_SYS\",\n"
+                        + "    \"nfsUsername\": \"root\",\n"
+                        + "    \"nfsGroupname\": \"root\",\n"
+                        + "    \"nfsUid\": 0,\n"
+                        + "    \"nfsGid\": 0,\n"
+                        + "    \"nfsPort\": " + getNfsPort() + ",\n"
+                        + "    \"nfsMountPort\": -1,\n"
+                        + "    \"nfsRpcbindPort\": " + getPortmapPort() + "\n"
+                        + "  },\n"
+                        + "  \"endpoints\": [ { \"host\": \"" + uri + "\", \"path\": \"/\" } ]\n"
+                        + "} ] }\n");
+            }
+        }
+        conf.set("fs.defaultFS", uri);
+        conf.set("fs.contract.test.fs.nfs", uri);
+        conf.set("fs." + NFSv3FileSystem.NFS_URI_SCHEME + ".impl", NFSv3FileSystem.class.getName());
+        conf.set("fs." + NFSv3FileSystem.NFS_URI_SCHEME + ".configuration", mappingFile.getPath());
+        return conf;
+    }
+
+    @Override
+    public void close() {
+        nfs.close().awaitUninterruptibly();
+        mount.close().awaitUninterruptibly();
+        portmap.close().awaitUninterruptibly();
+        disconnect();
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).awaitUninterruptibly();
+        synchronized (this) {
+            if (mappingFile != null) {
+                mappingFile.delete();
+                mappingFile = null;
+            }
+        }
+    }
+
+}
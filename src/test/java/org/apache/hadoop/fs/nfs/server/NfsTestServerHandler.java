@@ -0,0 +1,822 @@
+/*
+ * Copyright 2015 Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.nfs.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.nfs.server.NfsTestTree.Node;
+import org.apache.hadoop.nfs.nfs3.Nfs3FileHandle;
+import org.apache.hadoop.oncrpc.XDR;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+/**
+ * Decodes ONC RPC calls for the NFSv3, MOUNT v3 and portmap v2 programs, runs them against the
+ * tree of the server and writes the replies, after the latency, bandwidth and drops configured on
+ * the server. Arguments and results are encoded by hand from RFC 1813 and RFC 1833, so that the
+ * client decoders are checked against the wire format and not against themselves.
+ */
+@Sharable
+class NfsTestServerHandler extends ChannelInboundHandlerAdapter {
+
+    static final int LAST_FRAGMENT = 0x80000000;
+
+    static final int NFS_PROGRAM = 100003;
+    static final int NFS_VERSION = 3;
+    static final int MOUNT_PROGRAM = 100005;
+    static final int MOUNT_VERSION = 3;
+    static final int PORTMAP_PROGRAM = 100000;
+    static final int PORTMAP_VERSION = 2;
+
+    /* accept_stat */
+    static final int SUCCESS = 0;
+    static final int PROG_UNAVAIL = 1;
+    static final int PROG_MISMATCH = 2;
+    static final int PROC_UNAVAIL = 3;
+    static final int GARBAGE_ARGS = 4;
+
+    /* nfsstat3 */
+    static final int NFS3_OK = 0;
+    static final int NFS3ERR_NOENT = 2;
+    static final int NFS3ERR_EXIST = 17;
+    static final int NFS3ERR_NOTDIR = 20;
+    static final int NFS3ERR_ISDIR = 21;
+    static final int NFS3ERR_INVAL = 22;
+    static final int NFS3ERR_NOTEMPTY = 66;
+    static final int NFS3ERR_STALE = 70;
+    static final int NFS3ERR_NOTSUPP = 10004;
+    static final int NFS3ERR_TOOSMALL = 10005;
+
+    static final int UNSTABLE = 0;
+    static final int FILE_SYNC = 2;
+    static final int EXCLUSIVE = 2;
+
+    /* Size of a READDIR entry besides its name, and of the attributes and handle READDIRPLUS adds */
+    static final int ENTRY_SIZE = 4 + 8 + 4 + 8;
+    static final int ENTRY_PLUS_SIZE = ENTRY_SIZE + 4 + 84 + 4 + 4 + 32;
+
+    final NfsTestServer server;
+    final NfsTestTree tree;
+
+    public static final Log LOG = LogFactory.getLog(NfsTestServerHandler.class);
+
+    NfsTestServerHandler(NfsTestServer server) {
+        this.server = server;
+        this.tree = server.getTree();
+    }
+
+    /* Caller of the call being served, from AUTH_SYS credentials */
+    static class Caller {
+        int uid;
+        int gid;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        ByteBuf call = (ByteBuf) msg;
+        int callSize = call.readableBytes();
+        byte bytes[] = new byte[callSize];
+        call.readBytes(bytes);
+        call.release();
+
+        if (server.shouldDrop()) {
+            LOG.debug("Dropping a call of " + callSize + " bytes");
+            return;
+        }
+
+        XDR in = new XDR(bytes);
+        int xid = in.readInt();
+        XDR out = new XDR();
+        try {
+            handleCall(xid, in, out);
+        } catch (RuntimeException exception) {
+            LOG.warn("Could not decode call xid=" + xid + ": " + exception);
+            out = new XDR();
+            writeAccepted(out, xid, GARBAGE_ARGS);
+        }
+
+        byte reply[] = out.getBytes();
+        ByteBuf frame = Unpooled.buffer(4 + reply.length);
+        frame.writeInt(LAST_FRAGMENT | reply.length);
+        frame.writeBytes(reply);
+        server.sendReply(ctx, frame, callSize);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        LOG.debug("Closing connection after " + cause);
+        ctx.close();
+    }
+
+    void handleCall(int xid, XDR in, XDR out) {
+        in.readInt(); // CALL
+        in.readInt(); // RPC version
+        int program = in.readInt();
+        int version = in.readInt();
+        int procedure = in.readInt();
+        Caller caller = readCredentials(in);
+        in.readInt(); // verifier flavor
+        in.readVariableOpaque();
+
+        switch (program) {
+            case NFS_PROGRAM:
+                if (version != NFS_VERSION) {
+                    writeMismatch(out, xid, NFS_VERSION);
+                    return;
+                }
+                handleNfs(xid, procedure, caller, in, out);
+                return;
+            case MOUNT_PROGRAM:
+                if (version != MOUNT_VERSION) {
+                    writeMismatch(out, xid, MOUNT_VERSION);
+                    return;
+                }
+                handleMount(xid, procedure, in, out);
+                return;
+            case PORTMAP_PROGRAM:
+                if (version != PORTMAP_VERSION) {
+                    writeMismatch(out, xid, PORTMAP_VERSION);
+                    return;
+                }
+                handlePortmap(xid, procedure, in, out);
+                return;
+            default:
+                writeAccepted(out, xid, PROG_UNAVAIL);
+        }
+    }
+
+    Caller readCredentials(XDR in) {
+        Caller caller = new Caller();
+        int flavor = in.readInt();
+        byte body[] = in.readVariableOpaque();
+        if (flavor == 1) {
+            XDR sys = new XDR(body);
+            sys.readInt(); // stamp
+            sys.readVariableOpaque(); // machine name
+            caller.uid = sys.readInt();
+            caller.gid = sys.readInt();
+        }
+        return caller;
+    }
+
+    /*
+     * Portmap: only knows the programs of this server
+     */
+    void handlePortmap(int xid, int procedure, XDR in, XDR out) {
+        switch (procedure) {
+            case 0:
+                writeAccepted(out, xid, SUCCESS);
+                return;
+            case 3: {
+                int program = in.readInt();
+                in.readInt(); // version
+                in.readInt(); // protocol
+                writeAccepted(out, xid, SUCCESS);
+                out.writeInt(server.getPort(program));
+                return;
+            }
+            case 4:
+                writeAccepted(out, xid, SUCCESS);
+                for (int program : new int[] { PORTMAP_PROGRAM, MOUNT_PROGRAM, NFS_PROGRAM }) {
+                    out.writeBoolean(true);
+                    out.writeInt(program);
+                    out.writeInt(program == PORTMAP_PROGRAM ? PORTMAP_VERSION : 3);
+                    out.writeInt(6); // TCP
+                    out.writeInt(server.getPort(program));
+                }
+                out.writeBoolean(false);
+                return;
+            default:
+                writeAccepted(out, xid, PROC_UNAVAIL);
+        }
+    }
+
+    /*
+     * MOUNT: any directory of the tree can be mounted
+     */
+    void handleMount(int xid, int procedure, XDR in, XDR out) {
+        switch (procedure) {
+            case 0: // NULL
+            case 3: // UMNT
+            case 4: // UMNTALL
+                writeAccepted(out, xid, SUCCESS);
+                return;
+            case 1: {
+                String path = in.readString();
+                Node node = tree.resolve(path);
+                writeAccepted(out, xid, SUCCESS);
+                if (node == null) {
+                    out.writeInt(2); // MNT3ERR_NOENT
+                } else if (!node.isDirectory()) {
+                    out.writeInt(20); // MNT3ERR_NOTDIR
+                } else {
+                    out.writeInt(0);
+                    writeHandle(out, node);
+                    out.writeInt(2);
+                    out.writeInt(0); // AUTH_NONE
+                    out.writeInt(1); // AUTH_SYS
+                }
+                return;
+            }
+            case 2: // DUMP
+                writeAccepted(out, xid, SUCCESS);
+                out.writeBoolean(false);
+                return;
+            case 5: // EXPORT
+                writeAccepted(out, xid, SUCCESS);
+                out.writeBoolean(true);
+                out.writeString("/");
+                out.writeBoolean(false);
+                out.writeBoolean(false);
+                return;
+            default:
+                writeAccepted(out, xid, PROC_UNAVAIL);
+        }
+    }
+
+    /*
+     * NFSv3
+     */
+    void handleNfs(int xid, int procedure, Caller caller, XDR in, XDR out) {
+        if (procedure == 0) {
+            writeAccepted(out, xid, SUCCESS);
+            return;
+        }
+        if (procedure < 0 || procedure > 21) {
+            writeAccepted(out, xid, PROC_UNAVAIL);
+            return;
+        }
+        XDR result = new XDR();
+        synchronized (tree) {
+            switch (procedure) {
+                case 1:
+                    getattr(in, result);
+                    break;
+                case 2:
+                    setattr(in, result);
+                    break;
+                case 3:
+                    lookup(in, result);
+                    break;
+                case 4:
+                    access(in, result);
+                    break;
+                case 6:
+                    read(in, result);
+                    break;
+                case 7:
+                    write(in, result);
+                    break;
+                case 8:
+                    create(in, result, caller);
+                    break;
+                case 9:
+                    mkdir(in, result, caller);
+                    break;
+                case 12:
+                    remove(in, result, false);
+                    break;
+                case 13:
+                    remove(in, result, true);
+                    break;
+                case 14:
+                    rename(in, result);
+                    break;
+                case 16:
+                    readdir(in, result, false);
+                    break;
+                case 17:
+                    readdir(in, result, true);
+                    break;
+                case 18:
+                    fsstat(in, result);
+                    break;
+                case 19:
+                    fsinfo(in, result);
+                    break;
+                case 20:
+                    pathconf(in, result);
+                    break;
+                case 21:
+                    commit(in, result);
+                    break;
+                default:
+                    notsupp(procedure, result);
+            }
+        }
+        writeAccepted(out, xid, SUCCESS);
+        out.writeFixedOpaque(result.getBytes());
+    }
+
+    void getattr(XDR in, XDR out) {
+        Node node = readHandle(in);
+        if (node == null) {
+            out.writeInt(NFS3ERR_STALE);
+            return;
+        }
+        out.writeInt(NFS3_OK);
+        writeAttributes(out, node);
+    }
+
+    void setattr(XDR in, XDR out) {
+        Node node = readHandle(in);
+        if (node == null) {
+            out.writeInt(NFS3ERR_STALE);
+            writeWcc(out, null);
+            return;
+        }
+        long before[] = preOp(node);
+        applyAttributes(in, node);
+        if (in.readBoolean()) {
+            in.readInt(); // guard ctime
+            in.readInt();
+        }
+        node.ctime = tree.now();
+        out.writeInt(NFS3_OK);
+        writeWcc(out, before, node);
+    }
+
+    void lookup(XDR in, XDR out) {
+        Node dir = readHandle(in);
+        String name = in.readString();
+        if (dir == null || !dir.isDirectory()) {
+            out.writeInt(dir == null ? NFS3ERR_STALE : NFS3ERR_NOTDIR);
+            writePostOp(out, dir);
+            return;
+        }
+        Node node = child(dir, name);
+        if (node == null) {
+            out.writeInt(NFS3ERR_NOENT);
+            writePostOp(out, dir);
+            return;
+        }
+        out.writeInt(NFS3_OK);
+        writeHandle(out, node);
+        writePostOp(out, node);
+        writePostOp(out, dir);
+    }
+
+    void access(XDR in, XDR out) {
+        Node node = readHandle(in);
+        int access = in.readInt();
+        if (node == null) {
+            out.writeInt(NFS3ERR_STALE);
+            writePostOp(out, null);
+            return;
+        }
+        out.writeInt(NFS3_OK);
+        writePostOp(out, node);
+        out.writeInt(access);
+    }
+
+    void read(XDR in, XDR out) {
+        Node node = readHandle(in);
+        long offset = in.readHyper();
+        int count = in.readInt();
+        if (node == null || node.isDirectory()) {
+            out.writeInt(node == null ? NFS3ERR_STALE : NFS3ERR_ISDIR);
+            writePostOp(out, node);
+            return;
+        }
+        byte data[] = node.read(offset, Math.min(count, server.getMaxTransferSize()));
+        node.atime = tree.now();
+        out.writeInt(NFS3_OK);
+        writePostOp(out, node);
+        out.writeInt(data.length);
+        out.writeBoolean(offset + data.length >= node.size);
+        out.writeVariableOpaque(data);
+    }
+
+    void write(XDR in, XDR out) {
+        Node node = readHandle(in);
+        long offset = in.readHyper();
+        int count = in.readInt();
+        int stable = in.readInt();
+        byte data[] = in.readVariableOpaque();
+        if (node == null || node.isDirectory()) {
+            out.writeInt(node == null ? NFS3ERR_STALE : NFS3ERR_ISDIR);
+            writeWcc(out, node);
+            return;
+        }
+        long before[] = preOp(node);
+        int length = Math.min(count, data.length);
+        tree.write(node, offset, data, length, stable != UNSTABLE);
+        out.writeInt(NFS3_OK);
+        writeWcc(out, before, node);
+        out.writeInt(length);
+        out.writeInt(stable == UNSTABLE ? UNSTABLE : FILE_SYNC);
+        out.writeLongAsHyper(server.getWriteVerifier());
+    }
+
+    void create(XDR in, XDR out, Caller caller) {
+        Node dir = readHandle(in);
+        String name = in.readString();
+        int how = in.readInt();
+        Node created;
+        if (dir == null || !dir.isDirectory()) {
+            out.writeInt(dir == null ? NFS3ERR_STALE : NFS3ERR_NOTDIR);
+            writeWcc(out, dir);
+            return;
+        }
+        long before[] = preOp(dir);
+        Node existing = child(dir, name);
+        if (existing != null && (how != 0 || existing.isDirectory())) {
+            out.writeInt(NFS3ERR_EXIST);
+            writeWcc(out, before, dir);
+            return;
+        }
+        if (how == EXCLUSIVE) {
+            in.readHyper(); // verifier
+            created = tree.create(dir, name, NfsTestTree.NF3REG, 0644, caller.uid, caller.gid);
+        } else {
+            created = (existing != null) ? existing
+                    : tree.create(dir, name, NfsTestTree.NF3REG, 0644, caller.uid, caller.gid);
+            applyAttributes(in, created);
+        }
+        out.writeInt(NFS3_OK);
+        out.writeBoolean(true);
+        writeHandle(out, created);
+        writePostOp(out, created);
+        writeWcc(out, before, dir);
+    }
+
+    void mkdir(XDR in, XDR out, Caller caller) {
+        Node dir = readHandle(in);
+        String name = in.readString();
+        if (dir == null || !dir.isDirectory()) {
+            out.writeInt(dir == null ? NFS3ERR_STALE : NFS3ERR_NOTDIR);
+            writeWcc(out, dir);
+            return;
+        }
+        long before[] = preOp(dir);
+        if (child(dir, name) != null) {
+            out.writeInt(NFS3ERR_EXIST);
+            writeWcc(out, before, dir);
+            return;
+        }
+        Node created = tree.create(dir, name, NfsTestTree.NF3DIR, 0755, caller.uid, caller.gid);
+        applyAttributes(in, created);
+        out.writeInt(NFS3_OK);
+        out.writeBoolean(true);
+        writeHandle(out, created);
+        writePostOp(out, created);
+        writeWcc(out, before, dir);
+    }
+
+    void remove(XDR in, XDR out, boolean directory) {
+        Node dir = readHandle(in);
+        String name = in.readString();
+        if (dir == null || !dir.isDirectory()) {
+            out.writeInt(dir == null ? NFS3ERR_STALE : NFS3ERR_NOTDIR);
+            writeWcc(out, dir);
+            return;
+        }
+        long before[] = preOp(dir);
+        Node node = child(dir, name);
+        int status = NFS3_OK;
+        if (node == null || name.equals(".") || name.equals("..")) {
+            status = (node == null) ? NFS3ERR_NOENT : NFS3ERR_INVAL;
+        } else if (directory && !node.isDirectory()) {
+            status = NFS3ERR_NOTDIR;
+        } else if (!directory && node.isDirectory()) {
+            status = NFS3ERR_ISDIR;
+        } else if (directory && !node.children.isEmpty()) {
+            status = NFS3ERR_NOTEMPTY;
+        } else {
+            tree.remove(dir, name);
+        }
+        out.writeInt(status);
+        writeWcc(out, before, dir);
+    }
+
+    void rename(XDR in, XDR out) {
+        Node fromDir = readHandle(in);
+        String fromName = in.readString();
+        Node toDir = readHandle(in);
+        String toName = in.readString();
+        if (fromDir == null || toDir == null) {
+            out.writeInt(NFS3ERR_STALE);
+            writeWcc(out, fromDir);
+            writeWcc(out, toDir);
+            return;
+        }
+        long fromBefore[] = preOp(fromDir);
+        long toBefore[] = preOp(toDir);
+        int status = NFS3_OK;
+        Node node = child(fromDir, fromName);
+        Node target = child(toDir, toName);
+        if (node == null) {
+            status = NFS3ERR_NOENT;
+        } else if (node.isDirectory() && tree.isWithin(toDir, node)) {
+            status = NFS3ERR_INVAL;
+        } else if (target == node) {
+            status = NFS3_OK;
+        } else if (target != null && target.isDirectory() != node.isDirectory()) {
+            status = target.isDirectory() ? NFS3ERR_ISDIR : NFS3ERR_NOTDIR;
+        } else if (target != null && target.isDirectory() && !target.children.isEmpty()) {
+            status = NFS3ERR_NOTEMPTY;
+        } else {
+            tree.rename(fromDir, fromName, toDir, toName);
+        }
+        out.writeInt(status);
+        writeWcc(out, fromBefore, fromDir);
+        writeWcc(out, toBefore, toDir);
+    }
+
+    void readdir(XDR in, XDR out, boolean plus) {
+        Node dir = readHandle(in);
+        long cookie = in.readHyper();
+        in.readHyper(); // cookie verifier
+        int count = in.readInt();
+        if (plus) {
+            count = in.readInt(); // maxcount bounds the whole reply
+        }
+        if (dir == null || !dir.isDirectory()) {
+            out.writeInt(dir == null ? NFS3ERR_STALE : NFS3ERR_NOTDIR);
+            writePostOp(out, dir);
+            return;
+        }
+
+        // Cookies 1 and 2 are "." and "..", the entries follow in name order. The cookie verifier
+        // is the directory mtime, but like most servers this one does not check it.
+        List<Map.Entry<String, Node>> entries = tree.list(dir);
+        XDR list = new XDR();
+        int used = 4 + 4 + 84 + 8 + 4 + 4;
+        long next = cookie;
+        long total = entries.size() + 2;
+        for (; next < total; ++next) {
+            String name;
+            Node node;
+            if (next == 0) {
+                name = ".";
+                node = dir;
+            } else if (next == 1) {
+                name = "..";
+                node = dir.parent;
+            } else {
+                Map.Entry<String, Node> entry = entries.get((int) next - 2);
+                name = entry.getKey();
+                node = entry.getValue();
+            }
+            byte nameBytes[] = name.getBytes(StandardCharsets.UTF_8);
+            int size = (plus ? ENTRY_PLUS_SIZE : ENTRY_SIZE) + ((nameBytes.length + 3) & ~3);
+            if (used + size > count) {
+                break;
+            }
+            used += size;
+            list.writeBoolean(true);
+            list.writeLongAsHyper(node.fileId);
+            list.writeVariableOpaque(nameBytes);
+            list.writeLongAsHyper(next + 1);
+            if (plus) {
+                writePostOp(list, node);
+                list.writeBoolean(true);
+                writeHandle(list, node);
+            }
+        }
+        if (next == cookie && next < total) {
+            out.writeInt(NFS3ERR_TOOSMALL);
+            writePostOp(out, dir);
+            return;
+        }
+        out.writeInt(NFS3_OK);
+        writePostOp(out, dir);
+        out.writeLongAsHyper(dir.mtime);
+        out.writeFixedOpaque(list.getBytes());
+        out.writeBoolean(false);
+        out.writeBoolean(next >= total);
+    }
+
+    void fsstat(XDR in, XDR out) {
+        Node node = readHandle(in);
+        if (node == null) {
+            out.writeInt(NFS3ERR_STALE);
+            writePostOp(out, null);
+            return;
+        }
+        long capacity = 1L << 40;
+        out.writeInt(NFS3_OK);
+        writePostOp(out, node);
+        out.writeLongAsHyper(capacity); // tbytes
+        out.writeLongAsHyper(capacity); // fbytes
+        out.writeLongAsHyper(capacity); // abytes
+        out.writeLongAsHyper(1L << 32); // tfiles
+        out.writeLongAsHyper((1L << 32) - tree.nodes.size());
+        out.writeLongAsHyper((1L << 32) - tree.nodes.size());
+        out.writeInt(0); // invarsec
+    }
+
+    void fsinfo(XDR in, XDR out) {
+        Node node = readHandle(in);
+        if (node == null) {
+            out.writeInt(NFS3ERR_STALE);
+            writePostOp(out, null);
+            return;
+        }
+        int max = server.getMaxTransferSize();
+        out.writeInt(NFS3_OK);
+        writePostOp(out, node);
+        out.writeInt(max); // rtmax
+        out.writeInt(max); // rtpref
+        out.writeInt(4096); // rtmult
+        out.writeInt(max); // wtmax
+        out.writeInt(max); // wtpref
+        out.writeInt(4096); // wtmult
+        out.writeInt(65536); // dtpref
+        out.writeLongAsHyper(Integer.MAX_VALUE); // maxfilesize, the data is one array
+        out.writeInt(0); // time_delta
+        out.writeInt(1);
+        out.writeInt(0x0008 | 0x0010); // FSF3_HOMOGENEOUS | FSF3_CANSETTIME
+    }
+
+    void pathconf(XDR in, XDR out) {
+        Node node = readHandle(in);
+        if (node == null) {
+            out.writeInt(NFS3ERR_STALE);
+            writePostOp(out, null);
+            return;
+        }
+        out.writeInt(NFS3_OK);
+        writePostOp(out, node);
+        out.writeInt(1); // linkmax
+        out.writeInt(255); // name_max
+        out.writeBoolean(true); // no_trunc
+        out.writeBoolean(true); // chown_restricted
+        out.writeBoolean(false); // case_insensitive
+        out.writeBoolean(true); // case_preserving
+    }
+
+    void commit(XDR in, XDR out) {
+        Node node = readHandle(in);
+        in.readHyper(); // offset
+        in.readInt(); // count
+        if (node == null) {
+            out.writeInt(NFS3ERR_STALE);
+            writeWcc(out, null);
+            return;
+        }
+        long before[] = preOp(node);
+        tree.commit(node);
+        out.writeInt(NFS3_OK);
+        writeWcc(out, before, node);
+        out.writeLongAsHyper(server.getWriteVerifier());
+    }
+
+    /* READLINK, SYMLINK, MKNOD, LINK: the tree has regular files and directories only */
+    void notsupp(int procedure, XDR out) {
+        out.writeInt(NFS3ERR_NOTSUPP);
+        if (procedure == 5) {
+            writePostOp(out, null);
+        } else if (procedure == 15) {
+            writePostOp(out, null);
+            writeWcc(out, null);
+        } else {
+            writeWcc(out, null);
+        }
+    }
+
+    /*
+     * Encoding helpers
+     */
+    Node readHandle(XDR in) {
+        byte handle[] = in.readVariableOpaque();
+        if (handle.length < 8) {
+            return null;
+        }
+        return tree.get(ByteBuffer.wrap(handle).getLong());
+    }
+
+    Node child(Node dir, String name) {
+        if (name.equals(".")) {
+            return dir;
+        }
+        if (name.equals("..")) {
+            return dir.parent;
+        }
+        return dir.children.get(name);
+    }
+
+    /* sattr3 */
+    void applyAttributes(XDR in, Node node) {
+        if (in.readBoolean()) {
+            node.mode = in.readInt() & 07777;
+        }
+        if (in.readBoolean()) {
+            node.uid = in.readInt();
+        }
+        if (in.readBoolean()) {
+            node.gid = in.readInt();
+        }
+        if (in.readBoolean()) {
+            long size = in.readHyper();
+            if (!node.isDirectory()) {
+                tree.truncate(node, size);
+            }
+        }
+        node.atime = readTime(in, node.atime);
+        node.mtime = readTime(in, node.mtime);
+    }
+
+    long readTime(XDR in, long current) {
+        switch (in.readInt()) {
+            case 1: // SET_TO_SERVER_TIME
+                return tree.now();
+            case 2: // SET_TO_CLIENT_TIME
+                long seconds = in.readInt() & 0xffffffffL;
+                long nanos = in.readInt() & 0xffffffffL;
+                return seconds * 1000000000L + nanos;
+            default:
+                return current;
+        }
+    }
+
+    static void writeAccepted(XDR out, int xid, int acceptState) {
+        out.writeInt(xid);
+        out.writeInt(1); // REPLY
+        out.writeInt(0); // MSG_ACCEPTED
+        out.writeInt(0); // AUTH_NONE verifier
+        out.writeInt(0);
+        out.writeInt(acceptState);
+    }
+
+    static void writeMismatch(XDR out, int xid, int version) {
+        writeAccepted(out, xid, PROG_MISMATCH);
+        out.writeInt(version);
+        out.writeInt(version);
+    }
+
+    static void writeHandle(XDR out, Node node) {
+        new Nfs3FileHandle(node.fileId).serialize(out);
+    }
+
+    static void writeTime(XDR out, long time) {
+        out.writeInt((int) (time / 1000000000L));
+        out.writeInt((int) (time % 1000000000L));
+    }
+
+    /* fattr3 */
+    void writeAttributes(XDR out, Node node) {
+        out.writeInt(node.type);
+        out.writeInt(node.mode);
+        out.writeInt(node.getLinks());
+        out.writeInt(node.uid);
+        out.writeInt(node.gid);
+        out.writeLongAsHyper(node.getSize());
+        out.writeLongAsHyper(node.getSize());
+        out.writeInt(0); // rdev
+        out.writeInt(0);
+        out.writeLongAsHyper(server.getFsid());
+        out.writeLongAsHyper(node.fileId);
+        writeTime(out, node.atime);
+        writeTime(out, node.mtime);
+        writeTime(out, node.ctime);
+    }
+
+    void writePostOp(XDR out, Node node) {
+        out.writeBoolean(node != null);
+        if (node != null) {
+            writeAttributes(out, node);
+        }
+    }
+
+    /* size, mtime and ctime before a change */
+    static long[] preOp(Node node) {
+        return new long[] { node.getSize(), node.mtime, node.ctime };
+    }
+
+    void writeWcc(XDR out, Node node) {
+        out.writeBoolean(false);
+        writePostOp(out, node);
+    }
+
+    void writeWcc(XDR out, long before[], Node node) {
+        out.writeBoolean(true);
+        out.writeLongAsHyper(before[0]);
+        writeTime(out, before[1]);
+        writeTime(out, before[2]);
+        writePostOp(out, node);
+    }
+
+}
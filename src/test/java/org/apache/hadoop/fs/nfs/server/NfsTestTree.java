@@ -0,0 +1,263 @@
+/*
+ * Copyright 2015 Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.nfs.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory file tree served by {@link NfsTestServer}. Files keep the data of unstable writes apart
+ * from the last committed data, so that a server reboot can lose it like a real server would.
+ * Callers synchronize on the tree.
+ */
+public class NfsTestTree {
+
+    public static final int NF3REG = 1;
+    public static final int NF3DIR = 2;
+
+    public static class Node {
+        final long fileId;
+        final int type;
+        Node parent;
+        int mode;
+        int uid;
+        int gid;
+        long atime;
+        long mtime;
+        long ctime;
+        final TreeMap<String, Node> children;
+        byte data[];
+        long size;
+        /* Data as of the last commit while unstable writes are pending, null otherwise */
+        byte committed[];
+        long committedSize;
+
+        Node(long fileId, int type, int mode, int uid, int gid, long now) {
+            this.fileId = fileId;
+            this.type = type;
+            this.mode = mode;
+            this.uid = uid;
+            this.gid = gid;
+            this.atime = now;
+            this.mtime = now;
+            this.ctime = now;
+            this.children = (type == NF3DIR) ? new TreeMap<String, Node>() : null;
+            this.data = new byte[0];
+        }
+
+        public long getFileId() {
+            return fileId;
+        }
+
+        public boolean isDirectory() {
+            return type == NF3DIR;
+        }
+
+        public long getSize() {
+            return isDirectory() ? 4096 : size;
+        }
+
+        public int getLinks() {
+            if (!isDirectory()) {
+                return 1;
+            }
+            int links = 2;
+            for (Node child : children.values()) {
+                if (child.isDirectory()) {
+                    links++;
+                }
+            }
+            return links;
+        }
+
+        public byte[] read(long offset, int count) {
+            if (offset >= size) {
+                return new byte[0];
+            }
+            int length = (int) Math.min(count, size - offset);
+            return Arrays.copyOfRange(data, (int) offset, (int) offset + length);
+        }
+    }
+
+    final Map<Long, Node> nodes;
+    final Node root;
+    long nextFileId;
+    long lastTime;
+
+    public NfsTestTree() {
+        nodes = new ConcurrentHashMap<>();
+        nextFileId = 2;
+        root = new Node(nextFileId++, NF3DIR, 0777, 0, 0, now());
+        root.parent = root;
+        nodes.put(root.fileId, root);
+    }
+
+    public Node getRoot() {
+        return root;
+    }
+
+    public Node get(long fileId) {
+        return nodes.get(fileId);
+    }
+
+    /* Resolve an absolute path, null if any part is missing */
+    public synchronized Node resolve(String path) {
+        Node node = root;
+        for (String part : path.split("/")) {
+            if (part.isEmpty() || part.equals(".")) {
+                continue;
+            }
+            if (part.equals("..")) {
+                node = node.parent;
+                continue;
+            }
+            if (!node.isDirectory() || (node = node.children.get(part)) == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    /* Nanoseconds since the epoch, strictly increasing so that every change moves ctime */
+    synchronized long now() {
+        lastTime = Math.max(System.currentTimeMillis() * 1000000L, lastTime + 1);
+        return lastTime;
+    }
+
+    public synchronized Node create(Node dir, String name, int type, int mode, int uid, int gid) {
+        Node node = new Node(nextFileId++, type, mode, uid, gid, now());
+        node.parent = dir;
+        dir.children.put(name, node);
+        nodes.put(node.fileId, node);
+        touch(dir);
+        return node;
+    }
+
+    public synchronized void remove(Node dir, String name) {
+        Node node = dir.children.remove(name);
+        if (node != null) {
+            forget(node);
+            touch(dir);
+        }
+    }
+
+    synchronized void rename(Node fromDir, String fromName, Node toDir, String toName) {
+        Node node = fromDir.children.remove(fromName);
+        Node replaced = toDir.children.put(toName, node);
+        if (replaced != null) {
+            forget(replaced);
+        }
+        node.parent = toDir;
+        node.ctime = now();
+        touch(fromDir);
+        touch(toDir);
+    }
+
+    /* True if node is dir or one of its descendants */
+    synchronized boolean isWithin(Node node, Node dir) {
+        for (Node current = node; ; current = current.parent) {
+            if (current == dir) {
+                return true;
+            }
+            if (current == root) {
+                return false;
+            }
+        }
+    }
+
+    public synchronized void write(Node file, long offset, byte buf[], int length, boolean stable) {
+        if (!stable && file.committed == null) {
+            file.committed = Arrays.copyOf(file.data, (int) file.size);
+            file.committedSize = file.size;
+        }
+        writeTo(file, offset, buf, length);
+        if (stable && file.committed != null) {
+            int end = (int) (offset + length);
+            if (file.committed.length < end) {
+                file.committed = Arrays.copyOf(file.committed, end);
+            }
+            System.arraycopy(buf, 0, file.committed, (int) offset, length);
+            file.committedSize = Math.max(file.committedSize, end);
+        }
+        file.mtime = file.ctime = now();
+    }
+
+    synchronized void truncate(Node file, long size) {
+        if (size > file.data.length) {
+            file.data = Arrays.copyOf(file.data, (int) size);
+        } else if (size < file.size) {
+            Arrays.fill(file.data, (int) size, (int) file.size, (byte) 0);
+        }
+        file.size = size;
+        if (file.committed != null) {
+            file.committed = Arrays.copyOf(file.committed, (int) size);
+            file.committedSize = size;
+        }
+        file.mtime = file.ctime = now();
+    }
+
+    synchronized void commit(Node file) {
+        file.committed = null;
+    }
+
+    /* Lose every write that was not committed */
+    synchronized int revertUncommitted() {
+        int reverted = 0;
+        for (Node node : nodes.values()) {
+            if (node.committed != null) {
+                node.data = node.committed;
+                node.size = node.committedSize;
+                node.committed = null;
+                reverted++;
+            }
+        }
+        return reverted;
+    }
+
+    synchronized List<Map.Entry<String, Node>> list(Node dir) {
+        return new ArrayList<>(dir.children.entrySet());
+    }
+
+    void touch(Node dir) {
+        dir.mtime = dir.ctime = now();
+    }
+
+    void writeTo(Node file, long offset, byte buf[], int length) {
+        int end = (int) (offset + length);
+        if (file.data.length < end) {
+            file.data = Arrays.copyOf(file.data, Math.max(end, Math.min(2 * file.data.length, end + (64 << 20))));
+        }
+        if (offset > file.size) {
+            Arrays.fill(file.data, (int) file.size, (int) offset, (byte) 0);
+        }
+        System.arraycopy(buf, 0, file.data, (int) offset, length);
+        file.size = Math.max(file.size, end);
+    }
+
+    void forget(Node node) {
+        nodes.remove(node.fileId);
+        if (node.isDirectory()) {
+            for (Node child : node.children.values()) {
+                forget(child);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015 Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.nfs.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.nfs.NFSv3FileSystem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestNfsTestServer {
+
+    NfsTestServer server;
+    NFSv3FileSystem fs;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new NfsTestServer();
+        Configuration conf = server.getConfiguration();
+        fs = new NFSv3FileSystem();
+        fs.initialize(new URI(conf.get("fs.defaultFS")), conf);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        fs.close();
+        server.close();
+    }
+
+    byte[] write(Path path, int length) throws Exception {
+        byte data[] = new byte[length];
+        new Random(length).nextBytes(data);
+        try (FSDataOutputStream out = fs.create(path, true)) {
+            out.write(data);
+        }
+        return data;
+    }
+
+    /* Open first, which brings the cached attributes up to date, then size the buffer */
+    byte[] read(Path path) throws Exception {
+        try (FSDataInputStream in = fs.open(path)) {
+            byte data[] = new byte[(int) fs.getFileStatus(path).getLen()];
+            in.readFully(0, data);
+            return data;
+        }
+    }
+
+    @Test
+    public void testFileOperations() throws Exception {
+        Path dir = new Path("/dir");
+        assertTrue(fs.mkdirs(dir));
+        byte data[] = write(new Path(dir, "file"), 3 * 1000 * 1000 + 7);
+        assertArrayEquals(data, read(new Path(dir, "file")));
+
+        FileStatus listing[] = fs.listStatus(dir);
+        assertEquals(1, listing.length);
+        assertEquals("file", listing[0].getPath().getName());
+        assertEquals(data.length, listing[0].getLen());
+
+        assertTrue(fs.rename(new Path(dir, "file"), new Path("/moved")));
+        assertFalse(fs.exists(new Path(dir, "file")));
+        assertArrayEquals(data, read(new Path("/moved")));
+        assertNotNull(server.getTree().resolve("/moved"));
+
+        assertTrue(fs.delete(dir, true));
+        assertTrue(fs.delete(new Path("/moved"), false));
+        assertNull(server.getTree().resolve("/dir"));
+        assertEquals(0, fs.listStatus(new Path("/")).length);
+    }
+
+    @Test
+    public void testRebootLosesUncommittedWrites() throws Exception {
+        byte data[] = write(new Path("/file"), 100000);
+        NfsTestTree tree = server.getTree();
+        NfsTestTree.Node file = tree.resolve("/file");
+        synchronized (tree) {
+            tree.write(file, 0, new byte[10], 10, false);
+            tree.write(file, 200000, new byte[10], 10, false);
+        }
+        // Our own writes left their attributes in the cache, opening the file fetches them again
+        fs.open(new Path("/file")).close();
+        assertEquals(200010, fs.getFileStatus(new Path("/file")).getLen());
+
+        long verifier = server.getWriteVerifier();
+        server.reboot();
+        assertNotEquals(verifier, server.getWriteVerifier());
+        // The client reconnects and sees the file as of the last commit
+        assertArrayEquals(data, read(new Path("/file")));
+    }
+
+    @Test
+    public void testDroppedCallsAreRetransmitted() throws Exception {
+        server.setDropRate(0.05);
+        for (int i = 0; i < 10; ++i) {
+            assertTrue(fs.mkdirs(new Path("/dir" + i)));
+        }
+        byte data[] = write(new Path("/dir0/file"), 1 << 20);
+        assertArrayEquals(data, read(new Path("/dir0/file")));
+        assertEquals(10, fs.listStatus(new Path("/")).length);
+        assertTrue(server.getCalls() > 0);
+    }
+
+}
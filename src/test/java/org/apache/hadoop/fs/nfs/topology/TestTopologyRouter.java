@@ -15,13 +15,21 @@
  */
 package org.apache.hadoop.fs.nfs.topology;
 
+import java.net.ServerSocket;
 import java.net.URI;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.nfs.NFSv3FileSystem;
+import org.apache.hadoop.fs.nfs.NFSv3FileSystemStore;
+import org.apache.hadoop.fs.nfs.server.NfsTestServer;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 
 
@@ -75,4 +83,104 @@ public class TestTopologyRouter {
         assertEquals(new URI("nfs://blahblah:2049/"), ns.getUri());
     }
     
+    @Test
+    public void testFailoverCandidates() throws Exception {
+        List<Namespace> spaces = new LinkedList<>();
+        Namespace space = new Namespace("default", new URI("nfs://somehost:2049/"));
+        List<Endpoint> points = new LinkedList<>();
+        points.add(new Endpoint(new URI("nfs://host1"), "/vol/volA", "/data01"));
+        points.add(new Endpoint(new URI("nfs://host2"), "/vol/volA", "/data01"));
+        points.add(new Endpoint(new URI("nfs://host3"), "/vol/volB", "/data01"));
+        space.setEndpoints(points);
+        spaces.add(space);
+        Mapping mapping = new Mapping(spaces);
+        
+        SimpleTopologyRouter router = new SimpleTopologyRouter();
+        router.initialize(new NFSv3FileSystem(), mapping.getNamespace(new URI("nfs://somehost:2049/")), new Configuration());
+        List<Endpoint> candidates = router.getCandidates(points.get(1));
+        assertEquals(2, candidates.size());
+        assertEquals(points.get(1), candidates.get(0));
+        assertEquals(points.get(0), candidates.get(1));
+    }
+    
+    @Test
+    public void testShutdownStopsHealthChecks() throws Exception {
+        List<Namespace> spaces = new LinkedList<>();
+        Namespace space = new Namespace("default", new URI("nfs://somehost:2049/"));
+        List<Endpoint> points = new LinkedList<>();
+        points.add(new Endpoint(new URI("nfs://host1"), "/vol/volA", "/data01"));
+        space.setEndpoints(points);
+        spaces.add(space);
+        Mapping mapping = new Mapping(spaces);
+        
+        SimpleTopologyRouter router = new SimpleTopologyRouter();
+        router.initialize(new NFSv3FileSystem(), mapping.getNamespace(new URI("nfs://somehost:2049/")), new Configuration());
+        assertNotNull(router.checker.task);
+        router.shutdown();
+        assertNull(router.checker.task);
+    }
+    
+    @Test
+    public void testFailoverFromUnreachableEndpoint() throws Exception {
+        int closedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+        try (NfsTestServer server = new NfsTestServer()) {
+            Configuration conf = server.getConfiguration();
+            URI uri = new URI(conf.get("fs.defaultFS"));
+            NFSv3FileSystem fs = new NFSv3FileSystem();
+            fs.initialize(uri, conf);
+            try {
+                // Both serve the same export, the one the router picks first cannot be reached
+                Namespace space = Mapping.loadFromFile(conf.get("fs.nfs.configuration")).getNamespace(uri);
+                Endpoint live = new Endpoint(new URI("nfs://localhost:" + server.getNfsPort()), "/", "/");
+                Endpoint dead = new Endpoint(new URI("nfs://localhost:" + closedPort), "/", "/");
+                List<Endpoint> points = new LinkedList<>();
+                points.add(dead);
+                points.add(live);
+                space.setEndpoints(points);
+                SimpleTopologyRouter router = new SimpleTopologyRouter();
+                router.initialize(fs, space, conf);
+                if (!router.chooseEndpoint(space, new Path("/file")).equals(dead)) {
+                    Collections.reverse(points);
+                    space.setEndpoints(points);
+                }
+                assertEquals(dead, router.chooseEndpoint(space, new Path("/file")));
+                
+                try {
+                    NFSv3FileSystemStore store = router.getStore(new Path("/file"));
+                    assertEquals(live, store.getEndpoint());
+                    assertFalse(router.getHealth(dead).isUp());
+                    assertTrue(router.getHealth(live).isUp());
+                    assertEquals(1, router.getAllStores().size());
+                } finally {
+                    for (NFSv3FileSystemStore store : router.getAllStores()) {
+                        store.shutdown();
+                    }
+                    router.shutdown();
+                }
+            } finally {
+                fs.close();
+            }
+        }
+    }
+    
+    @Test
+    public void testEndpointHealth() throws Exception {
+        EndpointHealth health = new EndpointHealth(new Endpoint(new URI("nfs://host1"), "/vol/volA", "/data01"), 2);
+        assertTrue(health.isUp());
+        assertFalse(health.failure());
+        assertTrue(health.isUp());
+        assertTrue(health.failure());
+        assertFalse(health.isUp());
+        assertFalse(health.isRetryable(60000));
+        assertTrue(health.isRetryable(0));
+        
+        health.success(100);
+        assertTrue(health.isUp());
+        assertEquals(0, health.getFailures());
+        assertEquals(100, health.getLatencyUs());
+    }
+    
 }